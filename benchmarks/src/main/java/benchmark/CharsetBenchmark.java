@@ -0,0 +1,51 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import util.Settings;
+
+//收发时的gb2312编解码,即FrameCodec及各Device中的getBytes/new String
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharsetBenchmark {
+	@Param({ "16", "256", "4096", "65536" })
+	int payloadSize;
+
+	@Param({ "false", "true" })
+	boolean chinese;
+
+	String text;
+	byte[] bytes;
+
+	@Setup
+	public void setup() {
+		text = Payloads.of(payloadSize, chinese);
+		bytes = text.getBytes(Settings.charset);
+	}
+
+	@Benchmark
+	public byte[] getBytes() {
+		return text.getBytes(Settings.charset);
+	}
+
+	@Benchmark
+	public String newString() {
+		return new String(bytes, Settings.charset);
+	}
+}
@@ -0,0 +1,116 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import message.ErrorMessage;
+import message.HeartbeatMessage;
+import message.MessageFactory;
+import message.RegistryMessage;
+
+//长度固定的控制消息:心跳、错误、注册消息的包装及解封
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ControlMessageBenchmark {
+	static final String Key = "123456";
+
+	String heartbeatJson;
+	String errorJson;
+	String registryJson;
+	ErrorMessage error;
+
+	@Setup
+	public void setup() {
+		heartbeatJson = MessageFactory.wrapHeartbeatRequestMessage(7);
+		errorJson = MessageFactory.wrapErrorMessage(ErrorMessage.c6);
+		registryJson = MessageFactory.wrapRegistryMessage(Key, RegistryMessage.LOCAL_SERVER,
+				MessageFactory.supportedCodecs(), 16);
+		error = MessageFactory.unwrapErrorMessage(errorJson);
+	}
+
+	@Benchmark
+	public String wrapHeartbeatRequestMessage() {
+		return MessageFactory.wrapHeartbeatRequestMessage();
+	}
+
+	@Benchmark
+	public String wrapHeartbeatRequestMessageWithSeq() {
+		return MessageFactory.wrapHeartbeatRequestMessage(7);
+	}
+
+	@Benchmark
+	public String wrapHeartbeatResponseMessage() {
+		return MessageFactory.wrapHeartbeatResponseMessage();
+	}
+
+	@Benchmark
+	public String wrapHeartbeatResponseMessageWithSeq() {
+		return MessageFactory.wrapHeartbeatResponseMessage(7);
+	}
+
+	@Benchmark
+	public String wrapHeartbeatMessage() {
+		return MessageFactory.wrapHeartbeatMessage(HeartbeatMessage.REQUEST);
+	}
+
+	@Benchmark
+	public String wrapHeartbeatMessageWithSeq() {
+		return MessageFactory.wrapHeartbeatMessage(HeartbeatMessage.VALID, 7);
+	}
+
+	@Benchmark
+	public HeartbeatMessage unwrapHeartbeatMessage() {
+		return MessageFactory.unwrapHeartbeatMessage(heartbeatJson);
+	}
+
+	@Benchmark
+	public String wrapErrorMessage() {
+		return MessageFactory.wrapErrorMessage(ErrorMessage.c6);
+	}
+
+	@Benchmark
+	public String wrapErrorMessageObject() {
+		return MessageFactory.wrapErrorMessage(error);
+	}
+
+	@Benchmark
+	public ErrorMessage unwrapErrorMessage() {
+		return MessageFactory.unwrapErrorMessage(errorJson);
+	}
+
+	@Benchmark
+	public String wrapRegistryMessage() {
+		return MessageFactory.wrapRegistryMessage(Key, RegistryMessage.REMOTE_CONTROLLER);
+	}
+
+	@Benchmark
+	public String wrapRegistryMessageWithCodecs() {
+		return MessageFactory.wrapRegistryMessage(Key, RegistryMessage.REMOTE_CONTROLLER,
+				MessageFactory.supportedCodecs());
+	}
+
+	@Benchmark
+	public String wrapRegistryMessageWithCredits() {
+		return MessageFactory.wrapRegistryMessage(Key, RegistryMessage.LOCAL_SERVER, MessageFactory.supportedCodecs(),
+				16);
+	}
+
+	@Benchmark
+	public RegistryMessage unwrapRegistryMessage() {
+		return MessageFactory.unwrapRegistryMessage(registryJson);
+	}
+}
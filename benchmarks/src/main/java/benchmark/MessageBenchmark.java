@@ -0,0 +1,165 @@
+package benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import message.CloudMessage;
+import message.Message;
+import message.MessageCodec;
+import message.MessageFactory;
+import util.Settings;
+
+//随payload长度变化的消息:纯文本消息及转发消息的包装、解封、复制,以及两种MessageCodec的编解码
+//gson*为改用JsonCodec之前MessageFactory基于Gson反射的实现,输出相同,作为对照
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+	static final String FromKey = "123456", ToKey = "654321", DeviceName = "EN-BOYS-DEVICE";
+
+	@Param({ "16", "256", "4096", "65536" })
+	int payloadSize;
+
+	String data;
+	String rawJson;
+	String cloudJson;
+	String replyData;
+	CloudMessage cloudMsg;
+	Message cloudBase;
+	ByteBuffer jsonFrame;
+	ByteBuffer binaryFrame;
+	Gson gson = new Gson();
+
+	@Setup
+	public void setup() {
+		data = Payloads.of(payloadSize, false);
+		rawJson = MessageFactory.wrapMessage(data);
+		cloudJson = MessageFactory.wrapCloudMessage(FromKey, ToKey, DeviceName, data, 42);
+		replyData = MessageFactory.wrapMessage(data);
+		cloudMsg = MessageFactory.unwrapCloudMessage(cloudJson);
+		cloudBase = MessageFactory.decodeMessage(cloudJson);
+		jsonFrame = ByteBuffer.wrap(cloudJson.getBytes(Settings.charset));
+		binaryFrame = MessageFactory.codec(MessageCodec.BINARY).encode(cloudBase, 0);
+	}
+
+	@Benchmark
+	public String wrapMessage() {
+		return MessageFactory.wrapMessage(data);
+	}
+
+	@Benchmark
+	public Message unwrapMessage() {
+		return MessageFactory.unwrapMessage(rawJson);
+	}
+
+	@Benchmark
+	public String wrapCloudMessage() {
+		return MessageFactory.wrapCloudMessage(FromKey, ToKey, DeviceName, data);
+	}
+
+	@Benchmark
+	public String wrapCloudMessageWithRequestId() {
+		return MessageFactory.wrapCloudMessage(FromKey, ToKey, DeviceName, data, 42);
+	}
+
+	@Benchmark
+	public String wrapCloudMessageObject() {
+		return MessageFactory.wrapCloudMessage(cloudMsg);
+	}
+
+	@Benchmark
+	public CloudMessage unwrapCloudMessage() {
+		return MessageFactory.unwrapCloudMessage(cloudJson);
+	}
+
+	@Benchmark
+	public String wrapRetCloudMessage() {
+		return MessageFactory.wrapRetCloudMessage(cloudMsg, replyData);
+	}
+
+	@Benchmark
+	public CloudMessage cloudMessageCopy() {
+		return cloudMsg.copy();
+	}
+
+	@Benchmark
+	public Message decodeMessageString() {
+		return MessageFactory.decodeMessage(cloudJson);
+	}
+
+	@Benchmark
+	public Message decodeMessageJsonFrame() {
+		return MessageFactory.decodeMessage(jsonFrame);
+	}
+
+	@Benchmark
+	public Message decodeMessageBinaryFrame() {
+		return MessageFactory.decodeMessage(binaryFrame);
+	}
+
+	@Benchmark
+	public String toJsonBinaryFrame() {
+		return MessageFactory.toJson(binaryFrame);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeJson() {
+		return MessageFactory.codec(MessageCodec.JSON).encode(cloudBase, 4);
+	}
+
+	@Benchmark
+	public ByteBuffer encodeBinary() {
+		return MessageFactory.codec(MessageCodec.BINARY).encode(cloudBase, 4);
+	}
+
+	@Benchmark
+	public String gsonWrapMessage() {
+		Message base = new Message();
+		base.data = data;
+		base.type = Message.rawType;
+		return gson.toJson(base);
+	}
+
+	@Benchmark
+	public Message gsonUnwrapMessage() {
+		return gson.fromJson(rawJson, Message.class);
+	}
+
+	// payload先编码为字符串放进data,再编码外层
+	@Benchmark
+	public String gsonWrapCloudMessage() {
+		CloudMessage msg = new CloudMessage();
+		msg.fromKey = FromKey;
+		msg.toKey = ToKey;
+		msg.info = DeviceName;
+		msg.data = data;
+		msg.requestId = 42;
+		Message base = new Message();
+		base.data = gson.toJson(msg);
+		base.type = CloudMessage.type;
+		return gson.toJson(base);
+	}
+
+	@Benchmark
+	public CloudMessage gsonUnwrapCloudMessage() {
+		Message base = gson.fromJson(cloudJson, Message.class);
+		return gson.fromJson(base.data, CloudMessage.class);
+	}
+}
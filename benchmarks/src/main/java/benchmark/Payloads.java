@@ -0,0 +1,20 @@
+package benchmark;
+
+//基准测试用的消息内容:按遥控器发给智能家具的命令格式重复填充到指定长度
+final class Payloads {
+	static final String Command = "{\"cmd\":\"set\",\"value\":1024}";
+	static final String ChineseCommand = "{\"命令\":\"打开客厅的灯\",\"亮度\":80}";
+
+	private Payloads() {
+	}
+
+	// 长度为size个字符
+	static String of(int size, boolean chinese) {
+		String unit = chinese ? ChineseCommand : Command;
+		StringBuilder sb = new StringBuilder(size);
+		while (sb.length() < size)
+			sb.append(unit);
+		sb.setLength(size);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,137 @@
+package component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import message.ErrorMessage;
+import message.Message;
+import message.MessageFactory;
+import message.MulticastMessage;
+import message.RegistryMessage;
+
+public class AggregateTest {
+	CloudServerSimulator cloud;
+	InetSocketAddress addr;
+	List<TestClient> clients = new ArrayList<TestClient>();
+
+	@Before
+	public void setUp() throws InterruptedException {
+		cloud = new CloudServerSimulator(0);
+		addr = TestClient.start(cloud);
+	}
+
+	@After
+	public void tearDown() {
+		for (TestClient client : clients)
+			client.close();
+		cloud.close();
+	}
+
+	TestClient register(String name, int deviceType) {
+		TestClient client = new TestClient(name, addr);
+		clients.add(client);
+		assertNotNull(client.register(deviceType, null));
+		return client;
+	}
+
+	// 接收分发给本地服务器的组播;其中不带toKeys
+	static MulticastMessage receiveMulticast(TestClient client) {
+		for (Message msg; (msg = client.receive()) != null;)
+			if (msg.type == MulticastMessage.type)
+				return (MulticastMessage) msg.payload;
+		return null;
+	}
+
+	// 本地服务器回传组播中每个设备的结果
+	static void reply(TestClient home, MulticastMessage request) {
+		MulticastMessage result = new MulticastMessage();
+		result.fromKey = home.device.name;
+		result.toKeys = Arrays.asList(request.fromKey);
+		result.requestId = request.requestId;
+		for (String info : request.infos)
+			result.addResult(home.device.name, info, MessageFactory.wrapMessage(home.device.name + "/" + info));
+		assertTrue(home.send(MessageFactory.wrapMulticastMessage(result)));
+	}
+
+	// 结果按本地服务器密钥、设备名查找
+	static String resultOf(MulticastMessage result, String key, String info) {
+		for (int i = 0; i < result.results.size(); i++)
+			if (result.keys.get(i).equals(key) && result.infos.get(i).equals(info))
+				return result.results.get(i);
+		return null;
+	}
+
+	// 各本地服务器的回传到齐后,汇总为一条回传给遥控器
+	@Test(timeout = 10000)
+	public void resultsAreAggregated() {
+		TestClient home1 = register("HOME-1", RegistryMessage.LOCAL_SERVER);
+		TestClient home2 = register("HOME-2", RegistryMessage.LOCAL_SERVER);
+		TestClient controller = register("CONTROLLER", RegistryMessage.REMOTE_CONTROLLER);
+		controller.send(MessageFactory.wrapMulticastMessage("CONTROLLER", Arrays.asList("HOME-1", "HOME-2"),
+				Arrays.asList("light", "fan"), null, "on", 7));
+
+		for (TestClient home : Arrays.asList(home1, home2)) {
+			MulticastMessage request = receiveMulticast(home);
+			assertNotNull(request);
+			assertNull(request.toKeys);
+			assertEquals(7, request.requestId);
+			reply(home, request);
+		}
+
+		MulticastMessage result = receiveMulticast(controller);
+		assertNotNull(result);
+		assertTrue(result.isResult());
+		assertEquals(7, result.requestId);
+		assertEquals(4, result.results.size());
+		for (String key : Arrays.asList("HOME-1", "HOME-2"))
+			for (String info : Arrays.asList("light", "fan"))
+				assertEquals(MessageFactory.wrapMessage(key + "/" + info), resultOf(result, key, info));
+		assertTrue(cloud.multicasts.isEmpty());
+	}
+
+	// 超时未回传的本地服务器,其每个设备的结果为c8错误
+	@Test(timeout = 10000)
+	public void timeoutFillsMissingParts() throws InterruptedException {
+		TestClient home1 = register("HOME-1", RegistryMessage.LOCAL_SERVER);
+		TestClient home2 = register("HOME-2", RegistryMessage.LOCAL_SERVER);
+		TestClient controller = register("CONTROLLER", RegistryMessage.REMOTE_CONTROLLER);
+		controller.send(MessageFactory.wrapMulticastMessage("CONTROLLER", Arrays.asList("HOME-1", "HOME-2"),
+				Arrays.asList("light"), null, "on", 8));
+
+		reply(home1, receiveMulticast(home1));
+		MulticastMessage silent = receiveMulticast(home2);
+		assertNotNull(silent);
+		String id = CloudServerSimulator.multicastId("CONTROLLER", 8);
+		CloudServerSimulator.Aggregate aggregate = cloud.multicasts.get(id);
+		assertNotNull(aggregate);
+		for (;;) {
+			synchronized (aggregate) {
+				if (aggregate.pending.size() == 1)
+					break;
+			}
+			Thread.sleep(10);
+		}
+		aggregate.expire(); // 不等待CloudMulticastTimeoutMillis
+
+		MulticastMessage result = receiveMulticast(controller);
+		assertNotNull(result);
+		assertEquals(8, result.requestId);
+		assertEquals(2, result.results.size());
+		assertEquals(MessageFactory.wrapMessage("HOME-1/light"), resultOf(result, "HOME-1", "light"));
+		ErrorMessage err = MessageFactory.unwrapErrorMessage(resultOf(result, "HOME-2", "light"));
+		assertNotNull(err);
+		assertEquals(ErrorMessage.c8, err.code);
+		assertTrue(cloud.multicasts.isEmpty());
+	}
+}
@@ -0,0 +1,139 @@
+package component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import util.Settings;
+
+public class CloudClusterTest {
+	static final String Nodes = "10.0.0.1:8001,10.0.0.2:8001,10.0.0.3:8001";
+
+	static CloudCluster cluster(String nodes, String self) {
+		List<InetSocketAddress> list = CloudCluster.parse(nodes);
+		return new CloudCluster(CloudCluster.parse(self).get(0), list, 160);
+	}
+
+	@Test
+	public void parsesNodeList() {
+		List<InetSocketAddress> nodes = CloudCluster.parse(" 10.0.0.1:8001, ,10.0.0.2:9001 ");
+		assertEquals(2, nodes.size());
+		assertEquals("10.0.0.2:9001", CloudCluster.nodeId(nodes.get(1)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void selfMustBeMember() {
+		cluster(Nodes, "10.0.0.4:8001");
+	}
+
+	// 各节点以相同的节点列表计算,结果一致;每个密钥恰有一个节点认为属于自己
+	@Test
+	public void ownerIsConsistentAcrossNodes() {
+		CloudCluster a = cluster(Nodes, "10.0.0.1:8001");
+		CloudCluster b = cluster(Nodes, "10.0.0.2:8001");
+		CloudCluster c = cluster(Nodes, "10.0.0.3:8001");
+		for (int i = 0; i < 1000; i++) {
+			String key = "key-" + i;
+			assertEquals(a.ownerOf(key), b.ownerOf(key));
+			assertEquals(a.ownerOf(key), c.ownerOf(key));
+			int local = (a.isLocal(key) ? 1 : 0) + (b.isLocal(key) ? 1 : 0) + (c.isLocal(key) ? 1 : 0);
+			assertEquals(1, local);
+		}
+	}
+
+	// 虚拟节点使密钥大致均匀分布
+	@Test
+	public void keysSpreadEvenly() {
+		CloudCluster cluster = cluster(Nodes, "10.0.0.1:8001");
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		int keys = 30000;
+		for (int i = 0; i < keys; i++) {
+			String owner = cluster.ownerOf("key-" + i);
+			Integer n = counts.get(owner);
+			counts.put(owner, n == null ? 1 : n + 1);
+		}
+		assertEquals(3, counts.size());
+		for (int n : counts.values())
+			assertTrue(String.valueOf(counts), n > keys / 3 * 0.8 && n < keys / 3 * 1.2);
+	}
+
+	// 增加节点时,只有移到新节点的密钥改变所属节点
+	@Test
+	public void addingNodeOnlyMovesKeysToIt() {
+		CloudCluster before = cluster(Nodes, "10.0.0.1:8001");
+		CloudCluster after = cluster(Nodes + ",10.0.0.4:8001", "10.0.0.1:8001");
+		int moved = 0;
+		for (int i = 0; i < 10000; i++) {
+			String key = "key-" + i;
+			String owner = after.ownerOf(key);
+			if (!owner.equals(before.ownerOf(key))) {
+				assertEquals("10.0.0.4:8001", owner);
+				moved++;
+			}
+		}
+		assertTrue(String.valueOf(moved), moved > 1500 && moved < 3500);
+	}
+
+	// 节点间连接只接受节点列表中对应主机发起的,不比较端口
+	@Test
+	public void admitsOnlyConfiguredHosts() throws UnknownHostException {
+		CloudCluster cluster = cluster(Nodes, "10.0.0.1:8001");
+		assertTrue(cluster.admits("10.0.0.2:8001", InetAddress.getByName("10.0.0.2")));
+		assertFalse(cluster.admits("10.0.0.2:8001", InetAddress.getByName("10.0.0.3")));
+		assertFalse(cluster.admits("10.0.0.9:8001", InetAddress.getByName("10.0.0.9")));
+		assertFalse(cluster.admits("10.0.0.2:8001", null));
+	}
+
+	// 对端节点不可达时转发立即失败,连接在消费者线程之外进行,失败后退避期内不再重试
+	@Test(timeout = 10000)
+	public void unreachableNodeBacksOff() throws IOException, InterruptedException {
+		CloudServerSimulator cloud = new CloudServerSimulator(0);
+		try {
+			InetSocketAddress self = TestClient.start(cloud);
+			ServerSocket closed = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+			InetSocketAddress peer = new InetSocketAddress(InetAddress.getLoopbackAddress(), closed.getLocalPort());
+			closed.close();
+			cloud.setCluster(Arrays.asList(self, peer), self);
+			String node = CloudCluster.nodeId(peer);
+			assertNull(cloud.linkTo(node));
+			CloudServerSimulator.NodeLink state = cloud.nodeLinks.get(node);
+			for (;;) {
+				synchronized (state) {
+					if (!state.connecting)
+						break;
+				}
+				Thread.sleep(10);
+			}
+			synchronized (state) {
+				assertEquals(Settings.CloudLinkRetryMillis, state.backoff);
+			}
+			assertNull(cloud.linkTo(node));
+			synchronized (state) {
+				assertFalse(state.connecting);
+			}
+		} finally {
+			cloud.close();
+		}
+	}
+
+	@Test
+	public void linkNames() {
+		String name = CloudCluster.linkName("10.0.0.2:8001");
+		assertTrue(CloudCluster.isLink(name));
+		assertFalse(CloudCluster.isLink("10.0.0.2:8001"));
+		assertFalse(CloudCluster.isLink(null));
+	}
+}
@@ -0,0 +1,87 @@
+package component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import message.CloudMessage;
+import message.ErrorMessage;
+import message.Message;
+import message.MessageFactory;
+import message.RegistryMessage;
+
+public class CreditLeaseTest {
+	CloudServerSimulator cloud;
+	InetSocketAddress addr;
+	List<TestClient> clients = new ArrayList<TestClient>();
+
+	@Before
+	public void setUp() throws InterruptedException {
+		cloud = new CloudServerSimulator(0);
+		addr = TestClient.start(cloud);
+	}
+
+	@After
+	public void tearDown() {
+		for (TestClient client : clients)
+			client.close();
+		cloud.close();
+	}
+
+	TestClient register(String name, int deviceType, int credits) {
+		TestClient client = new TestClient(name, addr);
+		client.credits = credits;
+		clients.add(client);
+		assertNotNull(client.register(deviceType, null));
+		return client;
+	}
+
+	// 遥控器伪造的回传错误不转发,回传c5错误
+	@Test(timeout = 10000)
+	public void forgedNoticeIsRejected() {
+		register("HOME", RegistryMessage.LOCAL_SERVER, 1);
+		TestClient controller = register("CONTROLLER", RegistryMessage.REMOTE_CONTROLLER, 0);
+		CloudMessage forged = new CloudMessage();
+		forged.fromKey = "CONTROLLER";
+		forged.toKey = "HOME";
+		forged.info = CloudMessage.ErrorMessage;
+		forged.data = "light";
+		controller.send(MessageFactory.wrapCloudMessage(forged));
+		Message msg = controller.receive();
+		assertNotNull(msg);
+		assertEquals(ErrorMessage.type, msg.type);
+		assertEquals(ErrorMessage.c5, ((ErrorMessage) msg.payload).code);
+	}
+
+	// 本地服务器丢弃的请求到期后归还信用,请求回传c8错误,暂缓的请求继续转发
+	@Test(timeout = 10000)
+	public void unansweredRequestReleasesCredit() {
+		TestClient home = register("HOME", RegistryMessage.LOCAL_SERVER, 1);
+		TestClient controller = register("CONTROLLER", RegistryMessage.REMOTE_CONTROLLER, 0);
+		controller.send(MessageFactory.wrapCloudMessage("CONTROLLER", "HOME", "light", "on", 1));
+		assertEquals(1, home.receiveCloud().requestId);
+		controller.send(MessageFactory.wrapCloudMessage("CONTROLLER", "HOME", "light", "off", 2));
+
+		CloudServerSimulator.ProducerDevice device = (CloudServerSimulator.ProducerDevice) cloud.getDevice("HOME");
+		CloudServerSimulator.Lease lease;
+		synchronized (device.leases) {
+			lease = device.leases.peek();
+		}
+		assertNotNull(lease);
+		lease.run(); // 不等待CloudCreditTimeoutMillis
+
+		CloudMessage err = controller.receiveCloud();
+		assertNotNull(err);
+		assertEquals(1, err.requestId);
+		assertEquals(CloudMessage.ErrorMessage, err.info);
+		assertEquals(ErrorMessage.c8, MessageFactory.unwrapErrorMessage(err.data).code);
+		assertEquals(2, home.receiveCloud().requestId);
+	}
+}
@@ -0,0 +1,165 @@
+package component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import message.CloudMessage;
+import util.Metrics;
+
+public class MailboxTest {
+	static final int SegmentBytes = 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	final List<Mailbox> opened = new ArrayList<Mailbox>();
+
+	@After
+	public void tearDown() {
+		for (Mailbox mailbox : opened)
+			mailbox.close();
+	}
+
+	// 最多3个日志段,其中一个留作压缩
+	Mailbox open(File dir) throws IOException {
+		Mailbox mailbox = new Mailbox(dir, SegmentBytes, 3 * SegmentBytes, 1000, 60000, new Metrics());
+		opened.add(mailbox);
+		return mailbox;
+	}
+
+	static CloudMessage task(String toKey, int requestId) {
+		CloudMessage task = new CloudMessage();
+		task.fromKey = "controller";
+		task.toKey = toKey;
+		task.info = "灯";
+		task.data = "{\"on\":" + requestId + "}";
+		task.requestId = requestId;
+		return task;
+	}
+
+	// 按写入顺序投递,投递后删除
+	static List<Integer> drain(Mailbox mailbox, String key) {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (CloudMessage task; (task = mailbox.peek(key)) != null;) {
+			ids.add(task.requestId);
+			mailbox.remove(key, task);
+		}
+		return ids;
+	}
+
+	static List<Long> segments(File dir) {
+		List<Long> ids = new ArrayList<Long>();
+		for (String name : dir.list()) {
+			Matcher matcher = Mailbox.segmentName.matcher(name);
+			if (matcher.matches())
+				ids.add(Long.parseLong(matcher.group(1)));
+		}
+		Collections.sort(ids);
+		return ids;
+	}
+
+	@Test
+	public void storesOnlyForAdmittedKeys() throws IOException {
+		Mailbox mailbox = open(folder.newFolder());
+		assertFalse(mailbox.offer(task("home", 1)));
+		mailbox.admit("home");
+		CloudMessage noStore = task("home", 2);
+		noStore.ttl = -1;
+		assertFalse(mailbox.offer(noStore));
+		assertTrue(mailbox.offer(task("home", 3)));
+		assertTrue(mailbox.hasMail("home"));
+		assertEquals(Arrays.asList(3), drain(mailbox, "home"));
+		assertFalse(mailbox.hasMail("home"));
+		assertEquals(0, mailbox.size());
+	}
+
+	// 重新打开目录后恢复未投递的消息,已投递的不再出现
+	@Test
+	public void recoversUndeliveredMessages() throws IOException {
+		File dir = folder.newFolder();
+		Mailbox mailbox = open(dir);
+		mailbox.admit("a");
+		mailbox.admit("b");
+		for (int i = 1; i <= 30; i++)
+			assertTrue(mailbox.offer(task(i % 2 == 0 ? "a" : "b", i)));
+		for (int i = 0; i < 5; i++)
+			mailbox.remove("a", mailbox.peek("a"));
+		mailbox.close();
+
+		Mailbox recovered = open(dir);
+		assertEquals(25, recovered.size());
+		assertEquals(Arrays.asList(12, 14, 16, 18, 20, 22, 24, 26, 28, 30), drain(recovered, "a"));
+		assertEquals(Arrays.asList(1, 3, 5, 7, 9, 11, 13, 15, 17, 19, 21, 23, 25, 27, 29), drain(recovered, "b"));
+		// 恢复的密钥视为已注册,可继续暂存
+		assertTrue(recovered.offer(task("a", 31)));
+	}
+
+	// 过期的消息不投递,交给onExpired
+	@Test
+	public void expiredMessagesGoToListener() throws IOException, InterruptedException {
+		Mailbox mailbox = open(folder.newFolder());
+		final List<Integer> expired = new ArrayList<Integer>();
+		mailbox.onExpired = new Mailbox.Listener() {
+			@Override
+			public void expired(CloudMessage task) {
+				expired.add(task.requestId);
+			}
+		};
+		mailbox.admit("home");
+		CloudMessage shortLived = task("home", 1);
+		shortLived.ttl = 20;
+		assertTrue(mailbox.offer(shortLived));
+		assertTrue(mailbox.offer(task("home", 2)));
+		Thread.sleep(50);
+		assertEquals(Arrays.asList(2), drain(mailbox, "home"));
+		assertEquals(Arrays.asList(1), expired);
+	}
+
+	// 日志段达到上限时,把有效记录很少的旧段搬到新段,继续接受消息;压缩后的消息顺序及恢复不受影响
+	@Test
+	public void compactsSparseSegments() throws IOException {
+		File dir = folder.newFolder();
+		Mailbox mailbox = open(dir);
+		mailbox.admit("keep");
+		mailbox.admit("busy");
+		int id = 0;
+		assertTrue(mailbox.offer(task("keep", ++id)));
+		while (segments(dir).size() < 2)
+			assertTrue(mailbox.offer(task("busy", ++id)));
+		// 第一段只剩keep的一条有效记录
+		int busy = id - 1;
+		for (int i = 0; i < busy - 1; i++)
+			mailbox.remove("busy", mailbox.peek("busy"));
+		int last = id;
+		// 第二段写满后已达上限,只有压缩掉第一段才能继续
+		for (int i = 0; i < busy + busy / 2; i++)
+			assertTrue("Offer " + i, mailbox.offer(task("busy", ++id)));
+		List<Long> ids = segments(dir);
+		assertFalse(ids.contains(0L));
+		assertTrue(ids.size() <= 3);
+		mailbox.close();
+
+		Mailbox recovered = open(dir);
+		assertEquals(Arrays.asList(1), drain(recovered, "keep"));
+		List<Integer> expected = new ArrayList<Integer>();
+		for (int i = last; i <= id; i++)
+			expected.add(i);
+		assertEquals(expected, drain(recovered, "busy"));
+		assertNull(recovered.peek("busy"));
+	}
+}
@@ -0,0 +1,95 @@
+package component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import component.RegistryStore.Registration;
+import message.RegistryMessage;
+
+public class RegistryStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	static Registration registration(String name, String token) {
+		return new Registration(name, RegistryMessage.LOCAL_SERVER, "127.0.0.1", 1000, token);
+	}
+
+	static List<String> describe(List<Registration> registrations) {
+		List<String> names = new ArrayList<String>();
+		for (Registration registration : registrations)
+			names.add(registration.name + "/" + registration.token);
+		return names;
+	}
+
+	static List<String> list(String... items) {
+		List<String> names = new ArrayList<String>();
+		for (String item : items)
+			names.add(item);
+		return names;
+	}
+
+	// 未关闭时(进程崩溃)由快照加日志重放恢复;重新注册移到末尾,令牌不一致的删除被忽略
+	@Test
+	public void replaysJournalWithoutClose() throws IOException {
+		File dir = folder.newFolder();
+		RegistryStore store = new RegistryStore(dir, 1000);
+		store.put(registration("a", "t1"));
+		store.put(registration("b", "t2"));
+		store.put(registration("c", "t3"));
+		store.remove("b", "stale");
+		store.put(registration("a", "t4"));
+		store.remove("c", "t3");
+		assertEquals(2, store.size());
+
+		RegistryStore recovered = new RegistryStore(dir, 1000);
+		assertEquals(list("b/t2", "a/t4"), describe(recovered.loaded()));
+		Registration b = recovered.loaded().get(0);
+		assertEquals(RegistryMessage.LOCAL_SERVER, b.deviceType);
+		assertEquals("127.0.0.1", b.address);
+		assertEquals(1000, b.time);
+		recovered.close();
+		store.close();
+	}
+
+	// 日志超过上限时合并进快照,之后的日志接着重放
+	@Test
+	public void compactsJournalPastLimit() throws IOException {
+		File dir = folder.newFolder();
+		RegistryStore store = new RegistryStore(dir, 4);
+		for (int i = 0; i < 10; i++)
+			store.put(registration("k" + i, "t" + i));
+		store.remove("k0", "t0");
+		assertTrue(new File(dir, "registry.journal").length() < new File(dir, "registry.snapshot").length());
+
+		List<String> expected = new ArrayList<String>();
+		for (int i = 1; i < 10; i++)
+			expected.add("k" + i + "/t" + i);
+		assertEquals(expected, describe(new RegistryStore(dir, 4).loaded()));
+		store.close();
+		assertEquals(expected, describe(new RegistryStore(dir, 4).loaded()));
+	}
+
+	// 日志末尾写到一半的记录忽略,之前的记录仍然恢复
+	@Test
+	public void ignoresTruncatedJournalTail() throws IOException {
+		File dir = folder.newFolder();
+		RegistryStore store = new RegistryStore(dir, 1000);
+		store.put(registration("a", "t1"));
+		store.put(registration("b", "t2"));
+		FileOutputStream out = new FileOutputStream(new File(dir, "registry.journal"), true);
+		out.write(new byte[] { RegistryStore.PUT, 0, 5, 'h' });
+		out.close();
+
+		assertEquals(list("a/t1", "b/t2"), describe(new RegistryStore(dir, 1000).loaded()));
+	}
+}
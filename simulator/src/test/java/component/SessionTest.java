@@ -0,0 +1,139 @@
+package component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import message.CloudMessage;
+import message.MessageFactory;
+import message.RegistryMessage;
+
+public class SessionTest {
+	CloudServerSimulator cloud;
+	InetSocketAddress addr;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		cloud = new CloudServerSimulator(0);
+		addr = TestClient.start(cloud);
+	}
+
+	@After
+	public void tearDown() {
+		cloud.close();
+	}
+
+	static void awaitPending(CloudServerSimulator.Session session, int count) throws InterruptedException {
+		for (;;) {
+			synchronized (session) {
+				if (session.pending.size() >= count)
+					return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	// 本地服务器断线期间发给它的请求暂存于会话,凭令牌重连后沿用原令牌,并按发送顺序回放
+	@Test(timeout = 10000)
+	public void resumeReplaysParkedInOrder() throws InterruptedException {
+		TestClient home = new TestClient("HOME", addr);
+		RegistryMessage registered = home.register(RegistryMessage.LOCAL_SERVER, null);
+		assertNotNull(registered);
+		assertNotNull(registered.token);
+		home.close();
+		while (cloud.getDevice("HOME") != null)
+			Thread.sleep(10);
+
+		TestClient controller = new TestClient("CONTROLLER", addr);
+		try {
+			assertNotNull(controller.register(RegistryMessage.REMOTE_CONTROLLER, null));
+			// 逐条发送,等前一条暂存后再发下一条,以免未分帧的连接上多条消息在一次read中到达
+			CloudServerSimulator.Session session = cloud.sessions.get("HOME");
+			for (int i = 1; i <= 3; i++) {
+				controller.send(MessageFactory.wrapCloudMessage("CONTROLLER", "HOME", "light", "on-" + i, i));
+				awaitPending(session, i);
+			}
+
+			home = new TestClient("HOME", addr);
+			RegistryMessage resumed = home.register(RegistryMessage.LOCAL_SERVER, registered.token);
+			assertNotNull(resumed);
+			assertEquals(registered.token, resumed.token);
+			// 回放之后才发出的消息排在暂存的消息之后
+			controller.send(MessageFactory.wrapCloudMessage("CONTROLLER", "HOME", "light", "on-4", 4));
+			for (int i = 1; i <= 4; i++) {
+				CloudMessage task = home.receiveCloud();
+				assertNotNull(task);
+				assertEquals(i, task.requestId);
+				assertEquals("on-" + i, task.data);
+			}
+		} finally {
+			home.close();
+			controller.close();
+		}
+	}
+
+	// 回放与其它转发一样占用信用,本地服务器回传后才回放下一条
+	@Test(timeout = 10000)
+	public void replayWaitsForCredits() throws InterruptedException {
+		TestClient home = new TestClient("HOME", addr);
+		home.credits = 1;
+		RegistryMessage registered = home.register(RegistryMessage.LOCAL_SERVER, null);
+		assertNotNull(registered);
+		home.close();
+		while (cloud.getDevice("HOME") != null)
+			Thread.sleep(10);
+
+		TestClient controller = new TestClient("CONTROLLER", addr);
+		try {
+			assertNotNull(controller.register(RegistryMessage.REMOTE_CONTROLLER, null));
+			CloudServerSimulator.Session session = cloud.sessions.get("HOME");
+			for (int i = 1; i <= 2; i++) {
+				controller.send(MessageFactory.wrapCloudMessage("CONTROLLER", "HOME", "light", "on-" + i, i));
+				awaitPending(session, i);
+			}
+
+			home = new TestClient("HOME", addr);
+			home.credits = 1;
+			assertNotNull(home.register(RegistryMessage.LOCAL_SERVER, registered.token));
+			CloudMessage first = home.receiveCloud();
+			assertNotNull(first);
+			assertEquals(1, first.requestId);
+			Thread.sleep(100);
+			synchronized (session) {
+				assertEquals(1, session.pending.size());
+			}
+			assertTrue(home.send(MessageFactory.wrapRetCloudMessage(first, MessageFactory.wrapMessage("ok"))));
+			CloudMessage second = home.receiveCloud();
+			assertNotNull(second);
+			assertEquals(2, second.requestId);
+		} finally {
+			home.close();
+			controller.close();
+		}
+	}
+
+	// 未凭令牌的注册开始新的会话,签发新令牌
+	@Test(timeout = 10000)
+	public void registrationWithoutTokenStartsNewSession() throws InterruptedException {
+		TestClient home = new TestClient("HOME", addr);
+		RegistryMessage first = home.register(RegistryMessage.LOCAL_SERVER, null);
+		home.close();
+		while (cloud.getDevice("HOME") != null)
+			Thread.sleep(10);
+		home = new TestClient("HOME", addr);
+		try {
+			RegistryMessage second = home.register(RegistryMessage.LOCAL_SERVER, null);
+			assertNotNull(second.token);
+			assertFalse(second.token.equals(first.token));
+		} finally {
+			home.close();
+		}
+	}
+}
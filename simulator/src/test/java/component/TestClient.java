@@ -0,0 +1,94 @@
+package component;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+
+import com.google.gson.JsonStreamParser;
+
+import device.ServerDevice;
+import message.CloudMessage;
+import message.HeartbeatMessage;
+import message.Message;
+import message.MessageFactory;
+import message.RegistryMessage;
+import util.Settings;
+
+// 测试用的遥控器、本地服务器:经ServerDevice直接收发原始消息,不经过RemoteControllerSimulator、LocalDeviceManager
+class TestClient implements Closeable {
+	final ServerDevice device = new ServerDevice();
+	final ArrayDeque<Message> received = new ArrayDeque<Message>();
+	int credits = 0; // 注册时声明的处理能力,0为不限
+
+	TestClient(String name, InetSocketAddress cloud) {
+		device.name = name;
+		device.addr = cloud;
+		device.framed = Settings.FramedWire;
+	}
+
+	// 在回环地址上启动云服务器,返回其监听的地址
+	static InetSocketAddress start(CloudServerSimulator cloud) throws InterruptedException {
+		cloud.setBindAddress(InetAddress.getLoopbackAddress());
+		cloud.startService();
+		long deadline = System.currentTimeMillis() + Settings.ConnectTimeout;
+		while (System.currentTimeMillis() < deadline) {
+			InetSocketAddress addr = cloud.getLocalAddress();
+			if (addr != null && addr.getPort() != 0)
+				return addr;
+			Thread.sleep(10);
+		}
+		throw new IllegalStateException("CloudServer Failed to Start");
+	}
+
+	// 注册,返回注册响应;token为断线前签发的会话令牌,没有时为null
+	RegistryMessage register(int deviceType, String token) {
+		if (!send(MessageFactory.wrapRegistryMessage(device.name, deviceType, 0, credits, token)))
+			return null;
+		Message msg = receive();
+		return msg != null && msg.type == RegistryMessage.type ? (RegistryMessage) msg.payload : null;
+	}
+
+	boolean send(String json) {
+		return device.sendMessage(json);
+	}
+
+	// 接收下一条消息,心跳请求随即回传后跳过;连接断开时返回null
+	Message receive() {
+		for (Message msg; (msg = next()) != null;) {
+			if (msg.type != HeartbeatMessage.type)
+				return msg;
+			if (((HeartbeatMessage) msg.payload).status == HeartbeatMessage.REQUEST)
+				send(MessageFactory.wrapHeartbeatResponseMessage(((HeartbeatMessage) msg.payload).seq));
+		}
+		return null;
+	}
+
+	// 未分帧的连接上一次read可能包含紧接着的多条Json,逐条拆开
+	Message next() {
+		while (received.isEmpty()) {
+			String json = device.receiveMessage();
+			if (json == null)
+				return null;
+			for (JsonStreamParser parser = new JsonStreamParser(json); parser.hasNext();) {
+				Message msg = MessageFactory.decodeMessage(parser.next().toString());
+				if (msg != null)
+					received.offer(msg);
+			}
+		}
+		return received.poll();
+	}
+
+	// 接收下一条CloudMessage
+	CloudMessage receiveCloud() {
+		for (Message msg; (msg = receive()) != null;)
+			if (msg.type == CloudMessage.type)
+				return (CloudMessage) msg.payload;
+		return null;
+	}
+
+	@Override
+	public void close() {
+		device.close();
+	}
+}
@@ -0,0 +1,44 @@
+package device;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import util.Settings;
+
+public class ClientDeviceTest {
+
+	// 对端不读取时发送队列达到上限后立即失败,调用线程不等待写出
+	@Test(timeout = 10000)
+	public void fullQueueFailsFast() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SocketChannel peer = SocketChannel.open(server.getLocalAddress());
+		ClientDevice device = new ClientDevice(server.accept(), true);
+		try {
+			char[] chars = new char[1 << 20];
+			Arrays.fill(chars, 'x');
+			String msg = new String(chars);
+			long slowest = 0;
+			boolean full = false;
+			for (long sent = 0; !full && sent < 64 * Settings.CloudMaxOutboundBytes; sent += chars.length) {
+				long start = System.nanoTime();
+				full = !device.sendMessage(msg);
+				slowest = Math.max(slowest, System.nanoTime() - start);
+			}
+			assertTrue(full);
+			assertTrue(String.valueOf(slowest), slowest < 500000000L);
+		} finally {
+			device.close();
+			peer.close();
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class DeviceRegistryTest {
+
+	static Device device(String name) {
+		Device device = new Device();
+		device.name = name;
+		return device;
+	}
+
+	@Test
+	public void putIfAbsentKeepsFirst() {
+		DeviceRegistry<Device> registry = new DeviceRegistry<Device>();
+		Device first = device("home"), second = device("home");
+		assertNull(registry.putIfAbsent(first));
+		assertSame(first, registry.putIfAbsent(second));
+		assertSame(first, registry.get("home"));
+		assertEquals(1, registry.size());
+	}
+
+	// 只替换仍为expected的设备;已被替换或删除时失败
+	@Test
+	public void replaceComparesExpected() {
+		DeviceRegistry<Device> registry = new DeviceRegistry<Device>();
+		Device first = device("home"), second = device("home"), third = device("home");
+		registry.putIfAbsent(first);
+		assertTrue(registry.replace(first, second));
+		assertFalse(registry.replace(first, third));
+		assertSame(second, registry.get("home"));
+		registry.remove(second);
+		assertFalse(registry.replace(second, third));
+		assertNull(registry.get("home"));
+	}
+
+	// 旧连接的删除不会误删替换它的新连接
+	@Test
+	public void removeOnlyCurrentDevice() {
+		DeviceRegistry<Device> registry = new DeviceRegistry<Device>();
+		Device first = device("home"), second = device("home");
+		registry.putIfAbsent(first);
+		registry.replace(first, second);
+		assertFalse(registry.remove(first));
+		assertSame(second, registry.get("home"));
+		assertTrue(registry.remove(second));
+		assertEquals(0, registry.size());
+		registry.putIfAbsent(first);
+		assertSame(first, registry.remove("home"));
+	}
+
+	@Test
+	public void snapshotIsDetached() {
+		DeviceRegistry<Device> registry = new DeviceRegistry<Device>();
+		registry.putIfAbsent(device("a"));
+		registry.putIfAbsent(device("b"));
+		List<Device> snapshot = registry.snapshot();
+		registry.remove("a");
+		assertEquals(2, snapshot.size());
+		assertEquals(1, registry.values().size());
+	}
+
+	// 多个线程同时以同名注册,只有一个成功,其余看到同一个已有设备
+	@Test
+	public void concurrentRegistrationsHaveOneWinner() throws InterruptedException {
+		final DeviceRegistry<Device> registry = new DeviceRegistry<Device>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger winners = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 1000; i++)
+						if (registry.putIfAbsent(device("key" + i)) == null)
+							winners.incrementAndGet();
+				}
+			});
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(1000, winners.get());
+		assertEquals(1000, registry.size());
+	}
+}
@@ -0,0 +1,109 @@
+package device;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import message.CloudMessage;
+import message.MessageCodec;
+import message.MessageFactory;
+
+public class FrameCodecTest {
+
+	static List<String> messages(Random random, int count) {
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			StringBuilder data = new StringBuilder();
+			int length = random.nextInt(10) == 0 ? 2000 + random.nextInt(5000) : random.nextInt(64);
+			for (int j = 0; j < length; j++)
+				data.append(j % 7 == 0 ? '灯' : (char) ('a' + random.nextInt(26)));
+			messages.add(MessageFactory.wrapCloudMessage("from", "to", "light" + i, "{\"on\":" + data + "}"));
+		}
+		return messages;
+	}
+
+	static byte[] concat(List<String> messages, boolean framed) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (String msg : messages) {
+			ByteBuffer buffer = FrameCodec.encode(msg, framed);
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		return out.toByteArray();
+	}
+
+	// 按chunk大小模拟多次read,每次read后取出所有完整消息
+	static List<String> feed(FrameCodec codec, byte[] bytes, Random random, int maxChunk) throws FrameTooLongException {
+		List<String> received = new ArrayList<String>();
+		int pos = 0;
+		while (pos < bytes.length) {
+			ByteBuffer buffer = codec.readBuffer();
+			int chunk = Math.min(Math.min(buffer.remaining(), 1 + random.nextInt(maxChunk)), bytes.length - pos);
+			buffer.put(bytes, pos, chunk);
+			pos += chunk;
+			for (String msg; (msg = codec.next()) != null;)
+				received.add(msg);
+		}
+		return received;
+	}
+
+	// 帧头及消息体被拆散在多次read中,或一次read包含多帧,都能按原顺序重组
+	@Test
+	public void reassemblesPartialReads() throws FrameTooLongException {
+		Random random = new Random(2);
+		List<String> messages = messages(random, 200);
+		byte[] bytes = concat(messages, true);
+		for (int maxChunk : new int[] { 1, 3, 17, 1024, 65536 })
+			assertEquals("Chunk " + maxChunk, messages, feed(new FrameCodec(true), bytes, random, maxChunk));
+	}
+
+	// 协商了二进制编码的帧转为等价的Json
+	@Test
+	public void binaryFramesReadAsJson() throws FrameTooLongException {
+		String json = MessageFactory.wrapCloudMessage("from", "to", "灯", "{\"on\":true}");
+		ByteBuffer buffer = FrameCodec.encode(json, true, MessageFactory.codec(MessageCodec.BINARY));
+		FrameCodec codec = new FrameCodec(true);
+		codec.readBuffer().put(buffer);
+		ByteBuffer frame = codec.nextFrame();
+		CloudMessage msg = (CloudMessage) MessageFactory.decodeMessage(frame).payload;
+		assertEquals("灯", msg.info);
+		assertEquals(json, codec.toText(frame));
+		assertNull(codec.nextFrame());
+	}
+
+	@Test
+	public void rejectsOversizedFrame() {
+		FrameCodec codec = new FrameCodec(true, 16);
+		codec.readBuffer().putInt(17).put(new byte[8]);
+		try {
+			codec.next();
+			fail();
+		} catch (FrameTooLongException e) {
+		}
+	}
+
+	// 未分帧时一次read中紧接着的多个Json对象拆开,纯文本仍为一条消息
+	@Test
+	public void splitsConcatenatedJsonWhenUnframed() throws FrameTooLongException {
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < 3; i++)
+			messages.add(MessageFactory.wrapCloudMessage("from", "to", "灯" + i, "{\"on\":\"}{\"}"));
+		FrameCodec codec = new FrameCodec(false);
+		codec.readBuffer().put(concat(messages, false));
+		for (String msg : messages)
+			assertEquals(msg, codec.next());
+		assertNull(codec.next());
+
+		String text = "plain {text} with \"quotes\"";
+		codec.readBuffer().put(FrameCodec.encode(text, false));
+		assertEquals(text, codec.next());
+		assertNull(codec.next());
+	}
+}
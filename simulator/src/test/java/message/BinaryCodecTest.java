@@ -0,0 +1,75 @@
+package message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BinaryCodecTest {
+	static final BinaryCodec codec = new BinaryCodec();
+
+	// 编码后解码得到相同的消息;offset预留的帧头不影响消息体
+	@Test
+	public void roundTrip() throws IOException {
+		RandomMessages messages = new RandomMessages(7, false);
+		for (int i = 0; i < 20000; i++) {
+			Message msg = messages.message();
+			int offset = i % 2 == 0 ? 0 : 4;
+			ByteBuffer buffer = codec.encode(msg, offset);
+			assertEquals(0, buffer.position());
+			buffer.position(offset);
+			assertTrue(BinaryCodec.isBinary(buffer));
+			Message decoded = codec.decode(buffer);
+			assertEquals("Round " + i, msg.type, decoded.type);
+			assertEquals("Round " + i, JsonCodec.toJson(msg), JsonCodec.toJson(decoded));
+		}
+	}
+
+	// MessageFactory按首字节识别编码,Json与二进制帧解码结果相同
+	@Test
+	public void decodesByFirstByte() {
+		String json = MessageFactory.wrapCloudMessage("from", "to", "灯", "{\"on\":true}");
+		Message msg = MessageFactory.decodeMessage(json);
+		ByteBuffer binary = codec.encode(msg, 0);
+		ByteBuffer text = MessageFactory.codec(MessageCodec.JSON).encode(msg, 0);
+		assertTrue(BinaryCodec.isBinary(binary));
+		assertFalse(BinaryCodec.isBinary(text));
+		assertEquals(json, JsonCodec.toJson(MessageFactory.decodeMessage(binary)));
+		assertEquals(json, JsonCodec.toJson(MessageFactory.decodeMessage(text)));
+		assertEquals(json, MessageFactory.toJson(codec.encode(msg, 0)));
+	}
+
+	// 截断的帧抛出IOException,不会读出半条消息
+	@Test
+	public void rejectsTruncatedFrames() {
+		CloudMessage cloud = new CloudMessage();
+		cloud.fromKey = "from";
+		cloud.toKey = "to";
+		cloud.info = "light";
+		cloud.data = "{\"on\":true}";
+		cloud.requestId = 300;
+		ByteBuffer full = codec.encode(MessageFactory.newMessage(CloudMessage.type, cloud), 0);
+		for (int length = 1; length < full.limit(); length++) {
+			ByteBuffer truncated = full.duplicate();
+			truncated.limit(length);
+			try {
+				Message decoded = codec.decode(truncated);
+				// 恰好截断在字段边界时只缺少后面的字段
+				CloudMessage payload = (CloudMessage) decoded.payload;
+				assertFalse("Length " + length,
+						payload != null && cloud.data.equals(payload.data) && payload.requestId == cloud.requestId);
+			} catch (IOException e) {
+			}
+		}
+		try {
+			codec.decode(ByteBuffer.wrap(new byte[] { BinaryCodec.MAGIC, (byte) 0x80 }));
+			fail();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+//JsonCodec须与原先Gson生成的嵌套Json逐字节一致,并能互相解码
+public class JsonCodecTest {
+	static final int Rounds = 20000;
+	static final Gson gson = new Gson();
+
+	// 原先MessageFactory的编码方式:payload先用Gson编码为字符串放进data,再编码外层
+	static String gsonToJson(Message msg) {
+		Message base = new Message();
+		base.type = msg.type;
+		base.data = msg.payload == null ? msg.data : gson.toJson(msg.payload);
+		return gson.toJson(base);
+	}
+
+	static Message gsonFromJson(String json, Class<? extends MessageInterface> payloadClass) {
+		Message base = gson.fromJson(json, Message.class);
+		if (payloadClass != null) {
+			base.payload = gson.fromJson(base.data, payloadClass);
+			base.data = null;
+		}
+		return base;
+	}
+
+	// 整数字段不为0时,编码结果与Gson逐字节一致
+	@Test
+	public void encodesLikeGson() {
+		RandomMessages messages = new RandomMessages(6, true);
+		for (int i = 0; i < Rounds; i++) {
+			Message msg = messages.message();
+			assertEquals("Round " + i, gsonToJson(msg), JsonCodec.toJson(msg));
+		}
+	}
+
+	// Gson编码的消息由JsonCodec解码,与原消息相同
+	@Test
+	public void decodesGsonOutput() {
+		RandomMessages messages = new RandomMessages(7, false);
+		for (int i = 0; i < Rounds; i++) {
+			Message msg = messages.message();
+			Message decoded = JsonCodec.fromJson(gsonToJson(msg), true);
+			assertEquals("Round " + i, JsonCodec.toJson(msg), JsonCodec.toJson(decoded));
+		}
+	}
+
+	// JsonCodec编码的消息由Gson解码,与原消息相同;省略的为0的字段由Gson取默认值
+	@Test
+	public void gsonDecodesOutput() {
+		RandomMessages messages = new RandomMessages(8, false);
+		for (int i = 0; i < Rounds; i++) {
+			Message msg = messages.message();
+			Class<? extends MessageInterface> payloadClass = msg.payload == null ? null : msg.payload.getClass();
+			Message decoded = gsonFromJson(JsonCodec.toJson(msg), payloadClass);
+			assertEquals("Round " + i, JsonCodec.toJson(msg), JsonCodec.toJson(decoded));
+		}
+	}
+
+	// decodePayload为false时data保留为字符串,与Gson解码外层的结果一致
+	@Test
+	public void keepsDataWithoutPayloadDecoding() {
+		RandomMessages messages = new RandomMessages(9, false);
+		for (int i = 0; i < 1000; i++) {
+			String json = JsonCodec.toJson(messages.message());
+			Message decoded = JsonCodec.fromJson(json, false);
+			Message expected = gson.fromJson(json, Message.class);
+			assertNull(decoded.payload);
+			assertEquals(expected.type, decoded.type);
+			assertEquals(expected.data, decoded.data);
+		}
+	}
+
+	@Test
+	public void emptyInputDecodesToNull() {
+		assertNull(JsonCodec.fromJson("", true));
+		assertNull(JsonCodec.fromJson(null, true));
+	}
+}
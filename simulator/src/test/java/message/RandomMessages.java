@@ -0,0 +1,136 @@
+package message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+//按固定种子生成各类型的随机消息,字符串覆盖需要转义的字符、中文、代理对及 /
+class RandomMessages {
+	static final String Alphabet = "abcXYZ019 {}[]:,<>&='\"\\/\t\n\r\b\f\u0000\u0001\u001f\u007f智能家居灯开关é  ";
+
+	final Random random;
+	final boolean nonZero; // 整数字段不取0;Gson总是写出整数字段,JsonCodec省略为0的可选字段
+
+	RandomMessages(long seed, boolean nonZero) {
+		this.random = new Random(seed);
+		this.nonZero = nonZero;
+	}
+
+	String string() {
+		if (random.nextInt(8) == 0)
+			return null;
+		int length = random.nextInt(4) == 0 ? random.nextInt(300) : random.nextInt(12);
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			if (random.nextInt(40) == 0)
+				sb.append("\ud83d\ude00");
+			else
+				sb.append(Alphabet.charAt(random.nextInt(Alphabet.length())));
+		}
+		return sb.toString();
+	}
+
+	List<String> strings() {
+		if (random.nextInt(4) == 0)
+			return null;
+		List<String> values = new ArrayList<String>();
+		for (int i = random.nextInt(5); i > 0; i--) {
+			String value = string();
+			values.add(value == null ? "" : value);
+		}
+		return values;
+	}
+
+	int integer() {
+		int value;
+		switch (random.nextInt(4)) {
+		case 0:
+			value = random.nextInt(3);
+			break;
+		case 1:
+			value = -random.nextInt(1000);
+			break;
+		case 2:
+			value = random.nextInt();
+			break;
+		default:
+			value = random.nextBoolean() ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+		}
+		return nonZero && value == 0 ? 1 : value;
+	}
+
+	MessageInterface payload() {
+		switch (random.nextInt(5)) {
+		case 0: {
+			CloudMessage msg = new CloudMessage();
+			msg.fromKey = string();
+			msg.toKey = string();
+			msg.info = string();
+			msg.data = string();
+			msg.requestId = integer();
+			msg.ttl = integer();
+			return msg;
+		}
+		case 1: {
+			HeartbeatMessage msg = new HeartbeatMessage();
+			msg.status = integer();
+			msg.seq = integer();
+			return msg;
+		}
+		case 2: {
+			ErrorMessage msg = new ErrorMessage();
+			msg.code = integer();
+			return msg;
+		}
+		case 3: {
+			MulticastMessage msg = new MulticastMessage();
+			msg.fromKey = string();
+			msg.toKeys = strings();
+			msg.infos = strings();
+			msg.group = string();
+			msg.data = string();
+			msg.requestId = integer();
+			msg.keys = strings();
+			msg.results = strings();
+			return msg;
+		}
+		default: {
+			RegistryMessage msg = new RegistryMessage();
+			msg.name = string();
+			msg.deviceType = integer();
+			msg.codecs = integer();
+			msg.credits = integer();
+			msg.redirect = string();
+			msg.token = string();
+			msg.heartbeats = nonZero || random.nextBoolean();
+			return msg;
+		}
+		}
+	}
+
+	static int typeOf(MessageInterface payload) {
+		if (payload instanceof CloudMessage)
+			return CloudMessage.type;
+		if (payload instanceof HeartbeatMessage)
+			return HeartbeatMessage.type;
+		if (payload instanceof ErrorMessage)
+			return ErrorMessage.type;
+		if (payload instanceof MulticastMessage)
+			return MulticastMessage.type;
+		return RegistryMessage.type;
+	}
+
+	// 带类型payload的消息;偶尔为纯文本消息
+	Message message() {
+		if (random.nextInt(10) == 0) {
+			Message base = new Message();
+			base.type = Message.rawType;
+			base.data = string();
+			if (base.data == null)
+				base.data = "";
+			return base;
+		}
+		MessageInterface payload = payload();
+		return MessageFactory.newMessage(typeOf(payload), payload);
+	}
+}
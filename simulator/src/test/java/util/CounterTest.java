@@ -0,0 +1,42 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class CounterTest {
+
+	// 各线程累加到不同分段,求和不丢失
+	@Test
+	public void concurrentAddsSum() throws InterruptedException {
+		final Counter counter = new Counter();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int n = t + 1;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000; i++)
+						counter.increment();
+					counter.add(n);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(800000 + 36, counter.sum());
+	}
+
+	// 同名的计数器只注册一次
+	@Test
+	public void registryReturnsSameCounter() {
+		Metrics metrics = new Metrics();
+		Counter counter = metrics.counter("a.b");
+		assertSame(counter, metrics.counter("a.b"));
+		assertSame(metrics.histogram("h"), metrics.histogram("h"));
+		counter.add(3);
+		assertEquals(3, metrics.counter("a.b").sum());
+	}
+}
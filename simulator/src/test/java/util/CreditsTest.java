@@ -0,0 +1,105 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CreditsTest {
+
+	@Test
+	public void windowLimitsAcquire() {
+		Credits credits = new Credits(2);
+		assertTrue(credits.isLimited());
+		assertTrue(credits.tryAcquire());
+		assertTrue(credits.tryAcquire());
+		assertFalse(credits.tryAcquire());
+		assertFalse(credits.hasAvailable());
+		assertEquals(0, credits.available());
+		credits.release();
+		assertEquals(1, credits.available());
+		assertTrue(credits.tryAcquire());
+	}
+
+	// 多余的归还不超过窗口
+	@Test
+	public void releaseNeverExceedsWindow() {
+		Credits credits = new Credits(2);
+		credits.release();
+		credits.release();
+		assertEquals(2, credits.available());
+		assertTrue(credits.tryAcquire());
+		assertTrue(credits.tryAcquire());
+		assertFalse(credits.tryAcquire());
+	}
+
+	@Test
+	public void zeroWindowIsUnlimited() {
+		Credits credits = new Credits(0);
+		assertFalse(credits.isLimited());
+		for (int i = 0; i < 1000; i++)
+			assertTrue(credits.tryAcquire());
+		assertTrue(credits.hasAvailable());
+		assertEquals(Integer.MAX_VALUE, credits.available());
+		assertFalse(credits.release());
+	}
+
+	// 只有由用尽变为可用的那次归还回调onAvailable并返回true
+	@Test
+	public void onAvailableFiresWhenReplenished() {
+		Credits credits = new Credits(2);
+		final AtomicInteger calls = new AtomicInteger();
+		credits.onAvailable = new Runnable() {
+			@Override
+			public void run() {
+				calls.incrementAndGet();
+			}
+		};
+		credits.tryAcquire();
+		assertFalse(credits.release());
+		credits.tryAcquire();
+		credits.tryAcquire();
+		assertTrue(credits.release());
+		assertFalse(credits.release());
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void acquireTimesOutWhenExhausted() throws InterruptedException {
+		Credits credits = new Credits(1);
+		assertTrue(credits.acquire(10));
+		long start = System.nanoTime();
+		assertFalse(credits.acquire(50));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		assertFalse(credits.awaitAvailable(10));
+	}
+
+	// 等待中的acquire在归还后被唤醒
+	@Test
+	public void releaseWakesWaiter() throws InterruptedException {
+		final Credits credits = new Credits(1);
+		credits.tryAcquire();
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (credits.acquire(5000))
+						acquired.countDown();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		waiter.start();
+		Thread.sleep(50);
+		assertEquals(1, acquired.getCount());
+		credits.release();
+		assertTrue(acquired.await(2, TimeUnit.SECONDS));
+		assertEquals(0, credits.available());
+	}
+}
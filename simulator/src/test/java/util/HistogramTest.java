@@ -0,0 +1,79 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+	// 每个值落在上界不小于它、相对误差不超过1/16的桶中,桶按值单调排列
+	@Test
+	public void bucketsBoundValues() {
+		Random random = new Random(15);
+		for (int i = 0; i < 100000; i++) {
+			long value = i < 1000 ? i : (random.nextLong() >>> 1) >>> random.nextInt(63);
+			int index = Histogram.indexOf(value);
+			long upper = Histogram.upperBound(index);
+			assertTrue(value + " <= " + upper, value <= upper);
+			assertTrue(value + " / " + upper, upper - value <= value / Histogram.SubBuckets);
+			if (index > 0)
+				assertTrue(Histogram.upperBound(index - 1) < value);
+		}
+		assertTrue(Histogram.indexOf(Long.MAX_VALUE) < Histogram.BucketCount);
+	}
+
+	@Test
+	public void percentilesOfUniformValues() {
+		Histogram histogram = new Histogram();
+		for (long v = 1; v <= 10000; v++)
+			histogram.record(v * 1000);
+		assertEquals(10000, histogram.getCount());
+		assertEquals(10000000, histogram.getMax());
+		assertEquals(5000500, histogram.getMean());
+		assertWithin(5000000, histogram.getPercentile(50));
+		assertWithin(9900000, histogram.getPercentile(99));
+		assertWithin(9990000, histogram.getPercentile(99.9));
+		assertEquals(10000000, histogram.getPercentile(100));
+	}
+
+	// 百分位为所在桶的上界,不低于真实值,误差不超过1/16
+	static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " vs " + actual, actual >= expected && actual - expected <= expected / 16);
+	}
+
+	@Test
+	public void emptyAndNegative() {
+		Histogram histogram = new Histogram();
+		assertEquals(0, histogram.getPercentile(99));
+		assertEquals(0, histogram.getMean());
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	// 多线程记录的值合并到同一分布中
+	@Test
+	public void concurrentRecordsAreMerged() throws InterruptedException {
+		final Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++)
+						histogram.record(100);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals(40000, histogram.getCount());
+		assertWithin(100, histogram.getPercentile(1));
+		assertEquals(100, histogram.getPercentile(99.99));
+	}
+}
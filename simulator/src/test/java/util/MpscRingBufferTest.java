@@ -0,0 +1,113 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+
+	@Test
+	public void capacityRoundsUpToPowerOfTwo() {
+		assertEquals(8, new MpscRingBuffer<Integer>(5, WaitStrategy.PARK).capacity());
+		assertEquals(8, new MpscRingBuffer<Integer>(8, WaitStrategy.PARK).capacity());
+		assertEquals(1, new MpscRingBuffer<Integer>(1, WaitStrategy.PARK).capacity());
+	}
+
+	// 满时offer返回false,取出一个后又可写入,整个过程保持先进先出
+	@Test
+	public void offerFailsWhenFullAndKeepsOrder() {
+		MpscRingBuffer<Integer> queue = new MpscRingBuffer<Integer>(4, WaitStrategy.PARK);
+		assertNull(queue.poll());
+		for (int i = 0; i < 4; i++)
+			assertTrue(queue.offer(i));
+		assertFalse(queue.offer(4));
+		assertEquals(4, queue.size());
+		assertEquals(Integer.valueOf(0), queue.poll());
+		assertTrue(queue.offer(4));
+		assertFalse(queue.offer(5));
+		for (int i = 1; i <= 4; i++)
+			assertEquals(Integer.valueOf(i), queue.poll());
+		assertNull(queue.poll());
+		assertEquals(0, queue.size());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void rejectsNull() {
+		new MpscRingBuffer<Integer>(4, WaitStrategy.PARK).offer(null);
+	}
+
+	@Test
+	public void pollTimesOutWhenEmpty() throws InterruptedException {
+		MpscRingBuffer<Integer> queue = new MpscRingBuffer<Integer>(4, WaitStrategy.PARK);
+		long start = System.nanoTime();
+		assertNull(queue.poll(50, TimeUnit.MILLISECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+	}
+
+	// wakeup让park中的消费者提前返回null
+	@Test
+	public void wakeupReleasesParkedConsumer() throws InterruptedException {
+		final MpscRingBuffer<Integer> queue = new MpscRingBuffer<Integer>(4, WaitStrategy.PARK);
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<Integer> polled = new AtomicReference<Integer>(-1);
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					polled.set(queue.poll(10, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+				}
+				done.countDown();
+			}
+		});
+		consumer.start();
+		Thread.sleep(50);
+		queue.wakeup();
+		assertTrue(done.await(2, TimeUnit.SECONDS));
+		assertNull(polled.get());
+	}
+
+	// 多个生产者并发写入,消费者取到所有元素,且每个生产者的元素保持写入顺序
+	@Test
+	public void multipleProducersSingleConsumer() throws InterruptedException {
+		for (WaitStrategy strategy : WaitStrategy.values())
+			multipleProducers(strategy);
+	}
+
+	void multipleProducers(WaitStrategy strategy) throws InterruptedException {
+		final int producers = 4, perProducer = 20000;
+		final MpscRingBuffer<Long> queue = new MpscRingBuffer<Long>(64, strategy);
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final long id = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (long seq = 0; seq < perProducer; seq++) {
+						Long value = (id << 32) | seq;
+						while (!queue.offer(value))
+							Thread.yield();
+					}
+				}
+			});
+			threads[p].start();
+		}
+		long[] next = new long[producers];
+		for (int received = 0; received < producers * perProducer; received++) {
+			Long value = queue.poll(10, TimeUnit.SECONDS);
+			assertTrue("Consumer Timed Out with " + strategy, value != null);
+			int id = (int) (value >>> 32);
+			assertEquals(strategy + " Producer " + id, next[id]++, value & 0xffffffffL);
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertNull(queue.poll());
+	}
+}
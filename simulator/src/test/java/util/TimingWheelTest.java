@@ -0,0 +1,111 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TimingWheelTest {
+	static final long Tick = 5; // 毫秒
+	static final int WheelSize = 8; // 一圈40毫秒,便于覆盖跨圈的任务
+
+	TimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new TimingWheel(Tick, TimeUnit.MILLISECONDS, WheelSize, 2);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.close();
+	}
+
+	// 不早于delay执行,并且在几个tick之内执行
+	@Test
+	public void expiresAfterDelay() throws InterruptedException {
+		for (long delay : new long[] { 0, 20, 150 }) {
+			final CountDownLatch fired = new CountDownLatch(1);
+			long start = System.nanoTime();
+			TimingWheel.Timeout timeout = wheel.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					fired.countDown();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+			assertTrue("Delay " + delay, fired.await(delay + 2000, TimeUnit.MILLISECONDS));
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue("Delay " + delay + " Elapsed " + elapsed, elapsed >= delay);
+			assertTrue(timeout.isExpired());
+			assertFalse(timeout.cancel());
+		}
+	}
+
+	@Test
+	public void cancelledTaskNeverRuns() throws InterruptedException {
+		final AtomicInteger runs = new AtomicInteger();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				runs.incrementAndGet();
+			}
+		};
+		TimingWheel.Timeout near = wheel.newTimeout(task, 30, TimeUnit.MILLISECONDS);
+		TimingWheel.Timeout far = wheel.newTimeout(task, 100, TimeUnit.MILLISECONDS); // 跨圈
+		assertTrue(near.cancel());
+		assertFalse(near.cancel());
+		Thread.sleep(20);
+		assertTrue(far.cancel());
+		Thread.sleep(200);
+		assertEquals(0, runs.get());
+		assertTrue(near.isCancelled());
+		assertTrue(far.isCancelled());
+		assertEquals(0, wheel.pending());
+	}
+
+	// 大量任务落在同一槽及不同圈数上,全部按时执行
+	@Test
+	public void manyTimeoutsAllExpire() throws InterruptedException {
+		int count = 1000;
+		final CountDownLatch fired = new CountDownLatch(count);
+		for (int i = 0; i < count; i++)
+			wheel.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					fired.countDown();
+				}
+			}, i % 120, TimeUnit.MILLISECONDS);
+		assertTrue(fired.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test(expected = RejectedExecutionException.class)
+	public void rejectsAfterClose() {
+		wheel.close();
+		wheel.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+	}
+
+	// 共用的时间轮只创建一个,关闭后下次使用时重新创建
+	@Test
+	public void sharedIsRecreatedAfterClose() {
+		TimingWheel first = TimingWheel.shared();
+		assertSame(first, TimingWheel.shared());
+		first.close();
+		TimingWheel second = TimingWheel.shared();
+		assertNotSame(first, second);
+		assertSame(second, TimingWheel.shared());
+	}
+}
@@ -0,0 +1,119 @@
+package component;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+//云服务器集群成员:按密钥的一致性哈希把遥控器和本地服务器分配到各节点,每个节点在环上有多个虚拟节点以均衡分布。
+//增减节点时只有相邻区间的密钥改变所属节点。各节点须使用相同的节点列表;创建后不变,线程安全
+public class CloudCluster {
+	static final Charset charset = Charset.forName("UTF-8");
+	public static final String LinkPrefix = "NODE@"; // 节点间连接在设备池中的名字前缀,后接对端节点标识
+
+	final String self; // 本节点标识"host:port"
+	final Map<String, InetSocketAddress> nodes = new LinkedHashMap<String, InetSocketAddress>();
+	final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+	// nodes为所有节点(含本节点)对客户端公开的地址,self须在其中
+	public CloudCluster(InetSocketAddress self, List<InetSocketAddress> nodes, int virtualNodes) {
+		this.self = nodeId(self);
+		for (InetSocketAddress node : nodes)
+			this.nodes.put(nodeId(node), node);
+		if (!this.nodes.containsKey(this.self))
+			throw new IllegalArgumentException("Self not in Cluster: " + this.self);
+		for (String node : this.nodes.keySet())
+			for (int i = 0; i < virtualNodes; i++)
+				ring.put(hash(node + "#" + i), node);
+	}
+
+	// 解析"host:port,host:port"形式的节点列表
+	public static List<InetSocketAddress> parse(String nodes) {
+		List<InetSocketAddress> list = new ArrayList<InetSocketAddress>();
+		for (String node : nodes.split(",")) {
+			node = node.trim();
+			if (node.isEmpty())
+				continue;
+			int colon = node.lastIndexOf(':');
+			list.add(new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1))));
+		}
+		return list;
+	}
+
+	public static String nodeId(InetSocketAddress addr) {
+		return addr.getHostString() + ":" + addr.getPort();
+	}
+
+	public String self() {
+		return self;
+	}
+
+	// 所有节点标识,含本节点
+	public Collection<String> nodes() {
+		return Collections.unmodifiableCollection(nodes.keySet());
+	}
+
+	public InetSocketAddress addressOf(String node) {
+		return nodes.get(node);
+	}
+
+	// 以node注册的节点间连接须来自节点列表中该节点的主机;连接的源端口不固定,只比较地址
+	public boolean admits(String node, InetAddress peer) {
+		InetSocketAddress addr = nodes.get(node);
+		return addr != null && peer != null && peer.equals(addr.getAddress());
+	}
+
+	// 密钥所属节点:环上顺时针第一个虚拟节点
+	public String ownerOf(String key) {
+		SortedMap<Long, String> tail = ring.tailMap(hash(key));
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+	}
+
+	public boolean isLocal(String key) {
+		return self.equals(ownerOf(key));
+	}
+
+	// 节点间连接的设备名
+	public static String linkName(String node) {
+		return LinkPrefix + node;
+	}
+
+	public static boolean isLink(String name) {
+		return name != null && name.startsWith(LinkPrefix);
+	}
+
+	// 每条转发的消息都要计算所属节点,MessageDigest按线程复用
+	static final ThreadLocal<MessageDigest> md5 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	// 取MD5的前8字节,各节点及各次运行结果一致
+	static long hash(String key) {
+		byte[] digest = md5.get().digest(key.getBytes(charset));
+		long h = 0;
+		for (int i = 0; i < 8; i++)
+			h = (h << 8) | (digest[i] & 0xff);
+		return h;
+	}
+
+	@Override
+	public String toString() {
+		return "self = " + self + " nodes = " + nodes.keySet();
+	}
+}
@@ -1,57 +1,136 @@
 package component;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.gson.Gson;
 
 import device.ClientDevice;
 import device.Device;
 import device.DeviceManagerInterface;
+import device.DeviceRegistry;
+import device.FrameTooLongException;
+import device.SharedFrame;
 import message.ErrorMessage;
 import message.HeartbeatMessage;
 import message.Message;
 import message.MessageFactory;
+import message.MessageCodec;
 import message.RegistryMessage;
 import message.CloudMessage;
+import message.MessageInterface;
+import message.MulticastMessage;
+import util.AbstractUtil;
+import util.Counter;
+import util.Credits;
+import util.Histogram;
+import util.LogLevel;
+import util.Metrics;
+import util.MpscRingBuffer;
+import util.ServiceThread;
 import util.Settings;
-import util.Util;
+import util.TimingWheel;
 
 //模拟云服务器,用于测试遥控器和本地服务器
 public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice>, Closeable {
 
 	int port;
-	static final Util util = Settings.util;
+	volatile InetAddress bindAddr = null; // 监听地址,为null时使用util.getLocalAddr()
+	static final AbstractUtil util = Settings.util;
 	volatile CloudServerSimulator blinker = this;
-	Map<String, ClientDevice> devices = new ConcurrentHashMap<String, ClientDevice>(); // 设备池
-	Map<String, ProducerService> producers = new ConcurrentHashMap<String, ProducerService>(); // 生产者线程池
+	final DeviceRegistry<ClientDevice> devices = new DeviceRegistry<ClientDevice>(); // 设备池,按名字原子注册替换,不加全局锁
+	ConcurrentMap<String, Producer> producers = new ConcurrentHashMap<String, Producer>(); // 生产者池
 	Service service = null;
-	ArrayBlockingQueue<Message> tasks = new ArrayBlockingQueue<Message>(1024); // Task消息队列
-	ConsumerService consumer = null;
+	final boolean reactorMode; // true:Selector事件循环接管所有连接;false:每个连接一个ProducerService线程
+	final int reactorThreads; // 事件循环线程数
+	Reactor reactor = null;
+	HandshakeLoop handshake = null; // 新连接在此等待注册消息
+	final Shard[] shards; // Task消息队列,按toKey分片,每个分片一个消费者线程
+	ConsumerService[] consumers = null;
 	Handler handler = new Handler();
 	Gson gson = new Gson();
+	final Metrics metrics = new Metrics(); // 路由统计,供容量规划
+	final Counter[] received = new Counter[6]; // 按Message.type统计收到的消息数
+	final Counter[] errors = new Counter[ErrorMessage.c8 + 1]; // 按错误码统计回传的错误消息,下标即错误码
+	final Counter receivedOther = metrics.counter("cloud.received.other");
+	final Counter routed = metrics.counter("cloud.routed"); // 成功转发
+	final Counter deferred = metrics.counter("cloud.deferred"); // 目的设备信用用尽而暂存
+	final Counter registrations = metrics.counter("cloud.registrations");
+	final Counter registrationsRefused = metrics.counter("cloud.registrations.refused");
+	final Counter forwarded = metrics.counter("cloud.forwarded"); // 目的密钥属于其它节点,经节点间连接转发
+	final Counter redirected = metrics.counter("cloud.redirected"); // 注册的密钥属于其它节点,让客户端改连
+	final Counter sessionsResumed = metrics.counter("cloud.sessions.resumed"); // 凭令牌重连,未重新检测原连接
+	final Counter sessionsExpired = metrics.counter("cloud.sessions.expired");
+	final Counter parked = metrics.counter("cloud.sessions.parked"); // 会话断开期间暂存的消息
+	final Counter sessionsRestored = metrics.counter("cloud.sessions.restored"); // 重启时从注册表快照恢复
+	final Counter idleHeartbeats = metrics.counter("cloud.idle.heartbeats"); // 向空闲连接发出的检测心跳
+	final Counter idleEvicted = metrics.counter("cloud.idle.evicted"); // 未按时回传心跳而移除的连接
+	final Counter multicastDelivered = metrics.counter("cloud.multicast.delivered"); // 组播写出到本地服务器的份数,共用编码
+	final Counter multicastTimeouts = metrics.counter("cloud.multicast.timeouts"); // 未等到所有回传即汇总的组播
+	final Counter creditTimeouts = metrics.counter("cloud.credits.timeouts"); // 未等到回传而归还的信用
+	final Histogram queueWait = metrics.histogram("cloud.queue.wait"); // 入队到出队
+	final Histogram handleTime = metrics.histogram("cloud.handle"); // Handler处理时间
+	final Histogram heartbeatRtt = metrics.histogram("cloud.heartbeat.rtt");
+	volatile CloudCluster cluster = null; // 集群成员,为null时单节点运行
+	final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>(); // 遥控器、本地服务器的会话,断线后保留一段时间
+	static final SecureRandom random = new SecureRandom(); // 会话令牌
+	final ConcurrentMap<String, NodeLink> nodeLinks = new ConcurrentHashMap<String, NodeLink>(); // 每个对端节点一个,避免同时建立多条连接
+	final ThreadPoolExecutor linkers = newLinkers(); // 在消费者线程之外建立节点间连接
+	volatile Mailbox mailbox = null; // 离线本地服务器的信箱,为null时目的密钥不在线即回传错误
+	volatile RegistryStore registryStore = null; // 注册表元数据的快照及变更日志,为null时不保存
+	final IdleReaper idle = new IdleReaper(); // 连接的空闲检测
+	final ConcurrentMap<String, Aggregate> multicasts = new ConcurrentHashMap<String, Aggregate>(); // 等待回传的组播请求,键为遥控器密钥#请求编号
 
 	public static void main(String[] args) {
-		new CloudServerSimulator(Settings.CloudServerPort).CommandUI();
+		CloudServerSimulator server = new CloudServerSimulator(Settings.CloudServerPort);
+		if (!"".equals(Settings.CloudClusterNodes))
+			server.setCluster(CloudCluster.parse(Settings.CloudClusterNodes),
+					new InetSocketAddress(util.getLocalAddr().getHostAddress(), Settings.CloudServerPort));
+		if (!"".equals(Settings.CloudMailboxDir))
+			server.setMailbox(new File(Settings.CloudMailboxDir));
+		if (!"".equals(Settings.CloudRegistryDir))
+			server.setRegistryStore(new File(Settings.CloudRegistryDir));
+		server.CommandUI();
 	}
 
 	// 处理消息队列中的任务
 	class Handler {
 		public void onInvalid(Message task) {
-			util.log("Invalid Task: " + task);
+			util.log(LogLevel.WARN, "Invalid Task: {}", task);
 		}
 
 		public void onHeartbeat(ClientDevice device, HeartbeatMessage msg) {
@@ -62,30 +141,43 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			switch (msg.status) {
 			case HeartbeatMessage.REQUEST: {
 				// 根据密钥回传
-				String responseJson = MessageFactory.wrapHeartbeatResponseMessage();
-				util.log("Receive REQUEST HeartbeatMessage from " + device);
-				if (!device.sendMessage(responseJson)) {
-					util.log("Response HeartbeatMessage Failed to " + device);
+				String responseJson = MessageFactory.wrapHeartbeatResponseMessage(msg.seq);
+				util.log(LogLevel.DEBUG, "Receive REQUEST HeartbeatMessage from {}", device);
+				if (!device.offerMessage(responseJson)) {
+					util.log(LogLevel.WARN, "Response HeartbeatMessage Failed to {}", device);
 					return;
 				}
-				util.log("Response HeartbeatMessage to " + device.name);
+				util.log(LogLevel.DEBUG, "Response HeartbeatMessage to {}", device.name);
 				break;
 			}
 			case HeartbeatMessage.VALID: {
-				// 收到回传,tick
-				device.tickAll();
-				util.log("Receive VALID HeartbeatMessage from " + device);
+				// 收到回传,只tick对应序号的请求
+				long rtt = device.tick(msg.seq);
+				if (rtt >= 0)
+					heartbeatRtt.record(rtt);
+				if (!util.isEnabled(LogLevel.DEBUG))
+					break;
+				if (rtt >= 0)
+					util.log(LogLevel.DEBUG, "Receive VALID HeartbeatMessage from {} RTT = {}us", device,
+							TimeUnit.NANOSECONDS.toMicros(rtt));
+				else
+					util.log(LogLevel.DEBUG, "Receive VALID HeartbeatMessage from {} (seq = {})", device, msg.seq);
 				break;
 			}
 			}
 		}
 
-		// 处理来自远程遥控器的请求
+		// 处理来自远程遥控器的请求;返回false表示目的设备的信用已用尽,任务须暂存,等其归还信用后重试
+		public boolean onCloud(CloudMessage task) {
+			return onCloud(task, false);
+		}
+
+		// relayed为true表示消息由其它节点转发而来,目的密钥不在本节点时不再转发,避免节点列表不一致时循环转发
 		@SuppressWarnings("unused")
-		public void onCloud(CloudMessage task) {
+		public boolean onCloud(CloudMessage task, boolean relayed) {
 			if (!task.checkNotNull()) {
 				util.log("CloudMessage Null:" + gson.toJson(task));
-				return;
+				return true;
 			}
 			final int NORMAL = 1, SHUTDOWN_FROMDEVICE = 2, SHUTDOWN_TODEVICE = 3, TOKEY_NOTFOUND = 4,
 					SEND_ERRORMESSAGE = 5, TODEVICE_CLOSED = 6;
@@ -103,127 +195,739 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 						status = TOKEY_NOTFOUND;
 						break;
 					}
-					// 找到本地服务器,转发消息
-					util.log("ToDevice Found: " + toDevice.name);
-					if (!toDevice.sendMessage(MessageFactory.wrapCloudMessage(task))) {
+					// 找到本地服务器;已转发未回传的消息达到其声明的处理能力时暂不转发,错误回传不占用信用
+					util.log(LogLevel.DEBUG, "ToDevice Found: {}", toDevice.name);
+					// 注册响应发出、会话暂存的消息回放完之前暂不转发,由消费者线程随后按顺序补发
+					if (!toDevice.registered || hasReplay(toDevice)) {
+						util.log(LogLevel.DEBUG, "ToDevice Resuming, Defer Task: {}", task);
+						return false;
+					}
+					// 信箱中还有发往该设备的消息时排在其后,保持顺序
+					if (mailbox != null && mailbox.hasMail(task.toKey) && store(task, false)) {
+						deliver(toDevice);
+						return true;
+					}
+					if (!task.isNotice()) {
+						if (!toDevice.outboundCredits.tryAcquire()) {
+							deferred.increment();
+							util.log(LogLevel.DEBUG, "ToDevice Busy, Defer Task: {}", task);
+							return false;
+						}
+						lease(toDevice, task);
+					}
+					// 转发消息
+					if (!toDevice.sendMessage(MessageFactory.newMessage(CloudMessage.type, task))) {
 						status = TODEVICE_CLOSED;
 						break;
 					}
 					// 完成转发
-					util.log("Cloud Task Success: " + task);
+					routed.increment();
+					util.log(LogLevel.DEBUG, "Cloud Task Success: {}", task);
 					status = 0xff;
-					return;
+					return true;
 				}
 				case SEND_ERRORMESSAGE: {
 					// 未找到ToDevice或与ToDevice的连接中断,回传错误信息
-					if (err == null)
+					if (err == null) {
 						err = MessageFactory.wrapErrorMessage(ErrorMessage.c5);
+						countError(ErrorMessage.c5);
+					}
 					fromDevice = getDevice(task.fromKey);
 					if (fromDevice == null) {
-						util.log("FromKey not Found, Abandon Task: " + task);
+						// FromDevice连在其它节点时,交换密钥后经节点间连接回传
+						String owner = remoteOwner(task.fromKey);
+						if (owner != null) {
+							CloudMessage retCloudMsg = task.copy();
+							retCloudMsg.fromKey = task.toKey;
+							retCloudMsg.toKey = task.fromKey;
+							retCloudMsg.info = CloudMessage.ErrorMessage;
+							retCloudMsg.data = err;
+							forward(owner, retCloudMsg);
+						} else
+							util.log(LogLevel.WARN, "FromKey not Found, Abandon Task: {}", task);
 						status = 0xff;
 						break;
 					}
 					CloudMessage retCloudMsg = task.copy();
 					retCloudMsg.info = CloudMessage.ErrorMessage; // 更改性质为回传错误消息
 					retCloudMsg.data = err;
-					if (!fromDevice.sendMessage(MessageFactory.wrapCloudMessage(retCloudMsg))) {
+					if (!fromDevice.sendMessage(MessageFactory.newMessage(CloudMessage.type, retCloudMsg))) {
 						status = SHUTDOWN_FROMDEVICE;
 						break;
 					}
 					// 回传错误信息成功
-					util.log("Send ErrorMessage: Message = " + err + " FromDevice = " + fromDevice.name);
+					util.log(LogLevel.DEBUG, "Send ErrorMessage: Message = {} FromDevice = {}", err, fromDevice.name);
 					status = 0xff;
 					break;
 				}
 				case TODEVICE_CLOSED: {
 					// 和本地服务器的连接中断
-					util.log("ToDevice Closed: " + task.toKey);
+					util.log(LogLevel.WARN, "ToDevice Closed: {}", task.toKey);
 					err = MessageFactory.wrapErrorMessage(ErrorMessage.c7);
+					countError(ErrorMessage.c7);
 					status = SHUTDOWN_TODEVICE;
 					break;
 				}
 				case TOKEY_NOTFOUND: {
+					// 目的设备的会话尚在保留期内,暂存至其凭令牌重连
+					if (park(task))
+						return true;
+					// 集群模式下密钥属于其它节点时转发给该节点,转发失败时回传错误信息
+					String owner = relayed ? null : remoteOwner(task.toKey);
+					if (owner != null && forward(owner, task))
+						return true;
+					// 错误消息、暂存回执的目的设备已断开,不再为其生成错误消息
+					if (task.isNotice()) {
+						util.log(LogLevel.WARN, "ToKey not Found, Abandon Notice: {}", task);
+						return true;
+					}
+					// 本地服务器不在线,存入信箱,重新注册后投递
+					if (store(task, true))
+						return true;
 					// 未找到本地服务器密钥
-					util.log("ToKey not Found: " + task.toKey);
+					util.log(LogLevel.WARN, "ToKey not Found: {}", task.toKey);
 					err = MessageFactory.wrapErrorMessage(ErrorMessage.c6);
+					countError(ErrorMessage.c6);
 					status = SEND_ERRORMESSAGE;
 					break;
 				}
 				case SHUTDOWN_TODEVICE: {
 					// 关闭ToDevice
 					if (toDevice != null) {
-						removeDevice(toDevice.name);
+						removeDevice(toDevice);
 					}
+					// 会话保留期内暂存,或存入信箱,回传暂存回执而不是错误
+					if (park(task) || store(task, true))
+						return true;
 					// 回传ErrorMessage
 					status = SEND_ERRORMESSAGE;
 					break;
 				}
 				case SHUTDOWN_FROMDEVICE: {
 					// 和远程遥控器的连接断开,关闭FromDevice
-					util.log("FromDevice Connection Closed, Shutdown: " + fromDevice.name);
+					util.log(LogLevel.WARN, "FromDevice Connection Closed, Shutdown: {}", fromDevice.name);
 					if (fromDevice != null) {
-						removeDevice(fromDevice.name);
+						removeDevice(fromDevice);
 					}
 					status = 0xff;
 					break;
 				}
 				default:
-					util.log("Cloud Task Handled: " + task);
+					util.log(LogLevel.DEBUG, "Cloud Task Handled: {}", task);
+					return true;
+				}
+			}
+			return true;
+		}
+
+		// 目的设备断线但会话尚未过期时暂存任务;返回false表示没有可用的会话或暂存已满,按原方式处理。
+		// 发往本地服务器的请求暂存后回传暂存回执
+		boolean park(CloudMessage task) {
+			Session session = sessions.get(task.toKey);
+			if (session == null || !session.park(task))
+				return false;
+			parked.increment();
+			util.log(LogLevel.DEBUG, "ToDevice Disconnected, Park Task: {}", task);
+			if (session.deviceType == RegistryMessage.LOCAL_SERVER)
+				notice(task, CloudMessage.Stored, task.info);
+			return true;
+		}
+
+		// 目的本地服务器不在线时存入信箱;没有信箱、错误回传或信箱拒绝时返回false,按原方式处理。
+		// receipt为true时回传暂存回执;目的设备在线、只是排在信箱中其它消息之后时不回传
+		boolean store(CloudMessage task, boolean receipt) {
+			Mailbox mailbox = CloudServerSimulator.this.mailbox;
+			if (mailbox == null || task.isNotice() || !mailbox.offer(task))
+				return false;
+			util.log(LogLevel.DEBUG, "ToDevice Offline, Store Task: {}", task);
+			if (receipt)
+				notice(task, CloudMessage.Stored, task.info);
+			return true;
+		}
+
+		// 按顺序回放会话断开期间暂存的消息,与其它消息一样占用信用,发送时不持有会话的锁;全部发出时返回true。
+		// 只由该密钥所在分片的消费者线程调用
+		boolean replay(ClientDevice device) {
+			Session session = sessions.get(device.name);
+			if (session == null)
+				return true;
+			for (CloudMessage task; (task = session.peek(device)) != null;) {
+				if (!task.isNotice() && !device.outboundCredits.tryAcquire()) {
+					deferred.increment();
+					return false;
+				}
+				if (!session.remove(task)) {
+					if (!task.isNotice())
+						device.outboundCredits.release();
+					return false;
+				}
+				if (!task.isNotice())
+					lease(device, task);
+				if (!device.sendMessage(MessageFactory.newMessage(CloudMessage.type, task))) {
+					util.log(LogLevel.WARN, "ToDevice Closed while Replaying Session: {}", device);
+					session.restore(task);
+					removeDevice(device);
+					return false;
+				}
+				routed.increment();
+				util.log(LogLevel.DEBUG, "Replay Session Task: {}", task);
+			}
+			return true;
+		}
+
+		// 会话中还有待回放的消息
+		boolean hasReplay(ClientDevice device) {
+			Session session = sessions.get(device.name);
+			return session != null && session.peek(device) != null;
+		}
+
+		// 先回放会话暂存的消息,再按顺序投递信箱中发往device的消息,信用用尽或发送失败时停止,归还信用或重新注册后继续;
+		// 只由该密钥所在分片的消费者线程调用
+		void deliver(ClientDevice device) {
+			if (device == null || !device.registered)
+				return;
+			if (!replay(device))
+				return;
+			Mailbox mailbox = CloudServerSimulator.this.mailbox;
+			if (mailbox == null)
+				return;
+			for (CloudMessage task; (task = mailbox.peek(device.name)) != null;) {
+				if (!device.outboundCredits.tryAcquire()) {
+					deferred.increment();
+					return;
+				}
+				lease(device, task);
+				if (!device.sendMessage(MessageFactory.newMessage(CloudMessage.type, task))) {
+					util.log(LogLevel.WARN, "ToDevice Closed while Delivering Mailbox: {}", device);
+					removeDevice(device);
 					return;
 				}
+				mailbox.remove(device.name, task);
+				routed.increment();
+				util.log(LogLevel.DEBUG, "Deliver Stored Task: {}", task);
 			}
 		}
 
-		public void handlerMessage(Message task) {
+		// 生产者收到组播:请求按目的密钥拆成共用同一编码的任务,放入各自的分片,与发往该密钥的其它消息保持顺序;
+		// 本节点收到遥控器的请求时登记汇总,各本地服务器的回传按遥控器密钥放入分片,到齐后一次回传
+		boolean onMulticast(ClientDevice device, Message msg) {
+			MulticastMessage multicast = (MulticastMessage) msg.payload;
+			if (multicast == null || !multicast.checkNotNull()) {
+				util.log(LogLevel.WARN, "Receive Invalid MulticastMessage on Producer: Message = {} Device = {}", msg,
+						device);
+				return true;
+			}
+			boolean relayed = CloudCluster.isLink(device.name);
+			if (multicast.isResult()) {
+				// 本地服务器的回传,归还向其转发的信用
+				releaseCredit(device);
+				// 本地服务器只能回传自己的部分,不能冒充同一组播的其它目的密钥;节点转发来的部分已在对端节点检查
+				if (!relayed && !multicast.fromKey.equals(device.name)) {
+					util.log(LogLevel.WARN, "Receive MulticastMessage for Another Key: {} Device = {}", multicast,
+							device);
+					countError(ErrorMessage.c5);
+					return true;
+				}
+				ClientDevice source = device.inboundCredits.tryAcquire() ? device : null;
+				String toKey = multicast.toKeys.get(0);
+				if (!shardOf(toKey).offer(new Task(msg, source, relayed, toKey, null))) {
+					if (source != null)
+						source.inboundCredits.release();
+					util.log(LogLevel.WARN, "MessageQueue Full, Reject MulticastMessage: {}", multicast);
+				}
+				return true;
+			}
+			if (multicast.toKeys == null || multicast.toKeys.isEmpty()) {
+				util.log(LogLevel.WARN, "No ToKeys in MulticastMessage: Device = {}", device);
+				countError(ErrorMessage.c5);
+				return device.offerMessage(MessageFactory.wrapErrorMessage(ErrorMessage.c5));
+			}
+			LinkedHashSet<String> toKeys = new LinkedHashSet<String>(multicast.toKeys);
+			if (toKeys.size() > Settings.CloudMulticastMaxKeys) {
+				util.log(LogLevel.WARN, "Too Many ToKeys in MulticastMessage: {} Device = {}", toKeys.size(), device);
+				countError(ErrorMessage.c5);
+				return device.offerMessage(MessageFactory.wrapErrorMessage(ErrorMessage.c5));
+			}
+			if (!relayed && multicast.requestId != 0) {
+				Aggregate aggregate = new Aggregate(multicast, toKeys);
+				if (multicasts.putIfAbsent(aggregate.id, aggregate) == null)
+					aggregate.start();
+			}
+			// 占用来源连接的一个信用,由第一个任务归还
+			ClientDevice source = device.inboundCredits.tryAcquire() ? device : null;
+			// 共用的编码不带toKeys,各任务按Task.target路由
+			MulticastMessage shared = multicast.copy();
+			shared.toKeys = null;
+			SharedFrame frame = new SharedFrame(MessageFactory.newMessage(MulticastMessage.type, shared));
+			for (String toKey : toKeys) {
+				if (!shardOf(toKey).offer(new Task(msg, source, relayed, toKey, frame))) {
+					if (source != null)
+						source.inboundCredits.release();
+					util.log(LogLevel.WARN, "MessageQueue Full, Reject MulticastMessage: ToKey = {} Device = {}", toKey,
+							device);
+					countError(ErrorMessage.c4);
+					fail(multicast, toKey, ErrorMessage.c4);
+				}
+				source = null;
+			}
+			return true;
+		}
+
+		// 消费者处理组播的一个目的密钥:写出共用编码的只读视图;信用用尽时返回false,与CloudMessage一样暂存。
+		// 组播面向在线的设备,目的密钥不在线时不暂存,直接以错误计入汇总
+		boolean onMulticast(Task task) {
+			MulticastMessage multicast = (MulticastMessage) task.message.payload;
+			if (multicast.isResult()) {
+				onMulticastResult(multicast, task.relayed);
+				return true;
+			}
+			String toKey = task.target;
+			ClientDevice toDevice = getDevice(toKey);
+			if (toDevice == null) {
+				// 密钥属于其它节点时只转发该密钥的部分,回传经节点间连接汇总到本节点
+				String owner = task.relayed ? null : remoteOwner(toKey);
+				if (owner != null) {
+					MulticastMessage part = multicast.copy();
+					part.toKeys = new ArrayList<String>();
+					part.toKeys.add(toKey);
+					if (forward(owner, MulticastMessage.type, part))
+						return true;
+				}
+				util.log(LogLevel.WARN, "ToKey not Found: {}", toKey);
+				countError(ErrorMessage.c6);
+				fail(multicast, toKey, ErrorMessage.c6);
+				return true;
+			}
+			if (!toDevice.outboundCredits.tryAcquire()) {
+				deferred.increment();
+				util.log(LogLevel.DEBUG, "ToDevice Busy, Defer MulticastMessage: {}", toKey);
+				return false;
+			}
+			lease(toDevice, null);
+			if (!toDevice.sendMessage(task.frame)) {
+				util.log(LogLevel.WARN, "ToDevice Closed: {}", toKey);
+				removeDevice(toDevice);
+				countError(ErrorMessage.c7);
+				fail(multicast, toKey, ErrorMessage.c7);
+				return true;
+			}
+			routed.increment();
+			multicastDelivered.increment();
+			util.log(LogLevel.DEBUG, "Multicast to {}: {}", toKey, multicast);
+			return true;
+		}
+
+		// 发往toKey的部分失败,其中每个设备的结果均为错误消息;结果在本节点生成,请求来自其它节点时回传给该节点汇总
+		void fail(MulticastMessage request, String toKey, int code) {
+			MulticastMessage result = new MulticastMessage();
+			result.fromKey = toKey;
+			result.toKeys = new ArrayList<String>();
+			result.toKeys.add(request.fromKey);
+			result.requestId = request.requestId;
+			String err = MessageFactory.wrapErrorMessage(code);
+			if (request.infos != null && !request.infos.isEmpty())
+				for (String info : request.infos)
+					result.addResult(toKey, info, err);
+			else
+				result.addResult(toKey, request.group, err);
+			onMulticastResult(result, false);
+		}
+
+		// 一个本地服务器的回传:计入本节点登记的汇总;没有汇总时是其它节点转发来的部分,回传给遥控器所在节点。
+		// 汇总完成的回传fromKey为遥控器自身,直接回传
+		void onMulticastResult(MulticastMessage result, boolean relayed) {
+			String toKey = result.toKeys.get(0);
+			if (result.requestId != 0 && !toKey.equals(result.fromKey)) {
+				Aggregate aggregate = multicasts.get(multicastId(toKey, result.requestId));
+				if (aggregate != null) {
+					aggregate.add(result);
+					return;
+				}
+				if (getDevice(toKey) != null) {
+					// 汇总已超时发出
+					util.log(LogLevel.DEBUG, "Discard Late MulticastMessage: {}", result);
+					return;
+				}
+			}
+			reply(result, relayed);
+		}
+
+		// 回传给遥控器;遥控器连在其它节点时经节点间连接转发
+		void reply(MulticastMessage result, boolean relayed) {
+			String toKey = result.toKeys.get(0);
+			ClientDevice toDevice = getDevice(toKey);
+			if (toDevice == null) {
+				String owner = relayed ? null : remoteOwner(toKey);
+				if (owner == null || !forward(owner, MulticastMessage.type, result))
+					util.log(LogLevel.WARN, "FromKey not Found, Abandon MulticastMessage: {}", result);
+				return;
+			}
+			if (!toDevice.sendMessage(MessageFactory.newMessage(MulticastMessage.type, result))) {
+				util.log(LogLevel.WARN, "FromDevice Connection Closed, Shutdown: {}", toDevice.name);
+				removeDevice(toDevice);
+			}
+		}
+
+		// 处理生产者收到的一条消息;返回false表示和遥控器,本地控制器的连接中断
+		public boolean onReceive(ClientDevice device, ByteBuffer frame) {
+			device.lastReceived = System.nanoTime(); // 有流量的连接不必发送心跳
+			// 直接从读缓冲解码一次,解码结果随Task交给消费者线程
+			Message msg = MessageFactory.decodeMessage(frame);
+			if (msg == null) {
+				util.log(LogLevel.WARN, "Receive Invalid Message on Producer: Device = {}", device);
+				return true;
+			}
+			if (msg.type >= 0 && msg.type < received.length)
+				received[msg.type].increment();
+			else
+				receivedOther.increment();
+			switch (msg.type) {
+			case (HeartbeatMessage.type): {
+				// 心跳消息
+				HeartbeatMessage heartbeatMsg = (HeartbeatMessage) msg.payload;
+				if (heartbeatMsg == null) {
+					util.log(LogLevel.WARN, "Receive Invalid HeartbeatMessage on Producer: Message = {} Device = {}",
+							msg, device);
+					return true;
+				}
+				onHeartbeat(device, heartbeatMsg);
+				return true;
+			}
+			case (MulticastMessage.type):
+				return onMulticast(device, msg);
+			default: {
+				// 回传错误、暂存回执只由云服务器生成;遥控器、本地服务器伪造的会绕过信用、信箱和错误回传,拒绝
+				if (msg.payload instanceof CloudMessage && ((CloudMessage) msg.payload).isNotice()
+						&& !CloudCluster.isLink(device.name)) {
+					util.log(LogLevel.WARN, "Receive Forged Notice on Producer: Message = {} Device = {}", msg, device);
+					countError(ErrorMessage.c5);
+					return device.offerMessage(MessageFactory.wrapErrorMessage(ErrorMessage.c5));
+				}
+				// 来自声明了处理能力的设备的转发消息即其回传,归还一个向其转发的信用,继续转发暂存的任务
+				if (msg.payload instanceof CloudMessage)
+					releaseCredit(device);
+				// 占用该连接的一个信用,处理完成后归还;信用用尽时生产者暂停读取,对端的发送随TCP窗口填满而受阻
+				ClientDevice source = device.inboundCredits.tryAcquire() ? device : null;
+				// 按toKey放入对应分片的消息队列,等待消费者线程处理;同一toKey的消息保持顺序
+				Shard shard = shardOf(msg);
+				if (!shard.offer(msg, source, CloudCluster.isLink(device.name))) {
+					if (source != null)
+						source.inboundCredits.release();
+					util.log(LogLevel.WARN, "MessageQueue Full, Reject Message: Message = {} Device = {}", msg, device);
+					// 回传错误信息;在生产者线程上只入队,不等待发送队列的空间
+					countError(ErrorMessage.c4);
+					return device.offerMessage(MessageFactory.wrapErrorMessage(ErrorMessage.c4));
+				}
+				// 消息成功放入队列
+				util.log(LogLevel.DEBUG, "Accept Message: Message = {} Device = {}", msg, device);
+				return true;
+			}
+			}
+		}
+
+		// 组播的任务按拆分时的目的密钥处理;返回false表示目的设备的信用已用尽,任务须暂存
+		public boolean handlerMessage(Task task) {
+			if (task.frame != null || task.message.type == MulticastMessage.type)
+				return onMulticast(task);
+			return handlerMessage(task.message, task.relayed);
+		}
+
+		// 返回false表示目的设备的信用已用尽,任务未处理
+		public boolean handlerMessage(Message task) {
+			return handlerMessage(task, false);
+		}
+
+		public boolean handlerMessage(Message task, boolean relayed) {
 			switch (task.type) {
 			case CloudMessage.type: {
-				String json = gson.toJson(task);
-				CloudMessage realTask = MessageFactory.unwrapCloudMessage(json);
+				CloudMessage realTask = (CloudMessage) task.payload;
 				if (realTask == null) {
 					onInvalid(task);
 					break;
 				}
-				onCloud(realTask);
-				break;
+				return onCloud(realTask, relayed);
 			}
 			default:
 				onInvalid(task);
-				return;
+				break;
+			}
+			return true;
+		}
+	}
+
+	// 队列中的任务,记录入队时间用于统计等待时间
+	static class Task {
+		final Message message;
+		final ClientDevice source; // 发来该消息且占用了其信用的连接,处理完成后归还;为null时不占用
+		final boolean relayed; // 经节点间连接收到
+		final String target; // 组播请求拆分出的任务的目的密钥及回传的遥控器密钥,其它任务为null
+		final SharedFrame frame; // 组播请求的各分发任务共用的编码
+		final long enqueueTime = System.nanoTime();
+
+		Task(Message message, ClientDevice source, boolean relayed) {
+			this(message, source, relayed, null, null);
+		}
+
+		Task(Message message, ClientDevice source, boolean relayed, String target, SharedFrame frame) {
+			this.message = message;
+			this.source = source;
+			this.relayed = relayed;
+			this.target = target;
+			this.frame = frame;
+		}
+
+		String toKey() {
+			if (target != null)
+				return target;
+			return message.payload instanceof CloudMessage ? ((CloudMessage) message.payload).toKey : null;
+		}
+
+		// 处理完成,归还来源连接的信用
+		void done() {
+			if (source != null)
+				source.inboundCredits.release();
+		}
+	}
+
+	// 消息队列分片;队列深度及延迟统计只由本分片的消费者线程写入
+	static class Shard {
+		final int id;
+		final MpscRingBuffer<Task> queue; // 多个生产者无锁入队,只有本分片的消费者出队
+		final AtomicLong rejected = new AtomicLong(); // 队列已满被拒绝的消息数
+		final ConcurrentLinkedQueue<String> resumes = new ConcurrentLinkedQueue<String>(); // 归还了信用或已关闭的目的设备
+		final Map<String, ArrayDeque<Task>> deferred = new HashMap<String, ArrayDeque<Task>>(); // 目的设备信用用尽时暂存的任务,只由消费者线程访问
+		volatile int deferredCount = 0; // 暂存的任务数
+		volatile long handled = 0; // 已处理消息数
+		volatile long totalWaitNanos = 0, maxWaitNanos = 0; // 入队到出队的等待时间
+		volatile long totalHandleNanos = 0, maxHandleNanos = 0; // Handler处理时间
+
+		Shard(int id, int capacity) {
+			this.id = id;
+			this.queue = new MpscRingBuffer<Task>(capacity, Settings.CloudQueueWaitStrategy);
+		}
+
+		boolean offer(Message message, ClientDevice source, boolean relayed) {
+			return offer(new Task(message, source, relayed));
+		}
+
+		boolean offer(Task task) {
+			if (queue.offer(task))
+				return true;
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		// 通知消费者线程重试发往toKey的暂存任务,可由任意线程调用
+		void resume(String toKey) {
+			resumes.offer(toKey);
+			queue.wakeup();
+		}
+
+		void record(long waitNanos, long handleNanos) {
+			handled++;
+			totalWaitNanos += waitNanos;
+			totalHandleNanos += handleNanos;
+			if (waitNanos > maxWaitNanos)
+				maxWaitNanos = waitNanos;
+			if (handleNanos > maxHandleNanos)
+				maxHandleNanos = handleNanos;
+		}
+
+		@Override
+		public String toString() {
+			long count = handled;
+			return "[Shard " + id + "] depth = " + queue.size() + " deferred = " + deferredCount + " handled = " + count
+					+ " rejected = " + rejected.get()
+					+ " avgWait = " + (count == 0 ? 0 : totalWaitNanos / count / 1000) + "us maxWait = "
+					+ maxWaitNanos / 1000 + "us avgHandle = " + (count == 0 ? 0 : totalHandleNanos / count / 1000)
+					+ "us maxHandle = " + maxHandleNanos / 1000 + "us";
+		}
+	}
+
+	// 根据CloudMessage的toKey选择分片,无法取得toKey的消息统一放入0号分片
+	Shard shardOf(Message msg) {
+		return shardOf(msg.payload instanceof CloudMessage ? ((CloudMessage) msg.payload).toKey : null);
+	}
+
+	Shard shardOf(String toKey) {
+		if (toKey == null || shards.length == 1)
+			return shards[0];
+		int h = toKey.hashCode();
+		h ^= (h >>> 16);
+		return shards[(h & 0x7fffffff) % shards.length];
+	}
+
+	// 为请求task生成回传(错误消息或暂存回执)发往task.fromKey;按其密钥放入分片,由消费者线程像其它消息一样转发,
+	// fromKey在其它节点时经节点间连接转发。不阻塞,可在定时器线程调用
+	void notice(CloudMessage task, String info, String data) {
+		if (task.isNotice())
+			return;
+		CloudMessage notice = task.copy();
+		notice.fromKey = task.toKey;
+		notice.toKey = task.fromKey;
+		notice.info = info;
+		notice.data = data;
+		if (!shardOf(notice.toKey).offer(MessageFactory.newMessage(CloudMessage.type, notice), null, false))
+			util.log(LogLevel.WARN, "MessageQueue Full, Drop Notice: {}", notice);
+	}
+
+	// 记录已占用信用的一次转发,在发送之前调用;超过CloudCreditTimeoutMillis未收到回传时归还信用,以免丢失的请求永久占用。
+	// task为null(组播)时只归还信用,结果由汇总超时补齐
+	void lease(ClientDevice device, CloudMessage task) {
+		if (Settings.CloudCreditTimeoutMillis <= 0 || !device.outboundCredits.isLimited()
+				|| !(device instanceof ProducerDevice))
+			return;
+		ProducerDevice producer = (ProducerDevice) device;
+		Lease lease = new Lease(producer, task);
+		lease.timeout = TimingWheel.shared().newTimeout(lease, Settings.CloudCreditTimeoutMillis,
+				TimeUnit.MILLISECONDS);
+		synchronized (producer.leases) {
+			producer.leases.offer(lease);
+		}
+	}
+
+	// 收到device的回传,归还一个信用并取消最早一次转发的期限;由用尽变为可用时继续转发暂存的任务
+	void releaseCredit(ClientDevice device) {
+		if (device instanceof ProducerDevice) {
+			ProducerDevice producer = (ProducerDevice) device;
+			Lease lease;
+			synchronized (producer.leases) {
+				lease = producer.leases.poll();
 			}
+			if (lease != null)
+				lease.timeout.cancel();
 		}
+		if (device.outboundCredits.release())
+			shardOf(device.name).resume(device.name);
 	}
 
-	// 消费者线程,循环处理消息队列
-	class ConsumerService extends Thread {
+	// 按错误码统计回传的错误消息;只在出错时调用
+	void countError(int code) {
+		if (code > 0 && code < errors.length)
+			errors[code].increment();
+		else
+			metrics.counter("cloud.error.c" + code).increment();
+	}
+
+	// 计数器、队列深度及延迟分布的快照,单位纳秒
+	public Map<String, Long> getMetrics() {
+		return metrics.snapshot();
+	}
+
+	// 各分片的队列深度及延迟统计
+	public String getShardStats() {
+		StringBuilder sb = new StringBuilder();
+		for (Shard shard : shards)
+			sb.append(shard + "\n");
+		return sb.toString();
+	}
+
+	// 消费者线程,循环处理一个分片的消息队列
+	class ConsumerService extends ServiceThread {
 		volatile ConsumerService blinker = this;
+		final Shard shard;
+
+		public ConsumerService(Shard shard) {
+			super("ConsumerService-" + shard.id);
+			this.shard = shard;
+		}
 
 		@Override
 		public void run() {
 			while (blinker == this) {
 				try {
-					Message task = tasks.poll(60, TimeUnit.SECONDS);
+					Task task = shard.queue.poll(60, TimeUnit.SECONDS);
+					resumeDeferred();
 					if (task == null)
 						continue;
-					long startTime = System.currentTimeMillis();
-					handler.handlerMessage(task);
-					long endTime = System.currentTimeMillis();
-					util.log("Handle Task in " + (endTime - startTime) + " Millis, " + tasks.size() + " Tasks Left");
+					long startTime = System.nanoTime();
+					handle(task);
+					long endTime = System.nanoTime();
+					shard.record(startTime - task.enqueueTime, endTime - startTime);
+					queueWait.record(startTime - task.enqueueTime);
+					handleTime.record(endTime - startTime);
+					if (util.isEnabled(LogLevel.DEBUG))
+						util.log(LogLevel.DEBUG, "Handle Task in {} Millis, {} Tasks Left on Shard {}",
+								TimeUnit.NANOSECONDS.toMillis(endTime - startTime), shard.queue.size(), shard.id);
 				} catch (InterruptedException e) {
 					util.log("Interrupt Message Queue, ConsumerService Closed");
 				}
 			}
 		}
 
+		// 同一toKey已有暂存任务时排在其后,保持顺序
+		void handle(Task task) {
+			String toKey = task.toKey();
+			ArrayDeque<Task> waiting = toKey == null ? null : shard.deferred.get(toKey);
+			if (waiting == null && handler.handlerMessage(task)) {
+				task.done();
+				return;
+			}
+			if (waiting == null) {
+				waiting = new ArrayDeque<Task>();
+				shard.deferred.put(toKey, waiting);
+			}
+			waiting.offer(task);
+			shard.deferredCount++;
+		}
+
+		// 按顺序重试目的设备已归还信用或已关闭的暂存任务,再次用尽时停止
+		void resumeDeferred() {
+			for (String toKey; (toKey = shard.resumes.poll()) != null;) {
+				// 信箱中的消息早于暂存任务,先投递
+				handler.deliver(getDevice(toKey));
+				ArrayDeque<Task> waiting = shard.deferred.get(toKey);
+				if (waiting == null)
+					continue;
+				for (Task task; (task = waiting.peek()) != null;) {
+					if (!handler.handlerMessage(task))
+						break;
+					waiting.poll();
+					shard.deferredCount--;
+					task.done();
+				}
+				if (waiting.isEmpty())
+					shard.deferred.remove(toKey);
+			}
+		}
+
 		public void close() {
 			this.interrupt();
 			blinker = null;
-			consumer = null;
 		}
 	}
 
+	// 开启所有分片的消费者线程
+	void startConsumers() {
+		closeConsumers();
+		ConsumerService[] services = new ConsumerService[shards.length];
+		for (int i = 0; i < shards.length; i++) {
+			services[i] = new ConsumerService(shards[i]);
+			services[i].start();
+		}
+		consumers = services;
+	}
+
+	void closeConsumers() {
+		ConsumerService[] services = consumers;
+		consumers = null;
+		if (services == null)
+			return;
+		for (ConsumerService consumer : services)
+			consumer.close();
+	}
+
+	// 生产者,负责读取一个遥控器或本地服务器连接上的消息
+	interface Producer {
+		void start();
+
+		void close();
+
+		boolean isAlive();
+	}
+
 	// 生产者线程,循环监听来自遥控器的通信
-	class ProducerService extends Thread {
+	class ProducerService extends ServiceThread implements Producer {
 		volatile ProducerService blinker = this;
 		ClientDevice device = null;
 
@@ -235,56 +939,502 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 		@Override
 		public void run() {
 			while (blinker == this) {
-				String json = device.receiveMessage();
-				if (json == null || "".equals(json)) {
+				// 信用用尽时暂停读取,等消费者处理完已排队的消息
+				if (!device.inboundCredits.hasAvailable()) {
+					try {
+						device.inboundCredits.awaitAvailable(1000);
+					} catch (InterruptedException e) {
+					}
+					continue;
+				}
+				ByteBuffer frame = device.receiveFrame();
+				if (frame == null || !frame.hasRemaining()) {
 					// 和遥控器,本地控制器的连接中断
 					util.log("Connect Interrupted on ProducerService: " + device + " (Close Device)");
 					close();
 					return;
 				}
-				Message msg = MessageFactory.unwrapMessage(json);
-				if (msg == null) {
-					util.log("Receive Invalid Message on ProducerService: Message = " + json + " Device = " + device);
-					continue;
+				if (!handler.onReceive(device, frame)) {
+					// 和遥控器,本地控制器的连接中断
+					util.log("Connect Interrupted on ProducerService: " + device + " (Close Device)");
+					close();
+					return;
 				}
-				switch (msg.type) {
-				case (HeartbeatMessage.type): {
-					// 心跳消息
-					HeartbeatMessage heartbeatMsg = MessageFactory.unwrapHeartbeatMessage(json);
-					if (heartbeatMsg == null) {
-						util.log("Receive Invalid HeartbeatMessage on ProducerService: Message = " + json + " Device = "
-								+ device);
+			}
+		}
+
+		public void close() {
+			if (blinker == null)
+				return;
+			blinker = null;
+			removeDevice(device);
+		}
+
+	}
+
+	// 事件循环模式下的生产者,不占用线程;由所属ReactorLoop在连接可读时回调
+	class ReactorProducer implements Producer {
+		volatile ReactorProducer blinker = this;
+		ClientDevice device = null;
+		ReactorLoop loop = null;
+		SelectionKey key = null;
+		boolean paused = false; // 信用用尽,暂停读取;只在ReactorLoop线程中访问
+		boolean writing = false; // 发送缓冲区已满,等待可写;只在ReactorLoop线程中访问
+
+		public ReactorProducer(ClientDevice device) {
+			super();
+			this.device = device;
+		}
+
+		// 将连接切换为非阻塞模式,交给事件循环
+		@Override
+		public void start() {
+			if (reactor == null) {
+				util.log("Reactor not Running: " + device + " (Close Device)");
+				close();
+				return;
+			}
+			try {
+				device.sc.configureBlocking(false);
+			} catch (IOException e) {
+				util.log("configureBlocking(false) Failed: " + device + " (Close Device)");
+				close();
+				return;
+			}
+			loop = reactor.next();
+			// 发送缓冲区满时由事件循环在可写时继续写出,发送者不阻塞
+			device.onWritePending = new Runnable() {
+				@Override
+				public void run() {
+					loop.requestWrite(ReactorProducer.this);
+				}
+			};
+			// 信用归还后由事件循环继续处理读缓冲中剩余的消息并恢复读取
+			device.inboundCredits.onAvailable = new Runnable() {
+				@Override
+				public void run() {
+					loop.requestResume(ReactorProducer.this);
+				}
+			};
+			loop.register(this);
+		}
+
+		// 按暂停读取及等待可写的状态设置关注的事件;在ReactorLoop线程中调用
+		void updateInterestOps() {
+			if (key != null && key.isValid())
+				key.interestOps((paused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+		}
+
+		// 连接可写;在ReactorLoop线程中调用
+		void onWritable() {
+			if (blinker != this)
+				return;
+			writing = false;
+			updateInterestOps();
+			if (!device.flush()) {
+				util.log("Connect Interrupted on ReactorProducer: " + device + " (Close Device)");
+				close();
+			}
+		}
+
+		// 信用已归还;在ReactorLoop线程中调用
+		void onResume() {
+			if (blinker != this || !paused)
+				return;
+			paused = false;
+			updateInterestOps();
+			processFrames();
+		}
+
+		// 连接可读;在ReactorLoop线程中调用
+		void onReadable() {
+			if (blinker != this || paused)
+				return;
+			int count = -1;
+			try {
+				// 读入该连接自己的分帧缓冲
+				count = device.sc.read(device.decoder.readBuffer());
+			} catch (IOException e) {
+				util.log("Connection Closed Unexpectedly: " + device);
+			}
+			if (count == -1) {
+				// 和遥控器,本地控制器的连接中断
+				util.log("Connect Interrupted on ReactorProducer: " + device + " (Close Device)");
+				close();
+				return;
+			}
+			processFrames();
+		}
+
+		// 一次read中可能包含多条消息,逐条交给Handler;信用用尽时暂停读取,剩余的消息留在读缓冲中
+		void processFrames() {
+			while (blinker == this) {
+				if (!device.inboundCredits.hasAvailable()) {
+					paused = true;
+					updateInterestOps();
+					return;
+				}
+				ByteBuffer frame = null;
+				try {
+					frame = device.decoder.nextFrame();
+				} catch (FrameTooLongException e) {
+					util.log(e.getMessage() + " on ReactorProducer: " + device + " (Close Device)");
+					close();
+					return;
+				}
+				if (frame == null)
+					return;
+				if (!handler.onReceive(device, frame)) {
+					util.log("Connect Interrupted on ReactorProducer: " + device + " (Close Device)");
+					close();
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean isAlive() {
+			return blinker == this && (key == null || key.isValid());
+		}
+
+		@Override
+		public void close() {
+			if (blinker == null)
+				return;
+			blinker = null;
+			if (key != null)
+				key.cancel();
+			removeDevice(device);
+		}
+	}
+
+	// 事件循环组,连接按轮询分配到各个ReactorLoop
+	class Reactor {
+		ReactorLoop[] loops;
+		int index = 0;
+
+		public Reactor(int threads) throws IOException {
+			loops = new ReactorLoop[Math.max(1, threads)];
+			for (int i = 0; i < loops.length; i++)
+				loops[i] = new ReactorLoop(i);
+		}
+
+		public void start() {
+			for (ReactorLoop loop : loops)
+				loop.start();
+			util.log("Reactor Started: " + loops.length + " Loops");
+		}
+
+		synchronized ReactorLoop next() {
+			ReactorLoop loop = loops[index];
+			index = (index + 1) % loops.length;
+			return loop;
+		}
+
+		public void close() {
+			for (ReactorLoop loop : loops)
+				loop.close();
+		}
+	}
+
+	// 单个Selector事件循环线程
+	class ReactorLoop extends Thread {
+		volatile ReactorLoop blinker = this;
+		Selector selector;
+		ConcurrentLinkedQueue<ReactorProducer> pending = new ConcurrentLinkedQueue<ReactorProducer>(); // 等待注册的连接
+		ConcurrentLinkedQueue<ReactorProducer> writes = new ConcurrentLinkedQueue<ReactorProducer>(); // 等待可写的连接
+		ConcurrentLinkedQueue<ReactorProducer> resumes = new ConcurrentLinkedQueue<ReactorProducer>(); // 信用已归还的连接
+
+		public ReactorLoop(int id) throws IOException {
+			super("ReactorLoop-" + id);
+			selector = Selector.open();
+		}
+
+		// 可在任意线程调用,实际注册在事件循环线程中完成
+		void register(ReactorProducer producer) {
+			pending.offer(producer);
+			selector.wakeup();
+		}
+
+		// 可在任意线程调用,在事件循环线程中关注OP_WRITE
+		void requestWrite(ReactorProducer producer) {
+			writes.offer(producer);
+			selector.wakeup();
+		}
+
+		// 可在任意线程调用,在事件循环线程中恢复读取
+		void requestResume(ReactorProducer producer) {
+			resumes.offer(producer);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (blinker == this) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					util.log("selector.select() Error, ReactorLoop Closed");
+					break;
+				}
+				// 处理新注册的连接
+				for (ReactorProducer producer; (producer = pending.poll()) != null;) {
+					if (producer.blinker != producer)
+						continue;
+					SocketChannel channel = producer.device.sc;
+					if (channel == null) {
+						// 注册前设备已被关闭
+						producer.close();
 						continue;
 					}
-					handler.onHeartbeat(device, heartbeatMsg);
-					break;
+					try {
+						producer.key = channel.register(selector, 0, producer);
+					} catch (ClosedChannelException e) {
+						producer.close();
+						continue;
+					}
+					producer.writing = producer.device.hasPendingWrites(); // 注册前已有未写出的数据
+					producer.updateInterestOps();
+					producer.processFrames(); // 注册消息之后已读入的消息
 				}
-				default: {
-					// 消息放入消息队列,等待消费者线程处理
-					if (!tasks.offer(msg)) {
-						util.log("MessageQueue Full, Reject Message: Message = " + json + " Device = " + device);
-						// 回传错误信息
-						json = MessageFactory.wrapErrorMessage(ErrorMessage.c4);
-						if (!device.sendMessage(json)) {
-							// 和遥控器,本地控制器的连接中断
-							util.log("Connect Interrupted on ProducerService: " + device + " (Close Device)");
-							close();
-							return;
-						}
+				// 关注发送缓冲区已满的连接的可写事件
+				for (ReactorProducer producer; (producer = writes.poll()) != null;) {
+					producer.writing = true;
+					producer.updateInterestOps();
+				}
+				// 恢复信用已归还的连接的读取
+				for (ReactorProducer producer; (producer = resumes.poll()) != null;)
+					producer.onResume();
+				// 处理可读、可写的连接
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					ReactorProducer producer = (ReactorProducer) key.attachment();
+					if (!key.isValid()) {
+						producer.close();
 						continue;
 					}
-					// 消息成功放入队列
-					util.log("Accept Message: Message = " + json + " Device = " + device);
+					if (key.isWritable())
+						producer.onWritable();
+					if (key.isValid() && key.isReadable())
+						producer.onReadable();
 				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+			}
+		}
+
+		public void close() {
+			blinker = null;
+			selector.wakeup();
+		}
+	}
+
+	// 注册握手事件循环:新连接以非阻塞方式在此等待RegistryMessage,注册消息读完后再交给putDevice;
+	// 超过期限仍未发来注册消息的连接被关闭,一个不发消息的客户端不会阻塞其它连接的注册
+	class HandshakeLoop extends Thread {
+		volatile HandshakeLoop blinker = this;
+		Selector selector;
+		final long timeout;
+		ConcurrentLinkedQueue<ClientDevice> pending = new ConcurrentLinkedQueue<ClientDevice>(); // 刚接收的连接
+		ArrayDeque<Handshake> waiting = new ArrayDeque<Handshake>(); // 期限相同,按接收顺序即按期限先后
+		List<Handshake> completed = new ArrayList<Handshake>(); // 本轮读完注册消息的连接
+		final ExecutorService registrars; // 完成注册及echo,不同名字的注册并行进行;积压时按Admission的顺序
+		long admitted = 0; // 到达顺序,只由本线程访问
+
+		public HandshakeLoop(long timeout, int registrarThreads) throws IOException {
+			super("HandshakeLoop");
+			this.timeout = timeout;
+			selector = Selector.open();
+			int threads = Math.max(1, registrarThreads);
+			registrars = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+				int count = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "Registrar-" + (count++));
+					thread.setDaemon(true);
+					return thread;
 				}
+			});
+		}
+
+		// 在accept线程调用
+		void accept(ClientDevice device) {
+			pending.offer(device);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			while (blinker == this) {
+				try {
+					// 最多等到最早的期限
+					Handshake first = waiting.peek();
+					long wait = first == null ? 0 : first.deadline - System.currentTimeMillis();
+					if (first == null)
+						selector.select();
+					else if (wait > 0)
+						selector.select(wait);
+					else
+						selector.selectNow();
+				} catch (IOException e) {
+					util.log("selector.select() Error, HandshakeLoop Closed");
+					break;
+				}
+				long now = System.currentTimeMillis();
+				// 注册新连接
+				for (ClientDevice device; (device = pending.poll()) != null;) {
+					Handshake handshake = new Handshake(device, now + timeout);
+					try {
+						device.sc.configureBlocking(false);
+						handshake.key = device.sc.register(selector, SelectionKey.OP_READ, handshake);
+						waiting.offer(handshake);
+					} catch (IOException e) {
+						util.log("Connection Refused, Register Failed: " + device);
+						device.close();
+					}
+				}
+				// 读取注册消息
+				for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext();) {
+					SelectionKey key = it.next();
+					it.remove();
+					Handshake handshake = (Handshake) key.attachment();
+					if (key.isValid() && key.isReadable())
+						handshake.onReadable();
+				}
+				// 关闭超时的连接;已完成的一并移出
+				for (Handshake handshake; (handshake = waiting.peek()) != null
+						&& (handshake.done || handshake.deadline <= now);) {
+					waiting.poll();
+					if (!handshake.done)
+						handshake.fail("Connection Refused, Registry Timeout");
+				}
+				// 注销后恢复阻塞模式,完成注册
+				if (!completed.isEmpty()) {
+					try {
+						selector.selectNow(); // 使已取消的key真正注销
+					} catch (IOException e) {
+					}
+					for (Handshake handshake : completed) {
+						try {
+							registrars.execute(new Admission(handshake, admissionPriority(handshake.json), admitted++));
+						} catch (RejectedExecutionException e) {
+							handshake.device.close(); // 已关闭
+						}
+					}
+					completed.clear();
+				}
+			}
+			// 关闭所有未完成注册的连接
+			for (ClientDevice device; (device = pending.poll()) != null;)
+				device.close();
+			for (Handshake handshake : waiting)
+				if (!handshake.done)
+					handshake.device.close();
+			waiting.clear();
+			registrars.shutdown();
+			try {
+				selector.close();
+			} catch (IOException e) {
 			}
 		}
 
 		public void close() {
 			blinker = null;
-			removeDevice(device.name);
+			selector.wakeup();
 		}
 
+		// 等待注册线程的连接;重启后的重连潮中先完成优先级高的,同一优先级按到达顺序
+		class Admission implements Runnable, Comparable<Admission> {
+			final Handshake handshake;
+			final int priority;
+			final long seq;
+
+			Admission(Handshake handshake, int priority, long seq) {
+				this.handshake = handshake;
+				this.priority = priority;
+				this.seq = seq;
+			}
+
+			@Override
+			public void run() {
+				handshake.register();
+			}
+
+			@Override
+			public int compareTo(Admission other) {
+				if (priority != other.priority)
+					return priority < other.priority ? -1 : 1;
+				return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+			}
+		}
+
+		// 一个等待注册消息的连接
+		class Handshake {
+			final ClientDevice device;
+			final long deadline;
+			SelectionKey key = null;
+			String json = null;
+			boolean done = false;
+
+			Handshake(ClientDevice device, long deadline) {
+				this.device = device;
+				this.deadline = deadline;
+			}
+
+			void onReadable() {
+				int count = -1;
+				try {
+					count = device.sc.read(device.decoder.readBuffer());
+				} catch (IOException e) {
+				}
+				if (count == -1) {
+					fail("Connection Refused, no Message Received");
+					return;
+				}
+				ByteBuffer frame = null;
+				try {
+					frame = device.decoder.nextFrame();
+				} catch (FrameTooLongException e) {
+					fail("Connection Refused, " + e.getMessage());
+					return;
+				}
+				if (frame == null)
+					return; // 注册消息尚未读完
+				json = device.decoder.toText(frame);
+				done = true;
+				key.cancel();
+				completed.add(this);
+			}
+
+			// 在注册线程中完成注册;之后的echo及生产者按阻塞模式工作
+			void register() {
+				try {
+					device.sc.configureBlocking(true);
+				} catch (IOException e) {
+					util.log("configureBlocking(true) Failed: " + device);
+					device.close();
+					return;
+				}
+				if (!putDevice(device, json, null, 1))
+					util.log("Device Put Error");
+			}
+
+			void fail(String reason) {
+				done = true;
+				key.cancel();
+				try {
+					util.log(reason + ": " + device.sc.getRemoteAddress());
+				} catch (Exception e) {
+					util.log(reason + ".");
+				}
+				device.close();
+			}
+		}
 	}
 
 	@Override
@@ -295,17 +1445,32 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			service.close();
 			service = null;
 		}
+		// 关闭握手事件循环
+		if (handshake != null) {
+			handshake.close();
+			handshake = null;
+		}
 		// 关闭消费者线程
-		if (consumer != null) {
-			consumer.close();
-			consumer = null;
+		closeConsumers();
+		// 关闭事件循环
+		if (reactor != null) {
+			reactor.close();
+			reactor = null;
 		}
 		synchronized (this) {
 			// 关闭设备和相应生产者线程
-			for (String name : devices.keySet())
-				removeDevice(name);
-			for (Iterator<ProducerService> it = producers.values().iterator(); it.hasNext();) {
-				ProducerService producer = it.next();
+			for (ClientDevice device : devices.snapshot())
+				removeDevice(device.name);
+			// 不再等待断线的设备重连
+			for (Session session : sessions.values())
+				session.discard();
+			sessions.clear();
+			if (mailbox != null)
+				mailbox.close();
+			if (registryStore != null)
+				registryStore.close();
+			for (Iterator<Producer> it = producers.values().iterator(); it.hasNext();) {
+				Producer producer = it.next();
 				producer.close();
 				it.remove();
 			}
@@ -327,9 +1492,9 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 				for (Device info : getAllDevices())
 					sb.append(info + "\n");
 				if ("".equals(sb.toString())) {
-					util.log("当前没有设备");
+					util.prompt("当前没有设备");
 				} else {
-					util.log(sb.toString());
+					util.prompt(sb.toString());
 				}
 				status = 0xff;
 				break;
@@ -337,7 +1502,7 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			case 2: {
 				// 检测设备可用性
 				if (getAllDevices() == null)
-					util.log("当前没有设备");
+					util.prompt("当前没有设备");
 				else
 					for (ClientDevice device : getAllDevices()) {
 						final ClientDevice deviceFinal = device;
@@ -347,17 +1512,17 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 								StringBuilder sb = new StringBuilder();
 								sb.append("可用: ");
 								sb.append(deviceFinal + "\n");
-								util.log(sb.toString());
+								util.prompt(sb.toString());
 							}
 
 						}, new Runnable() {
 							@Override
 							public void run() {
-								removeDevice(deviceFinal.name);
+								removeDevice(deviceFinal);
 								StringBuilder sb = new StringBuilder();
 								sb.append("移除: ");
 								sb.append(deviceFinal + "\n");
-								util.log(sb.toString());
+								util.prompt(sb.toString());
 							}
 						});
 					}
@@ -367,26 +1532,17 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			case 3: {
 				// 运行停止服务
 				try {
-					util.log("当前状态: " + (service != null && service.isAlive() ? "运行中" : "未运行"));
-					util.log("1 -> 开始运行\n" + "2 -> 停止运行");
+					util.prompt("当前状态: " + (service != null && service.isAlive() ? "运行中" : "未运行"));
+					util.prompt("1 -> 开始运行\n" + "2 -> 停止运行");
 					int choice = sc.nextInt();
 					if (choice == 1) {
-						if (service != null && service.isAlive())
-							util.log("云服务器已在运行");
-						else {
-							// 开始运行
-							if (service != null) {
-								service.close();
-								service = null;
-							}
-							service = new Service();
-							service.start();
-						}
+						if (!startService())
+							util.prompt("云服务器已在运行");
 					} else {
 						while (service != null && service.isAlive()) {
 							service.close();
 						}
-						util.log("服务已停止");
+						util.prompt("服务已停止");
 					}
 				} finally {
 					status = 0xff;
@@ -396,38 +1552,38 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			case 4: {
 				try {
 					// 和智能家具通信
-					util.log("请输入本地服务器密钥");
+					util.prompt("请输入本地服务器密钥");
 					String key = sc.next();
 					ClientDevice device = devices.get(key);
 					if (device == null) {
-						util.log("不存在的本地服务器");
+						util.prompt("不存在的本地服务器");
 						break;
 					}
-					util.log("请输入智能家具名");
+					util.prompt("请输入智能家具名");
 					String name = sc.next();
 					for (;;) {
-						util.log("请输入内容(键入exit退出)");
+						util.prompt("请输入内容(键入exit退出)");
 						String data = sc.next();
 						if ("exit".equals(data))
 							continue circle;
 						String json = MessageFactory.wrapCloudMessage("CloudServer", key, name, data);
 						if (!device.sendMessage(json)) {
-							util.log("和本地服务器连接断开");
+							util.prompt("和本地服务器连接断开");
 							continue circle;
 						}
 						String result = device.receiveMessage();
 						if (result == null) {
-							util.log("和本地服务器连接断开");
+							util.prompt("和本地服务器连接断开");
 							continue circle;
 						}
 						Message retVal = MessageFactory.unwrapMessage(result);
 						if (retVal.type == Message.rawType)
-							util.log("收到消息: " + retVal.data);
+							util.prompt("收到消息: " + retVal.data);
 						else if (retVal.type == ErrorMessage.type) {
 							ErrorMessage err = MessageFactory.unwrapErrorMessage(result);
-							util.log("收到错误消息: " + err.getMessage());
+							util.prompt("收到错误消息: " + err.getMessage());
 						} else
-							util.log("未识别的消息: " + result);
+							util.prompt("未识别的消息: " + result);
 					}
 
 				} finally {
@@ -439,10 +1595,10 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 					SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
 					while (blinker == this) {
 						if (service != null && service.isAlive()) {
-							// util.log("云服务器已在运行");
+							// util.prompt("云服务器已在运行");
 						} else {
 							// 开始运行
-							util.log("服务停止,尝试重启[" + format.format(new Date()) + "]");
+							util.prompt("服务停止,尝试重启[" + format.format(new Date()) + "]");
 							if (service != null) {
 								service.close();
 								service = null;
@@ -463,10 +1619,22 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 				}
 				break;
 			}
+			case 6: {
+				// 各分片队列深度及延迟
+				util.prompt(getShardStats());
+				status = 0xff;
+				break;
+			}
+			case 7: {
+				// 路由计数及延迟分布
+				util.prompt(metrics.toString());
+				status = 0xff;
+				break;
+			}
 			default: {
 				String msg = "[云服务器]\n" + "1 -> 查看当前设备列表\n" + "2 -> 检测当前设备可用性\n" + "3 -> 运行/停止服务\n" + "4 -> 和智能家具通信\n"
-						+ "5 -> 循环运行\n" + "0 -> 退出\n";
-				util.log(msg);
+						+ "5 -> 循环运行\n" + "6 -> 查看消息队列状态\n" + "7 -> 查看路由统计\n" + "0 -> 退出\n";
+				util.prompt(msg);
 				status = sc.nextInt();
 				break;
 			}
@@ -475,22 +1643,184 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 	}
 
 	public CloudServerSimulator(int port) {
+		this(port, Settings.CloudServerReactorMode, Settings.CloudServerReactorThreads,
+				Settings.CloudConsumerThreads);
+	}
+
+	public CloudServerSimulator(int port, boolean reactorMode, int reactorThreads, int consumerThreads) {
 		this.port = port;
+		this.reactorMode = reactorMode;
+		this.reactorThreads = reactorThreads;
+		this.shards = new Shard[Math.max(1, consumerThreads)];
+		for (int i = 0; i < shards.length; i++)
+			shards[i] = new Shard(i, Settings.CloudTaskQueueCapacity);
+		String[] typeNames = { "raw", "registry", "cloud", "error", "heartbeat", "multicast" }; // 下标即Message.type
+		for (int i = 0; i < received.length; i++)
+			received[i] = metrics.counter("cloud.received." + typeNames[i]);
+		for (int code = ErrorMessage.c1; code < errors.length; code++)
+			errors[code] = metrics.counter("cloud.error.c" + code);
+		metrics.gauge("cloud.queue.depth", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long depth = 0;
+				for (Shard shard : shards)
+					depth += shard.queue.size();
+				return depth;
+			}
+		});
+		metrics.gauge("cloud.queue.deferred", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				long count = 0;
+				for (Shard shard : shards)
+					count += shard.deferredCount;
+				return count;
+			}
+		});
+		metrics.gauge("cloud.devices", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return devices.size();
+			}
+		});
+		metrics.gauge("cloud.mailbox.messages", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				Mailbox mailbox = CloudServerSimulator.this.mailbox;
+				return mailbox == null ? 0 : mailbox.size();
+			}
+		});
+		metrics.gauge("cloud.mailbox.bytes", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				Mailbox mailbox = CloudServerSimulator.this.mailbox;
+				return mailbox == null ? 0 : mailbox.bytes();
+			}
+		});
+		metrics.gauge("cloud.sessions", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return sessions.size();
+			}
+		});
+	}
+
+	// 开始运行服务,不经过控制台;已在运行时返回false
+	public synchronized boolean startService() {
+		if (service != null && service.isAlive())
+			return false;
+		if (service != null) {
+			service.close();
+			service = null;
+		}
+		service = new Service();
+		service.start();
+		return true;
+	}
+
+	// 开启离线本地服务器的信箱,恢复目录中已有的消息;应在启动服务前调用
+	public boolean setMailbox(File dir) {
+		Mailbox old = mailbox;
+		if (old != null)
+			old.close();
+		try {
+			mailbox = new Mailbox(dir, metrics);
+			mailbox.onExpired = new Mailbox.Listener() {
+				@Override
+				public void expired(CloudMessage task) {
+					// 信箱中的请求未投递即过期,向发送方回传错误
+					countError(ErrorMessage.c6);
+					notice(task, CloudMessage.ErrorMessage, MessageFactory.wrapErrorMessage(ErrorMessage.c6));
+				}
+			};
+			admitRestored();
+			util.log("Mailbox Opened: " + mailbox);
+			return true;
+		} catch (IOException e) {
+			mailbox = null;
+			util.log(LogLevel.WARN, "Open Mailbox Failed: {} {}", dir, e);
+			return false;
+		}
+	}
+
+	// 开启注册表的持久化;已有快照时为其中的遥控器、本地服务器恢复会话,保留CloudRestartGraceMillis,
+	// 期间凭令牌重连直接恢复,发往它们的消息暂存而不回传错误。应在启动服务前调用
+	public boolean setRegistryStore(File dir) {
+		RegistryStore old = registryStore;
+		if (old != null)
+			old.close();
+		RegistryStore store;
+		try {
+			store = new RegistryStore(dir);
+		} catch (IOException e) {
+			registryStore = null;
+			util.log(LogLevel.WARN, "Open Registry Store Failed: {} {}", dir, e);
+			return false;
+		}
+		registryStore = store;
+		int restored = 0;
+		for (RegistryStore.Registration registration : store.loaded()) {
+			if (sessions.containsKey(registration.name))
+				continue;
+			Session session = new Session(registration.name, registration.token, registration.deviceType);
+			sessions.put(registration.name, session);
+			synchronized (session) {
+				session.scheduleExpiry(Settings.CloudRestartGraceMillis);
+			}
+			restored++;
+		}
+		sessionsRestored.add(restored);
+		admitRestored();
+		util.log("Registry Store Opened: " + store + " Sessions Restored = " + restored);
+		return true;
+	}
+
+	// 快照中的本地服务器在重连前即可使用信箱
+	void admitRestored() {
+		Mailbox mailbox = this.mailbox;
+		RegistryStore store = registryStore;
+		if (mailbox == null || store == null)
+			return;
+		for (RegistryStore.Registration registration : store.loaded())
+			if (registration.deviceType == RegistryMessage.LOCAL_SERVER)
+				mailbox.admit(registration.name);
+	}
+
+	// 指定监听地址,下次启动服务时生效;压测时绑定回环地址,port为0时由系统分配
+	public void setBindAddress(InetAddress bindAddr) {
+		this.bindAddr = bindAddr;
+	}
+
+	// 服务实际监听的地址,服务未启动或尚未绑定时返回null
+	public InetSocketAddress getLocalAddress() {
+		Service service = this.service;
+		ServerSocketChannel channel = service == null ? null : service.serverChannel;
+		try {
+			return channel == null ? null : (InetSocketAddress) channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
 	}
 
 	// 接收到新连接后,放入或更新设备
 	@Override
 	public boolean putDevice(ClientDevice device) {
 		int initialStatus = 1;
-		return putDevice(device, null, initialStatus);
+		return putDevice(device, null, null, initialStatus);
+	}
+
+	public boolean putDevice(ClientDevice device, String result, int status) {
+		return putDevice(device, null, result, status);
 	}
 
-	public synchronized boolean putDevice(ClientDevice device, String result, int status) {
+	// json为已收到的注册消息,为null时从连接中同步读取;只有检查并放入设备池需要同步
+	boolean putDevice(ClientDevice device, String json, String result, int status) {
 		while (blinker == this) {
 			switch (status) {
 			case 1: {
 				// 从只包含sc的ClientDevice中获得注册信息
-				String json = device.receiveMessage();
+				if (json == null)
+					json = device.receiveMessage();
 				if (json == null || "".equals(json)) {
 					try {
 						util.log("Connection Refused, no Message Received: " + device.sc.getRemoteAddress());
@@ -512,25 +1842,98 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 					return false;
 				}
 
-				// 根据RegistryMessage完善Device信息,若为遥控器、控制器则创建ProducerDevice
+				// 集群模式下只接受节点列表中的节点从其主机发起的连接;节点间连接的名字前缀不能被客户端使用,
+				// 否则其消息会被当作节点转发的消息处理。密钥属于其它节点时让客户端改连该节点,不加入设备池
+				CloudCluster cluster = this.cluster;
+				if (registryMessage.deviceType == RegistryMessage.CLOUD_NODE) {
+					InetAddress peer = null;
+					try {
+						peer = ((InetSocketAddress) device.sc.getRemoteAddress()).getAddress();
+					} catch (IOException e) {
+					}
+					if (cluster == null || !CloudCluster.isLink(registryMessage.name) || !cluster.admits(
+							registryMessage.name.substring(CloudCluster.LinkPrefix.length()), peer)) {
+						util.log(LogLevel.WARN, "Connection Refused, Unknown Node: {} {}", registryMessage.name, peer);
+						registrationsRefused.increment();
+						device.close();
+						return false;
+					}
+				} else if (CloudCluster.isLink(registryMessage.name)) {
+					util.log(LogLevel.WARN, "Connection Refused, Reserved Name: {}", registryMessage.name);
+					registrationsRefused.increment();
+					device.close();
+					return false;
+				} else if (cluster != null && !cluster.isLocal(registryMessage.name)) {
+					String owner = cluster.ownerOf(registryMessage.name);
+					redirected.increment();
+					util.log(LogLevel.DEBUG, "Redirect {} to Node {}", registryMessage.name, owner);
+					if (device.sendMessage(MessageFactory.wrapRedirectMessage(registryMessage.name, owner)))
+						device.closeAfterFlush();
+					else
+						device.close();
+					return true;
+				}
+
+				// 之后发往该本地服务器的消息在其离线时存入信箱
+				Mailbox mailbox = this.mailbox;
+				if (mailbox != null && registryMessage.deviceType == RegistryMessage.LOCAL_SERVER)
+					mailbox.admit(registryMessage.name);
+
+				// 根据RegistryMessage完善Device信息,若为遥控器、控制器或其它节点则创建ProducerDevice
 				device.name = registryMessage.name;
+				device.peerCodecs = registryMessage.codecs;
+				device.heartbeats = registryMessage.heartbeats
+						|| registryMessage.deviceType == RegistryMessage.CLOUD_NODE; // 节点的生产者随时回传心跳请求
 				try {
 					device.addr = (InetSocketAddress) device.sc.getRemoteAddress();
 				} catch (IOException e) {
 					util.log("Cannot get RemoteAddress: " + device.name);
 				}
 				if (registryMessage.deviceType == RegistryMessage.REMOTE_CONTROLLER
-						|| registryMessage.deviceType == RegistryMessage.LOCAL_SERVER)
+						|| registryMessage.deviceType == RegistryMessage.LOCAL_SERVER
+						|| registryMessage.deviceType == RegistryMessage.CLOUD_NODE)
 					device = new ProducerDevice(device);
+				// 限制该连接可排队的消息数;按对端声明的处理能力限制向其转发
+				final int window = registryMessage.deviceType == RegistryMessage.CLOUD_NODE
+						? Settings.CloudNodeCreditWindow : Settings.CloudCreditWindow;
+				device.inboundCredits = new Credits(window);
+				device.outboundCredits = new Credits(registryMessage.credits);
+
+				// 凭有效的会话令牌重连时恢复会话:原连接多半已断开只是尚未发现,直接替换,不再检测
+				Session session = null;
+				if (registryMessage.token != null && registryMessage.deviceType != RegistryMessage.CLOUD_NODE) {
+					session = sessions.get(registryMessage.name);
+					if (session != null && !session.token.equals(registryMessage.token))
+						session = null;
+				}
 
 				// 注册成功,添加到设备池;若已存在同名设备,则检测原有连接,若不健康则关闭原有连接并更新,若健康则拒绝新Device注册
-				ClientDevice oldDevice = devices.get(device.name);
-				if (oldDevice == null || !oldDevice.maybeValid()) {
-					// 不存在密钥冲突
-					devices.put(device.name, device);
-					result = MessageFactory.wrapRegistryMessage(device.name, RegistryMessage.RESULT); // 注册成功
-					util.log("Add New " + (registryMessage.deviceType == RegistryMessage.REMOTE_CONTROLLER
-							? "RemoteController" : "LocalDeviceManager") + " Device: " + device);
+				// 按名字比较交换,不同名字的注册互不等待;同名设备在检查期间被替换或删除时重新检查
+				ClientDevice oldDevice;
+				boolean added = false;
+				for (;;) {
+					oldDevice = devices.putIfAbsent(device);
+					if (oldDevice == null) {
+						added = true;
+						break;
+					}
+					if (session == null && oldDevice.maybeValid())
+						break;
+					if (devices.replace(oldDevice, device)) {
+						oldDevice.close();
+						added = true;
+						break;
+					}
+				}
+				if (added) {
+					// 不存在密钥冲突;发往同名旧设备的暂存任务改发往新设备
+					registrations.increment();
+					shardOf(device.name).resume(device.name);
+					String token = openSession(device, session, registryMessage.deviceType);
+					result = MessageFactory.wrapRegistryMessage(device.name, RegistryMessage.RESULT,
+							chosenCodecs(device), window, token); // 注册成功,附带选定的编码、授予的发送窗口及会话令牌
+					util.log((session != null ? "Resume " : "Add New ") + typeName(registryMessage.deviceType)
+							+ " Device: " + device);
 					status = 3;
 					break;
 				} else {
@@ -541,22 +1944,31 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 						@Override
 						public void run() {
 							// 存在密钥冲突,且原连接有效
+							registrationsRefused.increment();
 							String result = MessageFactory.wrapRegistryMessage(ErrorMessage.s3, RegistryMessage.RESULT); // 拒绝注册
 							util.log("Already Exists Device: " + oldDeviceFinal + " Refuse: " + deviceFinal);
-							putDevice(deviceFinal, result, 5); // 回传拒绝注册消息
+							putDevice(deviceFinal, result, 6); // 回传拒绝注册消息
 						}
 
 					}, new Runnable() {
 						@Override
 						public void run() {
-							// 存在密钥冲突,且原连接无效
-							devices.put(deviceFinal.name, deviceFinal);
+							// 存在密钥冲突,且原连接无效;检测期间已被其它连接替换或删除时拒绝注册
+							if (!devices.replace(oldDeviceFinal, deviceFinal)) {
+								registrationsRefused.increment();
+								String result = MessageFactory.wrapRegistryMessage(ErrorMessage.s3,
+										RegistryMessage.RESULT); // 拒绝注册
+								util.log("Device Replaced During Check, Refuse: " + deviceFinal);
+								putDevice(deviceFinal, result, 6);
+								return;
+							}
 							oldDeviceFinal.close();
+							registrations.increment();
+							shardOf(deviceFinal.name).resume(deviceFinal.name);
 							String result = MessageFactory.wrapRegistryMessage(deviceFinal.name,
-									RegistryMessage.RESULT); // 注册成功
-							util.log("Update New "
-									+ (registryMessageFinal.deviceType == RegistryMessage.REMOTE_CONTROLLER
-											? "RemoteController" : "LocalDeviceManager")
+									RegistryMessage.RESULT, chosenCodecs(deviceFinal), window,
+									openSession(deviceFinal, null, registryMessageFinal.deviceType)); // 注册成功
+							util.log("Update New " + typeName(registryMessageFinal.deviceType)
 									+ " Device (Old Device Invalid): " + deviceFinal);
 							putDevice(deviceFinal, result, 3); // 启动生产者线程
 						}
@@ -573,23 +1985,34 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 				break;
 			}
 			case 4: {
-				// 若为遥控器、控制器,则运行此设备的生产者线程
-				ProducerService producer = new ProducerService(device);
-				producers.put(device.name, producer);
-				producer.start();
+				// 若为遥控器、控制器,则运行此设备的生产者线程,或交给事件循环
+				startProducer((ProducerDevice) device);
 				status = 5;
 				break;
 			}
-			case 5: {
-				// 注册成功,发回echo消息
+			case 5:
+			case 6: {
+				// 5为注册成功,发回echo消息;6为拒绝注册,发回拒绝消息
+				boolean accepted = status == 5;
 				if (!device.sendMessage(result)) {
-					// echo失败,移除Device
+					// echo失败,移除Device;已被新连接替换时不影响新连接
 					device.close();
-					devices.remove(device.name);
+					if (devices.remove(device))
+						detachSession(device);
 					util.log("Echo Failure, Remove Device: " + device);
 					return false;
 				}
-				util.log("Echo Success: Message = " + result + " Device = " + device);
+				// echo以Json发出,之后改用协商的编码;拒绝注册时对端不会切换,保持Json
+				if (accepted) {
+					device.codec = negotiate(device);
+					Session session = sessions.get(device.name);
+					if (session != null)
+						session.attach(device);
+					// 会话暂存的消息、信箱中的消息和注册期间暂缓的任务由该密钥所在分片的消费者线程依次发出,须在注册响应之后
+					device.registered = true;
+					shardOf(device.name).resume(device.name);
+				}
+				util.log(LogLevel.DEBUG, "Echo Success: Message = {} Device = {}", result, device);
 				return true;
 			}
 			default:
@@ -599,10 +2022,523 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 		return true;
 	}
 
-	class Service extends Thread {
+	// 注册成功时签发会话令牌,恢复会话时沿用原令牌,并记入注册表快照;节点间连接及不带生产者的设备没有会话
+	String openSession(ClientDevice device, Session resumed, int deviceType) {
+		if (!(device instanceof ProducerDevice) || CloudCluster.isLink(device.name))
+			return null;
+		Session session = resumed;
+		if (resumed != null && sessions.get(device.name) == resumed)
+			sessionsResumed.increment();
+		else {
+			session = new Session(device.name, newToken(), deviceType);
+			Session old = sessions.put(device.name, session);
+			if (old != null)
+				old.supersede(); // 未凭令牌的新注册取代原会话,原会话暂存的消息改发往新连接
+		}
+		RegistryStore store = registryStore;
+		if (store != null)
+			store.put(new RegistryStore.Registration(device.name, deviceType,
+					device.addr == null ? null : device.addr.getHostString() + ":" + device.addr.getPort(),
+					System.currentTimeMillis(), session.token));
+		return session.token;
+	}
+
+	// 连接已从设备池移除,开始计算会话的保留时间
+	void detachSession(ClientDevice device) {
+		Session session = sessions.get(device.name);
+		if (session != null)
+			session.detach(device);
+	}
+
+	static String newToken() {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		return sb.toString();
+	}
+
+	static String multicastId(String fromKey, int requestId) {
+		return fromKey + "#" + requestId;
+	}
+
+	// 向本地服务器的一次转发占用的信用;回传按转发顺序归还,超时未回传时在时间轮的回调线程中归还并回传c8错误
+	class Lease implements Runnable {
+		final ProducerDevice device;
+		final CloudMessage task;
+		TimingWheel.Timeout timeout = null;
+
+		Lease(ProducerDevice device, CloudMessage task) {
+			this.device = device;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			synchronized (device.leases) {
+				if (!device.leases.remove(this))
+					return; // 已收到回传或连接已关闭
+			}
+			creditTimeouts.increment();
+			util.log(LogLevel.WARN, "ToDevice Reply Timeout, Release Credit: Task = {} Device = {}", task, device);
+			if (device.outboundCredits.release())
+				shardOf(device.name).resume(device.name);
+			if (task != null) {
+				countError(ErrorMessage.c8);
+				notice(task, CloudMessage.ErrorMessage, MessageFactory.wrapErrorMessage(ErrorMessage.c8));
+			}
+		}
+	}
+
+	// 一条组播请求的回传汇总:每个目的密钥回传一次(失败时由云服务器生成),全部到齐或超过CloudMulticastTimeoutMillis后
+	// 一次发回遥控器,超时未回传的部分以错误消息计入。线程安全
+	class Aggregate {
+		final String id;
+		final MulticastMessage request;
+		final Set<String> pending; // 尚未回传的目的密钥
+		final MulticastMessage result = new MulticastMessage();
+		TimingWheel.Timeout timeout = null;
+		boolean done = false;
+
+		Aggregate(MulticastMessage request, Collection<String> toKeys) {
+			this.id = multicastId(request.fromKey, request.requestId);
+			this.request = request;
+			this.pending = new LinkedHashSet<String>(toKeys);
+			result.fromKey = request.fromKey;
+			result.toKeys = new ArrayList<String>();
+			result.toKeys.add(request.fromKey);
+			result.requestId = request.requestId;
+		}
+
+		synchronized void start() {
+			if (done)
+				return;
+			try {
+				timeout = TimingWheel.shared().newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						expire();
+					}
+				}, Settings.CloudMulticastTimeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// 时间轮已关闭
+			}
+		}
+
+		// 重复的或不属于本请求的回传忽略
+		void add(MulticastMessage part) {
+			synchronized (this) {
+				if (done || !pending.remove(part.fromKey))
+					return;
+				for (int i = 0; i < part.results.size(); i++)
+					result.addResult(part.fromKey, part.infos.get(i), part.results.get(i)); // 结果只归于回传的本地服务器
+				if (!pending.isEmpty())
+					return;
+				finish();
+			}
+			handler.reply(result, false);
+		}
+
+		void expire() {
+			synchronized (this) {
+				if (done)
+					return;
+				String err = MessageFactory.wrapErrorMessage(ErrorMessage.c8);
+				for (String toKey : pending) {
+					countError(ErrorMessage.c8);
+					if (request.infos != null && !request.infos.isEmpty())
+						for (String info : request.infos)
+							result.addResult(toKey, info, err);
+					else
+						result.addResult(toKey, request.group, err);
+				}
+				pending.clear();
+				finish();
+			}
+			multicastTimeouts.increment();
+			util.log(LogLevel.WARN, "Multicast Timeout: {}", request);
+			// 在时间轮的回调线程中,回传交给遥控器密钥的分片,由消费者线程发出
+			String toKey = result.toKeys.get(0);
+			if (!shardOf(toKey).offer(new Task(MessageFactory.newMessage(MulticastMessage.type, result), null, false,
+					toKey, null)))
+				util.log(LogLevel.WARN, "MessageQueue Full, Drop MulticastMessage: {}", result);
+		}
+
+		void finish() {
+			done = true;
+			multicasts.remove(id, this);
+			if (timeout != null)
+				timeout.cancel();
+		}
+	}
+
+	// 遥控器、本地服务器注册成功时签发的会话。连接断开后保留CloudSessionGraceMillis,期间发往该密钥的消息暂存于此;
+	// 凭令牌重连时直接替换原连接,并在注册响应之后按顺序回放暂存的消息。过期时暂存的消息按原方式路由,回传错误。线程安全
+	class Session {
+		final String name;
+		final String token;
+		final int deviceType; // 本地服务器的会话暂存请求时回传暂存回执
+		ClientDevice device = null; // 当前连接;注册响应发出前及断开后为null
+		final ArrayDeque<CloudMessage> pending = new ArrayDeque<CloudMessage>();
+		TimingWheel.Timeout expiry = null;
+		boolean closed = false;
+
+		Session(String name, String token, int deviceType) {
+			this.name = name;
+			this.token = token;
+			this.deviceType = deviceType;
+		}
+
+		// 注册响应发出后关联新连接;暂存的消息由该密钥所在分片的消费者线程回放
+		synchronized void attach(ClientDevice device) {
+			if (closed || devices.get(name) != device)
+				return; // 已被更新的注册取代
+			this.device = device;
+			if (expiry != null) {
+				expiry.cancel();
+				expiry = null;
+			}
+			util.log(LogLevel.DEBUG, "Session Attached: {}", this);
+		}
+
+		// 已关联device时返回下一条待回放的消息
+		synchronized CloudMessage peek(ClientDevice device) {
+			return this.device == device ? pending.peek() : null;
+		}
+
+		// 取出已回放的消息;期间已被取代、暂存的消息已改发时返回false
+		synchronized boolean remove(CloudMessage task) {
+			if (pending.peek() != task)
+				return false;
+			pending.poll();
+			return true;
+		}
+
+		// 回放失败的消息放回队首,留待下次重连或过期
+		synchronized void restore(CloudMessage task) {
+			if (!closed)
+				pending.offerFirst(task);
+		}
+
+		// 连接断开;已关联其它连接时忽略
+		synchronized void detach(ClientDevice device) {
+			if (closed || (this.device != null && this.device != device))
+				return;
+			this.device = null;
+			scheduleExpiry();
+		}
+
+		// 暂存发往该密钥的消息;已重连、已过期或暂存已满时返回false
+		synchronized boolean park(CloudMessage task) {
+			if (closed)
+				return false;
+			if (device != null) {
+				if (devices.get(name) == device)
+					return false;
+				device = null; // 已从设备池移除,尚未detach
+			}
+			if (pending.size() >= Settings.CloudSessionBufferSize)
+				return false;
+			scheduleExpiry();
+			pending.offer(task);
+			return true;
+		}
+
+		void scheduleExpiry() {
+			scheduleExpiry(Settings.CloudSessionGraceMillis);
+		}
+
+		void scheduleExpiry(long delay) {
+			if (expiry == null)
+				expiry = TimingWheel.shared().newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						expire();
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		// 保留期内未重连
+		void expire() {
+			synchronized (this) {
+				if (closed || device != null)
+					return;
+			}
+			if (!sessions.remove(name, this))
+				return;
+			RegistryStore store = registryStore;
+			if (store != null)
+				store.remove(name, token);
+			sessionsExpired.increment();
+			util.log(LogLevel.DEBUG, "Session Expired: {}", this);
+			supersede(true);
+		}
+
+		// 会话结束,暂存的消息重新放入队列,由消费者线程按原方式转发或回传错误
+		void supersede() {
+			supersede(false);
+		}
+
+		// expired为true时会话已过期,暂存时已回传过暂存回执的请求直接存入信箱,不再经队列回传第二次;信箱拒绝的按原方式处理
+		void supersede(boolean expired) {
+			ArrayList<CloudMessage> tasks;
+			synchronized (this) {
+				tasks = new ArrayList<CloudMessage>(pending);
+				discard();
+			}
+			Mailbox mailbox = expired && deviceType == RegistryMessage.LOCAL_SERVER ? CloudServerSimulator.this.mailbox
+					: null;
+			Shard shard = shardOf(name);
+			for (CloudMessage task : tasks) {
+				if (mailbox != null && !task.isNotice() && mailbox.offer(task))
+					continue;
+				if (!shard.offer(MessageFactory.newMessage(CloudMessage.type, task), null, false))
+					util.log(LogLevel.WARN, "MessageQueue Full, Drop Parked Task: {}", task);
+			}
+		}
+
+		// 丢弃会话及暂存的消息
+		synchronized void discard() {
+			closed = true;
+			pending.clear();
+			if (expiry != null) {
+				expiry.cancel();
+				expiry = null;
+			}
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "[Session " + name + "] pending = " + pending.size() + (device == null ? " detached" : "");
+		}
+	}
+
+	// 运行设备的生产者线程,或交给事件循环
+	void startProducer(ProducerDevice device) {
+		Producer producer = reactorMode ? new ReactorProducer(device) : new ProducerService(device);
+		device.producer = producer;
+		producers.put(device.name, producer);
+		producer.start();
+		idle.watch(device);
+	}
+
+	static String typeName(int deviceType) {
+		switch (deviceType) {
+		case RegistryMessage.REMOTE_CONTROLLER:
+			return "RemoteController";
+		case RegistryMessage.CLOUD_NODE:
+			return "CloudNode";
+		default:
+			return "LocalDeviceManager";
+		}
+	}
+
+	// 加入集群;nodes为所有节点(含本节点)对客户端公开的地址,各节点须一致。端口由系统分配时可在服务启动后设置
+	public void setCluster(List<InetSocketAddress> nodes, InetSocketAddress self) {
+		cluster = nodes == null || nodes.size() <= 1 ? null
+				: new CloudCluster(self, nodes, Settings.CloudClusterVirtualNodes);
+		util.log("Cloud Cluster: " + cluster);
+		// 节点间连接上并发转发的消息可能在一次read中粘连
+		if (cluster != null && !Settings.FramedWire)
+			util.log(LogLevel.WARN, "Settings.FramedWire未开启,节点间转发的消息可能粘连");
+	}
+
+	public CloudCluster getCluster() {
+		return cluster;
+	}
+
+	// 密钥属于其它节点时返回该节点,单节点运行或属于本节点时返回null
+	String remoteOwner(String key) {
+		CloudCluster cluster = this.cluster;
+		if (cluster == null || key == null)
+			return null;
+		String owner = cluster.ownerOf(key);
+		return cluster.self().equals(owner) ? null : owner;
+	}
+
+	// 经节点间连接转发给密钥所属节点,由该节点按目的密钥路由
+	boolean forward(String node, CloudMessage task) {
+		return forward(node, CloudMessage.type, task);
+	}
+
+	boolean forward(String node, int type, MessageInterface task) {
+		ClientDevice link = linkTo(node);
+		if (link == null || !link.sendMessage(MessageFactory.newMessage(type, task))) {
+			util.log(LogLevel.WARN, "Forward to Node Failed: Node = {} Task = {}", node, task);
+			return false;
+		}
+		forwarded.increment();
+		util.log(LogLevel.DEBUG, "Forward to Node {}: {}", node, task);
+		return true;
+	}
+
+	// 与对端节点的连接;每对节点之间一条,双向使用,哪一端先建立都可以。尚未建立时交给linkers连接并返回null,
+	// 调用的消费者线程不等待,期间的转发立即失败
+	ClientDevice linkTo(String node) {
+		ClientDevice link = devices.get(CloudCluster.linkName(node));
+		if (link != null && link.maybeValid())
+			return link;
+		NodeLink state = nodeLinks.get(node);
+		if (state == null) {
+			NodeLink newState = new NodeLink();
+			state = nodeLinks.putIfAbsent(node, newState);
+			if (state == null)
+				state = newState;
+		}
+		if (state.begin(System.currentTimeMillis()))
+			connectLater(node, state);
+		return null;
+	}
+
+	void connectLater(final String node, final NodeLink state) {
+		try {
+			linkers.execute(new Runnable() {
+				@Override
+				public void run() {
+					state.end(connectNode(node) != null, System.currentTimeMillis());
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			state.end(false, System.currentTimeMillis());
+		}
+	}
+
+	// 建立节点间连接的线程,与注册线程数相同;空闲时退出
+	static ThreadPoolExecutor newLinkers() {
+		int threads = Math.max(1, Settings.CloudRegistrarThreads);
+		ThreadPoolExecutor linkers = new ThreadPoolExecutor(threads, threads, Settings.ConnectTimeout,
+				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Linker-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		linkers.allowCoreThreadTimeOut(true);
+		return linkers;
+	}
+
+	// 与一个对端节点建立连接的状态:同时只有一次连接,失败后按CloudLinkRetryMillis逐次加倍退避。线程安全
+	static class NodeLink {
+		boolean connecting = false;
+		long backoff = 0; // 连续失败后的重试间隔,连接成功时清零
+		long retryAt = 0; // 此前不再重试
+
+		// 未在连接且已过退避期时开始一次连接,返回true
+		synchronized boolean begin(long now) {
+			if (connecting || now < retryAt)
+				return false;
+			connecting = true;
+			return true;
+		}
+
+		synchronized void end(boolean connected, long now) {
+			connecting = false;
+			backoff = connected ? 0
+					: backoff == 0 ? Settings.CloudLinkRetryMillis : Math.min(backoff * 2, Settings.CloudLinkRetryMaxMillis);
+			retryAt = now + backoff;
+		}
+	}
+
+	// 连接对端节点并以CLOUD_NODE注册;对端同时连向本节点时使用已注册的连接
+	ClientDevice connectNode(String node) {
+		CloudCluster cluster = this.cluster;
+		InetSocketAddress addr = cluster == null ? null : cluster.addressOf(node);
+		if (addr == null)
+			return null;
+		String name = CloudCluster.linkName(node);
+		String selfName = CloudCluster.linkName(cluster.self());
+		SocketChannel sc = null;
+		try {
+			sc = SocketChannel.open();
+			sc.socket().connect(addr, (int) Settings.ConnectTimeout);
+		} catch (IOException e) {
+			util.log(LogLevel.WARN, "Connect to Node Failed: {} {}", node, e.getMessage());
+			if (sc != null)
+				try {
+					sc.close();
+				} catch (IOException e1) {
+				}
+			return null;
+		}
+		final ClientDevice device = new ClientDevice(sc);
+		device.name = name;
+		device.addr = addr;
+		// 转发的消息不是一问一答,不向对端声明处理能力;由对端按节点窗口限制读取
+		int codecs = device.decoder.isFramed() && Settings.BinaryCodec ? MessageFactory.supportedCodecs() : 0;
+		TimingWheel.Timeout timeout = TimingWheel.shared().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				device.close(); // 对端未及时回传时中断读取
+			}
+		}, Settings.ConnectTimeout, TimeUnit.MILLISECONDS);
+		String json = null;
+		if (device.sendMessage(MessageFactory.wrapRegistryMessage(selfName, RegistryMessage.CLOUD_NODE, codecs)))
+			json = device.receiveMessage();
+		timeout.cancel();
+		RegistryMessage retVal = json == null ? null : MessageFactory.unwrapRegistryMessage(json);
+		if (retVal == null || !selfName.equals(retVal.name)) {
+			device.close();
+			util.log(LogLevel.WARN, "Node Link Refused: {}", node);
+			ClientDevice link = devices.get(name);
+			return link != null && link.maybeValid() ? link : null;
+		}
+		device.peerCodecs = retVal.codecs;
+		device.heartbeats = true; // 对端节点的生产者随时回传心跳请求
+		ProducerDevice link = new ProducerDevice(device);
+		link.codec = negotiate(link);
+		link.inboundCredits = new Credits(Settings.CloudNodeCreditWindow);
+		for (;;) {
+			ClientDevice oldLink = devices.putIfAbsent(link);
+			if (oldLink == null)
+				break;
+			if (oldLink.maybeValid()) {
+				link.close();
+				return oldLink;
+			}
+			if (devices.replace(oldLink, link)) {
+				oldLink.close();
+				break;
+			}
+		}
+		startProducer(link);
+		util.log("Node Link Connected: " + link);
+		return link;
+	}
+
+	// 注册的优先级,数值小的先完成:其它节点、凭有效令牌恢复会话的本地服务器最先,其次凭令牌的遥控器,
+	// 再次新的本地服务器,最后新的遥控器及无法解析的消息。遥控器的请求要等本地服务器重连后才能送达
+	int admissionPriority(String json) {
+		RegistryMessage msg = MessageFactory.unwrapRegistryMessage(json);
+		if (msg == null)
+			return 4;
+		if (msg.deviceType == RegistryMessage.CLOUD_NODE)
+			return 0;
+		Session session = msg.token == null ? null : sessions.get(msg.name);
+		boolean returning = session != null && session.token.equals(msg.token);
+		return (returning ? 0 : 2) + (msg.deviceType == RegistryMessage.REMOTE_CONTROLLER ? 1 : 0);
+	}
+
+	// 按注册时对端声明的编码选定发送编码;非分帧连接只能使用Json
+	MessageCodec negotiate(ClientDevice device) {
+		if (!device.decoder.isFramed() || !Settings.BinaryCodec)
+			return MessageFactory.codec(MessageCodec.JSON);
+		return MessageFactory.negotiate(device.peerCodecs);
+	}
+
+	// 回传给对端的选定编码;对端未声明支持的编码时不回传,保持原有的注册消息
+	int chosenCodecs(ClientDevice device) {
+		return device.peerCodecs == 0 ? 0 : 1 << negotiate(device).id();
+	}
+
+	class Service extends ServiceThread {
 
 		volatile Service blinker = this;
-		ServerSocketChannel serverChannel = null;
+		volatile ServerSocketChannel serverChannel = null;
 
 		public void close() {
 			blinker = null;
@@ -613,17 +2549,24 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			} catch (IOException e) {
 				util.log("ServerChannel.close() Failed");
 			}
+			// 关闭握手事件循环,未完成注册的连接随之关闭
+			if (handshake != null) {
+				handshake.close();
+				handshake = null;
+			}
 			// 关闭消费者线程
-			if (consumer != null) {
-				consumer.close();
-				consumer = null;
+			closeConsumers();
+			// 关闭事件循环
+			if (reactor != null) {
+				reactor.close();
+				reactor = null;
 			}
 			synchronized (this) {
 				// 关闭设备和相应生产者线程
-				for (String name : devices.keySet())
-					removeDevice(name);
-				for (Iterator<ProducerService> it = producers.values().iterator(); it.hasNext();) {
-					ProducerService producer = it.next();
+				for (ClientDevice device : devices.snapshot())
+					removeDevice(device.name);
+				for (Iterator<Producer> it = producers.values().iterator(); it.hasNext();) {
+					Producer producer = it.next();
 					producer.close();
 					it.remove();
 				}
@@ -634,10 +2577,31 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 		@Override
 		public void run() {
 			// 开启消费者线程
-			if (consumer != null)
-				consumer.close();
-			consumer = new ConsumerService();
-			consumer.start();
+			startConsumers();
+
+			// 开启事件循环
+			if (reactorMode) {
+				if (reactor != null)
+					reactor.close();
+				try {
+					reactor = new Reactor(reactorThreads);
+				} catch (IOException e) {
+					util.log("Selector.open() Error");
+					return;
+				}
+				reactor.start();
+			}
+
+			// 开启握手事件循环
+			if (handshake != null)
+				handshake.close();
+			try {
+				handshake = new HandshakeLoop(Settings.CloudHandshakeTimeout, Settings.CloudRegistrarThreads);
+			} catch (IOException e) {
+				util.log("Selector.open() Error");
+				return;
+			}
+			handshake.start();
 
 			try {
 				// 开启接收新连接
@@ -650,7 +2614,7 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 			}
 
 			// 获取本机IP地址
-			InetAddress localAddr = util.getLocalAddr();
+			InetAddress localAddr = bindAddr != null ? bindAddr : util.getLocalAddr();
 			if (localAddr == null) {
 				util.log("getLocalAddr() Failed");
 				return;
@@ -678,52 +2642,178 @@ public class CloudServerSimulator implements DeviceManagerInterface<ClientDevice
 					return;
 				}
 
-				// 接收注册消息生成ClientDevice,才开启生产者线程(非抢占式注册)
-				ClientDevice device = new ClientDevice(sc);
-				if (!putDevice(device)) {
-					// 注册Device失败,继续监听新连接
-					util.log("Device Put Error");
-					continue;
-				}
+				// 交给握手事件循环等待注册消息,收到后才开启生产者线程(非抢占式注册);accept线程立即继续监听新连接
+				handshake.accept(new ClientDevice(sc));
 			}
 		}
 	}
 
 	// 远程遥控器设备,close时同时关闭生产者线程;有前提的线程安全:在调用closeSocket时其它线程会出现不可预知的问题
 	class ProducerDevice extends ClientDevice {
+		volatile Producer producer = null; // 注册成功后启动;同名的新连接有各自的生产者
+		volatile TimingWheel.Timeout idleCheck = null; // 空闲检测的定时,同一连接同时只有一个
+		long idleInterval = Settings.CloudIdleMillis; // 当前的检查间隔;只在空闲检测的回调中访问
+		long idleArmed = 0; // 设置定时或发出心跳的时间;只在空闲检测的回调中访问
+		final ArrayDeque<Lease> leases = new ArrayDeque<Lease>(); // 已占用信用、尚未回传的转发,按转发顺序;锁本队列
 		public ProducerDevice(ClientDevice device) {
 			super(device.sc);
 			this.name = device.name;
 			this.addr = device.addr;
+			this.decoder = device.decoder; // 保留注册消息之后已读取的数据
+			this.peerCodecs = device.peerCodecs;
+			this.heartbeats = device.heartbeats;
 		}
 
+		// 生产者尚未启动时视为有效,以免注册过程中被同名连接替换;只锁本设备
 		@Override
-		public synchronized boolean maybeValid() {
-			return (super.maybeValid() && producers.containsKey(name) && producers.get(name).isAlive());
+		public boolean maybeValid() {
+			Producer producer = this.producer;
+			return super.maybeValid() && (producer == null || producer.isAlive());
 		}
 
-		// 尽量调用close方法而不是closeSocket方法
+		// 尽量调用close方法而不是closeSocket方法;只关闭和移除本设备的生产者,不影响替换它的新连接
 		@Override
 		public void close() {
 			super.close();
-			if (producers.containsKey(name)) {
-				producers.get(name).close();
-				producers.remove(name);
+			TimingWheel.Timeout check = idleCheck;
+			if (check != null)
+				check.cancel();
+			synchronized (leases) {
+				for (Lease lease : leases)
+					lease.timeout.cancel();
+				leases.clear();
+			}
+			Producer producer = this.producer;
+			if (producer != null) {
+				producer.close();
+				producers.remove(name, producer);
+			}
+		}
+	}
+
+	// 连接活性检测:每个连接一个时间轮定时,到期时只比较最近一次收到消息的时间,期间有流量则顺延并把检查间隔加倍,
+	// 持续繁忙的连接很少被检查;空闲的连接才发送心跳,间隔恢复为CloudIdleMillis。未按时回传的连接放入待移除队列,
+	// 攒够CloudIdleReapMillis后一次移除。不遍历设备池,开销只与到期的连接数有关
+	class IdleReaper {
+		final ConcurrentLinkedQueue<ProducerDevice> evictions = new ConcurrentLinkedQueue<ProducerDevice>();
+		final AtomicBoolean reaping = new AtomicBoolean(); // 已安排批量移除
+
+		// 生产者启动后开始检测;对端未声明回传心跳请求(旧客户端)时不检测,以免把不回传心跳的正常连接当作断开
+		void watch(ProducerDevice device) {
+			if (Settings.CloudIdleMillis <= 0 || !device.heartbeats)
+				return;
+			device.idleInterval = Settings.CloudIdleMillis;
+			schedule(device, device.idleInterval);
+		}
+
+		void schedule(final ProducerDevice device, long delay) {
+			device.idleArmed = System.nanoTime();
+			try {
+				device.idleCheck = TimingWheel.shared().newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						check(device);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// 时间轮已关闭
+			}
+		}
+
+		// 定时到期;已移除或被同名新连接替换的连接不再检测
+		void check(final ProducerDevice device) {
+			if (blinker != CloudServerSimulator.this || devices.get(device.name) != device)
+				return;
+			long received = device.lastReceived;
+			if (received - device.idleArmed > 0) {
+				// 期间有流量,从最近一次收到消息起顺延
+				device.idleInterval = Math.min(device.idleInterval * 2, Settings.CloudIdleMaxMillis);
+				long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - received);
+				schedule(device, Math.max(device.idleInterval - idleMillis, Settings.TimerTickMillis));
+				return;
+			}
+			device.idleInterval = Settings.CloudIdleMillis;
+			device.idleArmed = System.nanoTime();
+			idleHeartbeats.increment();
+			util.log(LogLevel.DEBUG, "Idle Heartbeat: {}", device);
+			device.checkValid(new Runnable() {
+				@Override
+				public void run() {
+					schedule(device, device.idleInterval);
+				}
+			}, new Runnable() {
+				@Override
+				public void run() {
+					evict(device);
+				}
+			}, Settings.CloudIdleTimeoutMillis);
+		}
+
+		void evict(ProducerDevice device) {
+			evictions.offer(device);
+			if (!reaping.compareAndSet(false, true))
+				return;
+			try {
+				TimingWheel.shared().newTimeout(new Runnable() {
+					@Override
+					public void run() {
+						reap();
+					}
+				}, Settings.CloudIdleReapMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				reaping.set(false);
+			}
+		}
+
+		// 批量移除;心跳发出后又收到过消息的连接只是回传较慢,继续检测
+		void reap() {
+			reaping.set(false);
+			int evicted = 0;
+			for (ProducerDevice device; (device = evictions.poll()) != null;) {
+				if (devices.get(device.name) != device)
+					continue;
+				if (device.lastReceived - device.idleArmed > 0) {
+					schedule(device, device.idleInterval);
+					continue;
+				}
+				if (removeDevice(device)) {
+					evicted++;
+					util.log(LogLevel.DEBUG, "Heartbeat Timeout, Remove Device: {}", device);
+				}
 			}
+			if (evicted == 0)
+				return;
+			idleEvicted.add(evicted);
+			util.log(LogLevel.INFO, "Reap {} Idle Connections", evicted);
 		}
 	}
 
 	@Override
-	public synchronized ClientDevice removeDevice(String name) {
+	public ClientDevice removeDevice(String name) {
 		ClientDevice device = devices.remove(name);
-		if (device != null)
+		if (device != null) {
 			device.close();
+			detachSession(device);
+			shardOf(name).resume(name); // 发往该设备的暂存任务回传错误消息
+		}
 		return device;
 	}
 
+	// 关闭指定连接,仍在设备池中时移除;已被同名新连接替换时不影响新连接
+	public boolean removeDevice(ClientDevice device) {
+		boolean removed = devices.remove(device);
+		device.close();
+		if (removed) {
+			detachSession(device);
+			shardOf(device.name).resume(device.name);
+		}
+		return removed;
+	}
+
+	// 当前设备的快照,遍历时不阻塞注册
 	@Override
-	public synchronized Collection<ClientDevice> getAllDevices() {
-		return devices.values();
+	public Collection<ClientDevice> getAllDevices() {
+		return devices.snapshot();
 	}
 
 	@Override
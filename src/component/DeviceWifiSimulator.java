@@ -7,8 +7,10 @@ import java.nio.charset.Charset;
 import java.nio.ByteBuffer;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import util.AbstractUtil;
+import util.LogLevel;
+import util.ServiceThread;
 import util.Settings;
-import util.Util;
 
 //智能家居终端设备模拟器(Wifi版本,不可用于Android),本质是一个echo服务器
 public class DeviceWifiSimulator {
@@ -18,19 +20,45 @@ public class DeviceWifiSimulator {
 	}
 
 	int port;
+	InetAddress bindAddr; // 监听地址,为null时使用util.getLocalAddr()
+	volatile ServerSocketChannel serverChannel = null; // 绑定成功后赋值
 	volatile DeviceWifiSimulator blinker = this;
 	static final Charset charset = Settings.charset;
-	static final Util util = Settings.util;
+	static final AbstractUtil util = Settings.util;
 
 	public void close() {
 		blinker = null;
+		ServerSocketChannel channel = serverChannel;
+		if (channel != null) {
+			try {
+				// 使阻塞中的accept返回
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
 	}
 
 	public DeviceWifiSimulator(int port) {
+		this(null, port);
+	}
+
+	// bindAddr为null时绑定本机局域网地址;压测时绑定回环地址,port为0时由系统分配
+	public DeviceWifiSimulator(InetAddress bindAddr, int port) {
 		super();
+		this.bindAddr = bindAddr;
 		this.port = port;
 	}
 
+	// 实际监听的地址,尚未绑定时返回null
+	public InetSocketAddress getLocalAddress() {
+		ServerSocketChannel channel = serverChannel;
+		try {
+			return channel == null ? null : (InetSocketAddress) channel.getLocalAddress();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
 	public void run() {
 		ServerSocketChannel serverChannel = null;
 		try {
@@ -43,7 +71,7 @@ public class DeviceWifiSimulator {
 		}
 
 		// 获取本机IP地址
-		InetAddress localAddr = util.getLocalAddr();
+		InetAddress localAddr = bindAddr != null ? bindAddr : util.getLocalAddr();
 		if (localAddr == null) {
 			util.log("getLocalAddr() Failed");
 			return;
@@ -52,6 +80,7 @@ public class DeviceWifiSimulator {
 		try {
 			// 绑定本机IP到ServerChannel
 			serverChannel.bind(socketAddr);
+			this.serverChannel = serverChannel;
 			util.log("Server Started: " + serverChannel.getLocalAddress());
 		} catch (IOException e) {
 			util.log("serverChannel.bind(socketAddr) Failed");
@@ -66,13 +95,14 @@ public class DeviceWifiSimulator {
 				new ClientThread(socketChannel).start();
 			}
 		} catch (IOException e) {
-			util.log("SocketChannel clientChannel=serverChannel.accept() Failed");
+			if (blinker == this)
+				util.log("SocketChannel clientChannel=serverChannel.accept() Failed");
 			return;
 		}
 
 	}
 
-	static class ClientThread extends Thread {
+	static class ClientThread extends ServiceThread {
 		SocketChannel socketChannel;
 		volatile ClientThread blinker = this;
 
@@ -106,7 +136,7 @@ public class DeviceWifiSimulator {
 					byte[] bytes = new byte[buffer.remaining()];
 					buffer.get(bytes);
 					String message = new String(bytes, charset);
-					util.log("Message Received: " + message);
+					util.log(LogLevel.DEBUG, "Message Received: {}", message);
 
 					// 回传消息
 					int writeCount = -1;
@@ -122,7 +152,7 @@ public class DeviceWifiSimulator {
 						util.log("Close Connection: " + socketChannel.getRemoteAddress());
 						break;
 					}
-					util.log("Echo: " + message);
+					util.log(LogLevel.DEBUG, "Echo: {}", message);
 				}
 			} catch (IOException e) {
 			} finally {
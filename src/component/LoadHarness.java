@@ -0,0 +1,388 @@
+package component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import component.RemoteControllerSimulator.TerminalDevice;
+import device.ClientDevice;
+import message.CloudMessage;
+import message.MessageFactory;
+import util.AbstractUtil;
+import util.Counter;
+import util.Histogram;
+import util.LogLevel;
+import util.Metrics;
+import util.Settings;
+
+//无界面压测驱动:在回环地址上启动云服务器、M个本地服务器(每个带K台echo智能家具)和N个遥控器,
+//可启动多个云服务器节点组成集群,客户端轮流连接各节点,经重定向注册到密钥所属节点,跨节点的消息经节点间连接转发。
+//遥控器按固定总速率开环发出控制消息,统计吞吐量和延迟分布,用于上线前估算节点容量。
+//延迟从计划发送时刻算起:系统变慢时请求在遥控器端排队的时间同样计入,避免协调遗漏(coordinated omission)低估尾延迟
+public class LoadHarness implements Closeable {
+	static final AbstractUtil util = Settings.util;
+	static final String Loopback = "127.0.0.1";
+
+	// 压测参数,可由命令行"-名称 值"覆盖
+	int nodes = 1; // 云服务器节点数
+	int homes = 10; // 本地服务器数
+	int devicesPerHome = 4; // 每个本地服务器的智能家具数
+	int controllers = 20; // 遥控器数,第i个遥控器控制第i%homes个家庭
+	int workers = 4; // 每个遥控器同时等待回传的请求数上限
+	double rate = 200; // 所有遥控器每秒计划发出的消息总数
+	long warmupMillis = 2000; // 预热期间的请求不计入统计
+	long durationMillis = 10000;
+	long drainMillis = 5000; // 停止发送后等待在途请求完成的时间
+	int payloadSize = 16;
+
+	final List<CloudServerSimulator> clouds = new ArrayList<CloudServerSimulator>();
+	DeviceWifiSimulator echo = null;
+	final List<LocalDeviceManager> managers = new ArrayList<LocalDeviceManager>();
+	final List<Client> clients = new ArrayList<Client>();
+	volatile LoadHarness blinker = this;
+	String payload;
+
+	final Metrics metrics = new Metrics();
+	final Counter scheduled = metrics.counter("harness.scheduled"); // 计入统计的计划请求
+	final Counter completed = metrics.counter("harness.completed");
+	final Counter failed = metrics.counter("harness.failed"); // 发送失败、连接断开或回传错误消息
+	final Histogram latency = metrics.histogram("harness.latency"); // 计划发送至收到回传,已修正协调遗漏
+	final Histogram serviceTime = metrics.histogram("harness.service"); // 实际发送至收到回传,未修正,仅供对比
+	volatile long measureStart = Long.MAX_VALUE; // 计划发送时刻不早于此的请求计入统计
+	long measureEnd = 0; // 在途请求全部完成或等待超时的时刻,吞吐量按实际用时计算
+
+	public static void main(String[] args) {
+		LoadHarness harness = new LoadHarness();
+		if (!harness.parse(args)) {
+			util.log("用法: LoadHarness [-nodes 节点数] [-homes M] [-devices K] [-controllers N] [-workers W] [-rate 每秒消息数]"
+					+ " [-warmup 秒] [-duration 秒] [-drain 秒] [-payload 字节]");
+			System.exit(1);
+		}
+		int exitCode = 0;
+		try {
+			if (harness.start())
+				harness.run();
+			else
+				exitCode = 1;
+			harness.report();
+		} finally {
+			harness.close();
+		}
+		System.exit(exitCode); // 设备和连接线程不是守护线程
+	}
+
+	boolean parse(String[] args) {
+		if (args.length % 2 != 0)
+			return false;
+		try {
+			for (int i = 0; i < args.length; i += 2) {
+				String value = args[i + 1];
+				switch (args[i]) {
+				case "-nodes":
+					nodes = Integer.parseInt(value);
+					break;
+				case "-homes":
+					homes = Integer.parseInt(value);
+					break;
+				case "-devices":
+					devicesPerHome = Integer.parseInt(value);
+					break;
+				case "-controllers":
+					controllers = Integer.parseInt(value);
+					break;
+				case "-workers":
+					workers = Integer.parseInt(value);
+					break;
+				case "-rate":
+					rate = Double.parseDouble(value);
+					break;
+				case "-warmup":
+					warmupMillis = (long) (Double.parseDouble(value) * 1000);
+					break;
+				case "-duration":
+					durationMillis = (long) (Double.parseDouble(value) * 1000);
+					break;
+				case "-drain":
+					drainMillis = (long) (Double.parseDouble(value) * 1000);
+					break;
+				case "-payload":
+					payloadSize = Integer.parseInt(value);
+					break;
+				default:
+					return false;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		return nodes > 0 && homes > 0 && devicesPerHome > 0 && controllers > 0 && workers > 0 && rate > 0 && durationMillis > 0;
+	}
+
+	static String homeKey(int home) {
+		return "HOME-" + home;
+	}
+
+	static String deviceName(int device) {
+		return "DEVICE-" + device;
+	}
+
+	// 依次启动echo智能家具、云服务器、本地服务器和遥控器,全部注册成功后返回true
+	public boolean start() {
+		if (!Settings.FramedWire)
+			util.log(LogLevel.WARN, "Settings.FramedWire未开启,并发消息可能在一次read中粘连,压测结果仅供参考");
+		StringBuilder sb = new StringBuilder("LOAD-");
+		while (sb.length() < payloadSize)
+			sb.append('x');
+		payload = sb.toString();
+
+		InetAddress loopback;
+		try {
+			loopback = InetAddress.getByName(Loopback);
+		} catch (IOException e) {
+			util.log("Loopback Address not Found");
+			return false;
+		}
+
+		// 所有智能家具共用一个echo服务器,每台设备各自一条连接
+		echo = new DeviceWifiSimulator(loopback, 0);
+		Thread echoThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				echo.run();
+			}
+		}, "LoadHarness-Echo");
+		echoThread.setDaemon(true);
+		echoThread.start();
+		InetSocketAddress echoAddr = awaitAddress(echo, null);
+		if (echoAddr == null) {
+			util.log("Echo Device Failed to Start");
+			return false;
+		}
+
+		// 云服务器,端口由系统分配;多个节点全部绑定后再加入集群
+		List<InetSocketAddress> cloudAddrs = new ArrayList<InetSocketAddress>();
+		for (int n = 0; n < nodes; n++) {
+			CloudServerSimulator cloud = new CloudServerSimulator(0);
+			clouds.add(cloud);
+			cloud.setBindAddress(loopback);
+			cloud.startService();
+			InetSocketAddress cloudAddr = awaitAddress(null, cloud);
+			if (cloudAddr == null) {
+				util.log("CloudServer Failed to Start");
+				return false;
+			}
+			cloudAddrs.add(new InetSocketAddress(Loopback, cloudAddr.getPort()));
+		}
+		if (nodes > 1)
+			for (int n = 0; n < nodes; n++)
+				clouds.get(n).setCluster(cloudAddrs, cloudAddrs.get(n));
+
+		// 本地服务器
+		for (int h = 0; h < homes; h++) {
+			LocalDeviceManager manager = new LocalDeviceManager();
+			manager.api.SetKey(homeKey(h));
+			for (int d = 0; d < devicesPerHome; d++)
+				manager.api.AddLocalDevice(deviceName(d), Loopback, echoAddr.getPort());
+			manager.api.SetCloudServer(Loopback, cloudAddrs.get(h % nodes).getPort());
+			managers.add(manager);
+			manager.api.Start();
+		}
+		long deadline = System.currentTimeMillis() + Settings.ConnectTimeout + homes * 10L;
+		for (int h = 0; h < homes; h++) {
+			while (findDevice(homeKey(h)) == null) {
+				if (System.currentTimeMillis() > deadline) {
+					util.log("LocalDeviceManager Failed to Register: " + homeKey(h));
+					return false;
+				}
+				sleep(10);
+			}
+		}
+
+		// 遥控器,启动时先注册,以免注册时间计入延迟
+		for (int c = 0; c < controllers; c++) {
+			RemoteControllerSimulator controller = new RemoteControllerSimulator();
+			controller.key = "CONTROLLER-" + c;
+			controller.setCloudServer(Loopback, cloudAddrs.get(c % nodes).getPort());
+			if (!controller.api.CheckValid()) {
+				util.log("RemoteController Failed to Register: " + controller.key);
+				controller.close();
+				return false;
+			}
+			clients.add(new Client(controller, homeKey(c % homes)));
+		}
+		util.log("LoadHarness Started: CloudServer = " + cloudAddrs + " Homes = " + homes + " Devices = "
+				+ homes * devicesPerHome + " Controllers = " + controllers);
+		return true;
+	}
+
+	// 在所有节点中查找已注册的设备
+	ClientDevice findDevice(String name) {
+		for (CloudServerSimulator cloud : clouds) {
+			ClientDevice device = cloud.getDevice(name);
+			if (device != null)
+				return device;
+		}
+		return null;
+	}
+
+	// 等待echo或云服务器绑定端口
+	InetSocketAddress awaitAddress(DeviceWifiSimulator echo, CloudServerSimulator cloud) {
+		long deadline = System.currentTimeMillis() + Settings.ConnectTimeout;
+		while (System.currentTimeMillis() < deadline) {
+			InetSocketAddress addr = echo != null ? echo.getLocalAddress() : cloud.getLocalAddress();
+			if (addr != null && addr.getPort() != 0)
+				return addr;
+			sleep(10);
+		}
+		return null;
+	}
+
+	static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	// 按固定间隔生成计划发送时刻,轮流交给各遥控器;落后时立即补发,计划时刻不变
+	public void run() {
+		long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+		long startTime = System.nanoTime();
+		measureStart = startTime + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+		long endTime = measureStart + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		long nextReport = startTime + TimeUnit.SECONDS.toNanos(1);
+		long next = startTime;
+		int index = 0;
+		while (blinker == this && next < endTime) {
+			long now = System.nanoTime();
+			if (now >= nextReport) {
+				progress(now < measureStart ? "预热" : "压测");
+				nextReport += TimeUnit.SECONDS.toNanos(1);
+			}
+			if (next > now) {
+				LockSupport.parkNanos(Math.min(next, nextReport) - now);
+				continue;
+			}
+			clients.get(index++ % clients.size()).pending.offer(next);
+			if (next >= measureStart)
+				scheduled.increment();
+			next += interval;
+		}
+
+		// 等待在途请求完成
+		long drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+		while (completed.sum() + failed.sum() < scheduled.sum() && System.nanoTime() < drainDeadline)
+			sleep(10);
+		measureEnd = System.nanoTime();
+	}
+
+	void progress(String phase) {
+		int pending = 0;
+		for (Client client : clients)
+			pending += client.pending.size();
+		util.log("[" + phase + "] 完成 = " + completed.sum() + " 失败 = " + failed.sum() + " 排队 = " + pending
+				+ " 延迟: " + latency);
+	}
+
+	public void report() {
+		long done = completed.sum(), errors = failed.sum(), total = scheduled.sum();
+		double seconds = durationMillis / 1000.0;
+		double elapsed = measureEnd > measureStart ? (measureEnd - measureStart) / 1e9 : seconds;
+		StringBuilder sb = new StringBuilder();
+		sb.append("===== 压测结果 =====\n");
+		sb.append("节点 = ").append(nodes).append(" 家庭 = ").append(homes).append(" 每户设备 = ").append(devicesPerHome).append(" 遥控器 = ")
+				.append(controllers).append(" 每遥控器并发 = ").append(workers).append('\n');
+		sb.append("计划速率 = ").append(rate).append(" msg/s 时长 = ").append(seconds).append("s\n");
+		sb.append("计划 = ").append(total).append(" 完成 = ").append(done).append(" 失败 = ").append(errors)
+				.append(" 未完成 = ").append(Math.max(0, total - done - errors)).append('\n');
+		sb.append("吞吐量 = ").append(Math.round(done / elapsed)).append(" msg/s (用时 ")
+				.append(Math.round(elapsed * 1000) / 1000.0).append("s)\n");
+		sb.append("延迟(自计划发送时刻): ").append(latency).append('\n');
+		sb.append("服务时间(自实际发送时刻): ").append(serviceTime).append('\n');
+		for (int n = 0; n < clouds.size(); n++)
+			sb.append("----- 云服务器 " + n + " -----\n").append(clouds.get(n).metrics);
+		util.log(sb.toString());
+	}
+
+	// 请求是否得到智能家具的回传;回传中带错误消息视为失败
+	static boolean isReply(String json) {
+		if (json == null || "".equals(json))
+			return false;
+		CloudMessage msg = MessageFactory.unwrapCloudMessage(json);
+		if (msg == null || msg.isNotice())
+			return false;
+		return msg.data != null && MessageFactory.unwrapErrorMessage(msg.data) == null;
+	}
+
+	// 一个遥控器及其发送线程;各线程使用各自的TerminalDevice,回传按requestId匹配
+	class Client {
+		final RemoteControllerSimulator controller;
+		final String toKey;
+		final BlockingQueue<Long> pending = new LinkedBlockingQueue<Long>(); // 已到计划时刻尚未发出的请求
+
+		Client(RemoteControllerSimulator controller, String toKey) {
+			this.controller = controller;
+			this.toKey = toKey;
+			for (int i = 0; i < workers; i++) {
+				Thread thread = new Thread(new Worker(), "LoadHarness-" + controller.key + "-" + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		class Worker implements Runnable {
+			@Override
+			public void run() {
+				TerminalDevice[] devices = new TerminalDevice[devicesPerHome];
+				for (int d = 0; d < devices.length; d++) {
+					devices[d] = controller.new TerminalDevice();
+					devices[d].toKey = toKey;
+					devices[d].name = deviceName(d);
+				}
+				while (blinker == LoadHarness.this) {
+					Long intended;
+					try {
+						intended = pending.poll(100, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (intended == null)
+						continue;
+					TerminalDevice device = devices[ThreadLocalRandom.current().nextInt(devices.length)];
+					long sendTime = System.nanoTime();
+					boolean ok = device.sendMessage(payload) && isReply(device.receiveMessage());
+					long endTime = System.nanoTime();
+					if (intended < measureStart)
+						continue;
+					if (ok) {
+						latency.record(endTime - intended);
+						serviceTime.record(endTime - sendTime);
+						completed.increment();
+					} else
+						failed.increment();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		blinker = null;
+		for (Client client : clients)
+			client.controller.close();
+		for (LocalDeviceManager manager : managers)
+			manager.close();
+		for (CloudServerSimulator cloud : clouds)
+			cloud.close();
+		if (echo != null)
+			echo.close();
+	}
+}
@@ -5,12 +5,15 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 import com.google.gson.Gson;
@@ -24,24 +27,55 @@ import message.Message;
 import message.MessageFactory;
 import message.RegistryMessage;
 import message.CloudMessage;
+import message.MulticastMessage;
+import util.AbstractUtil;
+import util.Counter;
+import util.Histogram;
+import util.LogLevel;
+import util.Metrics;
+import util.ServiceThread;
 import util.Settings;
 import util.TickerManager;
-import util.Util;
+import util.TimingWheel;
 
 //线程安全
 public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,Closeable {
 
-	static Util util = Settings.util;
+	static AbstractUtil util = Settings.util;
 	Map<String, ServerDevice> devices = new HashMap<String, ServerDevice>();
+	final Map<String, List<String>> groups = new ConcurrentHashMap<String, List<String>>(); // 设备组,组播请求可按组名指定设备
 	ServerDevice cloudServer;
 	volatile LocalDeviceManager blinker = this;
 	Gson gson = new Gson();
 	String key; // 本地服务器密钥
 	Service service = null;
 	Object serviceMutex=new Object();
+	volatile String token = null; // 云服务器签发的会话令牌;Service重启后仍凭它恢复会话,云服务器重启后凭它尽快重新接入
 	public Api api=new Api();
-	ScheduledThreadPoolExecutor scheduledThreadPool=new ScheduledThreadPoolExecutor(3);
+	TimingWheel.Timeout startingTimeout=null;
 	volatile boolean onStarting=false; //避免重复启动
+	final Metrics metrics=new Metrics(); //消息处理统计,供容量规划
+	final Counter cloudReceived=metrics.counter("local.cloud.received"); //云服务器转发来的请求
+	final Counter multicastReceived=metrics.counter("local.multicast.received"); //云服务器转发来的组播请求
+	final Counter registrations=metrics.counter("local.registrations");
+	final Counter registrationFailures=metrics.counter("local.registrations.failed");
+	final Histogram handleTime=metrics.histogram("local.handle"); //处理一条转发请求并回传
+	final Histogram deviceRtt=metrics.histogram("local.device.rtt"); //和智能家具的一次收发
+	final Histogram heartbeatRtt=metrics.histogram("local.heartbeat.rtt");
+	final Counter[] errors=new Counter[ErrorMessage.c8+1]; //按错误码统计回传的错误消息,下标即错误码
+	final Counter[] receivedErrors=new Counter[ErrorMessage.c8+1]; //按错误码统计收到的错误消息
+	{
+		for (int code=ErrorMessage.c1;code<errors.length;code++){
+			errors[code]=metrics.counter("local.error.c"+code);
+			receivedErrors[code]=metrics.counter("local.error.received.c"+code);
+		}
+		metrics.gauge("local.devices", new Metrics.Gauge() {
+			@Override
+			public long value() {
+				return devices.size();
+			}
+		});
+	}
 
 	//线程安全
 	public class Api {
@@ -78,6 +112,17 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 			return putDevice(name, addr, port);
 		}
 
+		//设置设备组,组播请求可用组名指定其中所有设备;names为空时删除该组
+		public boolean SetGroup(String group, List<String> names){
+			if (group==null || "".equals(group)) return false;
+			if (names==null || names.isEmpty()) {
+				groups.remove(group);
+				return true;
+			}
+			groups.put(group, new ArrayList<String>(names));
+			return true;
+		}
+
 		// 设置云服务器
 		public boolean SetCloudServer(String addr, int port) {
 			if (addr==null || "".equals(addr)) return false;
@@ -101,17 +146,35 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 		public void Stop() {
 			stopService();
 		}
+
+		// 计数器及延迟分布的快照,单位纳秒
+		public Map<String, Long> GetMetrics() {
+			return metrics.snapshot();
+		}
+	}
+
+	// 按错误码统计回传给云服务器的错误消息;只在出错时调用
+	void countError(int code) {
+		if (code > 0 && code < errors.length)
+			errors[code].increment();
+		else
+			metrics.counter("local.error.c" + code).increment();
+	}
+
+	// 计数器及延迟分布的快照,单位纳秒
+	public Map<String, Long> getMetrics() {
+		return metrics.snapshot();
 	}
 
 	//运行服务
 	public void startService(){
 		//防止重复启动
 		if (onStarting){
-			System.out.println("服务正在启动");
+			util.prompt("服务正在启动");
 			return;
 		}
 		onStarting=true;
-		scheduledThreadPool.schedule(new Runnable() {
+		startingTimeout=TimingWheel.shared().newTimeout(new Runnable() {
 			@Override
 			public void run() {
 				onStarting=false;
@@ -172,41 +235,73 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 
 
 	// 配置好云服务器和本地智能家具后,运行Service
-	class Service extends Thread {
+	class Service extends ServiceThread {
 
 		volatile Service blinker = this;
-		static final boolean retryAfterCloseUnhealthySocket = false; // 是否允许断线重连;开启时,若同时建立两个本地服务器,会出现互相抢占注册的情况
+		static final boolean retryAfterCloseUnhealthySocket = false; // 是否允许断线重连;开启时,若同时建立两个本地服务器,会出现互相抢占注册的情况;持有会话令牌时总是凭令牌重连,只能恢复本端的会话,不会抢占
+		String unsent = null; // 连接中断时未能回传的结果,恢复会话后补发;只由Service线程访问
 		static final int retryTimes = 1; // 尝试建立连接并注册次数
 		Handler handler = new Handler();
 		TickerManager heartbeatTicker=new TickerManager();
+		final ReentrantLock lock = new ReentrantLock(); // 注册和心跳检查期间持有;注册阻塞等待回传,不用synchronized以免占住虚拟线程的载体线程
 
 		// 发送心跳消息,查看连接是否健康;异步方式
-		public synchronized void checkValid(Runnable onSuccess,Runnable onFailure) {
-			if (cloudServer == null || !cloudServer.maybeValid())
+		public void checkValid(Runnable onSuccess,Runnable onFailure) {
+			lock.lock();
+			try {
+				checkValidLocked(onSuccess, onFailure);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void checkValidLocked(Runnable onSuccess,Runnable onFailure) {
+			if (cloudServer == null || !cloudServer.maybeValid()) {
 				if (onFailure!=null) onFailure.run();
+				return;
+			}
+			//先加入TickerManager,序号随心跳消息发出,回传时只完成对应的Ticker
+			int seq = heartbeatTicker.nextKey();
+			heartbeatTicker.put(seq,onSuccess,onFailure,Settings.ConnectTimeout);
 			// 传输心跳消息
 			String json = null;
-			json = MessageFactory.wrapHeartbeatRequestMessage();
+			json = MessageFactory.wrapHeartbeatRequestMessage(seq);
 			if (!cloudServer.sendMessage(json)) {
 				util.log("Heartbeat Check Invalid: " + this);
-				if (onFailure!=null) onFailure.run();
+				if (heartbeatTicker.cancel(seq) && onFailure!=null) onFailure.run();
 				return;
 			}
-			//加入TickerManager
-			heartbeatTicker.put(onSuccess,onFailure,Settings.ConnectTimeout);
 			//在循环接收线程中等待消息回传并处理
 			util.log("Waitting for HeartbeatMessage.");
 		}
 
 		// 向云服务器注册指定密钥
-		public synchronized boolean register(String key) {
+		public boolean register(String key) {
+			return register(key, Settings.MaxRegistryRedirects);
+		}
+
+		// redirects为还允许跟随的集群重定向次数
+		boolean register(String key, int redirects) {
+			lock.lock();
+			try {
+				return registerLocked(key, redirects);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		boolean registerLocked(String key, int redirects) {
 			if (cloudServer == null)
 				return false;
 			// 注册前,先断开原来连接
 			cloudServer.close();
 			cloudServer.restart();
 			// 开始注册
-			String json = MessageFactory.wrapRegistryMessage(key, RegistryMessage.LOCAL_SERVER);
+			// 分帧连接上声明支持的编码,由云服务器选定
+			int codecs = cloudServer.framed && Settings.BinaryCodec ? MessageFactory.supportedCodecs() : 0;
+			// 声明可同时处理的转发消息数,云服务器据此限制向本地服务器转发;接收循环随时回传心跳请求
+			String json = MessageFactory.wrapRegistryMessage(key, RegistryMessage.LOCAL_SERVER, codecs,
+					Settings.LocalDeviceManagerCredits, token, true);
 			if (json == null || "".equals(json)) {
 				util.log("Registry Failure (Cannot convert to Json)");
 				return false;
@@ -222,6 +317,17 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 				util.log("Registry Failure (Cannot Convert from Json): " + json);
 				return false;
 			}
+			if (retVal.redirect != null) {
+				// 密钥属于集群中的其它节点,改连该节点重新注册
+				if (redirects <= 0) {
+					util.log("Registry Failure (Too Many Redirects): " + key);
+					return false;
+				}
+				InetSocketAddress node = CloudCluster.parse(retVal.redirect).get(0);
+				util.log("Registry Redirected: Key = " + key + " Node = " + retVal.redirect);
+				setCloudServer(node.getHostString(), node.getPort());
+				return registerLocked(key, redirects - 1);
+			}
 			if (!key.equals(retVal.name)) {
 				if (ErrorMessage.s3.equals(retVal.name))
 					util.log("Registry Failure (Same Key Already Exists): " + key);
@@ -230,7 +336,12 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 							+ retVal.name);
 				return false;
 			}
-			util.log("Registry Success: Key = " + key + " CloudServer = " + cloudServer);
+			if (codecs != 0)
+				cloudServer.codec = MessageFactory.negotiate(retVal.codecs & codecs);
+			boolean resumed = token != null && token.equals(retVal.token);
+			token = retVal.token;
+			util.log((resumed ? "Session Resumed: Key = " : "Registry Success: Key = ") + key + " CloudServer = "
+					+ cloudServer + " Codec = " + cloudServer.codec.id());
 			return true;
 		}
 
@@ -247,7 +358,7 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 					switch (status) {
 					case 4:{
 						//服务器回传错误信息
-						util.log("Receive ErrorMessage via CloudMessage");
+						util.log(LogLevel.DEBUG, "Receive ErrorMessage via CloudMessage");
 						ErrorMessage err=MessageFactory.unwrapErrorMessage(msg.data);
 						if (err==null) {
 							onInvalid(msg.data);
@@ -261,35 +372,40 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 						device = devices.get(msg.info);
 						if (device == null) {
 							// 未找到本地设备
-							util.log("Local Device not Found: " + msg.info);
+							util.log(LogLevel.WARN, "Local Device not Found: {}", msg.info);
+							countError(ErrorMessage.c1);
 							String err=MessageFactory.wrapErrorMessage(ErrorMessage.c1);
 							result = MessageFactory.wrapRetCloudMessage(msg, err);
 							status = 7;
 							break;
 						}
 						// 找到本地设备
-						util.log("Local Device Found: " + msg.info);
+						util.log(LogLevel.DEBUG, "Local Device Found: {}", msg.info);
 						status = 6;
 						break;
 					}
 					case 6: {
 						// 和设备通信
+						long startTime = System.nanoTime();
 						if (!device.sendMessage(msg.data)) {
+							countError(ErrorMessage.c2);
 							String err=MessageFactory.wrapErrorMessage(ErrorMessage.c2);
 							result = MessageFactory.wrapRetCloudMessage(msg, err);
-							util.log("Connect to LocalDevice Failed: " + device);
+							util.log(LogLevel.WARN, "Connect to LocalDevice Failed: {}", device);
 							status = 7;
 							break;
 						}
 						String retData = device.receiveMessage();
 						if (retData == null || "".equals(retData)) {
+							countError(ErrorMessage.c2);
 							String err=MessageFactory.wrapErrorMessage(ErrorMessage.c2);
 							result = MessageFactory.wrapRetCloudMessage(msg, err);
-							util.log("Connect to LocalDevice Failed: " + device);
+							util.log(LogLevel.WARN, "Connect to LocalDevice Failed: {}", device);
 							status = 7;
 							break;
 						}
 						// 通信成功
+						deviceRtt.record(System.nanoTime() - startTime);
 						String retDataMsg=MessageFactory.wrapMessage(retData);
 						result = MessageFactory.wrapRetCloudMessage(msg,retDataMsg);
 						status = 7;
@@ -298,11 +414,12 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 					case 7: {
 						// 回传Result给云服务器
 						if (!cloudServer.sendMessage(result)) {
-							util.log("Connect and Send Message back Failed: " + cloudServer);
+							util.log(LogLevel.WARN, "Connect and Send Message back Failed: {}", cloudServer);
+							unsent = result;
 							return false;
 						}
 						// 回传成功
-						util.log("Handle ToLocalDeviceMessage Successfully: Message = " + msg + " Result = " + result);
+						util.log(LogLevel.DEBUG, "Handle ToLocalDeviceMessage Successfully: Message = {} Result = {}", msg, result);
 						return true;
 					}
 					}
@@ -310,24 +427,91 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 				return false;
 			}
 
+			// 组播:先向所有目的设备发出,再依次接收回传,各设备的处理时间相互重叠;结果汇总为一条回传给云服务器
+			public boolean onMulticast(MulticastMessage msg) {
+				List<String> names = msg.infos != null && !msg.infos.isEmpty() ? msg.infos : groups.get(msg.group);
+				MulticastMessage result = new MulticastMessage();
+				result.fromKey = key;
+				result.toKeys = new ArrayList<String>();
+				result.toKeys.add(msg.fromKey);
+				result.requestId = msg.requestId;
+				if (names == null) {
+					util.log(LogLevel.WARN, "Local Group not Found: {}", msg.group);
+					countError(ErrorMessage.c1);
+					result.addResult(key, msg.group, MessageFactory.wrapErrorMessage(ErrorMessage.c1));
+				} else {
+					ServerDevice[] sent = new ServerDevice[names.size()];
+					String[] results = new String[names.size()];
+					long startTime = System.nanoTime();
+					for (int i = 0; i < sent.length && blinker == Service.this; i++) {
+						ServerDevice device = devices.get(names.get(i));
+						if (device == null) {
+							util.log(LogLevel.WARN, "Local Device not Found: {}", names.get(i));
+							countError(ErrorMessage.c1);
+							results[i] = MessageFactory.wrapErrorMessage(ErrorMessage.c1);
+						} else if (!device.sendMessage(msg.data)) {
+							util.log(LogLevel.WARN, "Connect to LocalDevice Failed: {}", device);
+							countError(ErrorMessage.c2);
+							results[i] = MessageFactory.wrapErrorMessage(ErrorMessage.c2);
+						} else
+							sent[i] = device;
+					}
+					for (int i = 0; i < sent.length; i++) {
+						if (sent[i] != null) {
+							String retData = sent[i].receiveMessage();
+							if (retData == null || "".equals(retData)) {
+								util.log(LogLevel.WARN, "Connect to LocalDevice Failed: {}", sent[i]);
+								countError(ErrorMessage.c2);
+								results[i] = MessageFactory.wrapErrorMessage(ErrorMessage.c2);
+							} else {
+								deviceRtt.record(System.nanoTime() - startTime);
+								results[i] = MessageFactory.wrapMessage(retData);
+							}
+						} else if (results[i] == null)
+							results[i] = MessageFactory.wrapErrorMessage(ErrorMessage.c2); // 服务已关闭
+						result.addResult(key, names.get(i), results[i]);
+					}
+				}
+				String json = MessageFactory.wrapMulticastMessage(result);
+				if (!cloudServer.sendMessage(json)) {
+					util.log(LogLevel.WARN, "Connect and Send Message back Failed: {}", cloudServer);
+					unsent = json;
+					return false;
+				}
+				util.log(LogLevel.DEBUG, "Handle MulticastMessage Successfully: Message = {} Result = {}", msg, result);
+				return true;
+			}
+
 			//收到心跳消息;true表示处理,false表示连接中断
 			public boolean onHeartbeat(HeartbeatMessage msg){
 				if (msg==null || !msg.checkNotNull()) return true;
 				switch (msg.status){
 					case HeartbeatMessage.REQUEST:
 						//回传心跳消息请求
-						String responseJson = MessageFactory.wrapHeartbeatResponseMessage();
-						util.log("Receive HeartbeatMessage");
+						String responseJson = MessageFactory.wrapHeartbeatResponseMessage(msg.seq);
+						util.log(LogLevel.DEBUG, "Receive HeartbeatMessage");
 						if (!cloudServer.sendMessage(responseJson)) {
-							util.log("Response HeartbeatMessage Failed");
+							util.log(LogLevel.WARN, "Response HeartbeatMessage Failed");
 							return false;
 						}
-						util.log("Response HeartbeatMessage");
+						util.log(LogLevel.DEBUG, "Response HeartbeatMessage");
 						return true;
 					case HeartbeatMessage.VALID:
 						//接收到心跳消息
-						util.log("Receive HeartbeatMessage");
-						heartbeatTicker.tickAll();
+						if (msg.seq==0) {
+							util.log(LogLevel.DEBUG, "Receive HeartbeatMessage");
+							heartbeatTicker.tickAll();
+							return true;
+						}
+						long rtt=heartbeatTicker.tick(msg.seq);
+						if (rtt >= 0)
+							heartbeatRtt.record(rtt);
+						if (!util.isEnabled(LogLevel.DEBUG))
+							return true;
+						if (rtt >= 0)
+							util.log(LogLevel.DEBUG, "Receive HeartbeatMessage RTT = {}us", rtt / 1000);
+						else
+							util.log(LogLevel.DEBUG, "Receive HeartbeatMessage (Expired seq = {})", msg.seq);
 						return true;
 				}
 				return true;
@@ -335,48 +519,63 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 			
 			//接收到错误消息
 			public void onError(ErrorMessage err){
-				util.log("Error Message Received: " + err.getMessage());
+				if (err.code > 0 && err.code < receivedErrors.length)
+					receivedErrors[err.code].increment();
+				else
+					metrics.counter("local.error.received.c" + err.code).increment();
+				util.log(LogLevel.WARN, "Error Message Received: {}", err.getMessage());
 			}
 
 			//接收到无效消息
 			public void onInvalid(String json){
-				util.log("Received Invalid Message from CloudServer: Json = " + json);
+				util.log(LogLevel.WARN, "Received Invalid Message from CloudServer: Json = {}", json);
 			}
 
-			// 返回true表示有消息接收（无论是否有效）,返回false表示和云服务器的连接断开
-			public boolean handleMessage(String json) {
-				if (json == null || "".equals(json))
+			// 返回true表示有消息接收（无论是否有效）,返回false表示和云服务器的连接断开;base由ServerDevice.receive直接从帧解码,payload已按type填充
+			public boolean handleMessage(Message base) {
+				if (base == null)
 					return false;
-				Message base = MessageFactory.unwrapMessage(json);
-				if (base == null) {
-					// 不包含格式的无效消息
-					onInvalid(json);
-					return true;
-				}
 				switch (base.type) {
 				case HeartbeatMessage.type: {
 					// 心跳消息
-					HeartbeatMessage heartbeatMessage=MessageFactory.unwrapHeartbeatMessage(json);
-					if (heartbeatMessage==null && !heartbeatMessage.checkNotNull()){
-						onInvalid(json);
+					HeartbeatMessage heartbeatMessage=(HeartbeatMessage) base.payload;
+					if (heartbeatMessage==null || !heartbeatMessage.checkNotNull()){
+						onInvalid(base.toString());
 						return true;
 					}
 					return onHeartbeat(heartbeatMessage);
 				}
 				case CloudMessage.type: {
 					// 云服务器和本地智能家具通信
-					CloudMessage msg = MessageFactory.unwrapCloudMessage(json);
+					CloudMessage msg = (CloudMessage) base.payload;
 					if (msg == null || !msg.checkNotNull()) {
-						util.log("Receive Message from CloudServer Error (Cannot Convert from Json)" + json);
+						util.log(LogLevel.WARN, "Receive Message from CloudServer Error (Cannot Decode){}", base);
 						return true;
 					}
-					return onCloud(msg);
+					cloudReceived.increment();
+					long startTime = System.nanoTime();
+					boolean handled = onCloud(msg);
+					handleTime.record(System.nanoTime() - startTime);
+					return handled;
+				}
+				case MulticastMessage.type: {
+					// 组播请求
+					MulticastMessage msg = (MulticastMessage) base.payload;
+					if (msg == null || !msg.checkNotNull() || msg.isResult()) {
+						util.log(LogLevel.WARN, "Receive Message from CloudServer Error (Cannot Decode){}", base);
+						return true;
+					}
+					multicastReceived.increment();
+					long startTime = System.nanoTime();
+					boolean handled = onMulticast(msg);
+					handleTime.record(System.nanoTime() - startTime);
+					return handled;
 				}
 				case Message.rawType:
-					util.log("Received Text Message from CloudServer: " + base.data);
+					util.log(LogLevel.DEBUG, "Received Text Message from CloudServer: {}", base.data);
 					return true;
 				default:
-					onInvalid(json);
+					onInvalid(base.toString());
 					return true;
 				}
 			}
@@ -423,9 +622,18 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 				case 3: {
 					// 向云服务器注册自身密钥
 					if (retryTime-- > 0) {
-						if (!register(key))
+						if (!register(key)) {
+							registrationFailures.increment();
 							break;
+						}
 						// 注册成功
+						registrations.increment();
+						if (unsent != null) {
+							// 补发连接中断前未能回传的结果
+							if (!cloudServer.sendMessage(unsent))
+								util.log(LogLevel.WARN, "Resend Message back Failed: {}", cloudServer);
+							unsent = null;
+						}
 						status = 4; // 开始循环接收云服务器消息
 					} else
 						status = 0xff;
@@ -433,14 +641,15 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 				}
 				case 4: {
 					// 循环接收来自云服务器的消息,并交给Handler处理
-					String json = cloudServer.receiveMessage();
-					if (json == null || "".equals(json)) {
+					Message received = cloudServer.receive();
+					if (received == null) {
 						if (blinker == null)
 							util.log("Receive Message from CloudServer Error (Service Closed)");
 						else {
 							util.log("Receive Message from CloudServer Error (no Message Received)");
-							if (retryAfterCloseUnhealthySocket) {
+							if (retryAfterCloseUnhealthySocket || token != null) {
 								util.log("Retry Registry");
+								retryTime = Service.retryTimes;
 								status = 3;
 								break;
 							}
@@ -448,14 +657,15 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 						status = 0xff;
 						break;
 					}
-					if (!handler.handleMessage(json)) {
+					if (!handler.handleMessage(received)) {
 						// 通信过程中和云服务器的连接中断
 						if (blinker == null)
 							util.log("Receive Message from CloudServer Error (Service Closed)");
 						else {
 							util.log("Receive Message from CloudServer Error (Connection Closed Unexpectedly)");
-							if (retryAfterCloseUnhealthySocket) {
+							if (retryAfterCloseUnhealthySocket || token != null) {
 								util.log("Retry Registry");
+								retryTime = Service.retryTimes;
 								status = 3;
 								break;
 							}
@@ -489,6 +699,7 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 		cloudServer = new ServerDevice();
 		cloudServer.name = "CloudServer";
 		cloudServer.addr = addr;
+		cloudServer.framed = Settings.FramedWire;
 		util.log("Cloud Server Set: " + cloudServer.addr);
 		return true;
 	}
@@ -517,71 +728,71 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 				for (Device info : getAllDevices())
 					sb.append(info + "\n");
 				if ("".equals(sb.toString())) {
-					util.log("当前没有设备");
+					util.prompt("当前没有设备");
 				} else {
-					util.log(sb.toString());
+					util.prompt(sb.toString());
 				}
 				status = 0xff;
 				break;
 			case 2:
 				try {
-					util.log("输入设备IP地址");
+					util.prompt("输入设备IP地址");
 					String addr = sc.next();
 					if (!Pattern.compile("[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}").matcher(addr).matches()) {
-						util.log("IP地址格式错误");
+						util.prompt("IP地址格式错误");
 						break;
 					}
-					util.log("输入设备IP端口");
+					util.prompt("输入设备IP端口");
 					int port = sc.nextInt();
-					util.log("给设备命名(将覆盖已有设备)");
+					util.prompt("给设备命名(将覆盖已有设备)");
 					String name = sc.next();
 					if (name == null || "".equals(name)) {
-						util.log("名字输入有误");
+						util.prompt("名字输入有误");
 						break;
 					}
 					putDevice(name, addr, port);
-					util.log("添加成功");
+					util.prompt("添加成功");
 				} finally {
 					status = 0xff;
 				}
 				break;
 			case 3:
 				try {
-					util.log("输入设备名");
+					util.prompt("输入设备名");
 					String name = sc.next();
 					if (devices.remove(name) != null)
-						util.log("删除成功");
+						util.prompt("删除成功");
 					else
-						util.log("不存在的设备名");
+						util.prompt("不存在的设备名");
 				} finally {
 					status = 0xff;
 				}
 				break;
 			case 4:
 				// 发送接收消息
-				util.log("输入设备名进行消息发送\n");
+				util.prompt("输入设备名进行消息发送\n");
 				String name = sc.next();
 				ServerDevice device = null;
 				try {
 					device = devices.get(name);
 					if (device == null) {
-						util.log("不存在的设备名");
+						util.prompt("不存在的设备名");
 						break;
 					}
 					for (;;) {
-						util.log("输入要发送的消息(键入exit则退出)");
+						util.prompt("输入要发送的消息(键入exit则退出)");
 						String msg = sc.next();
 						if ("exit".equals(msg))
 							break;
 						if (device.sendMessage(msg)) {
 							msg = device.receiveMessage();
 							if (msg == null) {
-								util.log("消息接收失败");
+								util.prompt("消息接收失败");
 								break;
 							}
-							util.log("收到消息: " + msg);
+							util.prompt("收到消息: " + msg);
 						} else {
-							util.log("消息发送失败");
+							util.prompt("消息发送失败");
 							break;
 						}
 					}
@@ -591,25 +802,25 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 				break;
 			case 5:
 				try {
-					util.log("输入云服务器IP地址");
+					util.prompt("输入云服务器IP地址");
 					String addr = sc.next();
 					if (!Pattern.compile("[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}").matcher(addr).matches()) {
-						util.log("IP地址格式错误");
+						util.prompt("IP地址格式错误");
 						break;
 					}
-					util.log("输入云服务器IP端口");
+					util.prompt("输入云服务器IP端口");
 					int port = sc.nextInt();
 					setCloudServer(addr, port);
-					util.log("设置密钥");
+					util.prompt("设置密钥");
 					key = sc.next();
-					util.log("设置成功");
+					util.prompt("设置成功");
 				} finally {
 					status = 0xff;
 				}
 				break;
 			case 6:
 				try {
-					util.log("1 -> 开始运行\n" + "2 -> 停止运行\n"+"3 -> 检测");
+					util.prompt("1 -> 开始运行\n" + "2 -> 停止运行\n"+"3 -> 检测");
 					int choice = sc.nextInt();
 					if (choice == 1) {
 						startService();
@@ -619,12 +830,12 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 						api.CheckValid(new Runnable() {
                             @Override
                             public void run() {
-                            	util.log("服务正在运行");
+                            	util.prompt("服务正在运行");
                             }
                         }, new Runnable() {
                             @Override
                             public void run() {
-                            	util.log("服务已停止");
+                            	util.prompt("服务已停止");
                             }
                         });
 					}
@@ -649,11 +860,16 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 					status = 0xff;
 				}
 				break;
+			case 8:
+				// 消息处理计数及延迟分布
+				util.prompt(metrics.toString());
+				status = 0xff;
+				break;
 			default:
 				// 显示菜单
 				String msg = "[本地设备管理器]\n" + "1 -> 查看当前设备列表\n" + "2 -> 添加一台智能家居\n" + "3 -> 删除一台智能家居\n" + "4 -> 发送消息\n"
-						+ "5 -> 设置云服务器地址\n" + "6 -> 开始/停止运行" + "\n" + "7 -> 循环运行\n" + "0 -> 退出\n";
-				util.log(msg);
+						+ "5 -> 设置云服务器地址\n" + "6 -> 开始/停止运行" + "\n" + "7 -> 循环运行\n" + "8 -> 查看消息统计\n" + "0 -> 退出\n";
+				util.prompt(msg);
 				status = sc.nextInt();
 				break;
 			}
@@ -704,8 +920,8 @@ public class LocalDeviceManager implements DeviceManagerInterface<ServerDevice>,
 			service.close();
 			service = null;
 		}
-		if (scheduledThreadPool!=null)
-			scheduledThreadPool.shutdown();
+		if (startingTimeout!=null)
+			startingTimeout.cancel();
 		synchronized (this) {
 			if (cloudServer != null)
 				cloudServer.close();
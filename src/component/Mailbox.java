@@ -0,0 +1,510 @@
+package component;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import message.CloudMessage;
+import message.Message;
+import message.MessageCodec;
+import message.MessageFactory;
+import util.AbstractUtil;
+import util.Counter;
+import util.LogLevel;
+import util.Metrics;
+import util.Settings;
+import util.TimingWheel;
+
+//离线本地服务器的信箱:发往不在线密钥的CloudMessage追加到内存映射的日志段中,重新注册后按原顺序投递。
+//每条记录为 状态(1) + 长度(4) + 序号(8) + 过期时刻(8) + 二进制编码的消息,投递或过期后原地标记为已删除;
+//没有有效记录的日志段删除文件,空间不足时把有效记录不到一半的日志段搬到新段后删除(压缩)。
+//磁盘占用不超过maxBytes,其中一个日志段留作压缩;内存中只保存记录的位置,消息体在投递时从映射中读出。
+//写入不逐条force,进程崩溃不丢失,断电可能丢失最近的写入。启动时扫描目录中已有的日志段恢复。线程安全
+public class Mailbox implements Closeable {
+	// 暂存的消息未投递即过期时调用,在锁外执行,用于向发送方回传错误
+	public interface Listener {
+		void expired(CloudMessage task);
+	}
+
+	static final AbstractUtil util = Settings.util;
+	static final byte END = 0, LIVE = 1, DEAD = 2; // 记录状态,END为段内尚未写入的部分
+	static final int HEADER = 1 + 4 + 8 + 8;
+	static final Pattern segmentName = Pattern.compile("mailbox-(\\d+)\\.log");
+	static final MessageCodec codec = MessageFactory.codec(MessageCodec.BINARY);
+
+	final File dir;
+	final int segmentBytes;
+	final int maxSegments; // 含留作压缩的一段
+	final int perKey;
+	final long defaultTtl;
+	final ReentrantLock lock = new ReentrantLock(); // 读写记录及增删日志段时持有
+	final ConcurrentMap<String, ArrayDeque<Entry>> boxes = new ConcurrentHashMap<String, ArrayDeque<Entry>>(); // 每个密钥的记录按写入顺序排列,只在lock内修改
+	final Set<String> admitted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); // 注册过的本地服务器密钥,只为它们暂存
+	final ArrayList<Segment> segments = new ArrayList<Segment>(); // 按id递增
+	Segment active = null; // 正在追加的日志段
+	long nextSegment = 0, nextSeq = 0;
+	volatile int count = 0; // 有效记录数
+	volatile long bytes = 0; // 日志段占用的磁盘空间
+	TimingWheel.Timeout sweep = null;
+	volatile boolean closed = false;
+	final Counter stored, delivered, expired, rejected;
+	public volatile Listener onExpired = null;
+	final ArrayList<CloudMessage> expiredTasks = new ArrayList<CloudMessage>(); // 持锁期间过期的消息,解锁后交给onExpired
+
+	public Mailbox(File dir, Metrics metrics) throws IOException {
+		this(dir, Settings.CloudMailboxSegmentBytes, Settings.CloudMailboxMaxBytes, Settings.CloudMailboxPerKey,
+				Settings.CloudMailboxTtlMillis, metrics);
+	}
+
+	public Mailbox(File dir, int segmentBytes, long maxBytes, int perKey, long defaultTtl, Metrics metrics)
+			throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot Create Directory: " + dir);
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxSegments = (int) Math.max(2, maxBytes / segmentBytes);
+		this.perKey = perKey;
+		this.defaultTtl = defaultTtl;
+		stored = metrics.counter("cloud.mailbox.stored");
+		delivered = metrics.counter("cloud.mailbox.delivered");
+		expired = metrics.counter("cloud.mailbox.expired");
+		rejected = metrics.counter("cloud.mailbox.rejected"); // 信箱已满或消息过大
+		lock.lock();
+		try {
+			recover();
+		} finally {
+			lock.unlock();
+		}
+		scheduleSweep();
+	}
+
+	// 一个日志段文件,创建时按固定大小映射;映射在文件通道关闭后仍有效
+	static class Segment {
+		final long id;
+		final File file;
+		final int size;
+		final MappedByteBuffer buffer;
+		int position = 0; // 下一条记录的写入位置
+		int live = 0; // 有效记录数
+		int liveBytes = 0; // 有效记录占用的字节数,决定是否值得压缩
+		final ArrayList<Entry> entries = new ArrayList<Entry>(); // 写入本段的记录,压缩时据此搬移
+
+		Segment(long id, File file, int size) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.size = size;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	// 一条有效记录的位置;压缩时改为新位置
+	static class Entry {
+		final String key;
+		final long seq;
+		final long deadline;
+		final int length;
+		Segment segment;
+		int offset;
+		CloudMessage message = null; // peek时解码,投递完成前保留
+
+		Entry(String key, long seq, long deadline, int length) {
+			this.key = key;
+			this.seq = seq;
+			this.deadline = deadline;
+			this.length = length;
+		}
+	}
+
+	// 扫描已有日志段,重建每个密钥的记录;压缩中断时同一序号可能出现两次,保留先出现的一条
+	void recover() throws IOException {
+		TreeMap<Long, File> found = new TreeMap<Long, File>();
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File file : files) {
+				Matcher matcher = segmentName.matcher(file.getName());
+				if (matcher.matches())
+					found.put(Long.parseLong(matcher.group(1)), file);
+			}
+		long now = System.currentTimeMillis();
+		Map<String, TreeMap<Long, Entry>> recovered = new HashMap<String, TreeMap<Long, Entry>>();
+		for (Map.Entry<Long, File> item : found.entrySet()) {
+			Segment segment = new Segment(item.getKey(), item.getValue(),
+					(int) Math.min(Integer.MAX_VALUE, item.getValue().length()));
+			MappedByteBuffer buffer = segment.buffer;
+			int pos = 0;
+			while (pos + HEADER <= segment.size) {
+				byte state = buffer.get(pos);
+				int length = buffer.getInt(pos + 1);
+				if ((state != LIVE && state != DEAD) || length < 0 || length > segment.size - pos - HEADER)
+					break; // 段尾,或写到一半时崩溃的记录
+				if (state == LIVE) {
+					long seq = buffer.getLong(pos + 5);
+					long deadline = buffer.getLong(pos + 13);
+					CloudMessage task = deadline > now ? decode(segment, pos, length) : null;
+					TreeMap<Long, Entry> box = task == null ? null : recovered.get(task.toKey);
+					if (task != null && box == null) {
+						box = new TreeMap<Long, Entry>();
+						recovered.put(task.toKey, box);
+					}
+					if (task == null || box.containsKey(seq))
+						buffer.put(pos, DEAD); // 已过期、无法解码或是压缩留下的副本
+					else {
+						Entry entry = new Entry(task.toKey, seq, deadline, length);
+						place(entry, segment, pos);
+						box.put(seq, entry);
+					}
+					nextSeq = Math.max(nextSeq, seq + 1);
+				}
+				pos += HEADER + length;
+			}
+			segment.position = pos;
+			segments.add(segment);
+			bytes += segment.size;
+			nextSegment = item.getKey() + 1;
+		}
+		for (Map.Entry<String, TreeMap<Long, Entry>> item : recovered.entrySet()) {
+			boxes.put(item.getKey(), new ArrayDeque<Entry>(item.getValue().values()));
+			admitted.add(item.getKey());
+			count += item.getValue().size();
+		}
+		if (!segments.isEmpty())
+			active = segments.get(segments.size() - 1);
+		for (Segment segment : new ArrayList<Segment>(segments))
+			if (segment.live == 0 && segment != active)
+				delete(segment);
+		if (count > 0)
+			util.log("Mailbox Recovered: " + count + " Messages for " + boxes.size() + " Keys in " + segments.size()
+					+ " Segments");
+	}
+
+	// 记录该密钥属于本地服务器,之后发往它的消息可以暂存
+	public void admit(String key) {
+		admitted.add(key);
+	}
+
+	// 是否有发往该密钥的暂存消息;不加锁,供转发时快速判断
+	public boolean hasMail(String key) {
+		return boxes.containsKey(key);
+	}
+
+	// 暂存的消息数
+	public int size() {
+		return count;
+	}
+
+	// 日志段占用的磁盘空间
+	public long bytes() {
+		return bytes;
+	}
+
+	// 暂存发往task.toKey的消息;不是注册过的本地服务器、task.ttl为负数、该密钥已满或空间不足时返回false
+	public boolean offer(CloudMessage task) {
+		if (closed || task.ttl < 0 || !admitted.contains(task.toKey))
+			return false;
+		ByteBuffer body = codec.encode(MessageFactory.newMessage(CloudMessage.type, task), 0);
+		int length = body.remaining();
+		long deadline = System.currentTimeMillis() + (task.ttl > 0 ? task.ttl : defaultTtl);
+		lock.lock();
+		try {
+			ArrayDeque<Entry> box = boxes.get(task.toKey);
+			Segment segment = null;
+			if (!closed && (box == null || box.size() < perKey) && HEADER + length <= segmentBytes)
+				segment = writable(HEADER + length);
+			if (segment == null) {
+				rejected.increment();
+				return false;
+			}
+			Entry entry = new Entry(task.toKey, nextSeq++, deadline, length);
+			int offset = segment.position;
+			MappedByteBuffer buffer = segment.buffer;
+			buffer.putInt(offset + 1, length);
+			buffer.putLong(offset + 5, entry.seq);
+			buffer.putLong(offset + 13, deadline);
+			ByteBuffer out = buffer.duplicate();
+			out.position(offset + HEADER);
+			out.put(body);
+			buffer.put(offset, LIVE); // 最后写状态,写到一半时崩溃的记录在恢复时视为段尾
+			segment.position += HEADER + length;
+			place(entry, segment, offset);
+			if (box == null) {
+				box = new ArrayDeque<Entry>();
+				boxes.put(task.toKey, box);
+			}
+			box.offer(entry);
+			count++;
+			stored.increment();
+			return true;
+		} finally {
+			unlock();
+		}
+	}
+
+	// 该密钥最早的一条未过期消息,没有时返回null;投递成功后调用remove
+	public CloudMessage peek(String key) {
+		lock.lock();
+		try {
+			ArrayDeque<Entry> box = boxes.get(key);
+			if (box == null)
+				return null;
+			long now = System.currentTimeMillis();
+			for (Entry entry; (entry = box.peek()) != null;) {
+				if (entry.deadline <= now) {
+					box.poll();
+					expire(entry);
+					continue;
+				}
+				if (entry.message == null)
+					entry.message = decode(entry.segment, entry.offset, entry.length);
+				if (entry.message != null)
+					return entry.message;
+				util.log(LogLevel.WARN, "Drop Corrupted Mailbox Record: Key = {} Seq = {}", key, entry.seq);
+				box.poll();
+				kill(entry);
+			}
+			boxes.remove(key);
+			return null;
+		} finally {
+			unlock();
+		}
+	}
+
+	// 删除已投递的消息;期间已过期被清理时忽略
+	public void remove(String key, CloudMessage message) {
+		lock.lock();
+		try {
+			ArrayDeque<Entry> box = boxes.get(key);
+			if (box == null)
+				return;
+			for (Iterator<Entry> it = box.iterator(); it.hasNext();) {
+				Entry entry = it.next();
+				if (entry.message == message) {
+					it.remove();
+					kill(entry);
+					delivered.increment();
+					break;
+				}
+			}
+			if (box.isEmpty())
+				boxes.remove(key);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// 清理过期的记录,删除随之清空的日志段
+	public void expire() {
+		lock.lock();
+		try {
+			if (!closed)
+				expire(System.currentTimeMillis());
+		} finally {
+			unlock();
+		}
+	}
+
+	void expire(long now) {
+		for (Iterator<ArrayDeque<Entry>> boxIt = boxes.values().iterator(); boxIt.hasNext();) {
+			ArrayDeque<Entry> box = boxIt.next();
+			for (Iterator<Entry> it = box.iterator(); it.hasNext();) {
+				Entry entry = it.next();
+				if (entry.deadline > now)
+					continue;
+				it.remove();
+				expire(entry);
+			}
+			if (box.isEmpty())
+				boxIt.remove();
+		}
+	}
+
+	// 有足够空间的日志段;当前段已满时开始新段,日志段达到上限时先清理过期记录,再压缩,仍无空间时返回null
+	Segment writable(int need) {
+		if (active != null && active.size - active.position >= need)
+			return active;
+		if (segments.size() >= maxSegments - 1)
+			expire(System.currentTimeMillis());
+		if (segments.size() >= maxSegments - 1) {
+			if (compact() && active.size - active.position >= need)
+				return active;
+			if (segments.size() >= maxSegments - 1)
+				return null;
+		}
+		return create();
+	}
+
+	// 把有效记录最少且不到一半的日志段搬到新段后删除,新段接着用于追加;用掉留作压缩的一段,完成后段数不变
+	boolean compact() {
+		Segment victim = null;
+		for (Segment segment : segments)
+			if (segment != active && segment.liveBytes <= segmentBytes / 2
+					&& (victim == null || segment.liveBytes < victim.liveBytes))
+				victim = segment;
+		if (victim == null)
+			return false;
+		Segment target = create();
+		if (target == null)
+			return false;
+		for (Entry entry : victim.entries) {
+			if (entry.segment != victim)
+				continue; // 已删除
+			ByteBuffer in = victim.buffer.duplicate();
+			in.limit(entry.offset + HEADER + entry.length).position(entry.offset + 1);
+			ByteBuffer out = target.buffer.duplicate();
+			out.position(target.position + 1);
+			out.put(in);
+			target.buffer.put(target.position, LIVE);
+			place(entry, target, target.position);
+			target.position += HEADER + entry.length;
+		}
+		victim.live = 0;
+		delete(victim);
+		util.log(LogLevel.DEBUG, "Mailbox Segment {} Compacted into {}", victim.id, target.id);
+		return true;
+	}
+
+	// 新段接替当前段用于追加;当前段已没有有效记录时一并删除
+	Segment create() {
+		long id = nextSegment++;
+		try {
+			Segment segment = new Segment(id, new File(dir, "mailbox-" + id + ".log"), segmentBytes);
+			Segment previous = active;
+			segments.add(segment);
+			bytes += segment.size;
+			active = segment;
+			if (previous != null && previous.live == 0)
+				delete(previous);
+			return segment;
+		} catch (IOException e) {
+			util.log(LogLevel.WARN, "Create Mailbox Segment Failed: {}", e);
+			return null;
+		}
+	}
+
+	// 映射随缓冲被回收时解除,删除文件不影响尚在使用的映射
+	void delete(Segment segment) {
+		segments.remove(segment);
+		bytes -= segment.size;
+		if (active == segment)
+			active = null;
+		if (!segment.file.delete())
+			util.log(LogLevel.WARN, "Delete Mailbox Segment Failed: {}", segment.file);
+	}
+
+	static void place(Entry entry, Segment segment, int offset) {
+		entry.segment = segment;
+		entry.offset = offset;
+		segment.entries.add(entry);
+		segment.live++;
+		segment.liveBytes += HEADER + entry.length;
+	}
+
+	// 标记删除;日志段不再有有效记录且不在追加时删除文件
+	void kill(Entry entry) {
+		Segment segment = entry.segment;
+		entry.segment = null;
+		segment.buffer.put(entry.offset, DEAD);
+		segment.live--;
+		segment.liveBytes -= HEADER + entry.length;
+		count--;
+		if (segment.live == 0 && segment != active)
+			delete(segment);
+	}
+
+	// 删除过期的记录;有onExpired时先解码,解锁后交给它
+	void expire(Entry entry) {
+		if (onExpired != null) {
+			CloudMessage task = entry.message != null ? entry.message : decode(entry.segment, entry.offset, entry.length);
+			if (task != null)
+				expiredTasks.add(task);
+		}
+		kill(entry);
+		expired.increment();
+	}
+
+	// 释放lock,之后把期间过期的消息交给onExpired;持有lock时调用
+	void unlock() {
+		ArrayList<CloudMessage> tasks = null;
+		if (!expiredTasks.isEmpty()) {
+			tasks = new ArrayList<CloudMessage>(expiredTasks);
+			expiredTasks.clear();
+		}
+		lock.unlock();
+		Listener listener = onExpired;
+		if (tasks != null && listener != null)
+			for (CloudMessage task : tasks)
+				listener.expired(task);
+	}
+
+	static CloudMessage decode(Segment segment, int offset, int length) {
+		byte[] body = new byte[length];
+		ByteBuffer in = segment.buffer.duplicate();
+		in.position(offset + HEADER);
+		in.get(body);
+		try {
+			Message msg = codec.decode(ByteBuffer.wrap(body));
+			if (!(msg.payload instanceof CloudMessage) || !msg.payload.checkNotNull())
+				return null;
+			return (CloudMessage) msg.payload;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// 定期清理过期记录,使只剩过期记录的日志段及时删除
+	void scheduleSweep() {
+		if (closed)
+			return;
+		sweep = TimingWheel.shared().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				expire();
+				scheduleSweep();
+			}
+		}, Settings.CloudMailboxSweepMillis, TimeUnit.MILLISECONDS);
+	}
+
+	// 写回所有日志段,之后不再接受和投递消息
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			if (sweep != null)
+				sweep.cancel();
+			for (Segment segment : segments)
+				segment.buffer.force();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[Mailbox " + dir + "] messages = " + count + " keys = " + boxes.size() + " bytes = " + bytes;
+	}
+}
@@ -0,0 +1,272 @@
+package component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.AbstractUtil;
+import util.LogLevel;
+import util.Settings;
+
+//云服务器注册表元数据的持久化:密钥、设备类型、地址、注册时间及会话令牌,保存为紧凑的快照文件加追加写的变更日志。
+//启动时读取快照并重放日志,随即写出新快照并清空日志;日志超过journalLimit条及关闭时同样合并进快照。
+//快照先写临时文件再改名,日志只flush到操作系统,不force。线程安全
+public class RegistryStore implements Closeable {
+	static final AbstractUtil util = Settings.util;
+	static final int MAGIC = 0x52454731; // "REG1"
+	static final byte PUT = 1, REMOVE = 2;
+
+	// 一个密钥最近一次成功注册的信息
+	public static class Registration {
+		public final String name;
+		public final int deviceType;
+		public final String address; // 注册时对端的地址,未知时为""
+		public final long time; // 注册时间
+		public final String token; // 签发的会话令牌
+
+		public Registration(String name, int deviceType, String address, long time, String token) {
+			this.name = name;
+			this.deviceType = deviceType;
+			this.address = address == null ? "" : address;
+			this.time = time;
+			this.token = token;
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeUTF(name);
+			out.writeByte(deviceType);
+			out.writeUTF(address);
+			out.writeLong(time);
+			out.writeUTF(token);
+		}
+
+		static Registration read(DataInput in) throws IOException {
+			return new Registration(in.readUTF(), in.readByte(), in.readUTF(), in.readLong(), in.readUTF());
+		}
+
+		@Override
+		public String toString() {
+			return "[" + name + "]" + address + " type = " + deviceType + " time = " + time;
+		}
+	}
+
+	final File snapshotFile, journalFile;
+	final int journalLimit;
+	final ReentrantLock lock = new ReentrantLock(); // 写日志及合并快照时持有
+	final Map<String, Registration> registrations = new LinkedHashMap<String, Registration>(); // 按注册先后
+	final List<Registration> loaded; // 启动时读到的注册信息
+	DataOutputStream journal = null;
+	int journalCount = 0;
+	boolean closed = false;
+
+	public RegistryStore(File dir) throws IOException {
+		this(dir, Settings.CloudRegistryJournalLimit);
+	}
+
+	public RegistryStore(File dir, int journalLimit) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot Create Directory: " + dir);
+		this.snapshotFile = new File(dir, "registry.snapshot");
+		this.journalFile = new File(dir, "registry.journal");
+		this.journalLimit = journalLimit;
+		lock.lock();
+		try {
+			load();
+			loaded = new ArrayList<Registration>(registrations.values());
+			compact();
+		} finally {
+			lock.unlock();
+		}
+		if (journal == null)
+			throw new IOException("Cannot Open Journal: " + journalFile);
+	}
+
+	// 启动时从快照及日志恢复的注册信息,按注册先后排列
+	public List<Registration> loaded() {
+		return loaded;
+	}
+
+	// 注册成功或恢复会话时记录,取代同名的旧记录
+	public void put(Registration registration) {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			registrations.remove(registration.name);
+			registrations.put(registration.name, registration);
+			append(PUT, registration);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// 会话过期时删除;令牌不一致表示已被新的注册取代,忽略
+	public void remove(String name, String token) {
+		lock.lock();
+		try {
+			Registration registration = registrations.get(name);
+			if (closed || registration == null || !registration.token.equals(token))
+				return;
+			registrations.remove(name);
+			append(REMOVE, registration);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return registrations.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void append(byte op, Registration registration) {
+		if (journalCount >= journalLimit)
+			compact();
+		if (journal == null)
+			return;
+		try {
+			journal.writeByte(op);
+			if (op == PUT)
+				registration.write(journal);
+			else
+				journal.writeUTF(registration.name);
+			journal.flush();
+			journalCount++;
+		} catch (IOException e) {
+			util.log(LogLevel.WARN, "Write Registry Journal Failed: {}", e);
+		}
+	}
+
+	// 读取快照并按顺序重放日志;日志末尾写到一半的记录忽略
+	void load() {
+		if (snapshotFile.isFile()) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+				if (in.readInt() != MAGIC)
+					throw new IOException("Bad Magic");
+				for (int count = in.readInt(); count > 0; count--) {
+					Registration registration = Registration.read(in);
+					registrations.put(registration.name, registration);
+				}
+			} catch (IOException e) {
+				util.log(LogLevel.WARN, "Read Registry Snapshot Failed: {} {}", snapshotFile, e);
+				registrations.clear();
+			} finally {
+				close(in);
+			}
+		}
+		if (journalFile.isFile()) {
+			DataInputStream in = null;
+			int replayed = 0;
+			try {
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+				for (;;) {
+					byte op;
+					try {
+						op = in.readByte();
+					} catch (EOFException e) {
+						break;
+					}
+					if (op == PUT) {
+						Registration registration = Registration.read(in);
+						registrations.remove(registration.name);
+						registrations.put(registration.name, registration);
+					} else if (op == REMOVE)
+						registrations.remove(in.readUTF());
+					else
+						throw new IOException("Bad Record " + op);
+					replayed++;
+				}
+			} catch (IOException e) {
+				util.log(LogLevel.WARN, "Registry Journal Truncated after {} Records: {}", replayed, e);
+			} finally {
+				close(in);
+			}
+		}
+	}
+
+	// 把当前注册信息写成新快照,清空日志
+	void compact() {
+		File tmp = new File(snapshotFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(registrations.size());
+			for (Registration registration : registrations.values())
+				registration.write(out);
+			out.close();
+			out = null;
+			if (!tmp.renameTo(snapshotFile) && !(snapshotFile.delete() && tmp.renameTo(snapshotFile)))
+				throw new IOException("Cannot Rename " + tmp);
+		} catch (IOException e) {
+			// 快照未更新时保留原日志,继续追加
+			util.log(LogLevel.WARN, "Write Registry Snapshot Failed: {}", e);
+			close(out);
+			if (journal == null)
+				journal = open(true);
+			return;
+		}
+		close(journal);
+		journal = open(false);
+		journalCount = 0;
+	}
+
+	DataOutputStream open(boolean append) {
+		try {
+			return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, append)));
+		} catch (IOException e) {
+			util.log(LogLevel.WARN, "Open Registry Journal Failed: {}", e);
+			return null;
+		}
+	}
+
+	static void close(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+
+	// 合并进快照后关闭
+	@Override
+	public void close() {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			compact();
+			close(journal);
+			journal = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "[Registry " + snapshotFile.getParent() + "] registrations = " + size();
+	}
+}
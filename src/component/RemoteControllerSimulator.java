@@ -4,14 +4,20 @@ import java.io.Closeable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 import device.Device;
@@ -22,9 +28,14 @@ import message.ErrorMessage;
 import message.HeartbeatMessage;
 import message.Message;
 import message.MessageFactory;
+import message.MulticastMessage;
 import message.RegistryMessage;
+import util.AbstractUtil;
+import util.Credits;
+import util.LogLevel;
+import util.ServiceThread;
 import util.Settings;
-import util.Util;
+import util.TimingWheel;
 
 //远程遥控器
 public class RemoteControllerSimulator implements DeviceManagerInterface<Device>,Closeable {
@@ -33,7 +44,7 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 	String key = String.valueOf(new Random().nextInt(899999) + 100000);
 	CloudService service = new CloudService();
 	Map<String, Map<String, TerminalDevice>> toKeyMap = new HashMap<String, Map<String, TerminalDevice>>();
-	static Util util = Settings.util;
+	static AbstractUtil util = Settings.util;
 	Handler handler = new Handler();
 	public Api api=new Api(); //对外接口
 
@@ -86,6 +97,16 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 			}
 			return true;
 		}
+		//向多个远程智能家具发送同一消息,返回汇总的结果;names为toKeys中每个本地服务器上的设备,与group二选一
+		public MulticastMessage SendMulticast(List<String> toKeys, List<String> names, String group, String msg){
+			if (toKeys==null || toKeys.isEmpty() || msg==null || "".equals(msg)) return null;
+			if ((names==null || names.isEmpty()) && (group==null || "".equals(group))) return null;
+			if (cloudServer == null) {
+				util.log("未设置云服务器");
+				return null;
+			}
+			return service.multicast(toKeys, names, group, msg);
+		}
 		//从云服务器接收消息
 		public String ReceiveMessage(String toKey, String name){
 			TerminalDevice device = getDevice(toKey,name);
@@ -160,6 +181,7 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 		cloudServer = new ServerDevice();
 		cloudServer.name = "CloudServer";
 		cloudServer.addr = addr;
+		cloudServer.framed = Settings.FramedWire;
 		util.log("Cloud Server Set: " + cloudServer.addr);
 	}
 
@@ -173,50 +195,50 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 				break circle;
 			case 1:
 				try {
-					util.log("输入云服务器IP地址");
+					util.prompt("输入云服务器IP地址");
 					String addr = sc.next();
 					if (!Pattern.compile("[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}\\.[0-9]{1,3}").matcher(addr).matches()) {
-						util.log("IP地址格式错误");
+						util.prompt("IP地址格式错误");
 						break;
 					}
-					util.log("输入云服务器IP端口");
+					util.prompt("输入云服务器IP端口");
 					int port = sc.nextInt();
 					setCloudServer(addr, port);
-					util.log("设置密钥");
+					util.prompt("设置密钥");
 					key = sc.next();
-					util.log("设置成功");
+					util.prompt("设置成功");
 				} finally {
 					status = 0xff;
 				}
 				break;
 			case 2:
 				try {
-					util.log("输入本地服务器密钥");
+					util.prompt("输入本地服务器密钥");
 					String toKey = sc.next();
-					util.log("输入智能家具名");
+					util.prompt("输入智能家具名");
 					String name = sc.next();
 					if (putDevice(toKey, name))
-						util.log("添加成功");
+						util.prompt("添加成功");
 					else
-						util.log("添加失败");
+						util.prompt("添加失败");
 				} finally {
 					status = 0xff;
 				}
 				break;
 			case 3:
 				try {
-					util.log("输入本地服务器密钥");
+					util.prompt("输入本地服务器密钥");
 					String toKey = sc.next();
 					if (!toKeyMap.containsKey(toKey)) {
-						util.log("不存在的本地服务器密钥");
+						util.prompt("不存在的本地服务器密钥");
 						break;
 					}
-					util.log("输入智能家具名");
+					util.prompt("输入智能家具名");
 					String name = sc.next();
 					if (removeDevice(toKey, name) != null)
-						util.log("删除成功");
+						util.prompt("删除成功");
 					else
-						util.log("不存在的设备");
+						util.prompt("不存在的设备");
 				} finally {
 					status = 0xff;
 				}
@@ -228,9 +250,9 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 				for (Device info : getAllDevices())
 					sb.append(info + "\n");
 				if ("".equals(sb.toString())) {
-					util.log("当前没有设备");
+					util.prompt("当前没有设备");
 				} else {
-					util.log(sb.toString());
+					util.prompt(sb.toString());
 				}
 				status = 0xff;
 				break;
@@ -239,7 +261,7 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 					List<TerminalDevice> devices = new ArrayList<TerminalDevice>();
 					Collection<Device> rawDevices = getAllDevices();
 					if (rawDevices == null || rawDevices.size() == 0) {
-						util.log("当前没有设备");
+						util.prompt("当前没有设备");
 						break;
 					}
 					int i = 0;
@@ -247,7 +269,7 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 						Device device = it.next();
 						if (device instanceof TerminalDevice) {
 							TerminalDevice tDevice = (TerminalDevice) device;
-							util.log(i + " -> " + tDevice);
+							util.prompt(i + " -> " + tDevice);
 							devices.add(tDevice);
 						}
 					}
@@ -255,24 +277,24 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 					if (choice < devices.size() && choice >= 0) {
 						TerminalDevice device = devices.get(choice);
 						for (;;) {
-							util.log("输入要发送的消息(键入exit退出)");
+							util.prompt("输入要发送的消息(键入exit退出)");
 							String msg = sc.next();
 							if ("exit".equals(msg))
 								continue circle;
 							if (!device.sendMessage(msg)) {
-								util.log("发送消息出错,无法连接云服务器");
+								util.prompt("发送消息出错,无法连接云服务器");
 								continue circle;
 							}
 							String result = device.receiveMessage();
 							if (result == null || "".equals(result)) {
-								util.log("接收消息出错");
+								util.prompt("接收消息出错");
 								continue circle;
 							}
 							handler.handleMessage(result);
 						}
 
 					} else {
-						util.log("不存在的智能家具");
+						util.prompt("不存在的智能家具");
 						continue circle;
 					}
 				} finally {
@@ -282,22 +304,22 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 			case 6:
 				try {
 					if (cloudServer == null) {
-						util.log("未设置云服务器");
+						util.prompt("未设置云服务器");
 						break;
 					}
 					if (!cloudServer.maybeValid()) {
 						// 注册
 						if (!service.register(key)) {
-							util.log("云服务器不可用 (注册失败): " + cloudServer);
+							util.prompt("云服务器不可用 (注册失败): " + cloudServer);
 							cloudServer.close();
 							cloudServer.restart();
 							break;
 						}
 					}
 					if (service.checkValid())
-						util.log("云服务器可用: " + cloudServer);
+						util.prompt("云服务器可用: " + cloudServer);
 					else{
-						util.log("云服务器不可用 (心跳消息接收失败): " + cloudServer);
+						util.prompt("云服务器不可用 (心跳消息接收失败): " + cloudServer);
 						cloudServer.close();
 						cloudServer.restart();
 					}
@@ -308,39 +330,381 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 			default:
 				String msg = "[远程遥控器]\n" + "1 -> 配置云服务器\n" + "2 -> 添加智能家具\n" + "3 -> 删除智能家具\n" + "4 -> 查看当前设备列表\n"
 						+ "5 -> 向远程智能家具发送消息\n" + "6 -> 测试云服务器是否可用\n" + "0 -> 退出\n";
-				util.log(msg);
+				util.prompt(msg);
 				status = sc.nextInt();
 				break;
 			}
 		}
 	}
 
-	// 和云服务器进行通信的服务;线程安全
+	// 和云服务器进行通信的服务;线程安全。连接只由Reader线程读取,回传按请求编号交给各自的等待者,
+	// 一个请求的回传不会因另一个线程阻塞在读取中而等待;云服务器发来的心跳请求无论是否有请求在途都即时回传
 	class CloudService {
+		int heartbeatSeq = 0; // 心跳请求序号,在synchronized方法中递增
+		final AtomicInteger requestCounter = new AtomicInteger(); // CloudMessage请求编号
+		final ReentrantLock lock = new ReentrantLock(); // 保护pending、unsolicited、heartbeat及Reader的等待
+		final Condition changed = lock.newCondition(); // 重新注册、收到未请求的消息或关闭时通知
+		final LinkedHashMap<Integer, Pending> pending = new LinkedHashMap<Integer, Pending>(); // 已发出等待回传的请求,按发送顺序
+		final ArrayDeque<Message> unsolicited = new ArrayDeque<Message>(); // 没有对应请求的消息,由不带请求编号的receiveMessage取走
+		Pending heartbeat = null; // checkValid等待的心跳回传
+		final ReentrantLock receiveLock = new ReentrantLock(); // 读取连接期间持有;注册时由register持有,Reader不读取注册中的连接
+		volatile Reader reader = null; // 第一次注册成功后启动;在synchronized方法中创建
+		volatile Credits credits = new Credits(0); // 云服务器注册时授予的发送窗口,每个等待回传的请求占用一个
+		volatile String token = null; // 云服务器签发的会话令牌,重连时带回以恢复会话
+		volatile int generation = 0; // 注册成功次数,Reader据此判断连接是否已被其它线程恢复
+		boolean resumed = false; // 最近一次注册是否恢复了原会话;在synchronized方法中读写
+
+		// 新的请求编号,跳过0;发送前调用,回传到达、连接失效或ControllerReplyTimeout到期时完成
+		public int nextRequestId() {
+			int requestId;
+			do {
+				requestId = requestCounter.incrementAndGet();
+			} while (requestId == 0);
+			Pending request = new Pending(requestId);
+			lock.lock();
+			try {
+				pending.put(requestId, request);
+			} finally {
+				lock.unlock();
+			}
+			expire(request, Settings.ControllerReplyTimeout);
+			return requestId;
+		}
+
+		// 放弃等待请求的回传,归还其占用的发送窗口;返回该请求是否仍在等待
+		public boolean forget(int requestId) {
+			Pending request;
+			Credits held;
+			lock.lock();
+			try {
+				request = pending.remove(requestId);
+				if (request == null)
+					return false;
+				held = request.release();
+			} finally {
+				lock.unlock();
+			}
+			request.cancel();
+			if (held != null)
+				held.release();
+			return true;
+		}
+
+		// 请求发出后占用发送窗口,直到收到回传、失败或放弃;归还到发送时的窗口,而非重新注册后的窗口。
+		// 请求已完成或已放弃时立即归还
+		public void hold(int requestId, Credits credits) {
+			lock.lock();
+			try {
+				Pending request = pending.get(requestId);
+				if (request != null && !request.done) {
+					request.credits = credits;
+					return;
+				}
+			} finally {
+				lock.unlock();
+			}
+			credits.release();
+		}
+
+		// 等待发送窗口,超时返回false;请求发出后由hold交给请求,完成时归还
+		public boolean acquireCredit(Credits credits) {
+			try {
+				return credits.acquire(Settings.ConnectTimeout);
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		// 到期仍未收到回传时请求失败;重新设置时取代原来的期限
+		void expire(final Pending request, long millis) {
+			TimingWheel.Timeout timeout = TimingWheel.shared().newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					if (complete(request.requestId, null))
+						util.log(LogLevel.WARN, "Reply Timeout: requestId = {}", request.requestId);
+				}
+			}, millis, TimeUnit.MILLISECONDS);
+			lock.lock();
+			try {
+				if (request.done) {
+					timeout.cancel();
+					return;
+				}
+				if (request.timeout != null)
+					request.timeout.cancel();
+				request.timeout = timeout;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// 完成请求,唤醒其等待者;reply为null表示请求失败。请求已完成或已放弃时返回false
+		boolean complete(int requestId, Message reply) {
+			Pending request;
+			Credits held;
+			lock.lock();
+			try {
+				request = pending.get(requestId);
+				if (request == null || request.done)
+					return false;
+				request.done = true;
+				request.reply = reply;
+				request.arrived.signal();
+				held = request.release();
+			} finally {
+				lock.unlock();
+			}
+			request.cancel();
+			if (held != null)
+				held.release();
+			return true;
+		}
+
+		// 所有等待中的请求失败;原连接上的回传不会再到达时调用
+		void failAll() {
+			lock.lock();
+			try {
+				if (heartbeat != null && !heartbeat.done) {
+					heartbeat.done = true;
+					heartbeat.arrived.signal();
+				}
+			} finally {
+				lock.unlock();
+			}
+			fail(pendingIds());
+		}
+
+		void fail(List<Integer> requestIds) {
+			for (int requestId : requestIds)
+				complete(requestId, null);
+		}
+
+		List<Integer> pendingIds() {
+			lock.lock();
+			try {
+				return new ArrayList<Integer>(pending.keySet());
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// 会话恢复后,断开前所发请求的回传可能已随原连接丢失,只再等待ResumeReplyTimeout
+		void expireAll(long millis) {
+			List<Pending> requests;
+			lock.lock();
+			try {
+				requests = new ArrayList<Pending>(pending.values());
+			} finally {
+				lock.unlock();
+			}
+			for (Pending request : requests)
+				expire(request, millis);
+		}
+
+		boolean hasPending() {
+			lock.lock();
+			try {
+				return !pending.isEmpty() || (heartbeat != null && !heartbeat.done);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// CloudMessage或组播汇总回传中的请求编号,没有时为0
+		int requestIdOf(Message msg) {
+			if (msg.payload instanceof CloudMessage)
+				return ((CloudMessage) msg.payload).requestId;
+			if (msg.payload instanceof MulticastMessage)
+				return ((MulticastMessage) msg.payload).requestId;
+			return 0;
+		}
+
+		// Reader收到的一条消息:心跳请求即时回传,心跳回传交给checkValid,其余按请求编号交给等待者。
+		// 未编号的消息(旧版本云服务器或直接回传的错误消息)交给最早发出的请求,与原先按顺序读取一致;没有请求在等待时暂存
+		void dispatch(Message msg) {
+			if (msg.type == HeartbeatMessage.type) {
+				HeartbeatMessage heartbeat = (HeartbeatMessage) msg.payload;
+				if (heartbeat == null || answer(heartbeat))
+					return;
+				lock.lock();
+				try {
+					Pending waiting = this.heartbeat;
+					if (waiting != null && !waiting.done && (heartbeat.seq == 0 || heartbeat.seq == waiting.requestId)) {
+						waiting.done = true;
+						waiting.reply = msg;
+						waiting.arrived.signal();
+						return;
+					}
+				} finally {
+					lock.unlock();
+				}
+				// 之前超时请求的回传
+				util.log(LogLevel.DEBUG, "Discard Stale HeartbeatMessage: seq = {}", heartbeat.seq);
+				return;
+			}
+			int requestId = requestIdOf(msg);
+			if (requestId != 0) {
+				if (!complete(requestId, msg))
+					util.log(LogLevel.DEBUG, "Discard Late Reply: {}", msg);
+				return;
+			}
+			lock.lock();
+			try {
+				for (Pending request : pending.values())
+					if (!request.done) {
+						request.done = true;
+						request.reply = msg;
+						request.arrived.signal();
+						request.cancel();
+						return;
+					}
+				if (unsolicited.size() >= Settings.CloudSessionBufferSize)
+					unsolicited.poll();
+				unsolicited.offer(msg);
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		// 发送组播请求并等待云服务器汇总的回传;names与group二选一。占用一个发送窗口,连接断开时重新注册一次
+		public MulticastMessage multicast(List<String> toKeys, List<String> names, String group, String data) {
+			Credits credits = this.credits;
+			if (!acquireCredit(credits)) {
+				util.log(LogLevel.WARN, "Send MulticastMessage Failed (No Credits, {})", credits);
+				return null;
+			}
+			int requestId = nextRequestId();
+			String json = MessageFactory.wrapMulticastMessage(key, toKeys, names, group, data, requestId);
+			boolean sent = cloudServer != null && cloudServer.maybeValid() && cloudServer.sendMessage(json);
+			if (!sent && cloudServer != null && register(key))
+				sent = cloudServer.sendMessage(json);
+			if (!sent) {
+				util.log("Send MulticastMessage Failed (Connection to CloudServer Closed)");
+				if (forget(requestId))
+					credits.release();
+				return null;
+			}
+			hold(requestId, credits);
+			util.log(LogLevel.DEBUG, "Send MulticastMessage Success: {}", json);
+			Message reply = awaitReply(requestId);
+			MulticastMessage result = reply != null && reply.payload instanceof MulticastMessage
+					? (MulticastMessage) reply.payload : null;
+			if (result == null || !result.checkNotNull()) {
+				util.log("Receive MulticastMessage Failed: " + reply);
+				return null;
+			}
+			return result;
+		}
+
+		// 接收指定请求的回传,转为Json交给以字符串处理消息的调用方
+		public String receiveReply(int requestId) {
+			Message reply = awaitReply(requestId);
+			return reply == null ? null : reply.toString();
+		}
+
+		// 等待Reader交来指定请求的回传;连接中断时Reader凭令牌重连,云服务器在断开期间暂存的回传随后回放。
+		// 超时或原会话无法恢复时返回null
+		Message awaitReply(int requestId) {
+			Pending request = null;
+			try {
+				lock.lock();
+				try {
+					request = pending.get(requestId);
+					if (request == null)
+						return null;
+					while (!request.done)
+						request.arrived.await();
+					return request.reply;
+				} finally {
+					lock.unlock();
+				}
+			} catch (InterruptedException e) {
+				return null;
+			} finally {
+				forget(requestId);
+			}
+		}
+
+		// 接收没有对应请求的消息,最多等待ControllerReplyTimeout;尚未注册时返回null
+		public String receiveUnsolicited() {
+			long nanos = TimeUnit.MILLISECONDS.toNanos(Settings.ControllerReplyTimeout);
+			lock.lock();
+			try {
+				while (unsolicited.isEmpty()) {
+					if (reader == null || nanos <= 0 || blinker != RemoteControllerSimulator.this)
+						return null;
+					nanos = changed.awaitNanos(nanos);
+				}
+				return unsolicited.poll().toString();
+			} catch (InterruptedException e) {
+				return null;
+			} finally {
+				lock.unlock();
+			}
+		}
+
 		// 向云服务器注册指定密钥
-		public synchronized boolean register(String key) {
+		public boolean register(String key) {
+			return register(key, Settings.MaxRegistryRedirects);
+		}
+
+		// 连接中断时凭令牌重连;返回true表示原会话已恢复,断开期间的回传将回放。其它线程已重连时不再重连
+		synchronized boolean resume(int seenGeneration) {
+			if (generation != seenGeneration)
+				return resumed;
+			if (token == null || blinker != RemoteControllerSimulator.this)
+				return false;
+			util.log("Connection to CloudServer Closed, Resume Session: " + key);
+			return register(key) && resumed;
+		}
+
+		// redirects为还允许跟随的集群重定向次数
+		synchronized boolean register(String key, int redirects) {
 			if (cloudServer == null)
 				return false;
-			// 注册前,先断开原来连接
+			// 注册前,先断开原来连接;未能恢复会话时原连接上等待的回传不会再到达,注册期间新发出的请求不受影响
+			List<Integer> stale = pendingIds();
 			cloudServer.close();
 			cloudServer.restart();
 			// 开始注册
-			String json = MessageFactory.wrapRegistryMessage(key, RegistryMessage.REMOTE_CONTROLLER);
+			// 分帧连接上声明支持的编码,由云服务器选定;带上会话令牌,云服务器在保留期内直接恢复会话。
+			// Reader随时回传心跳请求,可接受空闲检测
+			int codecs = cloudServer.framed && Settings.BinaryCodec ? MessageFactory.supportedCodecs() : 0;
+			String json = MessageFactory.wrapRegistryMessage(key, RegistryMessage.REMOTE_CONTROLLER, codecs, 0,
+					token, true);
 			if (json == null || "".equals(json)) {
 				util.log("Registry Failure (Cannot convert to Json)");
 				return false;
 			}
-			if (!cloudServer.sendMessage(json)) {
-				util.log("Registry Failure (Cannot Connect to CloudServer)");
-				return false;
+			// 注册期间Reader不读取新连接,以免取走注册响应
+			receiveLock.lock();
+			try {
+				if (!cloudServer.sendMessage(json)) {
+					util.log("Registry Failure (Cannot Connect to CloudServer)");
+					return false;
+				}
+				// 服务器回传RegitryMessage,且内容一致
+				json = cloudServer.receiveMessage();
+			} finally {
+				receiveLock.unlock();
 			}
-			// 服务器回传RegitryMessage,且内容一致
-			json = cloudServer.receiveMessage();
 			RegistryMessage retVal = MessageFactory.unwrapRegistryMessage(json);
 			if (retVal == null || !retVal.checkNotNull()) {
 				util.log("Registry Failure (Cannot Convert from Json): " + json);
 				return false;
 			}
+			if (retVal.redirect != null) {
+				// 密钥属于集群中的其它节点,改连该节点重新注册
+				if (redirects <= 0) {
+					util.log("Registry Failure (Too Many Redirects): " + key);
+					return false;
+				}
+				InetSocketAddress node = CloudCluster.parse(retVal.redirect).get(0);
+				util.log("Registry Redirected: Key = " + key + " Node = " + retVal.redirect);
+				setCloudServer(node.getHostString(), node.getPort());
+				return register(key, redirects - 1);
+			}
 			if (!key.equals(retVal.name)) {
 				if (ErrorMessage.s3.equals(retVal.name))
 					util.log("Registry Failure (Same Key Already Exists): " + key);
@@ -349,34 +713,161 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 							+ retVal.name);
 				return false;
 			}
-			util.log("Registry Success: Key = " + key + " CloudServer = " + cloudServer);
+			if (codecs != 0)
+				cloudServer.codec = MessageFactory.negotiate(retVal.codecs & codecs);
+			resumed = token != null && token.equals(retVal.token);
+			if (!resumed) {
+				fail(stale); // 原连接上的请求不会再有回传
+				credits = new Credits(retVal.credits); // 窗口重新计算
+			}
+			token = retVal.token;
+			lock.lock();
+			try {
+				generation++;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (reader == null) {
+				reader = new Reader();
+				reader.start();
+			}
+			util.log((resumed ? "Session Resumed: Key = " : "Registry Success: Key = ") + key + " CloudServer = "
+					+ cloudServer + " Codec = " + cloudServer.codec.id() + " Credits = " + credits);
+			return true;
+		}
+
+		// 回传云服务器发来的心跳请求;不是请求时返回false
+		boolean answer(HeartbeatMessage msg) {
+			if (msg.status != HeartbeatMessage.REQUEST)
+				return false;
+			if (!cloudServer.maybeValid() || !cloudServer.sendMessage(MessageFactory.wrapHeartbeatResponseMessage(msg.seq)))
+				util.log(LogLevel.WARN, "Response HeartbeatMessage Failed");
 			return true;
 		}
 
-		// 发送心跳消息,查看连接是否健康
+		// 发送心跳消息,查看连接是否健康;ConnectTimeout内未收到回传视为不健康
 		public synchronized boolean checkValid() {
 			if (cloudServer == null || !cloudServer.maybeValid())
 				return false;
 			// 传输心跳消息
-			String json = null;
-			json = MessageFactory.wrapHeartbeatRequestMessage();
-			if (!cloudServer.sendMessage(json)) {
+			int seq = ++heartbeatSeq == 0 ? ++heartbeatSeq : heartbeatSeq;
+			long startTime = System.nanoTime();
+			Pending waiting = new Pending(seq);
+			lock.lock();
+			try {
+				heartbeat = waiting;
+			} finally {
+				lock.unlock();
+			}
+			if (!cloudServer.sendMessage(MessageFactory.wrapHeartbeatRequestMessage(seq))) {
 				util.log("Heartbeat Check Invalid (Cannot Send Message)");
 				return false;
 			}
-			json = cloudServer.receiveMessage();
-			if (json == null || "".equals(json)){
+			long nanos = TimeUnit.MILLISECONDS.toNanos(Settings.ConnectTimeout);
+			lock.lock();
+			try {
+				while (!waiting.done && nanos > 0)
+					nanos = waiting.arrived.awaitNanos(nanos);
+			} catch (InterruptedException e) {
+				return false;
+			} finally {
+				heartbeat = null;
+				lock.unlock();
+			}
+			if (waiting.reply == null) {
 				util.log("Heartbeat Check Invalid (Cannot Receive Message)");
 				return false;
 			}
-			HeartbeatMessage msg = MessageFactory.unwrapHeartbeatMessage(json);
-			if (msg!=null && msg.checkNotNull()) {
-				util.log("Heartbeat Check Valid");
-				return true;
+			util.log("Heartbeat Check Valid, RTT = " + (System.nanoTime() - startTime) / 1000 + "us");
+			return true;
+		}
+
+		// 停止Reader,所有等待中的请求失败
+		void close() {
+			failAll();
+			lock.lock();
+			try {
+				changed.signalAll();
+			} finally {
+				lock.unlock();
 			}
-			else{
-				util.log("Heartbeat Cannot Convert from Json: "+json);
-				return false;
+		}
+
+		// 一个等待回传的请求;done、reply、timeout由CloudService.lock保护
+		class Pending {
+			final int requestId; // 心跳时为seq
+			final Condition arrived = lock.newCondition();
+			boolean done = false;
+			Message reply = null; // 为null表示请求失败
+			TimingWheel.Timeout timeout = null;
+			Credits credits = null; // 发送时占用的发送窗口,完成或放弃时归还一次
+
+			Pending(int requestId) {
+				this.requestId = requestId;
+			}
+
+			void cancel() {
+				TimingWheel.Timeout timeout = this.timeout;
+				if (timeout != null)
+					timeout.cancel();
+			}
+
+			// 取出占用的发送窗口,由调用方在锁外归还;持有lock时调用
+			Credits release() {
+				Credits held = credits;
+				credits = null;
+				return held;
+			}
+		}
+
+		// 唯一读取云服务器连接的线程;连接中断且有请求在等待时凭令牌重连,否则等待下一次注册
+		class Reader extends ServiceThread {
+			Reader() {
+				super("ControllerReader-" + key);
+			}
+
+			@Override
+			public void run() {
+				while (blinker == RemoteControllerSimulator.this) {
+					int seenGeneration;
+					Message msg = null;
+					receiveLock.lock();
+					try {
+						seenGeneration = generation;
+						ServerDevice server = cloudServer;
+						// 连接已断开时不在此重新连接,以免读取未注册的连接
+						if (server != null && server.maybeValid())
+							msg = server.receive();
+					} finally {
+						receiveLock.unlock();
+					}
+					if (msg != null) {
+						dispatch(msg);
+						continue;
+					}
+					if (blinker != RemoteControllerSimulator.this)
+						break;
+					if (hasPending()) {
+						// 不在receiveLock中重连,register须持有它
+						if (resume(seenGeneration)) {
+							expireAll(Settings.ResumeReplyTimeout);
+							continue;
+						}
+						failAll();
+					}
+					// 等待下一次注册
+					lock.lock();
+					try {
+						while (generation == seenGeneration && blinker == RemoteControllerSimulator.this)
+							changed.await();
+					} catch (InterruptedException e) {
+						break;
+					} finally {
+						lock.unlock();
+					}
+				}
+				util.log("Controller Reader Stopped: " + key);
 			}
 		}
 	}
@@ -445,6 +936,7 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 		public boolean retryAfterCloseUnhealthySocket = true; // 是否允许断线重连;可以允许,包含了重连注册逻辑
 		public int retryTimes = 1; // 尝试建立连接次数
 		Object sendMutex = new Object(), receiveMutex = new Object();
+		ArrayDeque<Integer> outstanding = new ArrayDeque<Integer>(); // 已发出尚未接收回传的请求编号,按发送顺序;由sendMutex保护
 
 		@Override
 		public boolean maybeValid() {
@@ -466,7 +958,12 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 			synchronized (receiveMutex) {
 				if (cloudServer == null)
 					return null;
-				String json = cloudServer.receiveMessage();
+				// 接收最早发出的请求的回传;同时在途的其它请求的回传由Reader交给各自的等待者,没有在途请求时取未请求的消息
+				Integer requestId;
+				synchronized (sendMutex) {
+					requestId = outstanding.poll();
+				}
+				String json = requestId == null ? service.receiveUnsolicited() : service.receiveReply(requestId);
 				if (json == null || "".equals(json)) {
 					util.log("Receive Message Failed (Connection to CloudServer Closed)");
 					return null;
@@ -475,9 +972,26 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 			}
 		}
 
-		// 当发送消息失败时,尝试重新注册
+		// 等待回传的请求达到云服务器授予的窗口时先等待回传,超时则发送失败;不在sendMutex中等待,以免阻塞receiveMessage
 		@Override
 		public boolean sendMessage(String msg) {
+			Credits credits = service.credits;
+			if (!service.acquireCredit(credits)) {
+				util.log(LogLevel.WARN, "Send Message Failed (No Credits, {})", credits);
+				return false;
+			}
+			boolean sent = false;
+			try {
+				sent = send(msg, credits);
+				return sent;
+			} finally {
+				if (!sent)
+					credits.release();
+			}
+		}
+
+		// 当发送消息失败时,尝试重新注册;发送成功后credits交给请求,重新注册后的窗口不受影响
+		boolean send(String msg, Credits credits) {
 			synchronized (sendMutex) {
 				if (!checkNotNull())
 					return false;
@@ -498,8 +1012,10 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 					}
 					case 1: {
 						// socket不为null,无法判断是否健康,尝试通信
-						String json = MessageFactory.wrapCloudMessage(key, toKey, name, msg);
+						int requestId = service.nextRequestId();
+						String json = MessageFactory.wrapCloudMessage(key, toKey, name, msg, requestId);
 						if (!cloudServer.sendMessage(json)) {
+							service.forget(requestId);
 							if (blinker == null) {
 								util.log("Send Message from CloudServer Error (Service Closed)");
 								status = 0xff;
@@ -515,8 +1031,10 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 								break;
 							}
 						}
-						// 消息发送成功,返回
-						util.log("Send Message Success: " + json);
+						// 消息发送成功,等待receiveMessage按编号取回传;回传到达或超时时归还发送窗口
+						service.hold(requestId, credits);
+						outstanding.offer(requestId);
+						util.log(LogLevel.DEBUG, "Send Message Success: {}", json);
 						return true;
 					}
 					default:
@@ -559,6 +1077,7 @@ public class RemoteControllerSimulator implements DeviceManagerInterface<Device>
 	public void close() {
 		blinker = null;
 		if (cloudServer!=null) cloudServer.close();
+		service.close();
 	}
 
 	@Override
@@ -3,61 +3,220 @@ package device;
 import java.io.IOException;
 
 import message.HeartbeatMessage;
+import message.Message;
+import message.MessageCodec;
 import message.MessageFactory;
+import util.Credits;
+import util.LogLevel;
+import util.ServiceThread;
 import util.Settings;
 import util.TickerManager;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 //被动接受连接的设备Stub;有前提的线程安全:在调用closeSocket时其它线程会出现不可预知的问题
 public class ClientDevice extends Device {
 	public SocketChannel sc = null;
 	volatile ClientDevice blinker = this;
-	final Object sendMutex=new Object(),receiveMutex=new Object();
+	final ReentrantLock receiveLock=new ReentrantLock(); // 阻塞读取期间持有;不用synchronized,以免虚拟线程阻塞时占住载体线程
+	final ConcurrentLinkedQueue<ByteBuffer> outbound=new ConcurrentLinkedQueue<ByteBuffer>(); // 待发送的帧
+	final AtomicLong outboundBytes=new AtomicLong(); // 已入队尚未写出的字节数
+	final AtomicBoolean flushing=new AtomicBoolean(); // 同一时刻只有一个线程写socket
+	final ByteBuffer[] batch=new ByteBuffer[Settings.CloudWriteBatchSize]; // 本次gathering write的帧,只由持有flushing的线程访问
+	int batchCount=0;
+	public volatile Runnable onWritePending=null; // 非阻塞模式下发送缓冲区已满时调用,由事件循环在可写时继续flush;为null时由写出线程写出
+	final AtomicBoolean writerScheduled=new AtomicBoolean(); // 已向writers提交写出任务且尚未开始执行
+	// 阻塞模式连接的写出线程,调用者只入队不等待写出;线程数固定,每个连接同时最多排队一个写出任务;虚拟线程可用时使用虚拟线程
+	static final ExecutorService writers=new ThreadPoolExecutor(Math.max(1, Settings.CloudWriterThreads),
+			Math.max(1, Settings.CloudWriterThreads), 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+		final AtomicInteger count=new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread=ServiceThread.newThread(r, "Writer-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	volatile boolean closeWhenFlushed=false; // 发送队列写完后关闭连接,用于回传后即断开的连接
+	final Runnable writer=new Runnable() {
+		@Override
+		public void run() {
+			writerScheduled.set(false);
+			flush();
+		}
+	};
 	TickerManager ticker=new TickerManager();
+	public FrameCodec decoder; // 读缓冲及分帧状态
+	public MessageCodec codec = MessageFactory.codec(MessageCodec.JSON); // 注册时协商的发送编码
+	public int peerCodecs = 0; // 注册时对端声明支持的编码
+	public boolean heartbeats = false; // 对端注册时声明随时回传心跳请求,只对这样的连接做空闲检测
+	public volatile Credits inboundCredits = new Credits(0); // 该连接可在云服务器上排队的转发消息数,用尽时暂停读取
+	public volatile Credits outboundCredits = new Credits(0); // 可向该设备转发而尚未收到回传的消息数,由对端注册时声明
+	public volatile boolean registered = false; // 注册响应已发出,此后才可投递暂存的消息
+	public volatile long lastReceived = System.nanoTime(); // 最近一次收到消息的时间,云服务器只向空闲的连接发送心跳
 
 	public ClientDevice(SocketChannel sc) {
+		this(sc, Settings.FramedWire);
+	}
+
+	public ClientDevice(SocketChannel sc, boolean framed) {
 		super();
 		this.sc = sc;
+		this.decoder = new FrameCodec(framed);
 	}
 
 	public boolean sendMessage(String msg) {
-		synchronized (sendMutex){
-			while (blinker == this) {
-				if (!maybeValid()) return false;
-				// socket不为null,无法判断是否健康,尝试通信
-				ByteBuffer buffer = ByteBuffer.wrap(msg.getBytes(charset));
-				int count = -1;
-				try {
-					count = sc.write(buffer);
-				} catch (IOException e) {
-					// 连接异常断开
-					util.log("Connection Closed Unexpectedly: " + this);
-				}
-				if (count == -1) {
-					// 连接已断开,关闭
-					util.log("Close Connection: " + this);
-					closeSocket();
-					break;
-				}
-				return true; // 发送成功
-			}
+		return sendFrame(FrameCodec.encode(msg, decoder.isFramed(), codec));
+	}
+
+	// 直接编码发送,不经过String
+	public boolean sendMessage(Message msg) {
+		return sendFrame(FrameCodec.encode(msg, decoder.isFramed(), codec));
+	}
+
+	// 发送多个连接共用的编码,只写出只读视图
+	public boolean sendMessage(SharedFrame frame) {
+		return sendFrame(frame.frame(decoder.isFramed(), codec));
+	}
+
+	// 在生产者线程(事件循环)上回传;与sendMessage相同,只入队,非阻塞模式下未写出的部分由事件循环在可写时写出
+	public boolean offerMessage(String msg) {
+		return sendFrame(FrameCodec.encode(msg, decoder.isFramed(), codec));
+	}
+
+	// 将已编码(含帧头)的buffer放入发送队列并安排写出。返回true表示已入队,false表示连接已断开或队列已满。
+	// 调用线程不做阻塞写也不等待队列空间:非阻塞连接上只写出发送缓冲区能容纳的部分,阻塞连接交给写出线程
+	boolean sendFrame(ByteBuffer buffer) {
+		if (blinker != this || !maybeValid()) return false;
+		int size = buffer.remaining();
+		if (outboundBytes.addAndGet(size) > Settings.CloudMaxOutboundBytes) {
+			// 对端不读取,不再为其缓存;调用方视为连接断开
+			outboundBytes.addAndGet(-size);
+			util.log(LogLevel.WARN, "Outbound Queue Full ({} Bytes): {}", Settings.CloudMaxOutboundBytes, this);
 			return false;
 		}
+		outbound.offer(buffer);
+		return schedule();
 	}
-	
+
+	// 安排写出发送队列:事件循环管理的非阻塞连接直接flush,剩余部分在可写时继续;阻塞连接提交给writers。返回false表示连接已断开
+	boolean schedule() {
+		if (onWritePending != null)
+			return flush();
+		if (writerScheduled.compareAndSet(false, true)) {
+			try {
+				writers.execute(writer);
+			} catch (RejectedExecutionException e) {
+				writerScheduled.set(false);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// 写出发送队列;已有线程在写时直接返回,新入队的帧由它一并写出。返回false表示连接已断开
+	public boolean flush() {
+		for (;;) {
+			if (!flushing.compareAndSet(false, true))
+				return true;
+			boolean pending;
+			try {
+				pending = drain();
+			} catch (IOException e) {
+				flushing.set(false);
+				// 连接异常断开,关闭
+				util.log("Connection Closed Unexpectedly, Close Connection: " + this);
+				closeSocket();
+				return false;
+			}
+			flushing.set(false);
+			if (pending) {
+				// 发送缓冲区已满,交给事件循环在可写时继续
+				Runnable callback = onWritePending;
+				if (callback != null) callback.run();
+				return true;
+			}
+			// 释放flushing之前入队的帧,其入队者CAS失败已返回,须由本线程写出
+			if (outbound.isEmpty()) {
+				if (closeWhenFlushed && !hasPendingWrites()) close();
+				return true;
+			}
+		}
+	}
+
+	// 以gathering write批量写出,多个小帧合并为一次系统调用,短写时继续写剩余部分;
+	// 返回true表示非阻塞模式下发送缓冲区已满,仍有数据未写出
+	boolean drain() throws IOException {
+		SocketChannel channel = sc;
+		if (channel == null) throw new IOException("Socket Closed");
+		for (;;) {
+			while (batchCount < batch.length) {
+				ByteBuffer next = outbound.poll();
+				if (next == null) break;
+				batch[batchCount++] = next;
+			}
+			if (batchCount == 0) return false;
+			long written = channel.write(batch, 0, batchCount);
+			outboundBytes.addAndGet(-written);
+			int done = 0;
+			while (done < batchCount && !batch[done].hasRemaining()) done++;
+			if (done > 0) {
+				System.arraycopy(batch, done, batch, 0, batchCount - done);
+				Arrays.fill(batch, batchCount - done, batchCount, null);
+				batchCount -= done;
+			}
+			if (written == 0 && batchCount > 0) return true;
+		}
+	}
+
+	// 是否有未写出的数据
+	public boolean hasPendingWrites() {
+		return outboundBytes.get() > 0;
+	}
+
 	public String receiveMessage(){
-		synchronized (receiveMutex){
+		ByteBuffer frame = receiveFrame();
+		if (frame == null)
+			return null;
+		return decoder.toText(frame);
+	}
+
+	// 接收一条消息,返回指向读缓冲的视图,只在下一次接收前有效;非阻塞模式下暂无数据时返回空buffer
+	public ByteBuffer receiveFrame(){
+		receiveLock.lock();
+		try {
 			while (blinker==this){
 				if (!maybeValid()) return null;
+				// 先取出上次read中剩余的完整消息
+				ByteBuffer msg = null;
+				try {
+					msg = decoder.nextFrame();
+				} catch (FrameTooLongException e) {
+					util.log(e.getMessage() + ", Close Connection: " + this);
+					closeSocket();
+					break;
+				}
+				if (msg != null)
+					return msg;
 				// socket不为null,无法判断是否健康,尝试通信
-				ByteBuffer buffer = ByteBuffer.allocate(1024);
-				buffer.clear();
 				int count = -1;
 				try {
-					count = sc.read(buffer);
-					buffer.flip(); //很关键
+					count = sc.read(decoder.readBuffer());
 				} catch (IOException e) {
 					// 连接异常断开
 					util.log("Connection Closed Unexpectedly: " + this);
@@ -68,67 +227,102 @@ public class ClientDevice extends Device {
 					closeSocket();
 					break;
 				}
-				
-				byte[] bytes=new byte[count];
-				buffer.get(bytes);
-				String msg=new String(bytes,charset);
-				return msg; // 发送成功
+				if (count == 0)
+					return ByteBuffer.allocate(0); // 非阻塞模式下暂无数据
 			}
 			return null;
+		} finally {
+			receiveLock.unlock();
 		}
 	}
 
-	//传输心跳消息,确认连接健康
+	//传输心跳消息,确认连接健康;之前超时的心跳回传被丢弃,继续等待对应序号的回传直到SocketTimeout
 	private boolean checkValid(){
-		if (maybeValid()){
-			//传输心跳消息
-			String json=null;
-			json=MessageFactory.wrapHeartbeatRequestMessage();
-			if (!sendMessage(json)){
-				util.log("Heartbeat Check Invalid: "+this);
-				return false;
-			}
+		if (!maybeValid())
+			return false;
+		//传输心跳消息
+		int seq=ticker.nextKey();
+		String json=null;
+		json=MessageFactory.wrapHeartbeatRequestMessage(seq);
+		if (!sendMessage(json)){
+			util.log("Heartbeat Check Invalid: "+this);
+			return false;
+		}
+		long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(Settings.SocketTimeout);
+		while (System.nanoTime()-deadline<0){
 			json=receiveMessage();
 			if (json==null || "".equals(json))
 				return false;
 			HeartbeatMessage msg=MessageFactory.unwrapHeartbeatMessage(json);
-			if (msg!=null && msg.checkNotNull()){
-				util.log("Heartbeat Check Valid: "+this);
+			if (msg==null || !msg.checkNotNull())
+				return false;
+			if (msg.seq==seq || msg.seq==0){
+				util.log(LogLevel.DEBUG,"Heartbeat Check Valid: {}",this);
 				return true;
 			}
+			util.log(LogLevel.DEBUG,"Discard Stale HeartbeatMessage: seq = {}",msg.seq);
 		}
+		util.log("Heartbeat Check Invalid (Timeout): "+this);
 		return false;
 	}
 	
 	//传输心跳消息,确认连接健康;异步
 	public void checkValid(Runnable onSuccess,Runnable onFailure){
+		checkValid(onSuccess,onFailure,Settings.SocketTimeout);
+	}
+
+	//timeout毫秒内未收到回传时执行onFailure
+	public void checkValid(Runnable onSuccess,Runnable onFailure,long timeout){
 		if (!maybeValid()) {
 			onFailure.run();
 			return;
 		}
+		//先加入TickerManager等待tick,避免回传先于put到达;序号随心跳消息发出
+		int seq=ticker.nextKey();
+		ticker.put(seq, onSuccess, onFailure, timeout);
 		//传输心跳消息
 		String json=null;
-		json=MessageFactory.wrapHeartbeatRequestMessage();
-		if (!sendMessage(json)){
+		json=MessageFactory.wrapHeartbeatRequestMessage(seq);
+		//不等待发送队列的空间,调用方可能是定时器线程;发送队列已满的连接视为不健康
+		if (!offerMessage(json)){
 			util.log("Heartbeat Check Invalid: "+this);
-			onFailure.run();
+			if (ticker.cancel(seq))
+				onFailure.run();
 			return;
 		}
-		//加入TickerManager等待tick
-		ticker.put(onSuccess, onFailure, Settings.SocketTimeout);
 	}
 	
 	
-	//通知所有Ticker;用于收到心跳消息后调用
+	//通知所有Ticker;用于收到不带序号的心跳消息后调用
 	public void tickAll(){
 		ticker.tickAll();
 	}
+
+	//收到心跳回传,只完成对应序号的Ticker;seq为0(旧版本)时完成所有。返回往返纳秒数,没有对应的请求时返回-1
+	public long tick(int seq){
+		if (seq==0){
+			ticker.tickAll();
+			return -1;
+		}
+		return ticker.tick(seq);
+	}
+
+	//最近一次心跳的往返时间,未测得时为-1
+	public long getLastRttNanos(){
+		return ticker.getLastRttNanos();
+	}
 	
 	//对于sc状态的查询修改必须线程同步
 	public synchronized boolean maybeValid() {
 		return (sc != null && blinker == this && sc.isConnected());
 	}
 
+	// 写完已入队的消息(如重定向、拒绝注册的回传)后关闭;写出是异步的,直接close会丢弃尚未写出的回传
+	public void closeAfterFlush() {
+		closeWhenFlushed = true;
+		if (!schedule()) close();
+	}
+
 	// 断开socket;尽量调用shutdown而不是此方法
 	@Override
 	public synchronized void closeSocket() {
@@ -4,11 +4,11 @@ import java.io.Closeable;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 
+import util.AbstractUtil;
 import util.Settings;
-import util.Util;
 
 public class Device implements DeviceInterface,Closeable{
-	static final Util util=Settings.util;
+	static final AbstractUtil util=Settings.util;
 	static final Charset charset = Settings.charset;
 	public InetSocketAddress addr;
 	public String name;
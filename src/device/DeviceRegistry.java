@@ -0,0 +1,51 @@
+package device;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+//设备池:放入、替换、删除都是按名字的原子比较交换,不同名字之间互不等待,也没有整个设备池的锁;
+//同名冲突由调用方根据返回值决定重试、替换或拒绝。遍历不加锁,注册和删除可与之同时进行。线程安全
+public class DeviceRegistry<DeviceImpl extends Device> {
+	final ConcurrentMap<String, DeviceImpl> devices = new ConcurrentHashMap<String, DeviceImpl>();
+
+	public DeviceImpl get(String name) {
+		return devices.get(name);
+	}
+
+	// 不存在同名设备时放入并返回null;否则不放入,返回已有的设备
+	public DeviceImpl putIfAbsent(DeviceImpl device) {
+		return devices.putIfAbsent(device.name, device);
+	}
+
+	// 同名设备仍为expected时替换为device;期间已被其它连接替换或删除时返回false
+	public boolean replace(DeviceImpl expected, DeviceImpl device) {
+		return devices.replace(device.name, expected, device);
+	}
+
+	// 同名设备仍为device时删除;不会误删已替换它的新连接
+	public boolean remove(DeviceImpl device) {
+		return devices.remove(device.name, device);
+	}
+
+	// 删除同名设备,返回被删除的设备
+	public DeviceImpl remove(String name) {
+		return devices.remove(name);
+	}
+
+	public int size() {
+		return devices.size();
+	}
+
+	// 弱一致的实时视图,遍历期间的变化可能可见也可能不可见
+	public Collection<DeviceImpl> values() {
+		return devices.values();
+	}
+
+	// 当前设备的快照,之后的注册和删除不影响返回的列表
+	public List<DeviceImpl> snapshot() {
+		return new ArrayList<DeviceImpl>(devices.values());
+	}
+}
@@ -0,0 +1,179 @@
+package device;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import message.Message;
+import message.MessageCodec;
+import message.MessageFactory;
+import util.Settings;
+
+//消息分帧:framed为true时每条消息前加4字节大端长度,支持跨多次read重组及一次read中的多条消息;
+//framed为false时保持原有行为,一次read即一条消息。非线程安全,由调用方的receiveMutex或事件循环线程保证
+public class FrameCodec {
+	public static final int HeaderLength = 4;
+	static final int InitialCapacity = 1024;
+	static final Charset charset = Settings.charset;
+
+	final boolean framed;
+	final int maxFrameLength;
+	ByteBuffer buffer = ByteBuffer.allocate(InitialCapacity); // position为写入位置
+	int start = 0; // 未处理数据的起始位置
+	int expected = 0; // 当前不完整帧所需的总字节数
+
+	public FrameCodec(boolean framed) {
+		this(framed, Settings.MaxFrameLength);
+	}
+
+	public FrameCodec(boolean framed, int maxFrameLength) {
+		this.framed = framed;
+		this.maxFrameLength = maxFrameLength;
+	}
+
+	public boolean isFramed() {
+		return framed;
+	}
+
+	// 将消息编码为待发送的buffer
+	public static ByteBuffer encode(String msg, boolean framed) {
+		byte[] bytes = msg.getBytes(charset);
+		if (!framed)
+			return ByteBuffer.wrap(bytes);
+		ByteBuffer buffer = ByteBuffer.allocate(HeaderLength + bytes.length);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	// 将Json字符串编码为待发送的buffer;连接协商了非Json编码时先解码再转换,无法解码的原样发送
+	public static ByteBuffer encode(String msg, boolean framed, MessageCodec codec) {
+		if (framed && codec.id() != MessageCodec.JSON) {
+			Message base = MessageFactory.decodeMessage(msg);
+			if (base != null)
+				return encode(base, framed, codec);
+		}
+		return encode(msg, framed);
+	}
+
+	// 将消息直接编码为待发送的buffer,不经过String
+	public static ByteBuffer encode(Message msg, boolean framed, MessageCodec codec) {
+		if (!framed)
+			codec = MessageFactory.codec(MessageCodec.JSON); // 二进制编码依赖分帧
+		ByteBuffer buffer = codec.encode(msg, framed ? HeaderLength : 0);
+		if (framed)
+			buffer.putInt(0, buffer.limit() - HeaderLength);
+		return buffer;
+	}
+
+	// 返回供sc.read写入的buffer,保证有剩余空间且能容纳当前不完整帧
+	public ByteBuffer readBuffer() {
+		if (start > 0) {
+			// 丢弃已处理的字节
+			buffer.flip();
+			buffer.position(start);
+			buffer.compact();
+			start = 0;
+		}
+		int need = Math.max(expected, buffer.position() + 1);
+		if (need > buffer.capacity()) {
+			int capacity = buffer.capacity();
+			while (capacity < need)
+				capacity <<= 1;
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(capacity, HeaderLength + maxFrameLength));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		return buffer;
+	}
+
+	// 取出一条完整消息,数据不足时返回null;帧长度超过上限时抛出异常,此时连接已无法再同步,应当关闭
+	public String next() throws FrameTooLongException {
+		ByteBuffer frame = nextFrame();
+		if (frame == null)
+			return null;
+		return toText(frame);
+	}
+
+	// 消息体转为字符串;分帧连接上的二进制消息转为等价的Json
+	public String toText(ByteBuffer frame) {
+		if (framed)
+			return MessageFactory.toJson(frame);
+		return new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), charset);
+	}
+
+	// 同next,返回指向内部缓冲的消息体视图,不复制;只在下一次调用readBuffer之前有效
+	public ByteBuffer nextFrame() throws FrameTooLongException {
+		int end = buffer.position();
+		int available = end - start;
+		if (available <= 0)
+			return null;
+		ByteBuffer frame = buffer.duplicate();
+		if (!framed) {
+			int stop = jsonEnd(start, end);
+			frame.limit(stop).position(start);
+			start = stop;
+		} else {
+			if (available < HeaderLength)
+				return null;
+			int length = buffer.getInt(start);
+			if (length < 0 || length > maxFrameLength)
+				throw new FrameTooLongException(length, maxFrameLength);
+			if (available < HeaderLength + length) {
+				expected = HeaderLength + length;
+				return null;
+			}
+			frame.limit(start + HeaderLength + length).position(start + HeaderLength);
+			start += HeaderLength + length;
+			expected = 0;
+		}
+		frame = frame.slice();
+		if (start == end) {
+			// 全部处理完毕,大帧之后回收buffer
+			if (buffer.capacity() > InitialCapacity)
+				buffer = ByteBuffer.allocate(InitialCapacity);
+			else
+				buffer.clear();
+			start = 0;
+		}
+		return frame;
+	}
+
+	// 未分帧时一次read可能读入对端并发发出的多条Json消息,在第一个顶层对象之后紧接着另一个对象时从此处拆开;
+	// 其它内容(纯文本、不完整的对象)仍按一次read一条消息处理。gb2312的多字节字符不含ASCII字节,可按字节扫描
+	int jsonEnd(int from, int end) {
+		if (buffer.get(from) != '{')
+			return end;
+		int depth = 0;
+		boolean quoted = false, escaped = false;
+		for (int i = from; i < end; i++) {
+			byte b = buffer.get(i);
+			if (quoted) {
+				if (escaped)
+					escaped = false;
+				else if (b == '\\')
+					escaped = true;
+				else if (b == '"')
+					quoted = false;
+			} else if (b == '"')
+				quoted = true;
+			else if (b == '{')
+				depth++;
+			else if (b == '}' && --depth == 0) {
+				int next = i + 1;
+				while (next < end && Character.isWhitespace(buffer.get(next)))
+					next++;
+				return next < end && buffer.get(next) == '{' ? i + 1 : end;
+			}
+		}
+		return end;
+	}
+
+	// 丢弃所有未处理数据;重新连接时调用
+	public void reset() {
+		buffer = ByteBuffer.allocate(InitialCapacity);
+		start = 0;
+		expected = 0;
+	}
+}
@@ -0,0 +1,12 @@
+package device;
+
+import java.io.IOException;
+
+//帧长度超过上限,在交给Gson解析前拒绝
+public class FrameTooLongException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public FrameTooLongException(int length, int maxFrameLength) {
+		super("Frame Too Long: " + length + " > " + maxFrameLength);
+	}
+}
@@ -3,6 +3,11 @@ package device;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import message.Message;
+import message.MessageCodec;
+import message.MessageFactory;
 
 
 //可主动构建连接的设备Stub;有前提的线程安全:在调用closeSocket时其它线程可能会出现不可预知的问题
@@ -12,12 +17,17 @@ public class ServerDevice extends Device {
 	volatile ServerDevice blinker = this;
 	public boolean retryAfterCloseUnhealthySocket = false; // 是否允许断线重连;不允许,未包含重连注册逻辑
 	public int retryTimes = 1; // 尝试建立连接次数
-	final Object sendMutex=new Object(),receiveMutex=new Object();
+	public boolean framed = false; // 是否使用长度前缀分帧;与云服务器通信时开启,与智能家具通信时关闭
+	FrameCodec decoder = new FrameCodec(false);
+	public MessageCodec codec = MessageFactory.codec(MessageCodec.JSON); // 注册成功后按云服务器的选择切换
+	final ReentrantLock sendLock=new ReentrantLock(),receiveLock=new ReentrantLock(); // 阻塞读写期间持有;不用synchronized,以免虚拟线程阻塞时占住载体线程
+	final ReentrantLock connectLock=new ReentrantLock(); // 发起连接期间持有,发送与接收同时发现断线时只建立一个连接
 
 	// 发送信息,如果Socket未连接则连接
 	@Override
 	public boolean sendMessage(String msg) {
-		synchronized (sendMutex){
+		sendLock.lock();
+		try {
 			int status = (maybeValid() ? 1 : 0), retryTime = retryTimes; // 尝试连接次数
 			for (; blinker == this;) {
 				switch (status) {
@@ -34,18 +44,21 @@ public class ServerDevice extends Device {
 					break;
 				case 1:
 					// socket不为null,无法判断是否健康,尝试通信
-					ByteBuffer buffer = ByteBuffer.wrap(msg.getBytes(charset));
+					ByteBuffer buffer = FrameCodec.encode(msg, framed, codec);
+					SocketChannel channel = channel();
 					int count = -1;
 					try {
-						count = sc.write(buffer);
+						if (channel != null)
+							while (buffer.hasRemaining())
+								count = channel.write(buffer);
 					} catch (IOException e) {
 						// 连接异常断开
 						util.log("Connection Closed Unexpectedly: " + this);
 					}
 					if (count == -1) {
-						// 连接已断开,关闭
+						// 连接已断开,关闭;已被接收线程换成新连接时不关闭新连接
 						util.log("Close Connection: " + this);
-						closeSocket();
+						closeSocket(channel);
 						if (retryAfterCloseUnhealthySocket)
 							status = 0; // 转入重连状态
 						else
@@ -58,60 +71,95 @@ public class ServerDevice extends Device {
 				}
 			}
 			return false;
+		} finally {
+			sendLock.unlock();
 		}
 	}
 
 	// 接收信息,如果Socket未连接则连接
 	@Override
 	public String receiveMessage() {
-		synchronized (receiveMutex){
-			int status = sc == null ? 0 : 1, retryTime = retryTimes; // 尝试连接次数
-			for (; blinker == this;) {
-				switch (status) {
-				case 0:
-					// socket为null,开始连接,计数
-					if (retryTime-- > 0) {
-						if (connectSocket()) {
-							// 连接成功,转入通信状态
-							status = 1;
-							break;
-						}
-					} else
-						status = 0xff; // 重连次数用尽,消息发送失败
-					break;
-				case 1:
-					// socket不为null,无法判断是否健康,尝试通信
-					ByteBuffer buffer = ByteBuffer.allocate(1024);
-					buffer.clear();
-					int count = -1;
-					try {
-						count = sc.read(buffer);
-						buffer.flip(); // 很关键
-					} catch (IOException e) {
-						// 连接异常断开
-						util.log("Connection Closed Unexpectedly: " + this);
-					}
-					if (count == -1) {
-						// 连接已断开,关闭
-						util.log("Close Connection: " + this);
-						closeSocket();
-						if (retryAfterCloseUnhealthySocket)
-							status = 0; // 转入重连状态
-						else
-							status = 0xff; // 结束通信
+		receiveLock.lock();
+		try {
+			ByteBuffer frame = receiveFrame(true);
+			return frame == null ? null : decoder.toText(frame);
+		} finally {
+			receiveLock.unlock();
+		}
+	}
+
+	// 接收一条消息并直接从读缓冲解码,二进制编码的帧不再转换为Json;无法解码的消息丢弃后继续接收。
+	// 只读取已建立的连接,连接断开或未连接时返回null,由调用方重新注册
+	public Message receive() {
+		receiveLock.lock();
+		try {
+			for (ByteBuffer frame; (frame = receiveFrame(false)) != null;) {
+				Message msg = MessageFactory.decodeMessage(frame);
+				if (msg != null)
+					return msg;
+				util.log("Discard Invalid Message: " + this);
+			}
+			return null;
+		} finally {
+			receiveLock.unlock();
+		}
+	}
+
+	// 接收一条消息,返回指向读缓冲的视图,只在下一次接收前有效;connect为false时不发起连接。由调用方持有receiveLock
+	ByteBuffer receiveFrame(boolean connect) {
+		int status = sc == null ? (connect ? 0 : 0xff) : 1, retryTime = retryTimes; // 尝试连接次数
+		for (; blinker == this;) {
+			switch (status) {
+			case 0:
+				// socket为null,开始连接,计数
+				if (retryTime-- > 0) {
+					if (connectSocket()) {
+						// 连接成功,转入通信状态
+						status = 1;
 						break;
 					}
-
-					byte[] bytes = new byte[count];
-					buffer.get(bytes);
-					String msg = new String(bytes, charset);
-					return msg; // 发送成功
-				default:
-					return null;
+				} else
+					status = 0xff; // 重连次数用尽,消息发送失败
+				break;
+			case 1:
+				// 先取出上次read中剩余的完整消息
+				ByteBuffer frame = null;
+				try {
+					frame = decoder.nextFrame();
+				} catch (FrameTooLongException e) {
+					util.log(e.getMessage() + ", Close Connection: " + this);
+					closeSocket();
+					status = 0xff;
+					break;
+				}
+				if (frame != null)
+					return frame;
+				// socket不为null,无法判断是否健康,尝试通信
+				SocketChannel channel = channel();
+				int count = -1;
+				try {
+					if (channel != null)
+						count = channel.read(decoder.readBuffer());
+				} catch (IOException e) {
+					// 连接异常断开
+					util.log("Connection Closed Unexpectedly: " + this);
 				}
+				if (count == -1) {
+					// 连接已断开,关闭;已被发送线程换成新连接时不关闭新连接
+					util.log("Close Connection: " + this);
+					closeSocket(channel);
+					if (retryAfterCloseUnhealthySocket && connect)
+						status = 0; // 转入重连状态
+					else
+						status = 0xff; // 结束通信
+					break;
+				}
+				break; // 继续从decoder中取出消息
+			default:
+				return null;
 			}
-			return null;
 		}
+		return null;
 	}
 
 	//对于sc状态的查询修改必须线程同步
@@ -119,19 +167,50 @@ public class ServerDevice extends Device {
 		return (sc != null && blinker == this && sc.isConnected());
 	}
 
-	// 发起Socket连接,socket不为null时重置
-	synchronized boolean connectSocket() {
-		if (sc != null)
-			closeSocket();
+	synchronized SocketChannel channel() {
+		return sc;
+	}
+
+	// 发起Socket连接;连接期间不持有本对象的锁,maybeValid等调用不被阻塞。
+	// 在connectLock中重新检查,发送与接收线程先后发现断线时,后到者直接使用先到者建立的连接
+	boolean connectSocket() {
+		connectLock.lock();
 		try {
-			sc = SocketChannel.open();
-			sc.connect(addr);
-			util.log("Socket Connected: " + "[" + name + "]" + sc.getRemoteAddress());
-		} catch (IOException e) {
-			util.log("Socket Connect Error: " + this);
-			return false;
+			if (maybeValid())
+				return true;
+			closeSocket();
+			SocketChannel channel = null;
+			try {
+				channel = SocketChannel.open();
+				channel.connect(addr);
+				util.log("Socket Connected: " + "[" + name + "]" + channel.getRemoteAddress());
+			} catch (IOException e) {
+				util.log("Socket Connect Error: " + this);
+				close(channel);
+				return false;
+			}
+			synchronized (this) {
+				if (blinker != this || sc != null) {
+					// 连接期间已被关闭,或已有其它连接,关闭新建的连接
+					close(channel);
+					return blinker == this;
+				}
+				decoder = new FrameCodec(framed); // 新连接丢弃旧的分帧状态,编码回到Json直到重新注册
+				codec = MessageFactory.codec(MessageCodec.JSON);
+				sc = channel;
+			}
+			return true;
+		} finally {
+			connectLock.unlock();
 		}
-		return true;
+	}
+
+	static void close(SocketChannel channel) {
+		if (channel != null)
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
 	}
 
 	// 断开socket,尽量选择调用shutdown而不是此方法
@@ -145,6 +224,12 @@ public class ServerDevice extends Device {
 		sc = null;
 	}
 
+	// 只在当前连接仍是channel时断开,已换成的新连接不受影响
+	synchronized void closeSocket(SocketChannel channel) {
+		if (channel == null || channel == sc)
+			closeSocket();
+	}
+
 	// 停止使用
 	@Override
 	public void close() {
@@ -0,0 +1,41 @@
+package device;
+
+import java.nio.ByteBuffer;
+
+import message.Message;
+import message.MessageCodec;
+import message.MessageFactory;
+
+//同一条消息发往多个连接时共用编码结果:按连接的分帧方式及协商的编码各只编码一次,
+//每个连接写出各自的只读视图,position互不影响,内容不复制。线程安全
+public class SharedFrame {
+	final Message msg;
+	final ByteBuffer[] frames = new ByteBuffer[4]; // 下标为(分帧 ? 2 : 0) + 编码编号
+	int encodings = 0;
+
+	public SharedFrame(Message msg) {
+		this.msg = msg;
+	}
+
+	// 返回新的只读视图,由调用者独占
+	public synchronized ByteBuffer frame(boolean framed, MessageCodec codec) {
+		int id = framed ? codec.id() : MessageCodec.JSON; // 二进制编码依赖分帧
+		int index = (framed ? 2 : 0) + id;
+		ByteBuffer frame = frames[index];
+		if (frame == null) {
+			frame = FrameCodec.encode(msg, framed, MessageFactory.codec(id)).asReadOnlyBuffer();
+			frames[index] = frame;
+			encodings++;
+		}
+		return frame.duplicate();
+	}
+
+	// 实际编码的次数
+	public synchronized int encodings() {
+		return encodings;
+	}
+
+	public Message message() {
+		return msg;
+	}
+}
@@ -0,0 +1,257 @@
+package message;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import util.ByteBufferWriter;
+
+//紧凑二进制编码:MAGIC + varint(type) + 若干字段;帧长度由分帧给出,因此只能用于分帧连接
+//字段为varint(编号<<1|线路类型),线路类型0为zigzag varint整数,1为varint字节长度+UTF-8字符串;值为null的字段不写出
+//未知字段按线路类型跳过,以后增加字段不影响旧版本解码
+public class BinaryCodec implements MessageCodec {
+	public static final byte MAGIC = (byte) 0xB7; // 与Json的'{'区分,解码时据此自动识别
+	static final int VARINT = 0, STRING = 1;
+	static final Charset charset = Charset.forName("UTF-8"); // 字符串不经转义,须用能表示任意字符的编码
+
+	@Override
+	public int id() {
+		return BINARY;
+	}
+
+	// 分帧消息体是否为二进制编码
+	public static boolean isBinary(ByteBuffer frame) {
+		return frame.hasRemaining() && frame.get(frame.position()) == MAGIC;
+	}
+
+	// ===== 编码 =====
+
+	@Override
+	public ByteBuffer encode(Message msg, int offset) {
+		ByteBufferWriter out = new ByteBufferWriter(charset, 64, offset);
+		out.writeByte(MAGIC);
+		out.writeVarint(msg.type);
+		MessageInterface payload = msg.payload;
+		if (payload == null) {
+			// 纯文本或未知type
+			writeString(out, 1, msg.data);
+		} else if (payload instanceof CloudMessage) {
+			CloudMessage cloud = (CloudMessage) payload;
+			writeString(out, 1, cloud.fromKey);
+			writeString(out, 2, cloud.toKey);
+			writeString(out, 3, cloud.info);
+			writeString(out, 4, cloud.data);
+			if (cloud.requestId != 0)
+				writeInt(out, 5, cloud.requestId);
+			if (cloud.ttl != 0)
+				writeInt(out, 6, cloud.ttl);
+		} else if (payload instanceof HeartbeatMessage) {
+			HeartbeatMessage heartbeat = (HeartbeatMessage) payload;
+			writeInt(out, 1, heartbeat.status);
+			if (heartbeat.seq != 0)
+				writeInt(out, 2, heartbeat.seq);
+		} else if (payload instanceof ErrorMessage) {
+			writeInt(out, 1, ((ErrorMessage) payload).code);
+		} else if (payload instanceof RegistryMessage) {
+			RegistryMessage registry = (RegistryMessage) payload;
+			writeString(out, 1, registry.name);
+			writeInt(out, 2, registry.deviceType);
+			writeInt(out, 3, registry.codecs);
+			if (registry.credits != 0)
+				writeInt(out, 4, registry.credits);
+			writeString(out, 5, registry.redirect);
+			writeString(out, 6, registry.token);
+			if (registry.heartbeats)
+				writeInt(out, 7, 1);
+		} else if (payload instanceof MulticastMessage) {
+			MulticastMessage multicast = (MulticastMessage) payload;
+			writeString(out, 1, multicast.fromKey);
+			writeStrings(out, 2, multicast.toKeys);
+			writeStrings(out, 3, multicast.infos);
+			writeString(out, 4, multicast.group);
+			writeString(out, 5, multicast.data);
+			if (multicast.requestId != 0)
+				writeInt(out, 6, multicast.requestId);
+			writeStrings(out, 7, multicast.keys);
+			writeStrings(out, 8, multicast.results);
+		} else
+			throw new IllegalArgumentException("Unsupported Payload: " + payload.getClass());
+		return out.flip();
+	}
+
+	static void writeString(ByteBufferWriter out, int field, String value) {
+		if (value == null)
+			return;
+		out.writeVarint(field << 1 | STRING);
+		out.writeLengthPrefixed(value);
+	}
+
+	// 列表的每个元素写为同一编号的字段,解码时按顺序追加;空列表写为同一编号的整数字段,与null区分(results为空仍是回传)
+	static void writeStrings(ByteBufferWriter out, int field, List<String> values) {
+		if (values == null)
+			return;
+		if (values.isEmpty())
+			writeInt(out, field, 0);
+		for (String value : values)
+			writeString(out, field, value);
+	}
+
+	static void writeInt(ByteBufferWriter out, int field, int value) {
+		out.writeVarint(field << 1 | VARINT);
+		out.writeVarint((value << 1) ^ (value >> 31)); // zigzag
+	}
+
+	// ===== 解码 =====
+
+	@Override
+	public Message decode(ByteBuffer frame) throws IOException {
+		ByteBuffer in = frame.duplicate();
+		try {
+			if (in.get() != MAGIC)
+				throw new IOException("Not a Binary Message");
+			Message base = new Message();
+			base.type = readVarint(in);
+			switch (base.type) {
+			case CloudMessage.type:
+				base.payload = new CloudMessage();
+				break;
+			case HeartbeatMessage.type:
+				base.payload = new HeartbeatMessage();
+				break;
+			case ErrorMessage.type:
+				base.payload = new ErrorMessage();
+				break;
+			case RegistryMessage.type:
+				base.payload = new RegistryMessage();
+				break;
+			case MulticastMessage.type:
+				base.payload = new MulticastMessage();
+				break;
+			}
+			while (in.hasRemaining()) {
+				int tag = readVarint(in);
+				int field = tag >>> 1;
+				if ((tag & 1) == VARINT) {
+					int raw = readVarint(in);
+					setInt(base, field, (raw >>> 1) ^ -(raw & 1));
+				} else {
+					int length = readVarint(in);
+					if (length < 0 || length > in.remaining())
+						throw new IOException("Malformed String Length: " + length);
+					String value = new String(in.array(), in.arrayOffset() + in.position(), length, charset);
+					in.position(in.position() + length);
+					setString(base, field, value);
+				}
+			}
+			return base;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated Binary Message");
+		}
+	}
+
+	static int readVarint(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IOException("Malformed Varint");
+	}
+
+	// 未知字段忽略
+	static void setString(Message base, int field, String value) {
+		MessageInterface payload = base.payload;
+		if (payload == null) {
+			if (field == 1)
+				base.data = value;
+		} else if (payload instanceof CloudMessage) {
+			CloudMessage cloud = (CloudMessage) payload;
+			if (field == 1)
+				cloud.fromKey = value;
+			else if (field == 2)
+				cloud.toKey = value;
+			else if (field == 3)
+				cloud.info = value;
+			else if (field == 4)
+				cloud.data = value;
+		} else if (payload instanceof RegistryMessage) {
+			RegistryMessage registry = (RegistryMessage) payload;
+			if (field == 1)
+				registry.name = value;
+			else if (field == 5)
+				registry.redirect = value;
+			else if (field == 6)
+				registry.token = value;
+		} else if (payload instanceof MulticastMessage) {
+			MulticastMessage multicast = (MulticastMessage) payload;
+			if (field == 1)
+				multicast.fromKey = value;
+			else if (field == 2)
+				multicast.toKeys = append(multicast.toKeys, value);
+			else if (field == 3)
+				multicast.infos = append(multicast.infos, value);
+			else if (field == 4)
+				multicast.group = value;
+			else if (field == 5)
+				multicast.data = value;
+			else if (field == 7)
+				multicast.keys = append(multicast.keys, value);
+			else if (field == 8)
+				multicast.results = append(multicast.results, value);
+		}
+	}
+
+	static List<String> append(List<String> values, String value) {
+		if (values == null)
+			values = new ArrayList<String>();
+		values.add(value);
+		return values;
+	}
+
+	static void setInt(Message base, int field, int value) {
+		MessageInterface payload = base.payload;
+		if (payload instanceof CloudMessage) {
+			CloudMessage cloud = (CloudMessage) payload;
+			if (field == 5)
+				cloud.requestId = value;
+			else if (field == 6)
+				cloud.ttl = value;
+		} else if (payload instanceof HeartbeatMessage) {
+			HeartbeatMessage heartbeat = (HeartbeatMessage) payload;
+			if (field == 1)
+				heartbeat.status = value;
+			else if (field == 2)
+				heartbeat.seq = value;
+		} else if (payload instanceof ErrorMessage) {
+			if (field == 1)
+				((ErrorMessage) payload).code = value;
+		} else if (payload instanceof RegistryMessage) {
+			RegistryMessage registry = (RegistryMessage) payload;
+			if (field == 2)
+				registry.deviceType = value;
+			else if (field == 3)
+				registry.codecs = value;
+			else if (field == 4)
+				registry.credits = value;
+			else if (field == 7)
+				registry.heartbeats = value != 0;
+		} else if (payload instanceof MulticastMessage) {
+			MulticastMessage multicast = (MulticastMessage) payload;
+			if (field == 6)
+				multicast.requestId = value;
+			else if (field == 2 && multicast.toKeys == null)
+				multicast.toKeys = new ArrayList<String>();
+			else if (field == 3 && multicast.infos == null)
+				multicast.infos = new ArrayList<String>();
+			else if (field == 7 && multicast.keys == null)
+				multicast.keys = new ArrayList<String>();
+			else if (field == 8 && multicast.results == null)
+				multicast.results = new ArrayList<String>();
+		}
+	}
+}
@@ -3,10 +3,13 @@ package message;
 public class CloudMessage implements MessageInterface {
 	public final static int type = 2;
 	public final static String ErrorMessage="ErrorMessage";
+	public final static String Stored="Stored"; // 暂存回执:目的本地服务器不在线,请求已由云服务器暂存,data为原请求的info
 	public String fromKey; // 遥控器密钥
 	public String toKey; // 本地服务器密钥
 	public String info; // 附带信息(一般为设备名,info为Error时,表示服务器回传错误消息)
 	public String data; // 实际传输数据
+	public int requestId; // 请求编号,由遥控器生成,回传时原样带回用于匹配;0表示未编号
+	public int ttl; // 目的本地服务器不在线时在云服务器信箱中保留的毫秒数;0表示使用默认值,负数表示不暂存
 
 	@Override
 	public boolean checkNotNull() {
@@ -19,7 +22,13 @@ public class CloudMessage implements MessageInterface {
 
 	@Override
 	public String toString() {
-		return "fromKey = "+fromKey+" toKey = "+toKey+" name = " + info + " data = " + data;
+		return "fromKey = "+fromKey+" toKey = "+toKey+" name = " + info + " data = " + data
+				+ (requestId != 0 ? " requestId = " + requestId : "") + (ttl != 0 ? " ttl = " + ttl : "");
+	}
+
+	// 云服务器生成的回传(错误消息、暂存回执),不是请求,不再暂存或为其回传错误
+	public boolean isNotice(){
+		return ErrorMessage.equals(info) || Stored.equals(info);
 	}
 
 	public CloudMessage copy(){
@@ -28,6 +37,8 @@ public class CloudMessage implements MessageInterface {
 		copyMsg.toKey=toKey;
 		copyMsg.info=info;
 		copyMsg.data=data;
+		copyMsg.requestId=requestId;
+		copyMsg.ttl=ttl;
 		return copyMsg;
 	}
 	
@@ -25,8 +25,8 @@ public class ErrorMessage implements MessageInterface{
 	public static final int c7=7;
 	public static final String s7="找到本地服务器,但与服务器的连接中断";
 	
-	public static final int c8=0xff;
-	public static final String s8=null;
+	public static final int c8=8;
+	public static final String s8="等待本地服务器回传超时";
 	public static final int c9=0xff;
 	public static final String s9=null;
 	
@@ -5,6 +5,7 @@ public class HeartbeatMessage implements MessageInterface{
 	public static final int VALID=0; //回传,表示有效
 	public static final int REQUEST=1; //请求回传
 	public int status=0xff;
+	public int seq=0; //请求序号,回传时原样带回;0表示未编号(旧版本),此时回传匹配所有等待中的请求
 	@Override
 	public boolean checkNotNull() {
 		return (status==VALID || status==REQUEST);
@@ -0,0 +1,631 @@
+package message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import util.ByteBufferReader;
+import util.ByteBufferWriter;
+import util.Settings;
+
+//手写的流式Json编解码,不使用反射;输出与Gson生成的嵌套格式{"type":N,"data":"<转义后的内层Json>"}逐字节一致
+//编码时内层对象经转义直接写入外层字符串,解码时内层JsonReader直接读取外层字符串的反转义结果,payload不经过中间String
+public final class JsonCodec {
+	static final Charset charset = Settings.charset;
+	static final String[] REPLACEMENTS = new String[128]; // 与Gson(htmlSafe)一致的转义表
+
+	static {
+		for (int i = 0; i < 0x20; i++)
+			REPLACEMENTS[i] = String.format("\\u%04x", i);
+		REPLACEMENTS['"'] = "\\\"";
+		REPLACEMENTS['\\'] = "\\\\";
+		REPLACEMENTS['\t'] = "\\t";
+		REPLACEMENTS['\b'] = "\\b";
+		REPLACEMENTS['\n'] = "\\n";
+		REPLACEMENTS['\r'] = "\\r";
+		REPLACEMENTS['\f'] = "\\f";
+		REPLACEMENTS['<'] = "\\u003c";
+		REPLACEMENTS['>'] = "\\u003e";
+		REPLACEMENTS['&'] = "\\u0026";
+		REPLACEMENTS['='] = "\\u003d";
+		REPLACEMENTS['\''] = "\\u0027";
+	}
+
+	private JsonCodec() {
+	}
+
+	// type对应的payload是否为嵌套的Json对象
+	static boolean isTyped(int type) {
+		return type == HeartbeatMessage.type || type == CloudMessage.type || type == ErrorMessage.type
+				|| type == RegistryMessage.type || type == MulticastMessage.type;
+	}
+
+	// ===== 编码 =====
+
+	// 编码为字符串
+	public static String toJson(Message msg) {
+		StringWriter out = new StringWriter();
+		try {
+			write(msg, out);
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+		return out.toString();
+	}
+
+	// 直接编码进ByteBuffer;offset为开头预留的字节数(帧头),返回的buffer从0开始
+	public static ByteBuffer encode(Message msg, int offset) {
+		ByteBufferWriter out = new ByteBufferWriter(charset, 128, offset);
+		try {
+			write(msg, out);
+		} catch (IOException e) {
+			throw new JsonIOException(e);
+		}
+		return out.flip();
+	}
+
+	// 有payload时编码payload,否则原样写出data
+	public static void write(Message msg, Writer out) throws IOException {
+		out.write("{\"type\":");
+		out.write(Integer.toString(msg.type));
+		if (msg.payload != null) {
+			out.write(",\"data\":\"");
+			JsonWriter writer = new JsonWriter(new EscapingWriter(out));
+			writer.setHtmlSafe(true);
+			writePayload(msg.payload, writer);
+			writer.flush();
+			out.write('"');
+		} else if (msg.data != null) {
+			out.write(",\"data\":\"");
+			escape(msg.data, 0, msg.data.length(), out);
+			out.write('"');
+		}
+		out.write('}');
+	}
+
+	static void writePayload(MessageInterface payload, JsonWriter writer) throws IOException {
+		writer.beginObject();
+		if (payload instanceof CloudMessage) {
+			CloudMessage msg = (CloudMessage) payload;
+			writeString(writer, "fromKey", msg.fromKey);
+			writeString(writer, "toKey", msg.toKey);
+			writeString(writer, "info", msg.info);
+			writeString(writer, "data", msg.data);
+			if (msg.requestId != 0)
+				writer.name("requestId").value(msg.requestId); // 旧格式中没有此字段
+			if (msg.ttl != 0)
+				writer.name("ttl").value(msg.ttl);
+		} else if (payload instanceof HeartbeatMessage) {
+			HeartbeatMessage msg = (HeartbeatMessage) payload;
+			writer.name("status").value(msg.status);
+			if (msg.seq != 0)
+				writer.name("seq").value(msg.seq); // 旧格式中没有此字段
+		} else if (payload instanceof ErrorMessage) {
+			ErrorMessage msg = (ErrorMessage) payload;
+			writer.name("code").value(msg.code);
+		} else if (payload instanceof RegistryMessage) {
+			RegistryMessage msg = (RegistryMessage) payload;
+			writeString(writer, "name", msg.name);
+			writer.name("deviceType").value(msg.deviceType);
+			if (msg.codecs != 0)
+				writer.name("codecs").value(msg.codecs); // 旧格式中没有此字段
+			if (msg.credits != 0)
+				writer.name("credits").value(msg.credits);
+			writeString(writer, "redirect", msg.redirect);
+			writeString(writer, "token", msg.token);
+			if (msg.heartbeats)
+				writer.name("heartbeats").value(true);
+		} else if (payload instanceof MulticastMessage) {
+			MulticastMessage msg = (MulticastMessage) payload;
+			writeString(writer, "fromKey", msg.fromKey);
+			writeStrings(writer, "toKeys", msg.toKeys);
+			writeStrings(writer, "infos", msg.infos);
+			writeString(writer, "group", msg.group);
+			writeString(writer, "data", msg.data);
+			if (msg.requestId != 0)
+				writer.name("requestId").value(msg.requestId);
+			writeStrings(writer, "keys", msg.keys);
+			writeStrings(writer, "results", msg.results);
+		} else
+			throw new IllegalArgumentException("Unsupported Payload: " + payload.getClass());
+		writer.endObject();
+	}
+
+	// 与Gson一致,null字段不输出
+	static void writeString(JsonWriter writer, String name, String value) throws IOException {
+		if (value != null)
+			writer.name(name).value(value);
+	}
+
+	static void writeStrings(JsonWriter writer, String name, List<String> values) throws IOException {
+		if (values == null)
+			return;
+		writer.name(name).beginArray();
+		for (String value : values)
+			writer.value(value);
+		writer.endArray();
+	}
+
+	static void escape(String s, int off, int len, Writer out) throws IOException {
+		int last = off, end = off + len;
+		for (int i = off; i < end; i++) {
+			char c = s.charAt(i);
+			String replacement;
+			if (c < 128) {
+				replacement = REPLACEMENTS[c];
+				if (replacement == null)
+					continue;
+			} else if (c == '\u2028') {
+				replacement = "\\u2028";
+			} else if (c == '\u2029') {
+				replacement = "\\u2029";
+			} else
+				continue;
+			if (last < i)
+				out.write(s, last, i - last);
+			out.write(replacement);
+			last = i + 1;
+		}
+		if (last < end)
+			out.write(s, last, end - last);
+	}
+
+	// 把写入的字符按Json字符串规则转义后写入外层
+	static final class EscapingWriter extends Writer {
+		final Writer out;
+
+		EscapingWriter(Writer out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			String replacement = c < 128 ? REPLACEMENTS[c]
+					: c == '\u2028' ? "\\u2028" : c == '\u2029' ? "\\u2029" : null;
+			if (replacement == null)
+				out.write(c);
+			else
+				out.write(replacement);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			for (int i = off, end = off + len; i < end; i++)
+				write(cbuf[i]);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			escape(str, off, len, out);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// ===== 解码 =====
+
+	// 从ByteBuffer解码,读取会移动buffer的position;decodePayload为false时data保留为字符串
+	public static Message decode(ByteBuffer in, boolean decodePayload) {
+		return decode(new ByteBufferReader(in, charset), decodePayload);
+	}
+
+	public static Message fromJson(String json, boolean decodePayload) {
+		if (json == null)
+			return null;
+		return decode(new StringReader(json), decodePayload);
+	}
+
+	// 空输入返回null;格式错误抛出JsonParseException,与Gson.fromJson一致
+	public static Message decode(Reader in, boolean decodePayload) {
+		Lexer lexer = new Lexer(in);
+		try {
+			if (lexer.peek() == -1)
+				return null;
+			return readMessage(lexer, decodePayload);
+		} catch (IOException e) {
+			throw new JsonSyntaxException(e);
+		} catch (IllegalStateException e) {
+			throw new JsonSyntaxException(e);
+		} catch (NumberFormatException e) {
+			throw new JsonSyntaxException(e);
+		}
+	}
+
+	static Message readMessage(Lexer lexer, boolean decodePayload) throws IOException {
+		Message base = new Message();
+		lexer.expect('{');
+		if (lexer.peek() == '}') {
+			lexer.next();
+			return base;
+		}
+		for (;;) {
+			String name = lexer.readString();
+			lexer.expect(':');
+			if ("type".equals(name)) {
+				base.type = lexer.readInt();
+			} else if ("data".equals(name)) {
+				int c = lexer.peek();
+				if (c == 'n') {
+					lexer.readLiteral();
+					base.data = null;
+				} else if (decodePayload && isTyped(base.type)) {
+					// type在前(Gson的输出顺序),直接从外层字符串中解码payload
+					lexer.expect('"');
+					UnescapingReader reader = new UnescapingReader(lexer);
+					base.payload = readPayload(base.type, reader);
+					reader.drain();
+				} else
+					base.data = lexer.readString();
+			} else
+				lexer.skipValue();
+			int c = lexer.next();
+			if (c == '}')
+				break;
+			if (c != ',')
+				throw lexer.syntaxError("Expected ',' or '}'");
+		}
+		// data在type之前出现时,退回到解析字符串
+		if (decodePayload && base.payload == null && base.data != null && isTyped(base.type)) {
+			base.payload = readPayload(base.type, new StringReader(base.data));
+			base.data = null;
+		}
+		return base;
+	}
+
+	// 按type解码内层对象;未知字段忽略
+	static MessageInterface readPayload(int type, Reader in) throws IOException {
+		JsonReader reader = new JsonReader(in);
+		reader.setLenient(true);
+		JsonToken token;
+		try {
+			token = reader.peek();
+		} catch (EOFException e) {
+			// 空字符串,与Gson.fromJson一致返回null
+			return null;
+		}
+		if (token == JsonToken.NULL)
+			return null;
+		reader.beginObject();
+		MessageInterface payload;
+		switch (type) {
+		case CloudMessage.type: {
+			CloudMessage msg = new CloudMessage();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("fromKey".equals(name))
+					msg.fromKey = nextString(reader);
+				else if ("toKey".equals(name))
+					msg.toKey = nextString(reader);
+				else if ("info".equals(name))
+					msg.info = nextString(reader);
+				else if ("data".equals(name))
+					msg.data = nextString(reader);
+				else if ("requestId".equals(name))
+					msg.requestId = reader.nextInt();
+				else if ("ttl".equals(name))
+					msg.ttl = reader.nextInt();
+				else
+					reader.skipValue();
+			}
+			payload = msg;
+			break;
+		}
+		case HeartbeatMessage.type: {
+			HeartbeatMessage msg = new HeartbeatMessage();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("status".equals(name))
+					msg.status = reader.nextInt();
+				else if ("seq".equals(name))
+					msg.seq = reader.nextInt();
+				else
+					reader.skipValue();
+			}
+			payload = msg;
+			break;
+		}
+		case ErrorMessage.type: {
+			ErrorMessage msg = new ErrorMessage();
+			while (reader.hasNext()) {
+				if ("code".equals(reader.nextName()))
+					msg.code = reader.nextInt();
+				else
+					reader.skipValue();
+			}
+			payload = msg;
+			break;
+		}
+		case RegistryMessage.type: {
+			RegistryMessage msg = new RegistryMessage();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("name".equals(name))
+					msg.name = nextString(reader);
+				else if ("deviceType".equals(name))
+					msg.deviceType = reader.nextInt();
+				else if ("codecs".equals(name))
+					msg.codecs = reader.nextInt();
+				else if ("credits".equals(name))
+					msg.credits = reader.nextInt();
+				else if ("redirect".equals(name))
+					msg.redirect = nextString(reader);
+				else if ("token".equals(name))
+					msg.token = nextString(reader);
+				else if ("heartbeats".equals(name))
+					msg.heartbeats = reader.nextBoolean();
+				else
+					reader.skipValue();
+			}
+			payload = msg;
+			break;
+		}
+		case MulticastMessage.type: {
+			MulticastMessage msg = new MulticastMessage();
+			while (reader.hasNext()) {
+				String name = reader.nextName();
+				if ("fromKey".equals(name))
+					msg.fromKey = nextString(reader);
+				else if ("toKeys".equals(name))
+					msg.toKeys = nextStrings(reader);
+				else if ("infos".equals(name))
+					msg.infos = nextStrings(reader);
+				else if ("group".equals(name))
+					msg.group = nextString(reader);
+				else if ("data".equals(name))
+					msg.data = nextString(reader);
+				else if ("requestId".equals(name))
+					msg.requestId = reader.nextInt();
+				else if ("keys".equals(name))
+					msg.keys = nextStrings(reader);
+				else if ("results".equals(name))
+					msg.results = nextStrings(reader);
+				else
+					reader.skipValue();
+			}
+			payload = msg;
+			break;
+		}
+		default:
+			throw new IllegalStateException("Unsupported Type: " + type);
+		}
+		reader.endObject();
+		return payload;
+	}
+
+	static String nextString(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	static List<String> nextStrings(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		List<String> values = new ArrayList<String>();
+		reader.beginArray();
+		while (reader.hasNext())
+			values.add(nextString(reader));
+		reader.endArray();
+		return values;
+	}
+
+	// 外层信封的词法分析,只支持信封需要的最小子集;未知字段的值按括号深度跳过
+	static final class Lexer {
+		final Reader in;
+		int peeked = -2; // -2表示未预读
+
+		Lexer(Reader in) {
+			this.in = in;
+		}
+
+		// 读取下一个字符(不跳过空白)
+		int read() throws IOException {
+			if (peeked != -2) {
+				int c = peeked;
+				peeked = -2;
+				return c;
+			}
+			return in.read();
+		}
+
+		// 下一个非空白字符,不消耗
+		int peek() throws IOException {
+			if (peeked == -2)
+				peeked = in.read();
+			while (peeked == ' ' || peeked == '\t' || peeked == '\n' || peeked == '\r')
+				peeked = in.read();
+			return peeked;
+		}
+
+		// 读取下一个非空白字符
+		int next() throws IOException {
+			peek();
+			return read();
+		}
+
+		void expect(char expected) throws IOException {
+			int c = next();
+			if (c != expected)
+				throw syntaxError("Expected '" + expected + "'");
+		}
+
+		// 读取带引号的字符串
+		String readString() throws IOException {
+			int c = next();
+			if (c != '"')
+				throw syntaxError("Expected String");
+			UnescapingReader reader = new UnescapingReader(this);
+			StringBuilder sb = new StringBuilder();
+			char[] chunk = new char[64];
+			for (int n; (n = reader.read(chunk, 0, chunk.length)) != -1;)
+				sb.append(chunk, 0, n);
+			return sb.toString();
+		}
+
+		// 整数,允许带引号或小数形式(与Gson的宽松解析一致)
+		int readInt() throws IOException {
+			int c = peek();
+			if (c == '"')
+				return parseInt(readString());
+			StringBuilder sb = new StringBuilder();
+			while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')) {
+				sb.append((char) read());
+				c = read();
+				peeked = c;
+			}
+			return parseInt(sb.toString());
+		}
+
+		int parseInt(String s) {
+			try {
+				return Integer.parseInt(s);
+			} catch (NumberFormatException e) {
+				double d = Double.parseDouble(s);
+				if ((int) d != d)
+					throw new NumberFormatException("Expected an int but was " + s);
+				return (int) d;
+			}
+		}
+
+		// true/false/null
+		void readLiteral() throws IOException {
+			int c = peek();
+			while ((c >= 'a' && c <= 'z')) {
+				read();
+				c = read();
+				peeked = c;
+			}
+		}
+
+		void skipValue() throws IOException {
+			int c = peek();
+			if (c == '"') {
+				readString();
+				return;
+			}
+			if (c != '{' && c != '[') {
+				// 数字或字面量
+				while (c != ',' && c != '}' && c != ']' && c != -1) {
+					read();
+					c = peek();
+				}
+				return;
+			}
+			int depth = 0;
+			do {
+				c = peek();
+				if (c == '"') {
+					readString();
+					continue;
+				}
+				read();
+				if (c == '{' || c == '[')
+					depth++;
+				else if (c == '}' || c == ']')
+					depth--;
+				else if (c == -1)
+					throw syntaxError("Unterminated Value");
+			} while (depth > 0);
+		}
+
+		IOException syntaxError(String message) {
+			return new IOException(message);
+		}
+	}
+
+	// 从外层字符串(开引号之后)读取反转义后的字符,遇到闭引号结束;内层JsonReader读取到的即是内层Json
+	static final class UnescapingReader extends Reader {
+		final Lexer lexer;
+		boolean done = false;
+
+		UnescapingReader(Lexer lexer) {
+			this.lexer = lexer;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (done)
+				return -1;
+			int count = 0;
+			while (count < len) {
+				int c = lexer.read();
+				if (c == -1)
+					throw new IOException("Unterminated String");
+				if (c == '"') {
+					done = true;
+					break;
+				}
+				if (c == '\\')
+					c = readEscape();
+				cbuf[off + count++] = (char) c;
+			}
+			return count == 0 && done ? -1 : count;
+		}
+
+		int readEscape() throws IOException {
+			int c = lexer.read();
+			switch (c) {
+			case 'u': {
+				int value = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(lexer.read(), 16);
+					if (digit < 0)
+						throw new IOException("Malformed Unicode Escape");
+					value = (value << 4) | digit;
+				}
+				return value;
+			}
+			case 't':
+				return '\t';
+			case 'b':
+				return '\b';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 'f':
+				return '\f';
+			case -1:
+				throw new IOException("Unterminated Escape");
+			default:
+				// \" \\ \/ 及宽松模式下的其它字符
+				return c;
+			}
+		}
+
+		// 读完剩余部分直到闭引号
+		void drain() throws IOException {
+			char[] chunk = new char[64];
+			while (read(chunk, 0, chunk.length) != -1)
+				;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
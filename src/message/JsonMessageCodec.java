@@ -0,0 +1,29 @@
+package message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.google.gson.JsonParseException;
+
+//MessageCodec的Json实现,委托给JsonCodec
+public class JsonMessageCodec implements MessageCodec {
+
+	@Override
+	public int id() {
+		return JSON;
+	}
+
+	@Override
+	public ByteBuffer encode(Message msg, int offset) {
+		return JsonCodec.encode(msg, offset);
+	}
+
+	@Override
+	public Message decode(ByteBuffer frame) throws IOException {
+		try {
+			return JsonCodec.decode(frame.duplicate(), true);
+		} catch (JsonParseException e) {
+			throw new IOException(e.getMessage());
+		}
+	}
+}
@@ -1,19 +1,18 @@
 package message;
 
-import com.google.gson.Gson;
-
 public class Message implements MessageInterface{
 	public static final int rawType=0; //type为0时,回传纯文本信息
-	static Gson gson=new Gson();
 	public int type=0xff; 
 	public String data;
+	public transient MessageInterface payload; // 按type解码后的data,由MessageFactory.decodeMessage填充,不参与序列化
 	@Override
 	public boolean checkNotNull() {
-		return (type!=0xff && data!=null && !"".equals(data));
+		//解码了payload的消息不再保留data字符串
+		return (type!=0xff && ((data!=null && !"".equals(data)) || payload!=null));
 	}
 	@Override
 	public String toString() {
-		return gson.toJson(this);
+		return JsonCodec.toJson(this);
 	}
 	
 }
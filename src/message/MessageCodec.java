@@ -0,0 +1,19 @@
+package message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+//消息编解码SPI;每条与云服务器的连接在注册时通过RegistryMessage.codecs协商使用哪一种
+public interface MessageCodec {
+	int JSON = 0; // 嵌套Json,所有客户端都支持
+	int BINARY = 1; // 紧凑二进制,只能用于分帧连接
+
+	// 编号,在RegistryMessage.codecs中对应第id位
+	int id();
+
+	// 编码;offset为开头预留的字节数(帧头),返回的buffer从0开始
+	ByteBuffer encode(Message msg, int offset);
+
+	// 解码一帧,不移动frame的position;格式错误时抛出IOException
+	Message decode(ByteBuffer frame) throws IOException;
+}
@@ -1,52 +1,86 @@
 package message;
 
-import com.google.gson.Gson;
-import com.google.gson.JsonIOException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
 import com.google.gson.JsonParseException;
+import util.AbstractUtil;
 import util.Settings;
-import util.Util;
 
-//包装解封各种消息
+//包装解封各种消息;编解码由JsonCodec完成,格式与原先Gson生成的嵌套Json一致
+//与云服务器之间的分帧连接可在注册时协商改用其它MessageCodec,收到的帧按首字节自动识别编码
 public class MessageFactory {
-	static Gson gson = new Gson();
-	static Util util = Settings.util;
+	static AbstractUtil util = Settings.util;
+	static final MessageCodec[] codecs = { new JsonMessageCodec(), new BinaryCodec() }; // 下标即MessageCodec.id
 
 	private MessageFactory() {
 	};
 
+	public static MessageCodec codec(int id) {
+		return codecs[id];
+	}
+
+	// 本端支持的所有编码,用于RegistryMessage.codecs
+	public static int supportedCodecs() {
+		int mask = 0;
+		for (MessageCodec codec : codecs)
+			mask |= 1 << codec.id();
+		return mask;
+	}
+
+	// 选出双方都支持的编号最大的编码;对端未声明时使用Json
+	public static MessageCodec negotiate(int peerCodecs) {
+		for (int id = codecs.length - 1; id > 0; id--)
+			if ((peerCodecs & (1 << id)) != 0)
+				return codecs[id];
+		return codecs[MessageCodec.JSON];
+	}
+
+	// 带类型payload的基础消息,编码时直接写出payload
+	public static Message newMessage(int type, MessageInterface payload) {
+		Message base = new Message();
+		base.type = type;
+		base.payload = payload;
+		return base;
+	}
+
 	// 心跳消息
 	public static String wrapHeartbeatRequestMessage() {
-		return wrapHeartbeatMessage(HeartbeatMessage.REQUEST);
+		return wrapHeartbeatMessage(HeartbeatMessage.REQUEST, 0);
+	}
+
+	// 心跳消息;seq由请求方生成,用于匹配回传
+	public static String wrapHeartbeatRequestMessage(int seq) {
+		return wrapHeartbeatMessage(HeartbeatMessage.REQUEST, seq);
 	}
 
 	// 心跳消息
 	public static String wrapHeartbeatResponseMessage() {
-		return wrapHeartbeatMessage(HeartbeatMessage.VALID);
+		return wrapHeartbeatMessage(HeartbeatMessage.VALID, 0);
+	}
+
+	// 心跳消息;带回请求中的seq
+	public static String wrapHeartbeatResponseMessage(int seq) {
+		return wrapHeartbeatMessage(HeartbeatMessage.VALID, seq);
 	}
 
 	// 心跳消息
 	public static String wrapHeartbeatMessage(int status) {
+		return wrapHeartbeatMessage(status, 0);
+	}
+
+	// 心跳消息
+	public static String wrapHeartbeatMessage(int status, int seq) {
 		HeartbeatMessage msg = new HeartbeatMessage();
 		msg.status = status;
-
-		Message base = new Message();
-		base.data = gson.toJson(msg);
-		base.type = HeartbeatMessage.type;
-		return gson.toJson(base);
+		msg.seq = seq;
+		return JsonCodec.toJson(newMessage(HeartbeatMessage.type, msg));
 	}
 
 	// 心跳消息
 	public static HeartbeatMessage unwrapHeartbeatMessage(String json) {
-		try {
-			Message base = gson.fromJson(json, Message.class);
-			if (base == null || base.type != HeartbeatMessage.type)
-				return null;
-			HeartbeatMessage msg = gson.fromJson(base.data, HeartbeatMessage.class);
-			return msg;
-		} catch (JsonParseException e) {
-			util.log("JsonParseException: " + json);
-			return null;
-		}
+		return (HeartbeatMessage) unwrapPayload(json, HeartbeatMessage.type);
 	}
 
 	// 纯文本消息
@@ -54,13 +88,13 @@ public class MessageFactory {
 		Message base = new Message();
 		base.data = data;
 		base.type = Message.rawType;
-		return gson.toJson(base);
+		return JsonCodec.toJson(base);
 	}
 
-	// 纯文本消息
+	// 纯文本消息;data保留为字符串
 	public static Message unwrapMessage(String json) {
 		try {
-			Message base = gson.fromJson(json, Message.class);
+			Message base = JsonCodec.fromJson(json, false);
 			if (base == null || !base.checkNotNull())
 				return null;
 			return base;
@@ -70,58 +104,98 @@ public class MessageFactory {
 		}
 	}
 
+	// 解封基础消息并按type解码data,一次读取完成;未知type时data保留为字符串
+	public static Message decodeMessage(String json) {
+		try {
+			Message base = JsonCodec.fromJson(json, true);
+			if (base == null || !base.checkNotNull())
+				return null;
+			return base;
+		} catch (JsonParseException e) {
+			util.log("JsonParseException: " + json);
+			return null;
+		}
+	}
+
+	// 直接从收到的帧中解码,不复制出String;按首字节识别编码,frame的position不变
+	public static Message decodeMessage(ByteBuffer frame) {
+		boolean binary = BinaryCodec.isBinary(frame);
+		try {
+			Message base = codecs[binary ? MessageCodec.BINARY : MessageCodec.JSON].decode(frame);
+			if (base == null || !base.checkNotNull())
+				return null;
+			return base;
+		} catch (IOException e) {
+			if (binary)
+				util.log("Binary Decode Error: " + e.getMessage());
+			else
+				util.log("JsonParseException: " + new String(frame.array(), frame.arrayOffset() + frame.position(),
+						frame.remaining(), Settings.charset));
+			return null;
+		}
+	}
+
+	// 分帧消息体转为Json字符串;二进制编码的帧先解码再转换,供仍以字符串处理消息的一端使用
+	public static String toJson(ByteBuffer frame) {
+		if (BinaryCodec.isBinary(frame)) {
+			Message base = decodeMessage(frame);
+			return base == null ? "" : JsonCodec.toJson(base);
+		}
+		return new String(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining(), Settings.charset);
+	}
+
+	// 解封指定type的payload
+	static MessageInterface unwrapPayload(String json, int type) {
+		try {
+			Message base = JsonCodec.fromJson(json, true);
+			if (base == null || base.type != type)
+				return null;
+			return base.payload;
+		} catch (JsonParseException e) {
+			util.log("JsonParseException: " + json);
+			return null;
+		}
+	}
+
 	// 错误
 	public static String wrapErrorMessage(int code) {
 		ErrorMessage msg = new ErrorMessage();
 		msg.code = code;
 		return wrapErrorMessage(msg);
 	}
-	
+
 	//错误
 	public static String wrapErrorMessage(ErrorMessage msg) {
-		Message base = new Message();
-		base.data = gson.toJson(msg);
-		base.type = ErrorMessage.type;
-		return gson.toJson(base);
+		return JsonCodec.toJson(newMessage(ErrorMessage.type, msg));
 	}
 
 	// 错误
 	public static ErrorMessage unwrapErrorMessage(String json) {
-		try {
-			Message base = gson.fromJson(json, Message.class);
-			if (base == null || base.type != ErrorMessage.type)
-				return null;
-			ErrorMessage msg = gson.fromJson(base.data, ErrorMessage.class);
-			return msg;
-		} catch (JsonParseException e) {
-			util.log("JsonParseException: " + json);
-			return null;
-		}
+		return (ErrorMessage) unwrapPayload(json, ErrorMessage.type);
 	}
 
 	// 云服务器上的转发消息
 	public static String wrapCloudMessage(CloudMessage msg) {
-		Message base = new Message();
-		base.data = gson.toJson(msg);
-		base.type = CloudMessage.type;
-		return gson.toJson(base);
+		return JsonCodec.toJson(newMessage(CloudMessage.type, msg));
 	}
 
 	// 云服务器上的转发消息
 	public static String wrapCloudMessage(String fromKey, String toKey, String name, String data) {
+		return wrapCloudMessage(fromKey, toKey, name, data, 0);
+	}
+
+	// 云服务器上的转发消息;requestId随回传带回
+	public static String wrapCloudMessage(String fromKey, String toKey, String name, String data, int requestId) {
 		CloudMessage msg = new CloudMessage();
 		msg.fromKey = fromKey;
 		msg.toKey = toKey;
 		msg.info = name;
 		msg.data = data;
-
-		Message base = new Message();
-		base.data = gson.toJson(msg);
-		base.type = CloudMessage.type;
-		return gson.toJson(base);
+		msg.requestId = requestId;
+		return wrapCloudMessage(msg);
 	}
 
-	// 云服务器上的转发消息;控制器根据收到消息包装为响应消息
+	// 云服务器上的转发消息;控制器根据收到消息包装为响应消息,requestId随copy带回
 	public static String wrapRetCloudMessage(CloudMessage src, String dataJson) {
 		CloudMessage retCloudMsg=src.copy();
 		retCloudMsg.fromKey=src.toKey;
@@ -132,42 +206,77 @@ public class MessageFactory {
 
 	// 云服务器传送消息至本地服务器
 	public static CloudMessage unwrapCloudMessage(String json) {
-		try {
-			Message base = gson.fromJson(json, Message.class);
-			if (base == null || base.type != CloudMessage.type)
-				return null;
-			CloudMessage msg = gson.fromJson(base.data, CloudMessage.class);
-			return msg;
-		} catch (JsonParseException e) {
-			util.log("JsonParseException: " + json);
-			return null;
-		}
+		return (CloudMessage) unwrapPayload(json, CloudMessage.type);
+	}
+
+	// 组播
+	public static String wrapMulticastMessage(MulticastMessage msg) {
+		return JsonCodec.toJson(newMessage(MulticastMessage.type, msg));
+	}
+
+	// 组播;names与group二选一,requestId随汇总的回传带回
+	public static String wrapMulticastMessage(String fromKey, List<String> toKeys, List<String> names, String group,
+			String data, int requestId) {
+		MulticastMessage msg = new MulticastMessage();
+		msg.fromKey = fromKey;
+		msg.toKeys = toKeys;
+		msg.infos = names;
+		msg.group = group;
+		msg.data = data;
+		msg.requestId = requestId;
+		return wrapMulticastMessage(msg);
+	}
+
+	// 组播
+	public static MulticastMessage unwrapMulticastMessage(String json) {
+		return (MulticastMessage) unwrapPayload(json, MulticastMessage.type);
 	}
 
 	// 注册
 	public static String wrapRegistryMessage(String name, int deviceType) {
+		return wrapRegistryMessage(name, deviceType, 0);
+	}
+
+	// 注册;codecs为支持(请求时)或选定(响应时)的编码
+	public static String wrapRegistryMessage(String name, int deviceType, int codecs) {
+		return wrapRegistryMessage(name, deviceType, codecs, 0);
+	}
+
+	// 注册;credits为本端可同时处理的消息数(请求时)或授予对端的发送窗口(响应时)
+	public static String wrapRegistryMessage(String name, int deviceType, int codecs, int credits) {
+		return wrapRegistryMessage(name, deviceType, codecs, credits, null);
+	}
+
+	// 注册;token为重连时带回的会话令牌(请求时)或签发的会话令牌(响应时)
+	public static String wrapRegistryMessage(String name, int deviceType, int codecs, int credits, String token) {
+		return wrapRegistryMessage(name, deviceType, codecs, credits, token, false);
+	}
+
+	// 注册;heartbeats表示本端随时回传云服务器的心跳请求,云服务器据此决定是否做空闲检测
+	public static String wrapRegistryMessage(String name, int deviceType, int codecs, int credits, String token,
+			boolean heartbeats) {
 		RegistryMessage msg = new RegistryMessage();
 		msg.name = name;
 		msg.deviceType = deviceType;
+		msg.codecs = codecs;
+		msg.credits = credits;
+		msg.token = token;
+		msg.heartbeats = heartbeats;
+		return JsonCodec.toJson(newMessage(RegistryMessage.type, msg));
+	}
 
-		Message base = new Message();
-		base.data = gson.toJson(msg);
-		base.type = RegistryMessage.type;
-		return gson.toJson(base);
+	// 注册响应;密钥不属于本节点时让客户端改连所属节点
+	public static String wrapRedirectMessage(String name, String node) {
+		RegistryMessage msg = new RegistryMessage();
+		msg.name = name;
+		msg.deviceType = RegistryMessage.RESULT;
+		msg.redirect = node;
+		return JsonCodec.toJson(newMessage(RegistryMessage.type, msg));
 	}
 
 	// 注册
 	public static RegistryMessage unwrapRegistryMessage(String json) {
-		try {
-			Message base = gson.fromJson(json, Message.class);
-			if (base == null || base.type != RegistryMessage.type)
-				return null;
-			RegistryMessage msg = gson.fromJson(base.data, RegistryMessage.class);
-			return msg;
-		} catch (JsonParseException e) {
-			util.log("JsonParseException: " + json);
-			return null;
-		}
+		return (RegistryMessage) unwrapPayload(json, RegistryMessage.type);
 	}
 
 }
@@ -0,0 +1,69 @@
+package message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//组播:一条请求发往多个本地服务器上的多个设备,回传由云服务器汇总为一条。
+//请求:toKeys为目的本地服务器,每个本地服务器上的设备由infos列出或由group指定,data发给每个设备;
+//云服务器分发给各本地服务器的请求中不带toKeys,本地服务器看不到同一组播的其它目的密钥;
+//回传:keys、infos、results一一对应,为每个设备的本地服务器密钥、设备名及结果(同CloudMessage回传的data)
+public class MulticastMessage implements MessageInterface {
+	public final static int type = 5;
+	public String fromKey; // 请求时为遥控器密钥,本地服务器回传时为其密钥
+	public List<String> toKeys; // 请求时为目的本地服务器密钥,分发给本地服务器时为null;回传时为遥控器密钥
+	public List<String> infos; // 请求时为目的设备名,与group二选一;回传时为结果对应的设备名
+	public String group; // 本地服务器上定义的设备组
+	public String data; // 发给每个设备的数据
+	public int requestId; // 请求编号,由遥控器生成,汇总的回传原样带回
+	public List<String> keys; // 回传时结果对应的本地服务器密钥
+	public List<String> results; // 回传时每个设备的结果;不为null即表示回传
+
+	@Override
+	public boolean checkNotNull() {
+		if (fromKey == null || "".equals(fromKey))
+			return false;
+		if (isResult())
+			return toKeys != null && !toKeys.isEmpty() && keys != null && infos != null
+					&& keys.size() == results.size() && infos.size() == results.size();
+		return data != null && !"".equals(data)
+				&& ((infos != null && !infos.isEmpty()) || (group != null && !"".equals(group)));
+	}
+
+	public boolean isResult() {
+		return results != null;
+	}
+
+	// 追加一个设备的结果
+	public void addResult(String key, String info, String result) {
+		if (keys == null)
+			keys = new ArrayList<String>();
+		if (infos == null)
+			infos = new ArrayList<String>();
+		if (results == null)
+			results = new ArrayList<String>();
+		keys.add(key);
+		infos.add(info);
+		results.add(result);
+	}
+
+	@Override
+	public String toString() {
+		return "fromKey = " + fromKey + " toKeys = " + toKeys + (group != null ? " group = " + group : "")
+				+ (infos != null ? " names = " + infos : "") + (data != null ? " data = " + data : "")
+				+ (requestId != 0 ? " requestId = " + requestId : "")
+				+ (results != null ? " results = " + results.size() : "");
+	}
+
+	public MulticastMessage copy() {
+		MulticastMessage copyMsg = new MulticastMessage();
+		copyMsg.fromKey = fromKey;
+		copyMsg.toKeys = toKeys == null ? null : new ArrayList<String>(toKeys);
+		copyMsg.infos = infos == null ? null : new ArrayList<String>(infos);
+		copyMsg.group = group;
+		copyMsg.data = data;
+		copyMsg.requestId = requestId;
+		copyMsg.keys = keys == null ? null : new ArrayList<String>(keys);
+		copyMsg.results = results == null ? null : new ArrayList<String>(results);
+		return copyMsg;
+	}
+}
@@ -5,12 +5,18 @@ public class RegistryMessage implements MessageInterface {
 	public final static int LOCAL_SERVER = 1; //本地服务器
 	public final static int REMOTE_CONTROLLER = 0; //遥控器
 	public final static int RESULT = 2; //注册响应消息
+	public final static int CLOUD_NODE = 3; //集群中的其它云服务器节点,用于节点间转发
 	public String name; // 遥控器或本地服务器密钥
 	public int deviceType=0xff; 
+	public int codecs=0; // 支持的MessageCodec,第id位为1表示支持;注册响应中为云服务器选定的一种;0表示只支持Json(旧客户端)
+	public int credits=0; // 请求时为本端可同时处理的转发消息数;注册响应中为云服务器授予的发送窗口;0表示不限
+	public String redirect=null; // 注册响应中为密钥所属节点的"host:port",客户端应改连该节点重新注册;null表示不需要
+	public String token=null; // 注册响应中为云服务器签发的会话令牌;断线重连时随请求带回,在保留期内可恢复会话;null表示没有
+	public boolean heartbeats=false; // 请求时表示本端随时回传云服务器发来的心跳请求,云服务器只对声明了的连接做空闲检测;旧客户端为false
 
 	@Override
 	public boolean checkNotNull() {
 		return (type != 0xff && name != null && !"".equals(name) && 
-				(deviceType==LOCAL_SERVER || deviceType==REMOTE_CONTROLLER || deviceType==RESULT));
+				(deviceType==LOCAL_SERVER || deviceType==REMOTE_CONTROLLER || deviceType==RESULT || deviceType==CLOUD_NODE));
 	}
 }
@@ -0,0 +1,51 @@
+package util;
+
+//在Util之上提供日志级别、{}参数化日志及命令行提示;Util接口保持不变,其它平台的实现可直接实现Util,或继承本类只实现输出
+public abstract class AbstractUtil implements Util {
+	final LogLevel level;
+
+	protected AbstractUtil(LogLevel level) {
+		this.level = level;
+	}
+
+	// 同步输出一行
+	protected abstract void write(String line);
+
+	@Override
+	public void log(String msg) { // 等同于INFO级别
+		log(LogLevel.INFO, msg);
+	}
+
+	public boolean isEnabled(LogLevel level) {
+		return level.compareTo(this.level) >= 0 && level != LogLevel.OFF;
+	}
+
+	public void log(LogLevel level, String msg) {
+		if (isEnabled(level)) append(level, "{}", 1, msg, null, null);
+	}
+
+	// 参数化日志:format中的{}依次替换为参数;级别未开启时不拼接字符串,开启时在调用线程拼接
+	public void log(LogLevel level, String format, Object arg) {
+		if (isEnabled(level)) append(level, format, 1, arg, null, null);
+	}
+
+	public void log(LogLevel level, String format, Object arg1, Object arg2) {
+		if (isEnabled(level)) append(level, format, 2, arg1, arg2, null);
+	}
+
+	public void log(LogLevel level, String format, Object... args) {
+		if (isEnabled(level)) append(level, format, args.length, null, null, args);
+	}
+
+	// 命令行界面的提示及结果,在调用线程同步输出
+	public void prompt(String msg) {
+		write(msg);
+	}
+
+	// 输出一条已开启级别的日志;子类可改为异步输出
+	void append(LogLevel level, String format, int count, Object arg1, Object arg2, Object[] args) {
+		StringBuilder sb = new StringBuilder();
+		AsyncAppender.format(sb, format, count, arg1, arg2, args);
+		write(sb.toString());
+	}
+}
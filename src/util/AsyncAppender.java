@@ -0,0 +1,150 @@
+package util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+//异步日志输出:调用线程拼接好日志后放入无锁队列,参数在记录时即转为字符串,由后台线程批量写出,队列取空时才flush;
+//队列满时丢弃DEBUG及以下的日志并计数,INFO及以上改为同步写出。线程安全
+public class AsyncAppender implements Closeable {
+	final MpscRingBuffer<String> queue;
+	final PrintStream out;
+	final Writer writer;
+	final ReentrantLock writeLock = new ReentrantLock(); // 写writer期间持有,后台线程的一批与同步写出的一行不交错
+	final AtomicLong dropped = new AtomicLong(); // 队列满被丢弃的日志数
+	final Thread worker;
+	volatile boolean closed = false;
+
+	public AsyncAppender(OutputStream stream, int capacity) {
+		this.out = stream instanceof PrintStream ? (PrintStream) stream : new PrintStream(stream, true);
+		this.writer = new BufferedWriter(new OutputStreamWriter(out), 8192);
+		this.queue = new MpscRingBuffer<String>(capacity, WaitStrategy.PARK);
+		worker = new Thread(new Worker(), "AsyncAppender");
+		worker.setDaemon(true);
+		worker.start();
+		// 退出时写完队列中剩余的日志
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				close();
+			}
+		}, "AsyncAppender-Shutdown"));
+	}
+
+	// count为参数个数;3个及以上的参数放在args中。在调用线程拼接,之后参数的变化不影响日志内容
+	public void append(LogLevel level, String format, int count, Object arg1, Object arg2, Object[] args) {
+		StringBuilder sb = new StringBuilder();
+		format(sb, format, count, arg1, arg2, args);
+		String line = sb.toString();
+		if (closed || !queue.offer(line)) {
+			if (level.compareTo(LogLevel.INFO) >= 0)
+				writeNow(line);
+			else
+				dropped.incrementAndGet();
+		}
+	}
+
+	// 在调用线程同步写出并flush,返回时已输出;用于命令行界面的提示,须在读取输入前出现
+	public void writeNow(String line) {
+		writeLock.lock();
+		try {
+			writer.write(line);
+			writer.write(System.lineSeparator());
+			writer.flush();
+		} catch (IOException e) {
+			// 输出流已关闭
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	class Worker implements Runnable {
+		@Override
+		public void run() {
+			long reported = 0;
+			while (!closed) {
+				try {
+					String line = queue.poll(1, TimeUnit.SECONDS);
+					if (line == null)
+						continue;
+					writeLock.lock();
+					try {
+						do {
+							write(line);
+						} while ((line = queue.poll()) != null);
+						long count = dropped.get();
+						if (count != reported) {
+							write((count - reported) + " Log Messages Dropped (Queue Full)");
+							reported = count;
+						}
+						writer.flush();
+					} finally {
+						writeLock.unlock();
+					}
+				} catch (InterruptedException e) {
+					break;
+				} catch (IOException e) {
+					// 输出流已关闭,不再写出
+					break;
+				}
+			}
+		}
+	}
+
+	// 由持有writeLock的线程调用
+	void write(String line) throws IOException {
+		writer.write(line);
+		writer.write(System.lineSeparator());
+	}
+
+	// 把format中的{}依次替换为参数,多余的{}原样保留
+	static void format(StringBuilder sb, String format, int count, Object arg1, Object arg2, Object[] args) {
+		if (format == null) {
+			sb.append("null");
+			return;
+		}
+		int start = 0;
+		for (int i = 0; i < count; i++) {
+			int index = format.indexOf("{}", start);
+			if (index < 0)
+				break;
+			sb.append(format, start, index);
+			sb.append(args != null ? args[i] : i == 0 ? arg1 : arg2);
+			start = index + 2;
+		}
+		sb.append(format, start, format.length());
+	}
+
+	// 写出队列中剩余的日志后停止
+	@Override
+	public synchronized void close() {
+		if (closed)
+			return;
+		closed = true;
+		worker.interrupt();
+		try {
+			worker.join(1000);
+		} catch (InterruptedException e) {
+		}
+		writeLock.lock();
+		try {
+			for (String line; (line = queue.poll()) != null;)
+				write(line);
+			writer.flush();
+		} catch (IOException e) {
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package util;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+//按指定字符集直接从ByteBuffer中解码字符,不复制出byte[]或String;读取会移动buffer的position
+//非线程安全
+public class ByteBufferReader extends Reader {
+	final ByteBuffer buffer;
+	final CharsetDecoder decoder;
+	boolean flushed = false;
+
+	public ByteBufferReader(ByteBuffer buffer, Charset charset) {
+		this.buffer = buffer;
+		this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	@Override
+	public int read() {
+		if (buffer.hasRemaining()) {
+			byte b = buffer.get(buffer.position());
+			if (b >= 0) {
+				// ASCII
+				buffer.position(buffer.position() + 1);
+				return b;
+			}
+		}
+		char[] c = new char[1];
+		return read(c, 0, 1) == -1 ? -1 : c[0];
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) {
+		if (len == 0)
+			return 0;
+		CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+		if (buffer.hasRemaining()) {
+			CoderResult result = decoder.decode(buffer, out, true);
+			if (result.isUnderflow() && !buffer.hasRemaining() && !flushed) {
+				decoder.flush(out);
+				flushed = true;
+			}
+		} else if (!flushed) {
+			decoder.flush(out);
+			flushed = true;
+		}
+		int count = out.position() - off;
+		return count == 0 ? -1 : count;
+	}
+
+	@Override
+	public boolean ready() {
+		return buffer.hasRemaining();
+	}
+
+	@Override
+	public void close() {
+	}
+}
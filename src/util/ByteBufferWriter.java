@@ -0,0 +1,209 @@
+package util;
+
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+//按指定字符集将字符直接编码进可扩容的ByteBuffer;ASCII字符直接写入,其余字符交给CharsetEncoder
+//非线程安全;字符集须兼容ASCII(gb2312、UTF-8等)
+public class ByteBufferWriter extends Writer {
+	ByteBuffer buffer;
+	final CharsetEncoder encoder;
+	final CharBuffer pending = CharBuffer.allocate(2); // 非ASCII字符,含代理对
+	char highSurrogate = 0;
+
+	public ByteBufferWriter(Charset charset, int initialCapacity) {
+		this(charset, initialCapacity, 0);
+	}
+
+	// offset为预留在开头的字节数,用于之后填写帧头
+	public ByteBufferWriter(Charset charset, int initialCapacity, int offset) {
+		buffer = ByteBuffer.allocate(Math.max(initialCapacity, offset + 16));
+		buffer.position(offset);
+		encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	void ensure(int n) {
+		if (buffer.remaining() >= n)
+			return;
+		int capacity = buffer.capacity() << 1;
+		while (capacity - buffer.position() < n)
+			capacity <<= 1;
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+
+	@Override
+	public void write(int c) {
+		if (c < 0x80 && highSurrogate == 0) {
+			ensure(1);
+			buffer.put((byte) c);
+			return;
+		}
+		writeSlow((char) c);
+	}
+
+	// 非ASCII字符逐个编码;代理对凑齐后一起编码
+	void writeSlow(char c) {
+		if (highSurrogate != 0) {
+			pending.put(highSurrogate);
+			highSurrogate = 0;
+			if (Character.isLowSurrogate(c)) {
+				pending.put(c);
+				encodePending();
+				return;
+			}
+			encodePending();
+		}
+		if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+			return;
+		}
+		if (c < 0x80) {
+			ensure(1);
+			buffer.put((byte) c);
+			return;
+		}
+		pending.put(c);
+		encodePending();
+	}
+
+	void encodePending() {
+		pending.flip();
+		encoder.reset();
+		for (;;) {
+			CoderResult result = encoder.encode(pending, buffer, true);
+			if (result.isOverflow()) {
+				ensure(buffer.remaining() + 8);
+				continue;
+			}
+			break;
+		}
+		for (;;) {
+			CoderResult result = encoder.flush(buffer);
+			if (result.isOverflow()) {
+				ensure(buffer.remaining() + 8);
+				continue;
+			}
+			break;
+		}
+		pending.clear();
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+		ensure(len);
+		for (int i = off, end = off + len; i < end; i++) {
+			char c = cbuf[i];
+			if (c < 0x80 && highSurrogate == 0) {
+				if (!buffer.hasRemaining())
+					ensure(end - i);
+				buffer.put((byte) c);
+			} else
+				writeSlow(c);
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+		ensure(len);
+		for (int i = off, end = off + len; i < end; i++) {
+			char c = str.charAt(i);
+			if (c < 0x80 && highSurrogate == 0) {
+				if (!buffer.hasRemaining())
+					ensure(end - i);
+				buffer.put((byte) c);
+			} else
+				writeSlow(c);
+		}
+	}
+
+	@Override
+	public void write(String str) {
+		write(str, 0, str.length());
+	}
+
+	// 写入单个字节
+	public void writeByte(int b) {
+		position();
+		ensure(1);
+		buffer.put((byte) b);
+	}
+
+	// 无符号varint,每字节7位,低位在前
+	public void writeVarint(int value) {
+		position();
+		ensure(5);
+		while ((value & ~0x7f) != 0) {
+			buffer.put((byte) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	// varint字节长度+按字符集编码的内容;先假设长度占1字节直接写入,超过127字节时再后移内容
+	public void writeLengthPrefixed(String s) {
+		int lengthAt = position();
+		ensure(1 + s.length());
+		buffer.put((byte) 0);
+		write(s, 0, s.length());
+		int end = position();
+		int length = end - lengthAt - 1;
+		int extra = varintSize(length) - 1;
+		if (extra > 0) {
+			ensure(extra);
+			byte[] array = buffer.array();
+			System.arraycopy(array, lengthAt + 1, array, lengthAt + 1 + extra, length);
+			buffer.position(end + extra);
+		}
+		int pos = lengthAt;
+		int value = length;
+		byte[] array = buffer.array();
+		while ((value & ~0x7f) != 0) {
+			array[pos++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		array[pos] = (byte) value;
+	}
+
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	// 当前写入位置
+	public int position() {
+		if (highSurrogate != 0) {
+			pending.put(highSurrogate);
+			highSurrogate = 0;
+			encodePending();
+		}
+		return buffer.position();
+	}
+
+	// 结束写入,返回从0开始(含预留字节)的可读buffer
+	public ByteBuffer flip() {
+		position();
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
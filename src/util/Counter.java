@@ -0,0 +1,40 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//分段计数器:各线程按线程id累加到不同的分段,读取时求和;多线程频繁累加时不在同一个缓存行上竞争。线程安全
+public class Counter {
+	static final int Padding = 16; // 相邻分段间隔16个long,即128字节,避免伪共享
+	static final int Stripes;
+	static {
+		int size = 1;
+		while (size < Runtime.getRuntime().availableProcessors() * 2)
+			size <<= 1;
+		Stripes = size;
+	}
+
+	final AtomicLongArray cells = new AtomicLongArray(Stripes * Padding);
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long x) {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		cells.getAndAdd(((h >>> 16) & (Stripes - 1)) * Padding, x);
+	}
+
+	// 并发累加时为近似值
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < Stripes; i++)
+			sum += cells.get(i * Padding);
+		return sum;
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(sum());
+	}
+}
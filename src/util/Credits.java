@@ -0,0 +1,104 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+//信用窗口:每条在途消息占用一个信用,处理完成后归还;信用用尽时调用方应暂停发送或读取。window<=0表示不限
+//线程安全
+public class Credits {
+	final int window;
+	final AtomicInteger available;
+	public volatile Runnable onAvailable = null; // 信用由用尽变为可用时调用,在归还信用的线程中执行
+
+	public Credits(int window) {
+		this.window = window;
+		this.available = new AtomicInteger(Math.max(0, window));
+	}
+
+	public boolean isLimited() {
+		return window > 0;
+	}
+
+	public int window() {
+		return window;
+	}
+
+	public int available() {
+		return isLimited() ? available.get() : Integer.MAX_VALUE;
+	}
+
+	public boolean hasAvailable() {
+		return !isLimited() || available.get() > 0;
+	}
+
+	// 占用一个信用,已用尽时返回false
+	public boolean tryAcquire() {
+		if (!isLimited())
+			return true;
+		for (;;) {
+			int n = available.get();
+			if (n <= 0)
+				return false;
+			if (available.compareAndSet(n, n - 1))
+				return true;
+		}
+	}
+
+	// 等待并占用一个信用,超时返回false
+	public boolean acquire(long timeoutMillis) throws InterruptedException {
+		if (tryAcquire())
+			return true;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (this) {
+			while (!tryAcquire()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	// 等待直到有可用信用但不占用;用于唯一的占用者(如某个连接的生产者)在占用前等待,超时返回false
+	public boolean awaitAvailable(long timeoutMillis) throws InterruptedException {
+		if (hasAvailable())
+			return true;
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (this) {
+			while (!hasAvailable()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					return false;
+				wait(remaining);
+			}
+			return true;
+		}
+	}
+
+	// 归还一个信用,不超过窗口;由用尽变为可用时唤醒等待者、回调onAvailable并返回true
+	public boolean release() {
+		if (!isLimited())
+			return false;
+		for (;;) {
+			int n = available.get();
+			if (n >= window)
+				return false;
+			if (available.compareAndSet(n, n + 1)) {
+				if (n != 0)
+					return false;
+				synchronized (this) {
+					notifyAll();
+				}
+				Runnable callback = onAvailable;
+				if (callback != null)
+					callback.run();
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return isLimited() ? available.get() + "/" + window : "unlimited";
+	}
+}
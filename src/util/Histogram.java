@@ -0,0 +1,93 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//纳秒延迟直方图:按2的幂分段,每段再线性分为16个桶,相对误差不超过1/16;记录只做几次原子累加,不加锁。
+//桶按线程分为几组,多线程记录相近的延迟时不在同一个桶上竞争,读取时合并。线程安全
+public class Histogram {
+	static final int SubBucketBits = 4, SubBuckets = 1 << SubBucketBits;
+	static final int BucketCount = (64 - SubBucketBits) * SubBuckets;
+	static final int Stripes = Math.min(4, Counter.Stripes); // 每组约7.5KB,组数不随核数增长
+
+	final AtomicLongArray buckets = new AtomicLongArray(Stripes * BucketCount);
+	final Counter count = new Counter(), sum = new Counter();
+	final AtomicLong max = new AtomicLong();
+
+	// 负值按0记录
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets.incrementAndGet(stripe() * BucketCount + indexOf(nanos));
+		count.increment();
+		sum.add(nanos);
+		for (long current; nanos > (current = max.get());)
+			if (max.compareAndSet(current, nanos))
+				break;
+	}
+
+	// 与Counter相同的线程散列
+	static int stripe() {
+		long id = Thread.currentThread().getId();
+		int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return (h >>> 16) & (Stripes - 1);
+	}
+
+	static int indexOf(long value) {
+		if (value < SubBuckets)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SubBucketBits;
+		return (shift + 1) * SubBuckets + (int) (value >>> shift) - SubBuckets;
+	}
+
+	// 桶中的最大值
+	static long upperBound(int index) {
+		if (index < SubBuckets)
+			return index;
+		int shift = index / SubBuckets - 1;
+		long sub = index % SubBuckets + SubBuckets;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / n;
+	}
+
+	// 第p百分位(0~100)所在桶的上界,不超过记录到的最大值
+	public long getPercentile(double p) {
+		long[] snapshot = new long[BucketCount];
+		long total = 0;
+		for (int i = 0; i < BucketCount; i++) {
+			long n = 0;
+			for (int stripe = 0; stripe < Stripes; stripe++)
+				n += buckets.get(stripe * BucketCount + i);
+			total += snapshot[i] = n;
+		}
+		if (total == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(total * p / 100));
+		long seen = 0;
+		for (int i = 0; i < BucketCount; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return "count = " + getCount() + " mean = " + getMean() / 1000 + "us p50 = " + getPercentile(50) / 1000
+				+ "us p99 = " + getPercentile(99) / 1000 + "us p999 = " + getPercentile(99.9) / 1000 + "us max = "
+				+ getMax() / 1000 + "us";
+	}
+}
@@ -10,7 +10,17 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class JavaUtil implements Util{
+public class JavaUtil extends AbstractUtil{
+	final AsyncAppender appender; // 为null时在调用线程同步输出
+
+	public JavaUtil(){
+		this(Settings.LoggingLevel,Settings.AsyncLogging);
+	}
+
+	public JavaUtil(LogLevel level,boolean async){
+		super(level);
+		this.appender=async?new AsyncAppender(System.out,Settings.AsyncLogBufferSize):null;
+	}
 	
 	public static void main(String[] args){
 		JavaUtil util=new JavaUtil();
@@ -18,10 +28,23 @@ public class JavaUtil implements Util{
 			util.log(addr+"");
 		}
 	}
-	
+
+	@Override
+	protected void write(String line){
+		System.out.println(line);
+	}
+
+	//命令行提示不经过异步日志队列
+	@Override
+	public void prompt(String msg){
+		if (appender!=null) appender.writeNow(msg);
+		else write(msg);
+	}
+
 	@Override
-	public void log(String msg){
-		System.out.println(msg);
+	void append(LogLevel level,String format,int count,Object arg1,Object arg2,Object[] args){
+		if (appender!=null) appender.append(level,format,count,arg1,arg2,args);
+		else super.append(level,format,count,arg1,arg2,args);
 	}
 	
 	@Override
@@ -0,0 +1,11 @@
+package util;
+
+//日志级别;低于Settings.LoggingLevel的日志直接丢弃,不拼接字符串
+public enum LogLevel {
+	TRACE, // 逐字节、逐帧的细节
+	DEBUG, // 每条消息的收发、转发
+	INFO, // 连接、注册等生命周期事件及命令行界面输出
+	WARN, // 可恢复的错误
+	ERROR, // 服务无法继续
+	OFF
+}
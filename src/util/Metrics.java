@@ -0,0 +1,81 @@
+package util;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+//计数器、瞬时值及延迟直方图的注册表,按名称取得或创建;调用方应在初始化时取得并保存,热路径上不再按名称查找。线程安全
+public class Metrics {
+	// 读取时才计算的瞬时值,如队列深度
+	public interface Gauge {
+		long value();
+	}
+
+	final ConcurrentMap<String, Object> metrics = new ConcurrentSkipListMap<String, Object>(); // 按名称排序
+
+	// 已注册时直接返回,不分配新的Counter
+	public Counter counter(String name) {
+		Object existing = metrics.get(name);
+		if (existing instanceof Counter)
+			return (Counter) existing;
+		return (Counter) getOrCreate(name, new Counter());
+	}
+
+	public Histogram histogram(String name) {
+		Object existing = metrics.get(name);
+		if (existing instanceof Histogram)
+			return (Histogram) existing;
+		return (Histogram) getOrCreate(name, new Histogram());
+	}
+
+	// 同名的Gauge以先注册的为准
+	public Gauge gauge(String name, Gauge gauge) {
+		return (Gauge) getOrCreate(name, gauge);
+	}
+
+	Object getOrCreate(String name, Object metric) {
+		Object existing = metrics.putIfAbsent(name, metric);
+		if (existing == null)
+			return metric;
+		if (existing.getClass() != metric.getClass() && !(existing instanceof Gauge && metric instanceof Gauge))
+			throw new IllegalArgumentException("Metric " + name + " Already Registered as " + existing.getClass());
+		return existing;
+	}
+
+	// 当前值的快照,按名称排序;直方图展开为name.count、name.mean、name.p50、name.p99、name.p999、name.max,单位纳秒
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			String name = entry.getKey();
+			Object metric = entry.getValue();
+			if (metric instanceof Counter)
+				snapshot.put(name, ((Counter) metric).sum());
+			else if (metric instanceof Gauge)
+				snapshot.put(name, ((Gauge) metric).value());
+			else if (metric instanceof Histogram) {
+				Histogram histogram = (Histogram) metric;
+				snapshot.put(name + ".count", histogram.getCount());
+				snapshot.put(name + ".mean", histogram.getMean());
+				snapshot.put(name + ".p50", histogram.getPercentile(50));
+				snapshot.put(name + ".p99", histogram.getPercentile(99));
+				snapshot.put(name + ".p999", histogram.getPercentile(99.9));
+				snapshot.put(name + ".max", histogram.getMax());
+			}
+		}
+		return snapshot;
+	}
+
+	// 每项一行
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+			Object metric = entry.getValue();
+			sb.append(entry.getKey()).append(": ");
+			sb.append(metric instanceof Gauge ? ((Gauge) metric).value() : metric);
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+}
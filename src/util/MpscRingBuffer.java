@@ -0,0 +1,143 @@
+package util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+//预分配的无锁有界队列,多生产者单消费者;offer不阻塞,队列满时返回false
+//每个槽位带序号:序号等于写入位置时槽位可写,等于写入位置+1时可读,生产者之间只在tail上CAS
+public class MpscRingBuffer<E> {
+	static final int SpinTries = 100, YieldTries = 100; // PARK策略在park前的自旋、让出次数
+
+	final int capacity, mask;
+	final AtomicReferenceArray<E> buffer;
+	final AtomicLongArray sequences;
+	final AtomicLong tail = new AtomicLong(); // 下一个写入位置,生产者竞争
+	final AtomicLong head = new AtomicLong(); // 下一个读取位置,只由消费者写入
+	final WaitStrategy waitStrategy;
+	volatile Thread waiter = null; // park中的消费者线程
+	volatile boolean woken = false; // wakeup后poll(timeout)提前返回null
+
+	public MpscRingBuffer(int capacity, WaitStrategy waitStrategy) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.buffer = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+		this.waitStrategy = waitStrategy;
+	}
+
+	// 任意线程调用;队列已满返回false
+	public boolean offer(E e) {
+		if (e == null)
+			throw new NullPointerException();
+		long pos = tail.get();
+		int index;
+		for (;;) {
+			index = (int) pos & mask;
+			long diff = sequences.get(index) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1))
+					break;
+				pos = tail.get();
+			} else if (diff < 0) {
+				// 槽位尚未被消费者释放,队列已满
+				return false;
+			} else {
+				// 被其它生产者抢先
+				pos = tail.get();
+			}
+		}
+		buffer.lazySet(index, e);
+		sequences.set(index, pos + 1); // 发布;volatile写保证与下面读取waiter的顺序
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+		return true;
+	}
+
+	// 只能由消费者线程调用;队列为空返回null
+	public E poll() {
+		long pos = head.get();
+		int index = (int) pos & mask;
+		if (sequences.get(index) != pos + 1)
+			return null;
+		E e = buffer.get(index);
+		buffer.lazySet(index, null);
+		sequences.lazySet(index, pos + capacity); // 释放槽位给下一轮写入
+		head.lazySet(pos + 1);
+		return e;
+	}
+
+	// 只能由消费者线程调用;按等待策略等待,超时返回null
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int idle = 0;
+		for (;;) {
+			E e = poll();
+			if (e != null)
+				return e;
+			if (woken) {
+				woken = false;
+				return null;
+			}
+			if (Thread.interrupted())
+				throw new InterruptedException();
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return null;
+			switch (waitStrategy) {
+			case BUSY_SPIN:
+				break;
+			case YIELD:
+				Thread.yield();
+				break;
+			case PARK:
+			default:
+				if (idle < SpinTries) {
+					idle++;
+					break;
+				}
+				if (idle < SpinTries + YieldTries) {
+					idle++;
+					Thread.yield();
+					break;
+				}
+				waiter = Thread.currentThread();
+				e = poll(); // 设置waiter后再检查一次,避免丢失唤醒
+				if (e == null && !woken)
+					LockSupport.parkNanos(this, remaining);
+				waiter = null;
+				if (e != null)
+					return e;
+				break;
+			}
+		}
+	}
+
+	// 让消费者的poll(timeout)尽快返回,即使队列为空;用于通知消费者处理队列之外的事件,可由任意线程调用
+	public void wakeup() {
+		woken = true;
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	// 近似值,可由任意线程调用
+	public int size() {
+		long size = tail.get() - head.get();
+		if (size < 0)
+			return 0;
+		return (int) Math.min(size, capacity);
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+}
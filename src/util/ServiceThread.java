@@ -0,0 +1,98 @@
+package util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//循环服务的执行载体:Settings.VirtualThreads开启且运行在JDK 21及以上时使用虚拟线程,否则使用平台线程。
+//原先继承Thread的服务改为继承此类,start、isAlive、interrupt、join的用法不变。虚拟线程通过反射创建,源码仍按Java 7编译
+public abstract class ServiceThread implements Runnable {
+	static final AbstractUtil util = Settings.util;
+	static final AtomicInteger count = new AtomicInteger();
+	static final Method ofVirtual, name, unstarted; // Thread.ofVirtual()、Thread.Builder.name(String)、unstarted(Runnable)
+	static final boolean virtual;
+
+	static {
+		Method ofVirtualMethod = null, nameMethod = null, unstartedMethod = null;
+		boolean supported = false;
+		if (Settings.VirtualThreads) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+				nameMethod = builder.getMethod("name", String.class);
+				unstartedMethod = builder.getMethod("unstarted", Runnable.class);
+				ofVirtualMethod.invoke(null); // JDK 19、20未开启预览时抛出异常
+				supported = true;
+			} catch (Exception e) {
+				util.log(LogLevel.WARN, "Virtual Threads not Supported on Java {}, Use Platform Threads",
+						System.getProperty("java.version"));
+			}
+		}
+		ofVirtual = ofVirtualMethod;
+		name = nameMethod;
+		unstarted = unstartedMethod;
+		virtual = supported;
+	}
+
+	final String threadName;
+	volatile Thread thread = null;
+
+	protected ServiceThread() {
+		this(null);
+	}
+
+	protected ServiceThread(String name) {
+		this.threadName = name != null ? name : getClass().getSimpleName() + "-" + count.incrementAndGet();
+	}
+
+	// 是否使用虚拟线程
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	// 创建尚未启动的线程;虚拟线程不可设为非守护线程
+	public static Thread newThread(Runnable task, String threadName) {
+		if (virtual) {
+			try {
+				return (Thread) unstarted.invoke(name.invoke(ofVirtual.invoke(null), threadName), task);
+			} catch (Exception e) {
+				util.log(LogLevel.WARN, "Create Virtual Thread Failed: {}", e);
+			}
+		}
+		return new Thread(task, threadName);
+	}
+
+	// 只能启动一次
+	public void start() {
+		if (thread != null)
+			throw new IllegalThreadStateException(threadName);
+		Thread thread = newThread(this, threadName);
+		this.thread = thread;
+		thread.start();
+	}
+
+	public boolean isAlive() {
+		Thread thread = this.thread;
+		return thread != null && thread.isAlive();
+	}
+
+	public void interrupt() {
+		Thread thread = this.thread;
+		if (thread != null)
+			thread.interrupt();
+	}
+
+	public void join(long millis) throws InterruptedException {
+		Thread thread = this.thread;
+		if (thread != null)
+			thread.join(millis);
+	}
+
+	public String getName() {
+		return threadName;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + threadName + (virtual ? " virtual]" : "]");
+	}
+}
@@ -3,7 +3,10 @@ package util;
 import java.nio.charset.Charset;
 
 public class Settings {
-	public static final Util util=new JavaUtil();
+	public static final LogLevel LoggingLevel=LogLevel.INFO; //低于此级别的日志不输出,逐条消息的收发为DEBUG
+	public static final boolean AsyncLogging=true; //日志由后台线程写出,调用线程不等待stdout
+	public static final int AsyncLogBufferSize=8192; //异步日志队列容量,满时丢弃DEBUG及以下的日志
+	public static final AbstractUtil util=new JavaUtil();
 	public static final Charset charset=Charset.forName("gb2312");
 	public static final String Sign ="KELLES";
 	public static final String ToKeyStr ="ToKey"; //遥控器里保存对端密钥
@@ -16,6 +19,9 @@ public class Settings {
 	public static final String TimeManagerStr ="TimeManager"; //是否第一次打开app
 	public static final long ConnectTimeout =2000; //使用CheckValid和连接至云服务器时超时
 	public static final long SocketTimeout =500; //TickerManager超时
+	public static final long TimerTickMillis =10; //共用时间轮的tick间隔,即定时精度
+	public static final int TimerWheelSize =512; //时间轮槽数,取2的幂;超过一圈的任务按圈数计
+	public static final int TimerCallbackThreads =2; //执行到期任务及Ticker回调的线程数
 	
 	public static final int DeviceWifiSimulatorPort=8000;
 	public static final String DeviceWifiSimulatorAddress="192.168.1.233";
@@ -25,6 +31,48 @@ public class Settings {
 	public static final String CloudServerPortStr="CloudServerPort";
 	public static final String CloudServerAddress="119.23.51.183";
 	public static final int CloudServerPort=8001;
+	public static final boolean FramedWire=false; //云服务器与遥控器、本地服务器之间是否使用长度前缀分帧
+	public static final boolean BinaryCodec=true; //分帧连接上是否在注册时协商紧凑二进制编码;须同时开启FramedWire,未分帧的连接始终使用Json
+	public static final int MaxFrameLength=1<<20; //单帧最大字节数,超过时断开连接
+	public static final boolean CloudServerReactorMode=false; //云服务器是否使用Selector事件循环,false为每个连接一个生产者线程
+	public static final int CloudServerReactorThreads=2; //事件循环线程数
+	public static final long CloudHandshakeTimeout=5000; //新连接须在此期限内发来注册消息,否则关闭
+	public static final int CloudRegistrarThreads=Runtime.getRuntime().availableProcessors(); //完成注册及echo的线程数,不同名字的注册并行
+	public static final int CloudWriteBatchSize=64; //一次gathering write最多合并的帧数
+	public static final int CloudWriterThreads=Runtime.getRuntime().availableProcessors(); //阻塞模式连接的写出线程数,发送队列已满的连接被移除,不会长期占住写出线程
+	public static final long CloudMaxOutboundBytes=4<<20; //每个连接发送队列中未写出的字节上限,超过时立即发送失败,调用方视为连接断开
+	public static final int CloudConsumerThreads=Runtime.getRuntime().availableProcessors(); //消费者线程数,消息按toKey分片
+	public static final int CloudTaskQueueCapacity=1024; //每个分片的消息队列容量,向上取整为2的幂
+	public static final WaitStrategy CloudQueueWaitStrategy=WaitStrategy.PARK; //消费者线程在队列为空时的等待方式
+	public static final int CloudCreditWindow=64; //每个连接可在云服务器上排队的转发消息数,用尽时暂停读取该连接;0表示不限
+	public static final int LocalDeviceManagerCredits=16; //本地服务器注册时声明的可同时处理的转发消息数,云服务器据此限制向其转发
+	public static final long CloudCreditTimeoutMillis=20000; //向本地服务器转发的请求等待回传的最长时间,超过时归还其占用的信用并回传c8错误;0表示不限,丢失的请求一直占用信用
+	public static final String CloudClusterNodes=""; //集群中所有云服务器节点"host:port,host:port",含本节点;为空时单节点运行
+	public static final int CloudClusterVirtualNodes=160; //每个节点在一致性哈希环上的虚拟节点数
+	public static final int CloudNodeCreditWindow=1024; //节点间连接可在对端排队的转发消息数,汇集了多个客户端的请求
+	public static final long CloudLinkRetryMillis=500; //与对端节点建立连接失败后的重试间隔,连续失败时逐次加倍;期间转发给该节点的消息立即失败
+	public static final long CloudLinkRetryMaxMillis=30000; //重试间隔的上限
+	public static final int MaxRegistryRedirects=2; //注册时最多跟随的集群重定向次数
+	public static final long CloudSessionGraceMillis=30000; //连接断开后会话的保留时间,期间凭令牌重连可恢复会话并回放暂存的消息
+	public static final int CloudSessionBufferSize=256; //会话断开期间每个密钥最多暂存的消息数,超出时按原方式回传错误
+	public static final String CloudMailboxDir=""; //离线本地服务器信箱的目录,为空时不暂存,目的密钥不在线时立即回传错误
+	public static final long CloudMailboxTtlMillis=600000; //信箱中消息的默认保留时间,CloudMessage.ttl可逐条指定
+	public static final int CloudMailboxSegmentBytes=4<<20; //信箱日志段大小,单条消息不能超过
+	public static final long CloudMailboxMaxBytes=256<<20; //信箱占用的磁盘上限,其中一个日志段留作压缩
+	public static final int CloudMailboxPerKey=1024; //每个密钥最多暂存的消息数
+	public static final long CloudMailboxSweepMillis=10000; //清理过期消息的间隔
+	public static final String CloudRegistryDir=""; //注册表快照及变更日志的目录,为空时不保存,重启后所有客户端须重新注册
+	public static final int CloudRegistryJournalLimit=10000; //变更日志超过此条数时合并进快照
+	public static final long CloudRestartGraceMillis=120000; //重启后为快照中的客户端保留会话的时间,期间凭令牌重连直接恢复,发往它们的消息暂存
+	public static final long CloudIdleMillis=30000; //连接超过此时间未收到消息时由云服务器发送心跳,只检测注册时声明随时回传心跳的连接;0表示不检测,只在发送失败时发现断开的连接
+	public static final long CloudIdleMaxMillis=240000; //持续有流量的连接检查间隔逐次加倍,最长到此值
+	public static final long CloudIdleTimeoutMillis=5000; //空闲检测心跳的回传期限,超过时连接被移除
+	public static final long CloudIdleReapMillis=1000; //未按时回传的连接攒够此时间后批量移除
+	public static final int CloudMulticastMaxKeys=256; //一条组播请求最多的目的本地服务器数
+	public static final long CloudMulticastTimeoutMillis=10000; //组播等待各本地服务器回传的时间,超过时未回传的部分以错误汇总
+	public static final boolean VirtualThreads=false; //阻塞式连接的服务线程(生产者、消费者、Service、echo设备)改用虚拟线程,需JDK 21及以上,低版本仍使用平台线程
+	public static final long ResumeReplyTimeout=5000; //遥控器恢复会话后等待断开前所发请求的回传的时间,超过时视为回传已随原连接丢失
+	public static final long ControllerReplyTimeout=30000; //遥控器等待一个请求的回传的最长时间,超过时请求失败;须长于CloudMulticastTimeoutMillis
 	
 	public static final int LocalDeviceManagerPort=8002;
 	public static final String LocalDeviceManagerAddress="192.168.1.233";
@@ -1,60 +1,100 @@
 package util;
 
 import java.io.Closeable;
-import java.util.Map;
-import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Kelles on 2017/5/18.
  */
-//线程安全
+//线程安全;超时由进程内共用的TimingWheel调度,每个Ticker只占一个时间轮节点,不再各自持有线程池
 public class TickerManager implements Closeable{
-    static Util util=Settings.util;
-    ScheduledThreadPoolExecutor threadPool=new ScheduledThreadPoolExecutor(3);
-    Map<String,Ticker> map=new ConcurrentHashMap<String,Ticker>();
-    Random random=new Random();
+    static AbstractUtil util=Settings.util;
+    final TimingWheel wheel;
+    ConcurrentMap<Integer,Ticker> map=new ConcurrentHashMap<Integer,Ticker>();
+    final AtomicInteger counter=new AtomicInteger();
+    volatile long lastRttNanos=-1; // 最近一次tick距put的时间
+    volatile boolean closed=false;
 
-    public boolean put(Runnable onSuccess,Runnable onTimeout,long timeout){
-        String key=null;
+    public TickerManager() {
+        this(TimingWheel.shared());
+    }
+
+    public TickerManager(TimingWheel wheel) {
+        this.wheel = wheel;
+    }
+
+    // 单调递增的key,跳过0;可作为请求序号随消息发出,回传时用tick(key)只完成对应的Ticker
+    public int nextKey(){
         for (;;){
-            key=String.valueOf(random.nextInt(1000000)+100000);
-            if (!map.containsKey(key)) break;
+            int key=counter.incrementAndGet();
+            if (key!=0) return key;
         }
-        return put(key,onSuccess,onTimeout,timeout);
     }
-    public synchronized boolean put(String key,Runnable onSuccess,Runnable onTimeout,long timeout){
-        if (key==null || "".equals(key)) return false;
-        if (threadPool.isShutdown()){
+
+    public boolean put(Runnable onSuccess,Runnable onTimeout,long timeout){
+        return put(nextKey(),onSuccess,onTimeout,timeout);
+    }
+    public synchronized boolean put(int key,Runnable onSuccess,Runnable onTimeout,long timeout){
+        if (key==0) return false;
+        if (closed){
             util.log("TickerManager Has Already Been Closed, Reject Put");
             return false;
         }
         Ticker ticker =new Ticker(key,onSuccess,onTimeout);
         if (map.containsKey(key)) return false;
         map.put(key, ticker);
-        ScheduledFuture<?> future=threadPool.schedule(new ScheduleRunnable(ticker),timeout, TimeUnit.MILLISECONDS);
-        ticker.future=future;
+        try {
+            ticker.timeout=wheel.newTimeout(new ScheduleRunnable(ticker),timeout, TimeUnit.MILLISECONDS);
+        }catch (RejectedExecutionException e){
+            map.remove(key);
+            util.log("TimingWheel Has Already Been Closed, Reject Put");
+            return false;
+        }
         return true;
     }
 
-    public boolean tick(String key){
+    // 先从map中移除者胜出,tick与超时只会执行其一;返回从put到tick的纳秒数,没有对应的Ticker时返回-1
+    public long tick(int key){
         Ticker ticker =map.remove(key);
-        if (ticker ==null) return false;
-        ticker.ticked =true;
-        if (ticker.future!=null) ticker.future.cancel(true);
-        if (ticker.onSuccess!=null) threadPool.execute(ticker.onSuccess);
-        return true;
+        if (ticker ==null) return -1;
+        long rtt=System.nanoTime()-ticker.startTime;
+        lastRttNanos=rtt;
+        if (ticker.timeout!=null) ticker.timeout.cancel();
+        if (ticker.onSuccess!=null) execute(ticker.onSuccess);
+        return rtt;
     }
 
+    // 完成所有Ticker;只用于不带序号的回传
     public void tickAll(){
-        for (String key:map.keySet())
+        for (Integer key:map.keySet())
             tick(key);
     }
 
+    // 移除Ticker且不执行任何回调;用于请求未能发出时
+    public boolean cancel(int key){
+        Ticker ticker =map.remove(key);
+        if (ticker ==null) return false;
+        if (ticker.timeout!=null) ticker.timeout.cancel();
+        return true;
+    }
+
+    public long getLastRttNanos(){
+        return lastRttNanos;
+    }
+
+    void execute(Runnable task){
+        if (closed) return;
+        try {
+            wheel.execute(task);
+        }catch (RejectedExecutionException e){
+            // 时间轮已关闭
+        }
+    }
+
     class ScheduleRunnable implements Runnable{
         Ticker ticker;
         public ScheduleRunnable(Ticker ticker) {
@@ -63,29 +103,30 @@ public class TickerManager implements Closeable{
         @Override
         public void run() {
             if (ticker ==null) return;
-            if (ticker.ticked) return;
-            else{
-                map.remove(ticker.key);
-                if (ticker.onTimeout!=null) threadPool.execute(ticker.onTimeout);
-            }
+            if (!map.remove(ticker.key, ticker)) return; // 已被tick
+            if (ticker.onTimeout!=null && !closed) ticker.onTimeout.run(); // 已在时间轮的回调线程中
         }
     }
 
     class Ticker {
-        String key;
-        volatile boolean ticked =false;
+        int key;
         Runnable onSuccess,onTimeout;
-        ScheduledFuture<?> future;
+        TimingWheel.Timeout timeout;
+        final long startTime=System.nanoTime();
 
-        public Ticker(String key, Runnable onSuccess, Runnable onTimeout) {
+        public Ticker(int key, Runnable onSuccess, Runnable onTimeout) {
             this.key = key;
             this.onSuccess = onSuccess;
             this.onTimeout = onTimeout;
         }
     }
 
+    // 取消所有未到期的Ticker;共用的时间轮不受影响
     @Override
     public synchronized void close(){
-        if (threadPool!=null) threadPool.shutdown();
+        closed=true;
+        for (Ticker ticker:map.values())
+            if (ticker.timeout!=null) ticker.timeout.cancel();
+        map.clear();
     }
 }
@@ -0,0 +1,233 @@
+package util;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+//哈希时间轮:所有定时任务共用一个tick线程,插入和取消都是O(1);到期的任务交给少量固定的回调线程执行
+//精度为一个tick,适用于心跳超时这类数量多、大多在到期前被取消的定时任务;线程安全
+public class TimingWheel implements Closeable {
+    static AbstractUtil util=Settings.util;
+    private static volatile TimingWheel shared=null;
+
+    final long tickNanos;
+    final Bucket[] wheel;
+    final int mask;
+    final Queue<Timeout> added=new ConcurrentLinkedQueue<Timeout>(); // 新加入的任务,由tick线程放入对应的槽
+    final Queue<Timeout> cancelled=new ConcurrentLinkedQueue<Timeout>(); // 已取消的任务,由tick线程从槽中摘除
+    final ExecutorService executor;
+    final Thread worker;
+    final long startTime=System.nanoTime();
+    volatile boolean closed=false;
+    long tick=0; // 只由tick线程访问
+
+    // 进程内共用的时间轮,首次使用时创建;已创建时不加锁,close后下次使用重新创建
+    public static TimingWheel shared(){
+        TimingWheel wheel=shared;
+        if (wheel!=null)
+            return wheel;
+        synchronized (TimingWheel.class){
+            if (shared==null)
+                shared=new TimingWheel(Settings.TimerTickMillis,TimeUnit.MILLISECONDS,Settings.TimerWheelSize,Settings.TimerCallbackThreads);
+            return shared;
+        }
+    }
+
+    public TimingWheel(long tickDuration,TimeUnit unit,int wheelSize,int callbackThreads){
+        tickNanos=Math.max(1,unit.toNanos(tickDuration));
+        int size=1;
+        while (size<wheelSize) size<<=1; // 取2的幂,用位与代替取模
+        wheel=new Bucket[size];
+        for (int i=0;i<size;i++) wheel[i]=new Bucket();
+        mask=size-1;
+        executor=Executors.newFixedThreadPool(Math.max(1,callbackThreads),new DaemonThreadFactory("TimingWheel-Callback"));
+        worker=new Thread(new Worker(),"TimingWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // delay之后执行task;返回的Timeout可用于取消
+    public Timeout newTimeout(Runnable task,long delay,TimeUnit unit){
+        if (closed) throw new RejectedExecutionException("TimingWheel Has Already Been Closed");
+        Timeout timeout=new Timeout(task,System.nanoTime()-startTime+unit.toNanos(Math.max(0,delay)));
+        added.offer(timeout);
+        return timeout;
+    }
+
+    // 在回调线程中执行,供到期回调之外的任务(如TickerManager的onSuccess)复用
+    public void execute(Runnable task){
+        executor.execute(task);
+    }
+
+    // 尚未到期及未取消的任务数;遍历队列,仅用于统计
+    public int pending(){
+        int count=0;
+        for (Bucket bucket:wheel)
+            synchronized (bucket){
+                for (Timeout t=bucket.head;t!=null;t=t.next) count++;
+            }
+        return count+added.size();
+    }
+
+    class Worker implements Runnable{
+        @Override
+        public void run() {
+            while (!closed){
+                // 等到下一个tick
+                long deadline=tickNanos*(tick+1);
+                for (;;){
+                    long sleep=deadline-(System.nanoTime()-startTime);
+                    if (sleep<=0 || closed) break;
+                    LockSupport.parkNanos(this,sleep);
+                }
+                if (closed) break;
+                removeCancelled();
+                transferAdded();
+                wheel[(int)(tick&mask)].expire();
+                tick++;
+            }
+        }
+
+        void removeCancelled(){
+            for (Timeout timeout;(timeout=cancelled.poll())!=null;){
+                Bucket bucket=timeout.bucket;
+                if (bucket!=null) bucket.remove(timeout);
+            }
+        }
+
+        void transferAdded(){
+            for (Timeout timeout;(timeout=added.poll())!=null;){
+                if (timeout.state!=Timeout.INIT) continue;
+                long calculated=timeout.deadline/tickNanos;
+                timeout.rounds=(calculated-tick)/wheel.length;
+                long ticks=Math.max(calculated,tick); // 已过期的放入当前槽,本次tick即执行
+                wheel[(int)(ticks&mask)].add(timeout);
+            }
+        }
+    }
+
+    // 一个槽中的任务,双向链表
+    class Bucket{
+        Timeout head,tail;
+
+        synchronized void add(Timeout timeout){
+            timeout.bucket=this;
+            if (head==null){
+                head=tail=timeout;
+            }else{
+                tail.next=timeout;
+                timeout.prev=tail;
+                tail=timeout;
+            }
+        }
+
+        synchronized void remove(Timeout timeout){
+            if (timeout.bucket!=this) return;
+            if (timeout.prev!=null) timeout.prev.next=timeout.next;
+            else head=timeout.next;
+            if (timeout.next!=null) timeout.next.prev=timeout.prev;
+            else tail=timeout.prev;
+            timeout.prev=timeout.next=null;
+            timeout.bucket=null;
+        }
+
+        // 执行本槽中剩余圈数为0的任务,其余圈数减1
+        void expire(){
+            Timeout timeout;
+            synchronized (this){
+                timeout=head;
+            }
+            while (timeout!=null){
+                Timeout next;
+                synchronized (this){
+                    next=timeout.next;
+                    if (timeout.rounds<=0){
+                        remove(timeout);
+                        timeout.expire();
+                    }else if (timeout.state==Timeout.CANCELLED){
+                        remove(timeout);
+                    }else{
+                        timeout.rounds--;
+                    }
+                }
+                timeout=next;
+            }
+        }
+    }
+
+    // 时间轮中的一个定时任务
+    public final class Timeout{
+        static final int INIT=0,CANCELLED=1,EXPIRED=2;
+        final Runnable task;
+        final long deadline; // 相对startTime的纳秒
+        long rounds;
+        Timeout prev,next;
+        Bucket bucket;
+        volatile int state=INIT;
+
+        Timeout(Runnable task,long deadline){
+            this.task=task;
+            this.deadline=deadline;
+        }
+
+        // 取消尚未执行的任务;已执行或已取消时返回false
+        public boolean cancel(){
+            if (!STATE.compareAndSet(this,INIT,CANCELLED)) return false;
+            cancelled.offer(this);
+            return true;
+        }
+
+        public boolean isCancelled(){
+            return state==CANCELLED;
+        }
+
+        public boolean isExpired(){
+            return state==EXPIRED;
+        }
+
+        void expire(){
+            if (!STATE.compareAndSet(this,INIT,EXPIRED)) return;
+            try {
+                executor.execute(task);
+            }catch (RejectedExecutionException e){
+                // 时间轮已关闭
+            }
+        }
+    }
+
+    static final AtomicIntegerFieldUpdater<Timeout> STATE=AtomicIntegerFieldUpdater.newUpdater(Timeout.class,"state");
+
+    static class DaemonThreadFactory implements ThreadFactory{
+        final String name;
+        int count=0;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread=new Thread(r,name+"-"+(count++));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    // 停止tick线程,未到期的任务不再执行
+    @Override
+    public void close(){
+        closed=true;
+        LockSupport.unpark(worker);
+        executor.shutdown();
+        synchronized (TimingWheel.class){
+            if (shared==this) shared=null;
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package util;
+
+//MpscRingBuffer消费者在队列为空时的等待方式
+public enum WaitStrategy {
+	BUSY_SPIN, // 一直自旋,延迟最低,独占一个核
+	YIELD, // 自旋时让出CPU
+	PARK // 先自旋再让出CPU,仍为空时park,由生产者唤醒;适合消费者数多于空闲核的情况
+}